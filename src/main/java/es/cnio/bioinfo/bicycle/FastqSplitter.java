@@ -33,6 +33,17 @@ import java.util.List;
 public class FastqSplitter {
 
   public static List<BufferedReader> splitfastq(List<File> fastqs, int maxChunks) throws IOException {
+    final List<BufferedReader> toret = new LinkedList<BufferedReader>();
+    for (InputStream is : splitfastqStreams(fastqs, maxChunks)) {
+      toret.add(new BufferedReader(new InputStreamReader(is)));
+    }
+    return toret;
+  }
+
+  /**
+   * Splits the fastq files in at most maxChunks streams of whole records, to be read without decoding.
+   */
+  public static List<InputStream> splitfastqStreams(List<File> fastqs, int maxChunks) throws IOException {
 
     // get total length
     long totalLength = 0;
@@ -70,11 +81,9 @@ public class FastqSplitter {
     }
 
     currentStart = 0;
-    final List<BufferedReader> toret = new LinkedList<BufferedReader>();
+    final List<InputStream> toret = new LinkedList<InputStream>();
     for (Long end : chunks) {
-      final InputStream is = new FileSequenceInputStream(fastqs, end, currentStart);
-
-      toret.add(new BufferedReader(new InputStreamReader(is)));
+      toret.add(new FileSequenceInputStream(fastqs, end, currentStart));
       currentStart = end;
     }
 
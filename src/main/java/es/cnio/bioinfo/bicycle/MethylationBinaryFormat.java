@@ -0,0 +1,193 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Binary block format for the per-strand .methylation files.
+ *
+ * A file is a plain sequence of blocks, so two files can be joined by concatenating their bytes. Every block holds
+ * the calls of a single contig and stores them by columns:
+ *
+ * <pre>
+ * int    MAGIC
+ * int    payload length (bytes after this field)
+ * varint contig name length, contig name (UTF-8)
+ * varint number of calls
+ * varint length in bytes of each of the nine columns
+ * columns:
+ *   positions     zigzag varint delta from the previous call of the block
+ *   flags         one byte: strand, context, corrected from non-CG, added by correction, raw pileup
+ *   depth         varint
+ *   CT depth      varint
+ *   cytosines     varint
+ *   beta score    8 bytes
+ *   p-value       8 bytes
+ *   pileup        varint length followed by 2-bit base codes (4 per byte) or, if it has other than A, C, G or T,
+ *                 the raw bytes
+ *   annotations   varint count followed by varint length and UTF-8 bytes of each annotation
+ * </pre>
+ */
+public final class MethylationBinaryFormat {
+
+	public static final int MAGIC = 0x424D4331; // BMC1
+	public static final int MAX_CALLS_PER_BLOCK = 65536;
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static final int COLUMNS = 9;
+
+	static final int FLAG_CRICK = 1;
+	static final int FLAG_CONTEXT_SHIFT = 1;
+	static final int FLAG_CONTEXT_MASK = 3 << FLAG_CONTEXT_SHIFT;
+	static final int FLAG_CORRECTED = 1 << 3;
+	static final int FLAG_ADDED_BY_CORRECTION = 1 << 4;
+	static final int FLAG_RAW_PILEUP = 1 << 5;
+
+	private static final byte[] BASES = {'A', 'C', 'G', 'T'};
+	private static final byte[] CODES = new byte[256];
+
+	static {
+		Arrays.fill(CODES, (byte) -1);
+		for (int i = 0; i < BASES.length; i++) {
+			CODES[BASES[i]] = (byte) i;
+		}
+	}
+
+	private MethylationBinaryFormat() {
+	}
+
+	/**
+	 * Returns true if the pileup can be stored with 2-bit codes.
+	 */
+	static boolean isPackable(CharSequence pileup) {
+		for (int i = 0; i < pileup.length(); i++) {
+			char c = pileup.charAt(i);
+			if (c >= 256 || CODES[c] == -1) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static void packPileup(CharSequence pileup, Column column) {
+		int length = pileup.length();
+		int packed = 0;
+		for (int i = 0; i < length; i++) {
+			packed |= CODES[pileup.charAt(i)] << ((i & 3) * 2);
+			if ((i & 3) == 3) {
+				column.write(packed);
+				packed = 0;
+			}
+		}
+		if ((length & 3) != 0) {
+			column.write(packed);
+		}
+	}
+
+	static String unpackPileup(ByteBuffer buffer, int length, char[] chars) {
+		for (int i = 0; i < length; i += 4) {
+			int packed = buffer.get() & 0xff;
+			for (int j = i; j < i + 4 && j < length; j++) {
+				chars[j] = (char) BASES[packed & 3];
+				packed >>>= 2;
+			}
+		}
+		return new String(chars, 0, length);
+	}
+
+	static long readVarLong(ByteBuffer buffer) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buffer.get();
+			value |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while (b < 0);
+		return value;
+	}
+
+	static int readVarInt(ByteBuffer buffer) {
+		return (int) readVarLong(buffer);
+	}
+
+	static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Growable byte array used to build the columns of a block.
+	 */
+	static class Column {
+		byte[] bytes = new byte[1024];
+		int size = 0;
+
+		void write(int b) {
+			ensure(1);
+			bytes[size++] = (byte) b;
+		}
+
+		void write(byte[] b) {
+			ensure(b.length);
+			System.arraycopy(b, 0, bytes, size, b.length);
+			size += b.length;
+		}
+
+		void writeVarLong(long value) {
+			ensure(10);
+			while ((value & ~0x7fL) != 0) {
+				bytes[size++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			bytes[size++] = (byte) value;
+		}
+
+		void writeVarInt(int value) {
+			writeVarLong(value & 0xffffffffL);
+		}
+
+		void writeDouble(double value) {
+			ensure(8);
+			long bits = Double.doubleToRawLongBits(value);
+			for (int i = 56; i >= 0; i -= 8) {
+				bytes[size++] = (byte) (bits >>> i);
+			}
+		}
+
+		void reset() {
+			size = 0;
+		}
+
+		private void ensure(int extra) {
+			if (size + extra > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+			}
+		}
+	}
+}
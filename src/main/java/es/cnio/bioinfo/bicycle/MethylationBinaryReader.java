@@ -0,0 +1,296 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import es.cnio.bioinfo.bicycle.gatk.Context;
+import es.cnio.bioinfo.bicycle.gatk.Strand;
+
+/**
+ * Reads methylation calls stored in the {@link MethylationBinaryFormat}, one block at a time. The block index,
+ * needed to seek to a contig, is built on demand by scanning the block headers.
+ */
+public class MethylationBinaryReader {
+
+	public static class BlockIndexEntry {
+		private final String contig;
+		private final long offset;
+		private final int calls;
+
+		public BlockIndexEntry(String contig, long offset, int calls) {
+			this.contig = contig;
+			this.offset = offset;
+			this.calls = calls;
+		}
+
+		public String getContig() {
+			return contig;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public int getCalls() {
+			return calls;
+		}
+	}
+
+	private static final Context[] CONTEXTS = Context.values();
+
+	private final File file;
+	private final FileChannel channel;
+	private long nextBlockOffset = 0;
+	private List<BlockIndexEntry> blockIndex;
+
+	private ByteBuffer block = ByteBuffer.allocate(64 * 1024);
+	private final ByteBuffer blockHeader = ByteBuffer.allocate(8);
+
+	// current block, decoded
+	private String contig;
+	private int calls = 0;
+	private int current = 0;
+	private long[] positions = new long[0];
+	private byte[] flags = new byte[0];
+	private int[] depths = new int[0];
+	private int[] ctDepths = new int[0];
+	private int[] cytosines = new int[0];
+	private double[] betaScores = new double[0];
+	private double[] pvals = new double[0];
+	private ByteBuffer pileups;
+	private ByteBuffer annotations;
+	private char[] pileupChars = new char[256];
+
+	public MethylationBinaryReader(File file) throws IOException {
+		this.file = file;
+		this.channel = new FileInputStream(file).getChannel();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the next call, or null at the end of the file.
+	 */
+	public MethylationCall next() throws IOException {
+		while (current == calls) {
+			if (!readBlock()) {
+				return null;
+			}
+		}
+		int i = current++;
+
+		int flag = flags[i];
+		Strand strand = (flag & MethylationBinaryFormat.FLAG_CRICK) != 0 ? Strand.CRICK : Strand.WATSON;
+		Context context = CONTEXTS[(flag & MethylationBinaryFormat.FLAG_CONTEXT_MASK) >> MethylationBinaryFormat
+				.FLAG_CONTEXT_SHIFT];
+
+		int pileupLength = MethylationBinaryFormat.readVarInt(pileups);
+		String pileup;
+		if ((flag & MethylationBinaryFormat.FLAG_RAW_PILEUP) != 0) {
+			byte[] raw = new byte[pileupLength];
+			pileups.get(raw);
+			pileup = new String(raw, MethylationBinaryFormat.UTF8);
+		} else {
+			if (pileupChars.length < pileupLength) {
+				pileupChars = new char[pileupLength * 2];
+			}
+			pileup = MethylationBinaryFormat.unpackPileup(pileups, pileupLength, pileupChars);
+		}
+
+		int annotationCount = MethylationBinaryFormat.readVarInt(annotations);
+		List<String> callAnnotations = new ArrayList<String>(annotationCount);
+		for (int j = 0; j < annotationCount; j++) {
+			byte[] bytes = new byte[MethylationBinaryFormat.readVarInt(annotations)];
+			annotations.get(bytes);
+			callAnnotations.add(new String(bytes, MethylationBinaryFormat.UTF8));
+		}
+
+		return new MethylationCall(contig, positions[i], strand, context, pvals[i], depths[i], ctDepths[i],
+				cytosines[i], pileup, (flag & MethylationBinaryFormat.FLAG_CORRECTED) != 0, (flag &
+				MethylationBinaryFormat.FLAG_ADDED_BY_CORRECTION) != 0, callAnnotations, betaScores[i]);
+	}
+
+	/**
+	 * Returns the blocks of the file, in file order.
+	 */
+	public List<BlockIndexEntry> getBlockIndex() throws IOException {
+		if (blockIndex == null) {
+			List<BlockIndexEntry> index = new ArrayList<>();
+			long offset = 0;
+			long size = channel.size();
+			ByteBuffer header = ByteBuffer.allocate(8 + 5 + 1024 + 5);
+			while (offset < size) {
+				header.clear();
+				readFully(header, offset, Math.min(header.capacity(), size - offset));
+				header.flip();
+				int payload = checkBlockHeader(header, offset);
+				byte[] contigBytes = new byte[MethylationBinaryFormat.readVarInt(header)];
+				if (contigBytes.length > header.remaining()) {
+					// very long contig name
+					header = ByteBuffer.allocate(contigBytes.length + 20);
+					continue;
+				}
+				header.get(contigBytes);
+				int blockCalls = MethylationBinaryFormat.readVarInt(header);
+				index.add(new BlockIndexEntry(new String(contigBytes, MethylationBinaryFormat.UTF8), offset,
+						blockCalls));
+				offset += 8 + payload;
+			}
+			blockIndex = Collections.unmodifiableList(index);
+		}
+		return blockIndex;
+	}
+
+	/**
+	 * Returns the contigs of the file, in the order they appear, with their number of calls.
+	 */
+	public Map<String, Long> getContigs() throws IOException {
+		Map<String, Long> toret = new LinkedHashMap<>();
+		for (BlockIndexEntry entry : getBlockIndex()) {
+			Long count = toret.get(entry.getContig());
+			toret.put(entry.getContig(), (count == null ? 0 : count) + entry.getCalls());
+		}
+		return toret;
+	}
+
+	/**
+	 * Moves to the first call of the given contig.
+	 *
+	 * @return false if the file has no calls for the contig. The position is not changed in that case.
+	 */
+	public boolean seek(String contig) throws IOException {
+		for (BlockIndexEntry entry : getBlockIndex()) {
+			if (entry.getContig().equals(contig)) {
+				this.nextBlockOffset = entry.getOffset();
+				this.calls = 0;
+				this.current = 0;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private boolean readBlock() throws IOException {
+		if (nextBlockOffset >= channel.size()) {
+			return false;
+		}
+		blockHeader.clear();
+		readFully(blockHeader, nextBlockOffset, 8);
+		blockHeader.flip();
+		int payload = checkBlockHeader(blockHeader, nextBlockOffset);
+
+		if (block.capacity() < payload) {
+			block = ByteBuffer.allocate(Math.max(payload, block.capacity() * 2));
+		}
+		block.clear();
+		readFully(block, nextBlockOffset + 8, payload);
+		block.flip();
+		nextBlockOffset += 8 + payload;
+
+		byte[] contigBytes = new byte[MethylationBinaryFormat.readVarInt(block)];
+		block.get(contigBytes);
+		if (contig == null || !contig.equals(new String(contigBytes, MethylationBinaryFormat.UTF8))) {
+			contig = new String(contigBytes, MethylationBinaryFormat.UTF8);
+		}
+		int n = MethylationBinaryFormat.readVarInt(block);
+		int[] columnSizes = new int[MethylationBinaryFormat.COLUMNS];
+		for (int i = 0; i < columnSizes.length; i++) {
+			columnSizes[i] = MethylationBinaryFormat.readVarInt(block);
+		}
+		if (positions.length < n) {
+			positions = new long[n];
+			flags = new byte[n];
+			depths = new int[n];
+			ctDepths = new int[n];
+			cytosines = new int[n];
+			betaScores = new double[n];
+			pvals = new double[n];
+		}
+
+		long position = 0;
+		for (int i = 0; i < n; i++) {
+			position += MethylationBinaryFormat.unzigzag(MethylationBinaryFormat.readVarLong(block));
+			positions[i] = position;
+		}
+		block.get(flags, 0, n);
+		for (int i = 0; i < n; i++) {
+			depths[i] = MethylationBinaryFormat.readVarInt(block);
+		}
+		for (int i = 0; i < n; i++) {
+			ctDepths[i] = MethylationBinaryFormat.readVarInt(block);
+		}
+		for (int i = 0; i < n; i++) {
+			cytosines[i] = MethylationBinaryFormat.readVarInt(block);
+		}
+		for (int i = 0; i < n; i++) {
+			betaScores[i] = block.getDouble();
+		}
+		for (int i = 0; i < n; i++) {
+			pvals[i] = block.getDouble();
+		}
+
+		pileups = block.slice();
+		pileups.limit(columnSizes[7]);
+		block.position(block.position() + columnSizes[7]);
+		annotations = block.slice();
+		annotations.limit(columnSizes[8]);
+
+		this.calls = n;
+		this.current = 0;
+		return true;
+	}
+
+	private int checkBlockHeader(ByteBuffer header, long offset) throws IOException {
+		if (header.getInt() != MethylationBinaryFormat.MAGIC) {
+			throw new IOException("Not a binary methylation block at offset " + offset + " of " + file);
+		}
+		return header.getInt();
+	}
+
+	private void readFully(ByteBuffer buffer, long offset, long length) throws IOException {
+		buffer.limit((int) (buffer.position() + length));
+		long position = offset;
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("Truncated binary methylation file: " + file);
+			}
+			position += read;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import es.cnio.bioinfo.bicycle.MethylationBinaryFormat.Column;
+import es.cnio.bioinfo.bicycle.gatk.Strand;
+
+/**
+ * Writes methylation calls in the {@link MethylationBinaryFormat}. Calls are kept in memory until the contig
+ * changes, the block is full or the writer is flushed.
+ */
+public class MethylationBinaryWriter {
+
+	private final OutputStream out;
+
+	private String contig = null;
+	private int calls = 0;
+	private long lastPosition = 0;
+
+	private final Column positions = new Column();
+	private final Column flags = new Column();
+	private final Column depths = new Column();
+	private final Column ctDepths = new Column();
+	private final Column cytosines = new Column();
+	private final Column betaScores = new Column();
+	private final Column pvals = new Column();
+	private final Column pileups = new Column();
+	private final Column annotations = new Column();
+	private final Column[] columns = {positions, flags, depths, ctDepths, cytosines, betaScores, pvals, pileups,
+			annotations};
+
+	private final Column header = new Column();
+
+	public MethylationBinaryWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	public void write(MethylationCall call) throws IOException {
+		if (contig != null && (!contig.equals(call.getContig()) || calls == MethylationBinaryFormat
+				.MAX_CALLS_PER_BLOCK)) {
+			writeBlock();
+		}
+		if (contig == null) {
+			contig = call.getContig();
+			lastPosition = 0;
+		}
+
+		positions.writeVarLong(MethylationBinaryFormat.zigzag(call.getPosition() - lastPosition));
+		lastPosition = call.getPosition();
+
+		String pileup = call.getPileup();
+		boolean packable = MethylationBinaryFormat.isPackable(pileup);
+
+		int flag = call.getStrand() == Strand.CRICK ? MethylationBinaryFormat.FLAG_CRICK : 0;
+		flag |= call.getContext().ordinal() << MethylationBinaryFormat.FLAG_CONTEXT_SHIFT;
+		if (call.isCorrectedFromNonCG()) {
+			flag |= MethylationBinaryFormat.FLAG_CORRECTED;
+		}
+		if (call.isAddedByCorrection()) {
+			flag |= MethylationBinaryFormat.FLAG_ADDED_BY_CORRECTION;
+		}
+		if (!packable) {
+			flag |= MethylationBinaryFormat.FLAG_RAW_PILEUP;
+		}
+		flags.write(flag);
+
+		depths.writeVarInt(call.getDepth());
+		ctDepths.writeVarInt(call.getCTdepth());
+		cytosines.writeVarInt(call.getCytosines());
+		betaScores.writeDouble(call.getBetaScore());
+		pvals.writeDouble(call.getPval());
+
+		pileups.writeVarInt(pileup.length());
+		if (packable) {
+			MethylationBinaryFormat.packPileup(pileup, pileups);
+		} else {
+			pileups.write(pileup.getBytes(MethylationBinaryFormat.UTF8));
+		}
+
+		annotations.writeVarInt(call.getAnnotations().size());
+		for (String annotation : call.getAnnotations()) {
+			byte[] bytes = annotation.getBytes(MethylationBinaryFormat.UTF8);
+			annotations.writeVarInt(bytes.length);
+			annotations.write(bytes);
+		}
+
+		calls++;
+	}
+
+	/**
+	 * Ends the current block and flushes the underlying stream.
+	 */
+	public void flush() throws IOException {
+		if (calls > 0) {
+			writeBlock();
+		}
+		out.flush();
+	}
+
+	public void close() throws IOException {
+		flush();
+		out.close();
+	}
+
+	private void writeBlock() throws IOException {
+		header.reset();
+		byte[] contigBytes = contig.getBytes(MethylationBinaryFormat.UTF8);
+		header.writeVarInt(contigBytes.length);
+		header.write(contigBytes);
+		header.writeVarInt(calls);
+		for (Column column : columns) {
+			header.writeVarInt(column.size);
+		}
+
+		int payload = header.size;
+		for (Column column : columns) {
+			payload += column.size;
+		}
+
+		writeInt(MethylationBinaryFormat.MAGIC);
+		writeInt(payload);
+		out.write(header.bytes, 0, header.size);
+		for (Column column : columns) {
+			out.write(column.bytes, 0, column.size);
+			column.reset();
+		}
+
+		contig = null;
+		calls = 0;
+	}
+
+	private void writeInt(int value) throws IOException {
+		out.write(value >>> 24);
+		out.write(value >>> 16);
+		out.write(value >>> 8);
+		out.write(value);
+	}
+}
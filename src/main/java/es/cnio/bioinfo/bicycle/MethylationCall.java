@@ -22,7 +22,6 @@ along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
 package es.cnio.bioinfo.bicycle;
 
 import java.io.PrintStream;
-import java.util.LinkedList;
 import java.util.List;
 
 import es.cnio.bioinfo.bicycle.gatk.Context;
@@ -45,6 +44,12 @@ public class MethylationCall {
 	private double betaScore;
 
 
+	/**
+	 * For flyweight subclasses, which override all the getters.
+	 */
+	protected MethylationCall() {
+	}
+
 	public MethylationCall(String contig, long position, Strand strand, Context context, double pval,
 						   int depth, int CTdepth, int cytosines, String pileup, boolean correctedFromNonCG, boolean
 								   addedByCorrection, List<String> annotations, double betaScore) {
@@ -113,7 +118,7 @@ public class MethylationCall {
 	}
 
 	public boolean isMethylated() {
-		return this.pval < this.cutOff;
+		return this.getPval() < this.cutOff;
 	}
 
 	public double getCutOff() {
@@ -149,33 +154,14 @@ public class MethylationCall {
 	public String toString() {
 		return this.getContig() + "\t" + this.getPosition() + "\t" + this.getStrand() + "\t" + this.getContext() +
 				"\t" + this.getDepth() + "\t" + this.getCTdepth() + "\t" + this.getCytosines() + "\t" + this.getPileup
-				() + "\t" + this.getPval() + "\t" + this.correctedFromNonCG + "\t" + this.addedByCorrection;
+				() + "\t" + this.getPval() + "\t" + this.isCorrectedFromNonCG() + "\t" + this.isAddedByCorrection();
 	}
 
 	public static MethylationCall unmarshall(String line) {
-
-		String[] tokens = line.split("\t");
-		List<String> annotations = new LinkedList<String>();
-		//if (tokens.length>=11)
-
-		//modified (osvaldo, 3jan2016): required after adding betaScore in between (increments one position)
-		int tokenPos = 12;
-		if (tokens.length >= tokenPos)
-			for (int i = tokenPos; i < tokens.length; i++) {
-				annotations.add(tokens[i]);
-			}
-
-
-		//return new MethylationCall(tokens[0], Long.parseLong(tokens[1]), Strand.valueOf(tokens[2]), Context.valueOf
-		// (tokens[3]), Double.parseDouble(tokens[8]), Integer.parseInt(tokens[4]), Integer.parseInt(tokens[5]),
-		// Integer.parseInt(tokens[6]), tokens[7], Boolean.valueOf(tokens[9]), Boolean.valueOf(tokens[10]),
-		// annotations );
-
-		//modified (osvaldo, 31dec2015)
-		return new MethylationCall(tokens[0], Long.parseLong(tokens[1]), Strand.valueOf(tokens[2]), Context.valueOf
-				(tokens[3]), Double.parseDouble(tokens[9]), Integer.parseInt(tokens[4]), Integer.parseInt(tokens[5]),
-				Integer.parseInt(tokens[6]), tokens[8], Boolean.valueOf(tokens[10]), Boolean.valueOf(tokens[11]),
-				annotations, Double.parseDouble(tokens[7]));
+		// the betaScore is the 8th field and the annotations start at the 13th
+		MethylationCallView view = new MethylationCallView();
+		view.reset(line);
+		return view.toCall();
 	}
 
 	public List<String> getAnnotations() {
@@ -183,50 +169,43 @@ public class MethylationCall {
 	}
 
 	public String marshall() {
-/*		String annotations="";
-		for (String annotation: this.annotations){
-            annotations+="\t"+annotation;
-        }
-       
-        return this.getContig()+"\t"+this.getPosition()+"\t"+this.getStrand()+"\t"+this.getContext()+"\t"+this
-        .getDepth()+"\t"+this.getCTdepth()+"\t"+this.getCytosines()+"\t"+this.getPileup()+"\t"+this.getPval()
-        +"\t"+this.correctedFromNonCG+"\t"+this.addedByCorrection+annotations;
-*/
+		StringBuilder sb = new StringBuilder(128);
+		marshall(sb);
+		return sb.toString();
+	}
 
+	/**
+	 * Appends the line of this call in the '*methylation' files, without line separator.
+	 */
+	public void marshall(StringBuilder sb) {
 		//modified (osvaldo, 31dec2015)
-		//this method writes in '*methylation' files
-		StringBuffer annotations = new StringBuffer();
-		for (String annotation : this.annotations) {
-			annotations.append("\t").append(annotation);
-		}
-
-		StringBuffer sb = new StringBuffer();
 		sb.append(this.getContig());
-		sb.append("\t");
+		sb.append('\t');
 		sb.append(this.getPosition());
-		sb.append("\t");
-		sb.append(this.getStrand());
-		sb.append("\t");
-		sb.append(this.getContext());
-		sb.append("\t");
+		sb.append('\t');
+		sb.append(this.getStrand().name());
+		sb.append('\t');
+		sb.append(this.getContext().name());
+		sb.append('\t');
 		sb.append(this.getDepth());
-		sb.append("\t");
+		sb.append('\t');
 		sb.append(this.getCTdepth());
-		sb.append("\t");
+		sb.append('\t');
 		sb.append(this.getCytosines());
-		sb.append("\t");
+		sb.append('\t');
 		sb.append(this.getBetaScore());
-		sb.append("\t");
+		sb.append('\t');
 		sb.append(this.getPileup());
-		sb.append("\t");
+		sb.append('\t');
 		sb.append(this.getPval());
-		sb.append("\t");
-		sb.append(this.correctedFromNonCG);
-		sb.append("\t");
-		sb.append(this.addedByCorrection);
-		sb.append(annotations);
-
-		return sb.toString();
+		sb.append('\t');
+		sb.append(this.isCorrectedFromNonCG());
+		sb.append('\t');
+		sb.append(this.isAddedByCorrection());
+		List<String> annotations = this.getAnnotations();
+		for (int i = 0; i < annotations.size(); i++) {
+			sb.append('\t').append(annotations.get(i));
+		}
 	}
 
 	public void marshall(PrintStream out) {
@@ -0,0 +1,416 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+import es.cnio.bioinfo.bicycle.gatk.Context;
+import es.cnio.bioinfo.bicycle.gatk.Strand;
+
+/**
+ * A reusable view of a '*methylation' (or methylcytosines) line as a {@link MethylationCall}. {@link
+ * #reset(CharSequence)} only finds the field boundaries; fields are parsed from the line when requested, without
+ * splitting it and, except for the pileup, annotations and some p-values, without allocating. The same view can be
+ * reset with the next line, so it must be copied with {@link #toCall()} if the call has to outlive the line.
+ * <p>
+ * As any call, a view can be corrected to CG and given a cut-off. Both apply to the current line only: {@link
+ * #reset(CharSequence)} clears them.
+ */
+public class MethylationCallView extends MethylationCall {
+
+	/**
+	 * Column of the first annotation in the line.
+	 */
+	public static final int ANNOTATIONS_START = 12;
+
+	private static final int FIELDS = ANNOTATIONS_START;
+
+	private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+	private CharSequence line;
+	private final AsciiBytes bytes = new AsciiBytes();
+
+	// start of each field, plus the end of the last one + 1
+	private int[] starts = new int[FIELDS + 8];
+	private int fields = 0;
+
+	private String contig;
+	// p-values are printed with up to 17 digits and usually need Double.parseDouble, parse them once
+	private double pval;
+	private boolean pvalParsed;
+	private final Annotations annotations = new Annotations();
+	// set by correctToCG until the next reset
+	private boolean correctedToCG;
+
+	/**
+	 * Points this view to a new line.
+	 *
+	 * @throws IllegalArgumentException if the line has less than the 12 fields of a call
+	 */
+	public MethylationCallView reset(CharSequence line) {
+		this.line = line;
+		int length = line.length();
+		fields = 0;
+		starts[fields++] = 0;
+		for (int i = 0; i < length; i++) {
+			if (line.charAt(i) == '\t') {
+				if (fields == starts.length) {
+					int[] newStarts = new int[starts.length * 2];
+					System.arraycopy(starts, 0, newStarts, 0, starts.length);
+					starts = newStarts;
+				}
+				starts[fields++] = i + 1;
+			}
+		}
+		// trailing empty fields are ignored, as String.split does
+		int end = length;
+		while (fields > FIELDS && starts[fields - 1] == end) {
+			fields--;
+			end--;
+		}
+		if (fields == starts.length) {
+			int[] newStarts = new int[starts.length * 2];
+			System.arraycopy(starts, 0, newStarts, 0, starts.length);
+			starts = newStarts;
+		}
+		starts[fields] = end + 1;
+
+		if (fields < FIELDS) {
+			throw new IllegalArgumentException("not a methylation call line: " + line);
+		}
+		pvalParsed = false;
+		correctedToCG = false;
+		setCutOff(-1);
+		if (contig != null && !fieldEquals(0, contig)) {
+			contig = null;
+		}
+		return this;
+	}
+
+	/**
+	 * Points this view to a line of ASCII bytes. The bytes are not copied.
+	 */
+	public MethylationCallView reset(byte[] buffer, int offset, int length) {
+		bytes.set(buffer, offset, length);
+		return reset(bytes);
+	}
+
+	/**
+	 * Returns a detached copy of the current call.
+	 */
+	public MethylationCall toCall() {
+		MethylationCall call = new MethylationCall(getContig(), getPosition(), getStrand(), getContext(), getPval(),
+				getDepth(), getCTdepth(), getCytosines(), getPileup(), isCorrectedFromNonCG(), isAddedByCorrection(),
+				new ArrayList<>(getAnnotations()), getBetaScore());
+		call.setCutOff(getCutOff());
+		return call;
+	}
+
+	/**
+	 * Returns true if the contig of the current call is the given one.
+	 */
+	public boolean isContig(CharSequence contig) {
+		return fieldEquals(0, contig);
+	}
+
+	@Override
+	public String getContig() {
+		if (contig == null) {
+			// kept while the next lines are of the same contig
+			contig = field(0);
+		}
+		return contig;
+	}
+
+	@Override
+	public long getPosition() {
+		return parseLong(1);
+	}
+
+	@Override
+	public Strand getStrand() {
+		if (fieldEquals(2, "WATSON")) {
+			return Strand.WATSON;
+		} else if (fieldEquals(2, "CRICK")) {
+			return Strand.CRICK;
+		}
+		return Strand.valueOf(field(2));
+	}
+
+	@Override
+	public Context getContext() {
+		if (correctedToCG) {
+			return Context.CG;
+		} else if (fieldEquals(3, "CG")) {
+			return Context.CG;
+		} else if (fieldEquals(3, "CHG")) {
+			return Context.CHG;
+		} else if (fieldEquals(3, "CHH")) {
+			return Context.CHH;
+		}
+		return Context.valueOf(field(3));
+	}
+
+	@Override
+	public int getDepth() {
+		return (int) parseLong(4);
+	}
+
+	@Override
+	public int getCTdepth() {
+		return (int) parseLong(5);
+	}
+
+	@Override
+	public int getCytosines() {
+		return (int) parseLong(6);
+	}
+
+	@Override
+	public double getBetaScore() {
+		return parseDouble(7);
+	}
+
+	@Override
+	public String getPileup() {
+		return field(8);
+	}
+
+	@Override
+	public double getPval() {
+		if (!pvalParsed) {
+			pval = parseDouble(9);
+			pvalParsed = true;
+		}
+		return pval;
+	}
+
+	@Override
+	public boolean isCorrectedFromNonCG() {
+		return correctedToCG || fieldEquals(10, "true");
+	}
+
+	@Override
+	public boolean isAddedByCorrection() {
+		return fieldEquals(11, "true");
+	}
+
+	@Override
+	public List<String> getAnnotations() {
+		return annotations;
+	}
+
+	public int getAnnotationCount() {
+		return fields - FIELDS;
+	}
+
+	public String getAnnotation(int index) {
+		return field(FIELDS + index);
+	}
+
+	@Override
+	public void correctToCG() {
+		correctedToCG = true;
+	}
+
+	/**
+	 * Appends the current line, as it was read unless it has been corrected to CG.
+	 */
+	@Override
+	public void marshall(StringBuilder sb) {
+		if (correctedToCG) {
+			super.marshall(sb);
+		} else {
+			sb.append(line, 0, starts[fields] - 1);
+		}
+	}
+
+	private int fieldStart(int field) {
+		return starts[field];
+	}
+
+	private int fieldEnd(int field) {
+		return starts[field + 1] - 1;
+	}
+
+	private String field(int field) {
+		return line.subSequence(fieldStart(field), fieldEnd(field)).toString();
+	}
+
+	private boolean fieldEquals(int field, CharSequence value) {
+		int start = fieldStart(field);
+		int length = fieldEnd(field) - start;
+		if (length != value.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (line.charAt(start + i) != value.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long parseLong(int field) {
+		int i = fieldStart(field);
+		int end = fieldEnd(field);
+		boolean negative = false;
+		if (i < end && line.charAt(i) == '-') {
+			negative = true;
+			i++;
+		}
+		if (i == end) {
+			throw new NumberFormatException("empty number in field " + field + ": " + line);
+		}
+		long value = 0;
+		for (; i < end; i++) {
+			int digit = line.charAt(i) - '0';
+			if (digit < 0 || digit > 9) {
+				return Long.parseLong(field(field));
+			}
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parses plain decimals and scientific notation with up to 15 significant digits and small exponents exactly,
+	 * as m*10^e is then a single correctly rounded operation. Other values go through Double.parseDouble.
+	 */
+	private double parseDouble(int field) {
+		int i = fieldStart(field);
+		int end = fieldEnd(field);
+		boolean negative = false;
+		if (i < end && line.charAt(i) == '-') {
+			negative = true;
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean point = false;
+		boolean anyDigit = false;
+		for (; i < end; i++) {
+			char c = line.charAt(i);
+			if (c >= '0' && c <= '9') {
+				anyDigit = true;
+				if (mantissa != 0 || c != '0') {
+					if (++digits > 15) {
+						return Double.parseDouble(field(field));
+					}
+					mantissa = mantissa * 10 + (c - '0');
+				}
+				if (point) {
+					exponent--;
+				}
+			} else if (c == '.' && !point) {
+				point = true;
+			} else if (c == 'E' && anyDigit) {
+				int e = 0;
+				boolean negativeExponent = false;
+				i++;
+				if (i < end && line.charAt(i) == '-') {
+					negativeExponent = true;
+					i++;
+				}
+				if (i == end || end - i > 3) {
+					return Double.parseDouble(field(field));
+				}
+				for (; i < end; i++) {
+					int digit = line.charAt(i) - '0';
+					if (digit < 0 || digit > 9) {
+						return Double.parseDouble(field(field));
+					}
+					e = e * 10 + digit;
+				}
+				exponent += negativeExponent ? -e : e;
+			} else {
+				// NaN, Infinity...
+				return Double.parseDouble(field(field));
+			}
+		}
+		if (!anyDigit) {
+			return Double.parseDouble(field(field));
+		}
+		double value;
+		if (mantissa == 0) {
+			value = 0d;
+		} else if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+			value = mantissa * POWERS_OF_TEN[exponent];
+		} else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+			value = mantissa / POWERS_OF_TEN[-exponent];
+		} else {
+			return Double.parseDouble(field(field));
+		}
+		return negative ? -value : value;
+	}
+
+	private class Annotations extends AbstractList<String> {
+		@Override
+		public String get(int index) {
+			if (index < 0 || index >= size()) {
+				throw new IndexOutOfBoundsException("annotation " + index + " of " + size());
+			}
+			return getAnnotation(index);
+		}
+
+		@Override
+		public int size() {
+			return getAnnotationCount();
+		}
+	}
+
+	private static class AsciiBytes implements CharSequence {
+		private byte[] buffer;
+		private int offset;
+		private int length;
+
+		void set(byte[] buffer, int offset, int length) {
+			this.buffer = buffer;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return (char) (buffer[offset + index] & 0xFF);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new String(buffer, offset + start, end - start, MethylationBinaryFormat.UTF8);
+		}
+
+		@Override
+		public String toString() {
+			return new String(buffer, offset, length, MethylationBinaryFormat.UTF8);
+		}
+	}
+}
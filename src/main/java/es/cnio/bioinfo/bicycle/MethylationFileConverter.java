@@ -0,0 +1,84 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Converts .methylation files between the text and the {@link MethylationBinaryFormat binary} formats.
+ */
+public class MethylationFileConverter {
+
+	public static void toBinary(File text, File binary) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(text));
+		MethylationBinaryWriter writer = new MethylationBinaryWriter(new BufferedOutputStream(new FileOutputStream
+				(binary), 1024 * 1024));
+		try {
+			MethylationCallView call = new MethylationCallView();
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				if (!line.startsWith("#")) {
+					writer.write(call.reset(line));
+				}
+			}
+		} finally {
+			reader.close();
+			writer.close();
+		}
+	}
+
+	public static void toText(File binary, File text) throws IOException {
+		MethylationBinaryReader reader = new MethylationBinaryReader(binary);
+		PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(text), 1024 * 1024));
+		try {
+			StringBuilder line = new StringBuilder(256);
+			MethylationCall call = null;
+			while ((call = reader.next()) != null) {
+				line.setLength(0);
+				call.marshall(line);
+				line.append('\n');
+				out.append(line);
+			}
+		} finally {
+			reader.close();
+			out.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3 || !(args[0].equals("tobinary") || args[0].equals("totext"))) {
+			System.err.println("usage: MethylationFileConverter tobinary|totext <input file> <output file>");
+			System.exit(1);
+		}
+		if (args[0].equals("tobinary")) {
+			toBinary(new File(args[1]), new File(args[2]));
+		} else {
+			toText(new File(args[1]), new File(args[2]));
+		}
+	}
+}
@@ -24,11 +24,14 @@ package es.cnio.bioinfo.bicycle;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Scanner;
 
+import es.cnio.bioinfo.bicycle.gatk.CytosineContextIndex;
+
 public class Reference {
 
 	private File referenceFile;
@@ -59,8 +62,7 @@ public class Reference {
 
 	public List<String> getSequenceNames() {
 		try {
-			File index = new File(this.project.getWorkingDirectory() + File.separator + this.referenceFile.getName() +
-					".index");
+			File index = getSequenceIndexFile();
 			if (!index.exists()) {
 				createReferenceIndex(index);
 			}
@@ -79,6 +81,50 @@ public class Reference {
 		}
 	}
 
+	/**
+	 * The headers of the sequences of this reference, one per line.
+	 */
+	public File getSequenceIndexFile() {
+		return new File(this.project.getWorkingDirectory() + File.separator + this.referenceFile.getName() +
+				".index");
+	}
+
+	public File getFastaIndexFile() {
+		return new File(this.referenceFile.getAbsolutePath() + ".fai");
+	}
+
+	/**
+	 * The sequence dictionary, where GATK looks for it (the reference file with .dict instead of .fa).
+	 */
+	public File getSequenceDictionaryFile() {
+		return new File(this.referenceFile.getAbsolutePath().replaceAll("\\.fa$", ".dict"));
+	}
+
+	public File getStatisticsFile() {
+		return new File(this.project.getWorkingDirectory() + File.separator + this.referenceFile.getName() +
+				".stats");
+	}
+
+	public File getContextIndexFile() {
+		return new File(this.project.getWorkingDirectory() + File.separator + this.referenceFile.getName() +
+				".contexts");
+	}
+
+	/**
+	 * Returns the context of every cytosine of this reference, building the index the first time.
+	 */
+	public CytosineContextIndex getContextIndex() {
+		try {
+			File index = getContextIndexFile();
+			if (!index.exists()) {
+				CytosineContextIndex.build(this.referenceFile, index);
+			}
+			return new CytosineContextIndex(index);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	private void createReferenceIndex(File index) throws FileNotFoundException {
 		PrintStream indexOut = new PrintStream(new FileOutputStream(index));
 		Scanner sc = new Scanner(this.referenceFile);
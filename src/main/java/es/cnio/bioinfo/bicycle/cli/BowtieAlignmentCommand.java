@@ -56,6 +56,7 @@ public class BowtieAlignmentCommand extends ProjectCommand {
 		boolean skipUnconverted = parameters.containsKey(this.findOption("u"));
 
 		final BowtieAlignment ba = new BowtieAlignment(project);
+		ba.setSortedBAMOutput(parameters.containsKey(this.findOption("sb")));
 		for (Sample sample : project.getSamples()) {
 			for (Reference reference : project.getReferences()) {
 				if (v == 1) { /* bowtie 1 */
@@ -178,6 +179,10 @@ public class BowtieAlignmentCommand extends ProjectCommand {
 						"specifying L,0,-0.6 sets the minimum-score function f to f(x) = 0 + -0.6 * x, where x is the" +
 						" read length. See bowtie2 manual for details. The default in --end-to-end mode is L," +
 						"-0.6,-0.6 and in --local mode is G,20,8.", true, true));
+		toret.add(new Option("sorted-bam", "sb",
+				"Write the alignments as coordinate sorted and indexed BAM files, sorted in memory and temporary " +
+						"files of the output directory, instead of SAM files. The methylation analysis uses them " +
+						"directly, without sorting and converting the SAM files with samtools", true, false));
 		return toret;
 	}
 
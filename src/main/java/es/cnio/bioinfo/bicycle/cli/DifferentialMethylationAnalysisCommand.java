@@ -91,6 +91,7 @@ public class DifferentialMethylationAnalysisCommand extends ProjectCommand {
 
 		DifferentialMethylationAnalysis dma =
 				new DifferentialMethylationAnalysis(new MethylationAnalysis(project), contexts);
+		dma.setThreads(Integer.parseInt(parameters.get(this.findOption("n"))));
 		for (Reference reference : project.getReferences()) {
 			dma.analyzeDifferentialMethylationByBase(reference, treatmentSamples, controlSamples);
 			//by region
@@ -167,6 +168,9 @@ public class DifferentialMethylationAnalysisCommand extends ProjectCommand {
 		toret.add(new Option("region-beds", "b",
 				"Comma-separated (with no spaces) list of BED files to analyze at region-level", true, true));
 
+		toret.add(new DefaultValuedOption("threads", "n",
+				"number of threads to compute the differentially methylated cytosines", "1"));
+
 
 		return toret;
 	}
@@ -84,6 +84,8 @@ public class MethylationAnalysisCommand extends ProjectCommand {
 
 
 		MethylationAnalysis ma = new MethylationAnalysis(project);
+		ma.setBinaryMethylationFiles(parameters.containsKey(this.findOption("y")));
+		ma.setNativeCaller(parameters.containsKey(this.findOption("w")));
 		if (errorMode == ErrorRateMode.from_control_genome) {
 
 			if (errorTokens.length < 2) {
@@ -168,6 +170,13 @@ public class MethylationAnalysisCommand extends ProjectCommand {
 		toret.add(new Option("correct non-CG to CG", "g",
 				"Correct non-CG", true, false));
 
+		toret.add(new Option("binary-methylation-files", "y",
+				"Write the intermediate per-strand .methylation files in a compact binary format", true, false));
+
+		toret.add(new Option("native-caller", "w",
+				"Call methylation reading the BAM files directly, without the GATK engine (experimental)", true,
+				false));
+
 		return toret;
 	}
 
@@ -27,7 +27,7 @@ import java.util.Map;
 import es.cnio.bioinfo.bicycle.Project;
 import es.cnio.bioinfo.bicycle.Reference;
 import es.cnio.bioinfo.bicycle.operations.ReferenceBisulfitation;
-import es.cnio.bioinfo.bicycle.operations.ReferenceBisulfitation.Replacement;
+import es.cnio.bioinfo.bicycle.operations.ReferenceIndexing;
 
 public class ReferenceBisulfitationCommand extends ProjectCommand {
 
@@ -38,7 +38,7 @@ public class ReferenceBisulfitationCommand extends ProjectCommand {
 
 	@Override
 	public String getDescription() {
-		return "Performs reference in-silico bisulfitation (CtoT and GtoA)";
+		return "Performs reference in-silico bisulfitation (CtoT and GtoA) and indexes the reference";
 	}
 
 	@Override
@@ -46,10 +46,12 @@ public class ReferenceBisulfitationCommand extends ProjectCommand {
 
 
 		ReferenceBisulfitation rb = new ReferenceBisulfitation(project);
+		rb.setThreads(Integer.parseInt(parameters.get(this.findOption("t"))));
 		boolean onWorking = parameters.containsKey(this.findOption("w"));
+		ReferenceIndexing ri = new ReferenceIndexing(project);
 		for (Reference ref : project.getReferences()) {
-			rb.computeReferenceBisulfitation(Replacement.CT, ref, onWorking);
-			rb.computeReferenceBisulfitation(Replacement.GA, ref, onWorking);
+			rb.computeReferenceBisulfitation(ref, onWorking);
+			ri.computeReferenceIndexes(ref);
 		}
 	}
 
@@ -60,6 +62,8 @@ public class ReferenceBisulfitationCommand extends ProjectCommand {
 				"generate output files on working dir (by default, bisulfited reference will be placed together with" +
 						" " +
 						"reference files)", true, false));
+		toret.add(new DefaultValuedOption("threads", "t",
+				"number of threads converting each reference", "4"));
 		return toret;
 	}
 
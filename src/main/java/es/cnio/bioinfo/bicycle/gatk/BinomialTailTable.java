@@ -0,0 +1,173 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.math.MathException;
+import org.apache.commons.math.distribution.BinomialDistribution;
+import org.apache.commons.math.distribution.BinomialDistributionImpl;
+
+/**
+ * Upper binomial tails P(X &gt;= mC) for a fixed error rate, computed once per depth and cached.
+ *
+ * Values are computed with the same commons-math call used before, so they are identical. Rows are created on
+ * demand and only hold the mC prefix that has been asked for, growing when a larger count comes in. The table of
+ * rows is an immutable snapshot that is copied and republished with a compare-and-set when a row is added or
+ * grown, so readers never lock and threads racing on the same row just compute it twice.
+ *
+ * Memory is bounded: each table caches at most about MAX_CACHED_VALUES tails (further tails are computed without
+ * the cache) and at most MAX_TABLES error rates are kept at once.
+ */
+public class BinomialTailTable {
+
+	// depths above this limit are rare (repeats, control genomes) and are not cached
+	public static final int MAX_CACHED_DEPTH = 1024;
+
+	// 2 MB of doubles per error rate
+	public static final int MAX_CACHED_VALUES = 256 * 1024;
+
+	public static final int MAX_TABLES = 16;
+
+	private static final int MIN_ROW_LENGTH = 8;
+
+	private static final ConcurrentMap<Double, BinomialTailTable> tables = new ConcurrentHashMap<>();
+
+	private final double errorRate;
+	private final AtomicReference<double[][]> rows = new AtomicReference<>(new double[64][]);
+	private final AtomicInteger cachedValues = new AtomicInteger();
+
+	private BinomialTailTable(double errorRate) {
+		this.errorRate = errorRate;
+	}
+
+	public static BinomialTailTable forErrorRate(double errorRate) {
+		BinomialTailTable table = tables.get(errorRate);
+		if (table == null) {
+			if (tables.size() >= MAX_TABLES) {
+				// error rates come in a handful per analysis, so a full map means old analyses; start over
+				tables.clear();
+			}
+			BinomialTailTable newTable = new BinomialTailTable(errorRate);
+			table = tables.putIfAbsent(errorRate, newTable);
+			if (table == null) {
+				table = newTable;
+			}
+		}
+		return table;
+	}
+
+	static int getTableCount() {
+		return tables.size();
+	}
+
+	public double getErrorRate() {
+		return errorRate;
+	}
+
+	/**
+	 * Returns the number of tails currently cached by this table.
+	 */
+	public int getCachedValues() {
+		return cachedValues.get();
+	}
+
+	/**
+	 * Returns the probability of observing mCCount or more methylated cytosines out of depth reads only due to the
+	 * error rate.
+	 */
+	public double getPval(int mCCount, int depth) {
+		if (mCCount == 0) {
+			return 1.0d;
+		}
+		if (depth > MAX_CACHED_DEPTH || mCCount > depth || mCCount < 0) {
+			return computePval(errorRate, mCCount, depth);
+		}
+
+		double[][] snapshot = rows.get();
+		double[] row = depth < snapshot.length ? snapshot[depth] : null;
+		if (row == null || mCCount >= row.length) {
+			row = growRow(depth, mCCount);
+			if (row == null) {
+				return computePval(errorRate, mCCount, depth);
+			}
+		}
+		return row[mCCount];
+	}
+
+	private double[] growRow(int depth, int mCCount) {
+		while (true) {
+			double[][] snapshot = rows.get();
+			double[] old = depth < snapshot.length ? snapshot[depth] : null;
+			if (old != null && mCCount < old.length) {
+				return old;
+			}
+			int oldLength = old == null ? 0 : old.length;
+			int length = Math.min(depth + 1, Math.max(mCCount + 1, Math.max(MIN_ROW_LENGTH, oldLength * 2)));
+			if (cachedValues.get() + length - oldLength > MAX_CACHED_VALUES) {
+				return null;
+			}
+			double[] row = extendRow(depth, old, length);
+
+			int rowsLength = snapshot.length;
+			while (rowsLength <= depth) {
+				rowsLength *= 2;
+			}
+			double[][] grown = Arrays.copyOf(snapshot, rowsLength);
+			grown[depth] = row;
+			if (rows.compareAndSet(snapshot, grown)) {
+				cachedValues.addAndGet(length - oldLength);
+				return row;
+			}
+		}
+	}
+
+	private double[] extendRow(int depth, double[] old, int length) {
+		double[] row = old == null ? new double[length] : Arrays.copyOf(old, length);
+		row[0] = 1.0d;
+		BinomialDistribution binomial = new BinomialDistributionImpl(depth, errorRate);
+		try {
+			for (int mCCount = old == null ? 1 : old.length; mCCount < length; mCCount++) {
+				row[mCCount] = 1.0d - binomial.cumulativeProbability(mCCount - 1);
+			}
+		} catch (MathException e) {
+			throw new RuntimeException(e);
+		}
+		return row;
+	}
+
+	/**
+	 * Computes the tail without the cache.
+	 */
+	public static double computePval(double errorRate, int mCCount, int depth) {
+		BinomialDistribution binomial = new BinomialDistributionImpl(depth, errorRate);
+		try {
+			return (mCCount == 0) ? 1.0d : (1.0d - binomial.cumulativeProbability(mCCount - 1));
+		} catch (MathException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
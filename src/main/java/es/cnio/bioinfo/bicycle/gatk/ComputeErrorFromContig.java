@@ -39,6 +39,7 @@ public class ComputeErrorFromContig extends LocusWalker<DefaultBisulfiteError, D
 	public boolean removeClones = false;
 
 	public Tools tools;
+	public CytosineContextIndex contextIndex;
 	private DefaultContigBisulfiteError lastTraversalResult;
 
 	@Override
@@ -60,7 +61,7 @@ public class ComputeErrorFromContig extends LocusWalker<DefaultBisulfiteError, D
 
 		ReadBackedPileup strandReads = ListerFilter.applyFilters(tools.getReadsForStrand(strand, arg2, removeClones));
 
-		Context context = strand.getContext(arg1, arg2.getPosition());
+		Context context = strand.getContext(arg1, arg2.getPosition(), contextIndex);
 		if (strandReads != null && context != null) {
 
 			DefaultBisulfiteError toret = new DefaultBisulfiteError(context, strand);
@@ -0,0 +1,320 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Methylation context (CG, CHG or CHH) of every cytosine of a reference, in both strands, with 2 bits per position.
+ * <p>
+ * A C is a Watson cytosine and a G a Crick one, so one code per position is enough. Contexts are computed as in
+ * {@link Strand#getContext(org.broadinstitute.sting.gatk.contexts.ReferenceContext, long)}, including the
+ * positions where it returns null (Watson cytosines in the last 2 bases of a sequence and Crick ones in the first
+ * 2), which have no context here.
+ * <p>
+ * The file starts with a magic number and the offset of the directory of sequences (name, length and offset of
+ * its codes), which is written after the codes. Codes are packed 4 positions per byte, first position in the lowest
+ * bits, and each sequence is memory-mapped when the index is opened.
+ */
+public class CytosineContextIndex implements Closeable {
+
+	public static final int MAGIC = 0x42435831;
+
+	private static final int NONE = 0;
+	private static final Context[] CONTEXTS = new Context[]{null, Context.CG, Context.CHG, Context.CHH};
+
+	private final Map<String, Sequence> sequences = new HashMap<>();
+	private final List<String> sequenceNames = new ArrayList<>();
+
+	public CytosineContextIndex(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			if (raf.readInt() != MAGIC) {
+				throw new IOException("Not a cytosine context index: " + file);
+			}
+			raf.seek(raf.readLong());
+			int count = raf.readInt();
+			FileChannel channel = raf.getChannel();
+			for (int i = 0; i < count; i++) {
+				String name = raf.readUTF();
+				long length = raf.readLong();
+				long offset = raf.readLong();
+				MappedByteBuffer codes = channel.map(FileChannel.MapMode.READ_ONLY, offset, (length + 3) / 4);
+				sequences.put(name, new Sequence(name, length, codes));
+				sequenceNames.add(name);
+			}
+		}
+	}
+
+	public List<String> getSequenceNames() {
+		return Collections.unmodifiableList(sequenceNames);
+	}
+
+	/**
+	 * Returns the indexed sequence, or null if the reference has no sequence with this name.
+	 */
+	public Sequence getSequence(String name) {
+		return sequences.get(name);
+	}
+
+	/**
+	 * Returns the context of the cytosine at the given 1-based position, or null if there is no cytosine with context
+	 * in it.
+	 */
+	public Context getContext(String sequence, long position) {
+		Sequence indexed = sequences.get(sequence);
+		if (indexed == null) {
+			throw new IllegalArgumentException("Sequence not in the index: " + sequence);
+		}
+		return indexed.getContext(position);
+	}
+
+	@Override
+	public void close() {
+		sequences.clear();
+	}
+
+	public static class Sequence {
+		private final String name;
+		private final long length;
+		private final ByteBuffer codes;
+
+		private Sequence(String name, long length, ByteBuffer codes) {
+			this.name = name;
+			this.length = length;
+			this.codes = codes;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public Context getContext(long position) {
+			if (position < 1 || position > length) {
+				return null;
+			}
+			long index = position - 1;
+			// absolute get, so sequences can be read from several threads
+			int code = (codes.get((int) (index >>> 2)) >>> ((int) (index & 3) * 2)) & 3;
+			return CONTEXTS[code];
+		}
+	}
+
+	/**
+	 * Builds the index of a FASTA file. Sequence names are the header up to the first whitespace, and bases are
+	 * compared in upper case.
+	 */
+	public static void build(File fasta, File indexFile) throws IOException {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(fasta), 1 << 16);
+			 Builder builder = new Builder(indexFile)) {
+			StringBuilder header = null;
+			boolean lineStart = true;
+			int b;
+			while ((b = in.read()) != -1) {
+				if (header != null) {
+					if (b == '\n') {
+						builder.startSequence(header.toString().trim().split("\\s+", 2)[0]);
+						header = null;
+						lineStart = true;
+					} else {
+						header.append((char) b);
+					}
+				} else if (lineStart && b == '>') {
+					header = new StringBuilder();
+				} else if (b == '\n' || b == '\r') {
+					lineStart = b == '\n';
+				} else {
+					lineStart = false;
+					if (b != ' ' && b != '\t') {
+						builder.add(b);
+					}
+				}
+			}
+			if (header != null) {
+				// header without sequence at the end of the file
+				builder.startSequence(header.toString().trim().split("\\s+", 2)[0]);
+			}
+		}
+	}
+
+	/**
+	 * Writes an index from the bases of each sequence, so it can be built while the FASTA file is read for other
+	 * purposes. The index is written to a temporary file, which replaces the index file when the builder is closed.
+	 */
+	public static class Builder implements Closeable {
+		private final File indexFile;
+		private final File temp;
+		private final DataOutputStream out;
+		private final List<String> names = new ArrayList<>();
+		private final List<Long> lengths = new ArrayList<>();
+		private final List<Long> offsets = new ArrayList<>();
+		// DataOutputStream.size() stops counting at Integer.MAX_VALUE
+		private long written = 12;
+		private SequenceEncoder encoder;
+
+		public Builder(File indexFile) throws IOException {
+			this.indexFile = indexFile;
+			this.temp = new File(indexFile.getAbsolutePath() + ".tmp");
+			this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeLong(0);
+		}
+
+		public void startSequence(String name) throws IOException {
+			finishSequence();
+			names.add(name);
+			offsets.add(written);
+			encoder = new SequenceEncoder(out);
+		}
+
+		/**
+		 * Adds the next base of the current sequence. Bases before the first sequence are ignored.
+		 */
+		public void add(int base) throws IOException {
+			if (encoder != null) {
+				encoder.add(base);
+			}
+		}
+
+		private void finishSequence() throws IOException {
+			if (encoder != null) {
+				long length = encoder.finish();
+				lengths.add(length);
+				written += (length + 3) / 4;
+				encoder = null;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			long directoryOffset;
+			try {
+				finishSequence();
+				directoryOffset = written;
+				out.writeInt(names.size());
+				for (int i = 0; i < names.size(); i++) {
+					out.writeUTF(names.get(i));
+					out.writeLong(lengths.get(i));
+					out.writeLong(offsets.get(i));
+				}
+			} finally {
+				out.close();
+			}
+
+			try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+				raf.seek(4);
+				raf.writeLong(directoryOffset);
+			}
+			if (indexFile.exists()) {
+				indexFile.delete();
+			}
+			if (!temp.renameTo(indexFile)) {
+				throw new IOException("Could not create " + indexFile);
+			}
+		}
+	}
+
+	/**
+	 * Encodes the bases of a sequence as they come. The context of a position is known when the second base after it
+	 * arrives, or when the sequence ends.
+	 */
+	private static class SequenceEncoder {
+		private final DataOutputStream out;
+		// bases of the last 5 positions, window[4] is the last one
+		private final byte[] window = new byte[5];
+		private long length;
+
+		private int packed;
+		private int packedCount;
+
+		public SequenceEncoder(DataOutputStream out) {
+			this.out = out;
+		}
+
+		public void add(int base) throws IOException {
+			if (base >= 'a' && base <= 'z') {
+				base -= 'a' - 'A';
+			}
+			System.arraycopy(window, 1, window, 0, 4);
+			window[4] = (byte) base;
+			length++;
+			if (length >= 3) {
+				emit(length - 2, window[0], window[1], window[2], window[3], window[4], true);
+			}
+		}
+
+		public long finish() throws IOException {
+			// last two positions, without two bases downstream
+			if (length >= 2) {
+				emit(length - 1, window[1], window[2], window[3], window[4], (byte) 0, false);
+			}
+			if (length >= 1) {
+				emit(length, window[2], window[3], window[4], (byte) 0, (byte) 0, false);
+			}
+			if (packedCount > 0) {
+				out.writeByte(packed);
+			}
+			return length;
+		}
+
+		private void emit(long position, byte upstream2, byte upstream1, byte base, byte downstream1, byte
+				downstream2, boolean hasDownstream2) throws IOException {
+			int code = NONE;
+			if (base == 'C') {
+				if (hasDownstream2) {
+					code = downstream1 == 'G' ? 1 : downstream2 == 'G' ? 2 : 3;
+				}
+			} else if (base == 'G') {
+				if (position > 2) {
+					code = upstream1 == 'C' ? 1 : upstream2 == 'C' ? 2 : 3;
+				}
+			}
+
+			packed |= code << (packedCount * 2);
+			if (++packedCount == 4) {
+				out.writeByte(packed);
+				packed = 0;
+				packedCount = 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+/**
+ * Finds the p-value cutoff of a strand and context that keeps the expected false discovery rate under a given
+ * threshold.
+ *
+ * The cutoff is the fixed point of cutoff = FDR * %mC / (100 - %mC), where %mC is the percentage of cytosines whose
+ * p-value is below the cutoff. Each iteration counts the cytosines with {@link PValueHistogram#countBelow(double)},
+ * so it is a binary search over the sorted p-value distribution.
+ */
+public class FDRCutoffEstimator {
+
+	private final double fdr;
+
+	public FDRCutoffEstimator(double fdr) {
+		this.fdr = fdr;
+	}
+
+	public Result estimate(PValueHistogram pvals) {
+		long start = System.nanoTime();
+		StringBuilder details = new StringBuilder();
+
+		long cCount = pvals.getTotal();
+		double positiveRate = 0d;
+		double cutoff = 1;
+		boolean needAdjust = true;
+
+		int iteration = 0;
+		while (needAdjust) {
+			iteration++;
+			long mcCount = pvals.countBelow(cutoff);
+
+			double _positiveRate = ((double) mcCount / (double) cCount) * 100;
+			details.append("Iteration " + iteration + ", M: " + cutoff + " %mC: " + _positiveRate + "\n");
+
+			if (Double.isNaN(_positiveRate)) {
+				cutoff = 0; // ??
+				needAdjust = false;
+			} else if (_positiveRate != positiveRate) {
+				cutoff = fdr * _positiveRate / (100d - _positiveRate);
+				positiveRate = _positiveRate;
+			} else {
+				needAdjust = false;
+			}
+		}
+
+		return new Result(cutoff, iteration, System.nanoTime() - start, details.toString());
+	}
+
+	public static class Result {
+		private final double cutoff;
+		private final int iterations;
+		private final long nanos;
+		private final String details;
+
+		public Result(double cutoff, int iterations, long nanos, String details) {
+			this.cutoff = cutoff;
+			this.iterations = iterations;
+			this.nanos = nanos;
+			this.details = details;
+		}
+
+		public double getCutoff() {
+			return cutoff;
+		}
+
+		public int getIterations() {
+			return iterations;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+
+		public String getDetails() {
+			return details;
+		}
+
+		@Override
+		public String toString() {
+			return "cutoff " + cutoff + " after " + iterations + " iterations (" + (nanos / 1000) + " us)";
+		}
+	}
+}
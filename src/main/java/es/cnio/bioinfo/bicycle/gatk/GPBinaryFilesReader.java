@@ -0,0 +1,78 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import es.cnio.bioinfo.bicycle.MethylationBinaryReader;
+import es.cnio.bioinfo.bicycle.MethylationCall;
+
+/**
+ * Reads several sorted binary methylation files, merging them and giving the calls sorted by position, as
+ * {@link GPFilesReader} does with text files.
+ */
+public class GPBinaryFilesReader implements ParallelMethylcytosinesWriter.CallSource {
+
+	private MethylationBinaryReader[] readers;
+	private MethylationCall[] current;
+
+	private Map<String, Integer> sequenceIndexes = new HashMap<>();
+
+	public GPBinaryFilesReader(List<String> sequenceNames, MethylationBinaryReader... readers) throws IOException {
+		int i = 0;
+		for (String sequenceName : sequenceNames) {
+			sequenceIndexes.put(sequenceName, i++);
+		}
+
+		this.readers = readers;
+		this.current = new MethylationCall[readers.length];
+		for (i = 0; i < readers.length; i++) {
+			current[i] = readers[i].next();
+		}
+	}
+
+	@Override
+	public MethylationCall next() throws IOException {
+		int whoIsMinimum = -1;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] != null && (whoIsMinimum == -1 || isBefore(current[i], current[whoIsMinimum]))) {
+				whoIsMinimum = i;
+			}
+		}
+		if (whoIsMinimum == -1) {
+			return null;
+		}
+		MethylationCall minimum = current[whoIsMinimum];
+		current[whoIsMinimum] = readers[whoIsMinimum].next();
+		return minimum;
+	}
+
+	private boolean isBefore(MethylationCall a, MethylationCall b) {
+		if (a.getContig().equals(b.getContig())) {
+			return a.getPosition() < b.getPosition();
+		}
+		return sequenceIndexes.get(a.getContig()) < sequenceIndexes.get(b.getContig());
+	}
+}
@@ -30,12 +30,26 @@ import java.util.Map;
 /**
  * Reads several sorted GPFiles, merging them and giving the lines sorted by position
  *
+ * The next line of each file is kept with its parsed (sequence index, position) key in a binary heap, so each line
+ * is parsed once and each readLine costs O(log k) comparisons of primitives for k files. Lines at the same position
+ * are given in file order.
+ *
  * @author lipido
  */
 public class GPFilesReader {
 
 	private BufferedReader[] readers;
 	private String[] current;
+	private int[] currentSequence;
+	private long[] currentPosition;
+
+	// last sequence name seen in each file, to avoid looking up the name of every line
+	private String[] lastSequenceName;
+	private int[] lastSequenceIndex;
+
+	// indexes of the files with a current line, as a binary min-heap
+	private int[] heap;
+	private int heapSize = 0;
 
 	private int lastLineReaderIndex = -1;
 
@@ -50,57 +64,135 @@ public class GPFilesReader {
 
 		readers = bufferedReaders;
 		current = new String[readers.length];
-
-		i = 0;
-		for (BufferedReader reader : readers) {
-			current[i++] = readLine(reader);
+		currentSequence = new int[readers.length];
+		currentPosition = new long[readers.length];
+		lastSequenceName = new String[readers.length];
+		lastSequenceIndex = new int[readers.length];
+		heap = new int[readers.length];
+
+		for (i = 0; i < readers.length; i++) {
+			if (advance(i)) {
+				heap[heapSize] = i;
+				siftUp(heapSize++);
+			}
 		}
 	}
 
 	public String readLine() throws IOException {
-		String minimum = null;
-		String minimumContig = null;
-		long minimumPos = Long.MAX_VALUE;
+		if (heapSize == 0) {
+			this.lastLineReaderIndex = -1;
+			return null;
+		}
 
-		int i = 0;
-		int whoIsMinimum = 0;
-		for (String currentLine : current) {
-			if (currentLine != null) {
-				if (minimumContig == null) {
-					String[] tokens = currentLine.split("\t", 3);
-					minimum = currentLine;
-					minimumContig = tokens[0];
-					minimumPos = Long.parseLong(tokens[1]);
-					whoIsMinimum = i;
-				} else {
-					String[] tokens = currentLine.split("\t", 3);
-					if (minimumContig.equals(tokens[0])) {
-						long currentPos = Long.parseLong(tokens[1]);
-						if (currentPos < minimumPos) {
-							minimum = currentLine;
-							minimumContig = tokens[0];
-							minimumPos = currentPos;
-							whoIsMinimum = i;
-						}
-					} else if (this.sequenceIndexes.get(minimumContig) > this.sequenceIndexes.get(tokens[0])) {
-						minimumContig = tokens[0];
-						minimum = currentLine;
-						minimumPos = Long.parseLong(tokens[1]);
-						whoIsMinimum = i;
-					}
-				}
+		int whoIsMinimum = heap[0];
+		String minimum = current[whoIsMinimum];
+		if (advance(whoIsMinimum)) {
+			siftDown(0);
+		} else {
+			heap[0] = heap[--heapSize];
+			siftDown(0);
+		}
+		this.lastLineReaderIndex = whoIsMinimum;
 
+		return minimum;
+	}
+
+	/**
+	 * Reads the next line of a file and parses its key.
+	 *
+	 * @return false if the file has no more lines
+	 */
+	private boolean advance(int reader) throws IOException {
+		String line = readLine(this.readers[reader]);
+		current[reader] = line;
+		if (line == null) {
+			return false;
+		}
+
+		int firstTab = line.indexOf('\t');
+		if (firstTab < 0) {
+			throw new IOException("Malformed line, no position: " + line);
+		}
+		String last = lastSequenceName[reader];
+		if (last == null || last.length() != firstTab || !line.startsWith(last)) {
+			last = line.substring(0, firstTab);
+			lastSequenceName[reader] = last;
+			lastSequenceIndex[reader] = sequenceIndex(last);
+		}
+		currentSequence[reader] = lastSequenceIndex[reader];
+
+		long position = 0;
+		int i = firstTab + 1;
+		int length = line.length();
+		for (; i < length; i++) {
+			char c = line.charAt(i);
+			if (c == '\t') {
+				break;
 			}
-			i++;
+			if (c < '0' || c > '9') {
+				throw new IOException("Malformed line, bad position: " + line);
+			}
+			position = position * 10 + (c - '0');
 		}
-		if (minimum != null) {
-			this.current[whoIsMinimum] = readLine(this.readers[whoIsMinimum]);
-			this.lastLineReaderIndex = whoIsMinimum;
-		} else {
-			this.lastLineReaderIndex = -1;
+		if (i == firstTab + 1) {
+			throw new IOException("Malformed line, no position: " + line);
 		}
+		currentPosition[reader] = position;
+		return true;
+	}
 
-		return minimum;
+	private int sequenceIndex(String sequenceName) {
+		Integer index = sequenceIndexes.get(sequenceName);
+		if (index == null) {
+			// not in the dictionary: after the known sequences, in order of appearance
+			index = sequenceIndexes.size();
+			sequenceIndexes.put(sequenceName, index);
+		}
+		return index;
+	}
+
+	private boolean isBefore(int a, int b) {
+		if (currentSequence[a] != currentSequence[b]) {
+			return currentSequence[a] < currentSequence[b];
+		}
+		if (currentPosition[a] != currentPosition[b]) {
+			return currentPosition[a] < currentPosition[b];
+		}
+		return a < b;
+	}
+
+	private void siftUp(int i) {
+		int reader = heap[i];
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!isBefore(reader, heap[parent])) {
+				break;
+			}
+			heap[i] = heap[parent];
+			i = parent;
+		}
+		heap[i] = reader;
+	}
+
+	private void siftDown(int i) {
+		if (heapSize == 0) {
+			return;
+		}
+		int reader = heap[i];
+		int half = heapSize >>> 1;
+		while (i < half) {
+			int child = 2 * i + 1;
+			int right = child + 1;
+			if (right < heapSize && isBefore(heap[right], heap[child])) {
+				child = right;
+			}
+			if (!isBefore(heap[child], reader)) {
+				break;
+			}
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = reader;
 	}
 
 	private String readLine(BufferedReader reader) throws IOException {
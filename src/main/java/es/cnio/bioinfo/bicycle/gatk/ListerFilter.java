@@ -96,6 +96,19 @@ public class ListerFilter extends ReadFilter {
 		this.badBisulfitedCounter = 0;
 	}
 
+	/**
+	 * Adds the counters of a filter that processed another part of the reads.
+	 */
+	public void addCounters(long processedReads, long unmmapedReads, long withMoreThanOneAlignment, long
+			ambiguousReads, long trimmed, long badBisulfited) {
+		this.processedReadsCounter += processedReads;
+		this.unmmapedReadsCounter += unmmapedReads;
+		this.withMoreThanOneAlignmentCounter += withMoreThanOneAlignment;
+		this.ambiguousReadCounter += ambiguousReads;
+		this.trimmedCounter += trimmed;
+		this.badBisulfitedCounter += badBisulfited;
+	}
+
 	public long getUnmmapedReadsCounter() {
 		return unmmapedReadsCounter;
 	}
@@ -120,6 +133,13 @@ public class ListerFilter extends ReadFilter {
 		return trimmedCounter;
 	}
 
+	/**
+	 * Whether the reads are trimmed, which is the static trim setting shared with the pileup filters.
+	 */
+	protected boolean isTrimming() {
+		return trim;
+	}
+
 	@Override
 	public void initialize(GenomeAnalysisEngine engine) {
 		this.engine = engine;
@@ -171,7 +191,7 @@ public class ListerFilter extends ReadFilter {
 		}
 
 		//trim to x mismatch (trim must be before bad bisulfited)
-		if (trim) {
+		if (isTrimming()) {
 			boolean trimmed = trim(record, trimUntil);
 			if (trimmed && this.freezeCountersInThread.get() == false) this.trimmedCounter++;
 		}
@@ -334,8 +354,8 @@ public class ListerFilter extends ReadFilter {
 					(this.removeBad ? " (" + this.getBadBisulfitedCounter() + " removed " +
 							"("+asPercent(badBisulfitedRatio)+"))"
 						: "") +
-				", trim to 'x' mismatch: " + this.trim +
-					(this.trim ? " x=" + this.trimUntil + " " + this.getTrimmedCounter() + " trimmed " +
+				", trim to 'x' mismatch: " + this.isTrimming() +
+					(this.isTrimming() ? " x=" + this.trimUntil + " " + this.getTrimmedCounter() + " trimmed " +
 						"("+asPercent(trimmedRatio)+")"
 						:"");
 	}
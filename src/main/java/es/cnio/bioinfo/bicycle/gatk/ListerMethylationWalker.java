@@ -21,34 +21,21 @@ along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
 
 package es.cnio.bioinfo.bicycle.gatk;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
-import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.UUID;
 
-import org.apache.commons.math.MathException;
-import org.apache.commons.math.distribution.BinomialDistribution;
-import org.apache.commons.math.distribution.BinomialDistributionImpl;
 import org.broad.tribble.Feature;
 import org.broad.tribble.bed.BEDFeature;
 import org.broadinstitute.sting.commandline.Argument;
@@ -71,6 +58,7 @@ import org.broadinstitute.sting.gatk.walkers.TreeReducible;
 import org.broadinstitute.sting.gatk.walkers.Window;
 import org.broadinstitute.sting.utils.pileup.ReadBackedPileup;
 
+import es.cnio.bioinfo.bicycle.MethylationBinaryWriter;
 import es.cnio.bioinfo.bicycle.MethylationCall;
 import net.sf.picard.filter.SamRecordFilter;
 import net.sf.picard.util.SamLocusIterator.RecordAndOffset;
@@ -80,143 +68,165 @@ import net.sf.samtools.SAMSequenceRecord;
 
 class MethylationFilePair {
 	private static int instancecount = 0;
-	private File watsonFile;
-	private File crickFile;
 
-	//private PrintStream watsonStream, crickStream;
+	// partial files, in traversal order, that make up the output of this pair
+	private List<File> watsonSegments = new ArrayList<File>();
+	private List<File> crickSegments = new ArrayList<File>();
 
-	public File getWatsonFile() {
-		return watsonFile;
+	private MethylationFileWriter watsonWriter, crickWriter;
+
+	// only in binary mode, wrapping the writers above
+	private MethylationBinaryWriter watsonBinaryWriter, crickBinaryWriter;
+
+	private final StringBuilder line = new StringBuilder(256);
+
+	public List<File> getWatsonSegments() {
+		return watsonSegments;
 	}
 
-	public File getCrickFile() {
-		return crickFile;
+	public List<File> getCrickSegments() {
+		return crickSegments;
 	}
 
-	public MethylationFilePair(File watson, File crick) {
+	private MethylationFilePair() {
 		instancecount++;
-		this.watsonFile = watson;
-		this.crickFile = crick;
-		watsonPvals.put(Context.CG, new HashMap<Double, Integer>());
-		watsonPvals.put(Context.CHG, new HashMap<Double, Integer>());
-		watsonPvals.put(Context.CHH, new HashMap<Double, Integer>());
-		crickPvals.put(Context.CG, new HashMap<Double, Integer>());
-		crickPvals.put(Context.CHG, new HashMap<Double, Integer>());
-		crickPvals.put(Context.CHH, new HashMap<Double, Integer>());
-
+		for (Context context : Context.values()) {
+			watsonPvals.put(context, new PValueHistogram());
+			crickPvals.put(context, new PValueHistogram());
+		}
+	}
 
+	public MethylationFilePair(File watson, File crick, boolean binary, MethylationFileWriter.Statistics
+			ioStatistics) {
+		this();
+		this.watsonSegments.add(watson);
+		this.crickSegments.add(crick);
+		try {
+			this.watsonWriter = new MethylationFileWriter(watson, ioStatistics);
+			this.crickWriter = new MethylationFileWriter(crick, ioStatistics);
+			if (binary) {
+				this.watsonBinaryWriter = new MethylationBinaryWriter(watsonWriter);
+				this.crickBinaryWriter = new MethylationBinaryWriter(crickWriter);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
-	public MethylationFilePair(File watson, File crick, Map<Context, Map<Double, Integer>> watsonPvals, Map<Context,
-			Map<Double, Integer>> crickPvals) {
-		this(watson, crick);
-		this.watsonPvals = watsonPvals;
-		this.crickPvals = crickPvals;
+	/**
+	 * Creates a closed pair made of the given segments, in order, with the given p-values.
+	 */
+	public static MethylationFilePair fromSegments(List<File> watsonSegments, List<File> crickSegments, Map<Context,
+			PValueHistogram> watsonPvals, Map<Context, PValueHistogram> crickPvals) {
+		MethylationFilePair toret = new MethylationFilePair();
+		toret.watsonSegments.addAll(watsonSegments);
+		toret.crickSegments.addAll(crickSegments);
+		toret.watsonPvals = watsonPvals;
+		toret.crickPvals = crickPvals;
+		return toret;
 	}
 
-	private static int PRINTS_BEFORE_FLUSH = 50;
-	private int printWatsonCount = 0;
-	private int printCrickCount = 0;
-	private StringBuffer watsonBuffer = new StringBuffer();
-	private StringBuffer crickBuffer = new StringBuffer();
+	/**
+	 * Creates a pair made of the segments of left followed by the segments of right. No data is copied, the
+	 * segments are concatenated once at the end of the traversal. Both pairs are closed.
+	 */
+	public static MethylationFilePair concat(MethylationFilePair left, MethylationFilePair right, Map<Context,
+			PValueHistogram> watsonPvals, Map<Context, PValueHistogram> crickPvals) {
+		left.close();
+		right.close();
+
+		MethylationFilePair toret = new MethylationFilePair();
+		toret.watsonSegments.addAll(left.watsonSegments);
+		toret.watsonSegments.addAll(right.watsonSegments);
+		toret.crickSegments.addAll(left.crickSegments);
+		toret.crickSegments.addAll(right.crickSegments);
+		toret.watsonPvals = watsonPvals;
+		toret.crickPvals = crickPvals;
+		return toret;
+	}
 
-	private Map<Context, Map<Double, Integer>> watsonPvals = Collections.synchronizedMap(new HashMap<>());
-	private Map<Context, Map<Double, Integer>> crickPvals = Collections.synchronizedMap(new HashMap<>());
+	private Map<Context, PValueHistogram> watsonPvals = new HashMap<>();
+	private Map<Context, PValueHistogram> crickPvals = new HashMap<>();
 
 	public void pushCall(MethylationCall call) {
-		Map<Double, Integer> pvals = null;
-		if (call.getStrand() == Strand.WATSON) {
-			this.printWatson(call.marshall() + "\n");
-			pvals = watsonPvals.get(call.getContext());
-		} else {
-			this.printCrick(call.marshall() + "\n");
-			pvals = crickPvals.get(call.getContext());
-
+		if (this.watsonWriter == null) {
+			throw new IllegalStateException("calls cannot be pushed to a closed or merged methylation file pair");
 		}
+		PValueHistogram pvals = null;
+		try {
+			if (call.getStrand() == Strand.WATSON) {
+				if (this.watsonBinaryWriter != null) {
+					this.watsonBinaryWriter.write(call);
+				} else {
+					this.watsonWriter.print(marshall(call));
+				}
+				pvals = watsonPvals.get(call.getContext());
+			} else {
+				if (this.crickBinaryWriter != null) {
+					this.crickBinaryWriter.write(call);
+				} else {
+					this.crickWriter.print(marshall(call));
+				}
+				pvals = crickPvals.get(call.getContext());
 
-		Integer currentCount = pvals.get(call.getPval());
-		if (currentCount == null) {
-			currentCount = 0;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
 		}
-		currentCount++;
-		pvals.put(call.getPval(), currentCount);
+
+		pvals.add(call.getPval());
 	}
 
-	public Map<Context, Map<Double, Integer>> getWatsonPvals() {
+	private CharSequence marshall(MethylationCall call) {
+		line.setLength(0);
+		call.marshall(line);
+		line.append('\n');
+		return line;
+	}
+
+	public Map<Context, PValueHistogram> getWatsonPvals() {
 		return watsonPvals;
 	}
 
-	public Map<Context, Map<Double, Integer>> getCrickPvals() {
+	public Map<Context, PValueHistogram> getCrickPvals() {
 		return crickPvals;
 	}
 
-	private void printWatson(String str) {
-		watsonBuffer.append(str);
-		printWatsonCount++;
-		if (printWatsonCount == PRINTS_BEFORE_FLUSH) {
-			flushWatson();
+	public void flush() {
+		if (watsonWriter == null) {
+			return;
 		}
-	}
-
-	private void flushWatson() {
-		PrintStream stream;
 		try {
-			stream = new PrintStream(new BufferedOutputStream(new FileOutputStream(watsonFile, true)));
-			stream.print(watsonBuffer.toString());
-			watsonBuffer.setLength(0);
-			stream.flush();
-			stream.close();
-			printWatsonCount = 0;
-		} catch (FileNotFoundException e) {
+			if (watsonBinaryWriter != null) {
+				watsonBinaryWriter.flush();
+				crickBinaryWriter.flush();
+			}
+			watsonWriter.flush();
+			crickWriter.flush();
+		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
-	private void printCrick(String str) {
-		crickBuffer.append(str);
-		printCrickCount++;
-		if (printCrickCount == PRINTS_BEFORE_FLUSH) {
-			flushCrick();
+	public void close() {
+		if (watsonWriter == null) {
+			return;
 		}
-	}
-
-	private void flushCrick() {
-		PrintStream stream;
+		instancecount--;
 		try {
-			stream = new PrintStream(new BufferedOutputStream(new FileOutputStream(crickFile, true)));
-			stream.print(crickBuffer.toString());
-			crickBuffer.setLength(0);
-			stream.flush();
-			stream.close();
-			printCrickCount = 0;
-		} catch (FileNotFoundException e) {
+			if (watsonBinaryWriter != null) {
+				watsonBinaryWriter.close();
+				crickBinaryWriter.close();
+			}
+			watsonWriter.close();
+			crickWriter.close();
+		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
-	}
-	/*private PrintStream getWatsonStream() throws FileNotFoundException{
-		if (watsonStream == null){
-			watsonStream = new PrintStream(new BufferedOutputStream(new FileOutputStream(watsonFile)));
-		}
-		return this.watsonStream;
-	}
-	
-	private PrintStream getCrickStream() throws FileNotFoundException{
-		if (crickStream == null){
-			crickStream = new PrintStream(new BufferedOutputStream(new FileOutputStream(crickFile)));
-		}
-		return this.crickStream;
-	}*/
-
-	public void flush() {
-		flushWatson();
-		flushCrick();
-	}
-
-	public void close() {
-		instancecount--;
-		flush();
-		this.watsonBuffer = null;
-		this.crickBuffer = null;
+		watsonWriter = null;
+		crickWriter = null;
+		watsonBinaryWriter = null;
+		crickBinaryWriter = null;
 		//System.out.println("open reduces (MethylationFilePair): "+instancecount);
 	}
 }
@@ -264,6 +274,12 @@ public class ListerMethylationWalker extends LocusWalker<List<MethylationCall>,
 	@Argument(doc = "trim", required = false)
 	public boolean trim = false;
 
+	@Argument(doc = "write the methylation files in binary block format", required = false)
+	public boolean binaryMethylation = false;
+
+	@Argument(doc = "cytosine context index of the reference", required = false)
+	public File contextIndex = null;
+
 	@Input(fullName = "annotation", shortName = "annotation", doc = "BED files to annotate methylcytosines", required
 			= false)
 	public List<RodBinding<BEDFeature>> beds = new ArrayList<RodBinding<BEDFeature>>();
@@ -273,14 +289,16 @@ public class ListerMethylationWalker extends LocusWalker<List<MethylationCall>,
 
 	private ContigBisulfiteError error;
 
+	private CytosineContextIndex cytosineContexts;
+
 	private HashMap<Strand, File> methylationFiles = new HashMap<Strand, File>();
 	//private HashMap<Strand, PrintStream> methylationFilesOuts = new HashMap<Strand, PrintStream>();
 
-	private HashMap<Strand, HashMap<Context, Double>> cutOffs = new HashMap<Strand, HashMap<Context, Double>>();
-
 	private Tools tools = new Tools();
 	private ListerFilter listerFilter;
 
+	private MethylationFileWriter.Statistics ioStatistics = new MethylationFileWriter.Statistics();
+
 	@Override
 	public List<MethylationCall> map(RefMetaDataTracker metadata, ReferenceContext refContext, AlignmentContext
 			alignmentContext) {
@@ -290,6 +308,13 @@ public class ListerMethylationWalker extends LocusWalker<List<MethylationCall>,
 
 		if (refContext.getBase() == Strand.WATSON.getCytosineBase() || refContext.getBase() == Strand.CRICK
 				.getCytosineBase()) {
+			if (cytosineContexts != null) {
+				CytosineContextIndex.Sequence sequence = cytosineContexts.getSequence(refContext.getLocus().getContig());
+				if (sequence != null && sequence.getContext(alignmentContext.getPosition()) == null) {
+					// no context, no call
+					return null;
+				}
+			}
 			List<String> annotations = new LinkedList<String>();
 			for (RodBinding<BEDFeature> binding : this.beds) {
 				String annotation = "";
@@ -331,20 +356,32 @@ public class ListerMethylationWalker extends LocusWalker<List<MethylationCall>,
 	@Override
 	public void onTraversalDone(MethylationFilePair result) {
 		super.onTraversalDone(result);
-		result.flush();
+		result.close();
 		if (this.getToolkit().getArguments().numberOfThreads > 1) {
-			//System.out.println("renaming "+result.CRICK+ " to "+this.methylationcrickfile);
-			result.getCrickFile().renameTo(this.methylationcrickfile);
-			//System.out.println("renaming "+result.WATSON+ " to "+this.methylationwatsonfile);
-			result.getWatsonFile().renameTo(this.methylationwatsonfile);
+			try {
+				MethylationFileWriter.concatenate(result.getWatsonSegments(), this.methylationwatsonfile, this
+						.ioStatistics);
+				MethylationFileWriter.concatenate(result.getCrickSegments(), this.methylationcrickfile, this
+						.ioStatistics);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
 		}
 
-		String details = computePValCutOffs(result);
+		MethylationResultsWriter resultsWriter = new MethylationResultsWriter(getAnnotationNames(), this.getToolkit()
+				.getArguments().numberOfThreads, this.FDR);
+		String details = resultsWriter.computePValCutOffs(result);
+		for (Strand strand : Strand.values()) {
+			out.println("p-val cutoffs computed for strand " + strand + " : " + resultsWriter.getCutOffs().get(strand));
+		}
 
 		try {
-			GlobalMethylationStatistics stats = writeMethylCytosines();
+			GlobalMethylationStatistics stats = resultsWriter.writeMethylCytosines(toSequenceNames(super
+					.getMasterSequenceDictionary()), this.methylationFiles.get(Strand.WATSON), this.methylationFiles
+					.get(Strand.CRICK), this.binaryMethylation, getMethylcytosinesfile(), getMethylcytosinesVCFfile());
 
-			printSummary(stats, details);
+			resultsWriter.printSummary(getSummaryFile(), stats, details, this.correctNonCG, this.listerFilter, this
+					.removeClonal, this.errorRate, this.controlGenome, this.error, this.ioStatistics);
 
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
@@ -353,6 +390,14 @@ public class ListerMethylationWalker extends LocusWalker<List<MethylationCall>,
 
 	}
 
+	private List<String> getAnnotationNames() {
+		List<String> toret = new ArrayList<String>();
+		for (RodBinding<BEDFeature> binding : this.beds) {
+			toret.add(binding.getName());
+		}
+		return toret;
+	}
+
 	private String getOutputFilesPrefix() {
 		StringBuilder toret = new StringBuilder();
 		for (SAMReaderID readId : getToolkit().getReadsDataSource().getReaderIDs()) {
@@ -361,43 +406,6 @@ public class ListerMethylationWalker extends LocusWalker<List<MethylationCall>,
 		return toret.toString();
 	}
 
-	private GlobalMethylationStatistics writeMethylCytosines() throws FileNotFoundException {
-
-		PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(getMethylcytosinesfile())));
-		PrintStream outvcf = new PrintStream(new BufferedOutputStream(new FileOutputStream(getMethylcytosinesVCFfile()
-		)));
-
-		try {
-			BufferedReader wReader = new BufferedReader(new FileReader(this.methylationFiles.get(Strand.WATSON)));
-			BufferedReader cReader = new BufferedReader(new FileReader(this.methylationFiles.get(Strand.CRICK)));
-
-			List<String> sortedSequenceNames = toSequenceNames(super.getMasterSequenceDictionary());
-			GPFilesReader reader = new GPFilesReader(sortedSequenceNames, wReader, cReader);
-
-			String line = null;
-
-			GlobalMethylationStatistics stats = new GlobalMethylationStatistics();
-
-			writeMethylcytosinesHeader(out);
-			writeVCFHeader(outvcf);
-			while ((line = reader.readLine()) != null) {
-				MethylationCall call = MethylationCall.unmarshall(line);
-
-				writeMehylcytosinesRecord(out, call, stats);
-				writeVCFRecord(outvcf, call);
-			}
-			out.close();
-			outvcf.close();
-			return stats;
-
-		} catch (FileNotFoundException e) {
-			throw new RuntimeException(e);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
-
-	}
-
 	private List<String> toSequenceNames(SAMSequenceDictionary masterSequenceDictionary) {
 		String[] sequenceNames = new String[masterSequenceDictionary.getSequences().size()];
 
@@ -407,98 +415,6 @@ public class ListerMethylationWalker extends LocusWalker<List<MethylationCall>,
 		return Arrays.asList(sequenceNames);
 	}
 
-	private void writeMethylcytosinesHeader(PrintStream out) {
-		out.print(MethylationCall.getMarshallHeader());
-		for (RodBinding<BEDFeature> binding : this.beds) {
-			out.print("\t" + binding.getName());
-		}
-		out.println("\tSTATUS");
-
-	}
-
-	private void writeMehylcytosinesRecord(PrintStream out, MethylationCall call,
-										   GlobalMethylationStatistics stats) {
-		double cutOff = this.cutOffs.get(call.getStrand()).get(call.getContext());
-		call.setCutOff(cutOff);
-		stats.add(call);
-
-		call.marshall(out);
-		if (call.getPval() < cutOff) {
-			out.println("\tMETHYLATED");
-		} else {
-			out.println("\tUNMETHYLATED");
-		}
-	}
-
-
-	private void writeVCFHeader(PrintStream out) {
-		//header
-		out.println("#fileformat=VCFv4.1");
-		out.println("##INFO=<ID=NS,Number=1,Type=Integer,Description=\"Number of Samples With Data\">");
-		out.println("##INFO=<ID=DP,Number=1,Type=Integer,Description=\"Total Depth\">");
-		out.println("##INFO=<ID=CTDP,Number=1,Type=Integer,Description=\"CorT Depth\">");
-		out.println("##INFO=<ID=CD,Number=1,Type=Integer,Description=\"Cytosine Depth\">");
-
-		//modified (osvaldo, 3jan2016)
-		//out.println("##INFO=<ID=PER,Number=1,Type=Float,Description=\"Methylation percentage\">");		
-		out.println("##INFO=<ID=BS,Number=1,Type=Float,Description=\"Beta Score\">");
-
-		out.println("##INFO=<ID=PU,Number=1,Type=Float,Description=\"Readed bases at this position\">");
-		out.println("##INFO=<ID=CO,Number=1,Type=Flag,Description=\"Corrected, i.e., this CG is derived from a non-GC " +
-				"to GC correction\">");
-		out.println("##INFO=<ID=AC,Number=1,Type=Flag,Description=\"Added by correction, i.e., this CG is added due to" +
-				" a correction from non-CG to CG in the opposite strand\">");
-		out.println("##INFO=<ID=STR,Number=1,Type=String,Description=\"Strand Aligment\">");
-
-		for (RodBinding<BEDFeature> binding : this.beds) {
-			out.println("##INFO=<ID=" + binding.getName() + ",Number=1,Type=String,Description=\"" + binding.getName()
-					+ " annotation\">");
-		}
-
-		out.println("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO");
-	}
-
-	private void writeVCFRecord(PrintStream out, MethylationCall call) {
-		double cutOff = this.cutOffs.get(call.getStrand()).get(call.getContext());
-
-		out.print(call.getContig() + "\t");
-		out.print(call.getPosition() + "\t");
-		out.print(call.getContext() + "\t");
-		out.print("C\t");
-		if (call.getPval() < cutOff) {
-			out.print("C\t");
-		} else {
-			out.print(".\t");
-		}
-		out.print(".\t.\t");
-
-		//info
-		out.print("NS=1;");
-		out.print("DP=" + call.getDepth() + ";");
-		out.print("CTDP=" + call.getCTdepth() + ";");
-		out.print("CD=" + call.getCytosines() + ";");
-
-		//modified (osvaldo, 3jan2016)
-		//out.print("PER="+new DecimalFormat("###.##").format(100*(double)call.getCytosines()/(double)call.getDepth())
-		// +";");
-		out.print("BS=" + new DecimalFormat("#.#######").format(call.getBetaScore()) + ";");
-
-		out.print("PU=" + call.getPileup() + ";");
-		if (call.isCorrectedFromNonCG()) {
-			out.print("CO;");
-		}
-		if (call.isAddedByCorrection()) {
-			out.print("AC;");
-		}
-
-		out.print("STR=" + (call.getStrand() == Strand.WATSON ? "+" : "-") + ";");
-
-		for (int i = 0; i < this.beds.size(); i++) {
-			out.print(this.beds.get(i).getName() + "=" + call.getAnnotations().get(i) + ";");
-		}
-		out.println();
-	}
-
 	private File getMethylcytosinesfile() {
 		if (this.methylcytosinesfile == null) {
 			return new File(this.outdir + "/" + getOutputFilesPrefix() + ".methylcytosines");
@@ -515,43 +431,6 @@ public class ListerMethylationWalker extends LocusWalker<List<MethylationCall>,
 		}
 	}
 
-	private void printSummary(GlobalMethylationStatistics stats, String cutoffDetails)
-			throws FileNotFoundException {
-		PrintStream summary = new PrintStream(new FileOutputStream(getSummaryFile()));
-		summary.println("====METHYLATION RESULTS=======================================================");
-		summary.println("File: " + getSummaryFile().getName());
-		summary.println("Date: " + new Date());
-		summary.println();
-
-		summary.println("====ANALYSIS PARAMETERS=======================================================");
-		summary.println(" Correct non-CG: " + this.correctNonCG);
-
-
-		summary.println(" Filters:" + (listerFilter == null ? "\n" : "\n  " + listerFilter.toString().replace(",", "\n" +
-				" ")));
-		summary.println("  remove clonal reads: " + this.removeClonal);
-		summary.println(" FDR threshold: " + this.FDR);
-		summary.println();
-		summary.println("====ERROR ESTIMATION AND SIGNIFICANCE ADJUSTMENTS=============================");
-		//error rates
-		summary.print(" Error rates (");
-		if (!this.errorRate.equals("")) {
-			summary.println("fixed):");
-		} else if (!this.controlGenome.equals("")) {
-			summary.println("from control genome: " + this.controlGenome + "):");
-		}
-		summary.println("  " + this.error.toString().replaceAll("\n", "\n  "));
-		summary.println("  p-value cutoffs: " + this.cutOffs);
-		summary.println();
-		summary.println("====METHYLATION ANALYSIS RESULTS==============================================");
-		//statistics		
-		summary.println(stats);
-
-		//cut-off details
-		summary.println("Cut-off computation details:\n" + cutoffDetails);
-
-	}
-
 	private ListerFilter getListerFilter() {
 		//has lister filters?
 		ListerFilter listerFilter = null;
@@ -598,7 +477,7 @@ public class ListerMethylationWalker extends LocusWalker<List<MethylationCall>,
 					outwatson = this.methylationwatsonfile;
 					outcrick = this.methylationcrickfile;
 				}
-				arg1 = new MethylationFilePair(outwatson, outcrick);
+				arg1 = new MethylationFilePair(outwatson, outcrick, binaryMethylation, ioStatistics);
 			}
 			for (MethylationCall call : arg0) {
 				arg1.pushCall(call);
@@ -632,61 +511,19 @@ public class ListerMethylationWalker extends LocusWalker<List<MethylationCall>,
 		}
 
 
-		try {
-
-			File outwatson = new File(this.outdir + File.separator + this.methylationwatsonfile.getName() + UUID
-					.randomUUID() + ".methylation");
-			outwatson.deleteOnExit();
-			File outcrick = new File(this.outdir + File.separator + this.methylationcrickfile.getName() + UUID
-					.randomUUID() + ".methylation");
-			outcrick.deleteOnExit();
-
-			arg0.flush();
-			arg1.flush();
-			arg0.close();
-			arg1.close();
-			appendFiles(arg0.getWatsonFile(), arg1.getWatsonFile(), outwatson);
-			appendFiles(arg0.getCrickFile(), arg1.getCrickFile(), outcrick);
-
-			Map<Context, Map<Double, Integer>> watsonPvals = mergePvals(arg0.getWatsonPvals(), arg1.getWatsonPvals());
-			Map<Context, Map<Double, Integer>> crickPvals = mergePvals(arg0.getCrickPvals(), arg1.getCrickPvals());
-			return new MethylationFilePair(outwatson, outcrick, watsonPvals, crickPvals);
-
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
+		Map<Context, PValueHistogram> watsonPvals = mergePvals(arg0.getWatsonPvals(), arg1.getWatsonPvals());
+		Map<Context, PValueHistogram> crickPvals = mergePvals(arg0.getCrickPvals(), arg1.getCrickPvals());
+		return MethylationFilePair.concat(arg0, arg1, watsonPvals, crickPvals);
 
 	}
 
-	private Map<Context, Map<Double, Integer>> mergePvals(
-			Map<Context, Map<Double, Integer>> pvals1,
-			Map<Context, Map<Double, Integer>> pvals2) {
-
-		Map<Context, Map<Double, Integer>> toret = new HashMap<Context, Map<Double, Integer>>();
-		toret.put(Context.CG, new HashMap<Double, Integer>());
-		toret.put(Context.CHG, new HashMap<Double, Integer>());
-		toret.put(Context.CHH, new HashMap<Double, Integer>());
+	private Map<Context, PValueHistogram> mergePvals(
+			Map<Context, PValueHistogram> pvals1,
+			Map<Context, PValueHistogram> pvals2) {
 
+		Map<Context, PValueHistogram> toret = new HashMap<Context, PValueHistogram>();
 		for (Context context : Context.values()) {
-			HashMap<Double, Integer> toretPvals = new HashMap<Double, Integer>();
-			toret.put(context, toretPvals);
-			Set<Double> allPvals = new HashSet<Double>();
-			allPvals.addAll(pvals1.get(context).keySet());
-			allPvals.addAll(pvals2.get(context).keySet());
-			for (Double pval : allPvals) {
-				int count = 0;
-
-				Integer count1 = pvals1.get(context).get(pval);
-				if (count1 == null) {
-					count1 = 0;
-				}
-				Integer count2 = pvals2.get(context).get(pval);
-				if (count2 == null) {
-					count2 = 0;
-				}
-				count = count1 + count2;
-				toretPvals.put(pval, count);
-			}
+			toret.put(context, PValueHistogram.merge(pvals1.get(context), pvals2.get(context)));
 		}
 
 		return toret;
@@ -698,6 +535,14 @@ public class ListerMethylationWalker extends LocusWalker<List<MethylationCall>,
 		this.listerFilter = this.getListerFilter();
 		ListerFilter.trim = this.trim;
 
+		if (this.contextIndex != null) {
+			try {
+				this.cytosineContexts = new CytosineContextIndex(this.contextIndex);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
 		if (this.controlGenome.equals("") && this.errorRate.equals("")) {
 			throw new RuntimeException("Please provide at least --controlgenome or --erorrate");
 		}
@@ -719,6 +564,7 @@ public class ListerMethylationWalker extends LocusWalker<List<MethylationCall>,
 					("ComputeErrorFromContig");
 			walker.tools = this.tools;
 			walker.removeClones = this.removeClonal;
+			walker.contextIndex = this.cytosineContexts;
 
 
 			this.getToolkit().setWalker(walker);
@@ -735,44 +581,8 @@ public class ListerMethylationWalker extends LocusWalker<List<MethylationCall>,
 
 
 		} else {
-			final double WATSON_ERROR = Double.parseDouble(this.errorRate.split(",")[0]);
-			final double CRICK_ERROR = Double.parseDouble(this.errorRate.split(",")[1]);
-
-			this.error = new ContigBisulfiteError() {
-				@Override
-				public BisulfiteError getError(final Strand strand, Context context) {
-					return new BisulfiteError() {
-						@Override
-						public double getError() {
-							if (strand == Strand.WATSON) {
-								return WATSON_ERROR;
-							} else if (strand == Strand.CRICK) {
-								return CRICK_ERROR;
-							}
-							throw new RuntimeException("Incompatible strand " + strand);
-						}
-
-					};
-
-				}
-
-				@Override
-				public String toString() {
-					StringBuilder toret = new StringBuilder();
-					for (Strand s : Strand.values()) {
-						toret.append(s + " = {");
-						boolean first = true;
-						for (Context c : Context.values()) {
-							if (!first) toret.append(", ");
-							else first = false;
-							toret.append(c + " = " + getError(s, c).getError());
-						}
-						toret.append("} ");
-					}
-					return toret.toString();
-				}
-
-			};
+			this.error = new FixedContigBisulfiteError(Double.parseDouble(this.errorRate.split(",")[0]), Double
+					.parseDouble(this.errorRate.split(",")[1]));
 		}
 
 		out.println("Error computed " + this.error);
@@ -800,7 +610,7 @@ public class ListerMethylationWalker extends LocusWalker<List<MethylationCall>,
 			ContigBisulfiteError error, List<String> annotations) {
 		List<MethylationCall> toret = new LinkedList<MethylationCall>();
 
-		Context context = strand.getContext(refContext, alignmentContext.getPosition());
+		Context context = strand.getContext(refContext, alignmentContext.getPosition(), cytosineContexts);
 		if (context == null) {
 			return null;
 		}
@@ -936,264 +746,10 @@ public class ListerMethylationWalker extends LocusWalker<List<MethylationCall>,
 
 	private double computePval(Strand strand, Context context,
 							   ContigBisulfiteError error, int mCCount, int depth) {
-		BinomialDistribution binomial = new BinomialDistributionImpl(depth, error.getError(strand, context).getError
-				());
-
-		double pval = 1.0;
-
-		try {
-			pval = (mCCount == 0) ? 1.0d : (1.0d - binomial.cumulativeProbability(mCCount - 1));
-		} catch (MathException e) {
-			e.printStackTrace();
-			throw new RuntimeException(e);
-		}
-		return pval;
+		return BinomialTailTable.forErrorRate(error.getError(strand, context).getError()).getPval(mCCount, depth);
 	}
 
 
-	private String computePValCutOffs(final MethylationFilePair results) {
-
-
-		class CutOffThread extends Thread {
-			double[] cutoffs;
-			Strand strand;
-			Throwable error;
-			StringBuffer details = new StringBuffer();
-
-			public CutOffThread(Strand strand) {
-				this.strand = strand;
-			}
-
-			public void run() {
-				try {
-					cutoffs = computePValCutoffsFile(strand, results, details);
-					//System.out.println("cutoffs: "+cutoffs);
-				} catch (Exception e) {
-					e.printStackTrace();
-					this.error = e;
-				}
-			}
-		}
-		;
-
-		CutOffThread watsonT = new CutOffThread(Strand.WATSON);
-		CutOffThread crickT = new CutOffThread(Strand.CRICK);
-
-		watsonT.start();
-		crickT.start();
-
-		try {
-
-			for (CutOffThread thread : new CutOffThread[]{watsonT, crickT}) {
-				thread.join();
-				if (thread.error != null) {
-					throw new RuntimeException(thread.error);
-				}
-
-				out.println("p-val cutoffs computed for strand " + thread.strand + " : " + Arrays.toString(thread
-						.cutoffs));
-
-				HashMap<Context, Double> cutOffs = new HashMap<Context, Double>();
-
-				cutOffs.put(Context.CG, thread.cutoffs[0]);
-				cutOffs.put(Context.CHG, thread.cutoffs[1]);
-				cutOffs.put(Context.CHH, thread.cutoffs[2]);
-
-				this.cutOffs.put(thread.strand, cutOffs);
-
-
-			}
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-
-		return "WATSON\n" + watsonT.details + "\nCRICK\n" + crickT.details;
-	}
-
-	private double[] computePValCutoffsFile(Strand strand, MethylationFilePair results, StringBuffer computingDetails)
-			throws FileNotFoundException, IOException {
-		File outFile = null;
-		if (strand == Strand.WATSON) {
-			outFile = results.getWatsonFile();
-		} else {
-			outFile = results.getCrickFile();
-		}
-
-		double[] positiveRate = {0d, 0d, 0d};
-		double[] cutoffs = {1, 1, 1};
-		boolean[] needAdjust = {true, true, true};
-
-		int[] cCount = countCs(strand, results);
-
-
-//			int[] mcCount = {0,0,0};
-
-		int iteration = 0;
-		while (needAdjust[0] || needAdjust[1] || needAdjust[2]) {
-
-			iteration++;
-			int[] mcCount = countMCs(strand, results, cutoffs);
-				
-				/*
-				BufferedReader outIn = new BufferedReader(new FileReader(outFile));
-				
-				String line = null;
-				while ((line = outIn.readLine())!=null){
-					MethylationCall call = MethylationCall.unmarshall(line); 
-					//String[] tokens = line.split("\t");
-					if (call.getContext()==Context.CG){
-						cCount[0]++;
-						if (call.getPval()<cutoffs[0]){
-							mcCount[0]++;
-						}
-					}else if (call.getContext()==Context.CHG){
-						cCount[1]++;
-						if (call.getPval()<cutoffs[1]){
-							mcCount[1]++;
-						}
-					}else if (call.getContext()==Context.CHH){
-						cCount[2]++;
-						if (call.getPval()<cutoffs[2]){
-							mcCount[2]++;
-						}
-					}
-				}
-				outIn.close();
-				*/
-
-			double[] _positiveRate = {((double) mcCount[0] / (double) cCount[0]) * 100, ((double) mcCount[1] /
-					(double) cCount[1]) * 100, ((double) mcCount[2] / (double) cCount[2]) * 100};
-			computingDetails.append("Iteration " + iteration + ", M: " + Arrays.toString(cutoffs) + " %mC: " + Arrays
-					.toString(_positiveRate) + "\n");
-
-			if (Double.isNaN(_positiveRate[0])) {
-				cutoffs[0] = 0; // ??
-				needAdjust[0] = false;
-			} else if (_positiveRate[0] != positiveRate[0]) {
-				cutoffs[0] = FDR * _positiveRate[0] / (100d - _positiveRate[0]);
-				positiveRate[0] = _positiveRate[0];
-			} else {
-				needAdjust[0] = false;
-			}
-
-
-			if (Double.isNaN(_positiveRate[1])) {
-				cutoffs[1] = 0; // ??
-				needAdjust[1] = false;
-			} else if (_positiveRate[1] != positiveRate[1]) {
-				cutoffs[1] = FDR * _positiveRate[1] / (100d - _positiveRate[1]);
-				positiveRate[1] = _positiveRate[1];
-			} else {
-				needAdjust[1] = false;
-			}
-
-			if (Double.isNaN(_positiveRate[2])) {
-				cutoffs[2] = 0; // ??
-				needAdjust[2] = false;
-			} else if (_positiveRate[2] != positiveRate[2]) {
-				cutoffs[2] = FDR * _positiveRate[2] / (100d - _positiveRate[2]);
-				positiveRate[2] = _positiveRate[2];
-			} else {
-				needAdjust[2] = false;
-			}
-
-
-			computingDetails.append("\tneed Adjust: " + Arrays.toString(needAdjust) + "\n");
-		}
-
-		computingDetails.append("Finished p-value adjust. Result " + Arrays.toString(cutoffs) + "\n");
-		return cutoffs;
-	}
-
-	private int[] countMCs(Strand strand, MethylationFilePair results, double[] cutoffs) {
-		int[] toret = {0, 0, 0};
-		Map<Context, Map<Double, Integer>> pvals = null;
-		if (strand == Strand.WATSON) {
-			pvals = results.getWatsonPvals();
-		} else {
-			pvals = results.getCrickPvals();
-		}
-
-		int i = 0;
-		for (Context context : new Context[]{Context.CG, Context.CHG, Context.CHH}) {
-			int total = 0;
-			for (Double pval : pvals.get(context).keySet()) {
-				if (pval < cutoffs[i]) {
-
-					total += pvals.get(context).get(pval);
-				}
-			}
-			toret[i] = total;
-			i++;
-		}
-		return toret;
-	}
-
-	private int[] countCs(Strand strand, MethylationFilePair results) {
-		int[] toret = {0, 0, 0};
-		Map<Context, Map<Double, Integer>> pvals = null;
-		if (strand == Strand.WATSON) {
-			pvals = results.getWatsonPvals();
-		} else {
-			pvals = results.getCrickPvals();
-		}
-
-		int i = 0;
-		for (Context context : new Context[]{Context.CG, Context.CHG, Context.CHH}) {
-			int total = 0;
-			for (Integer count : pvals.get(context).values()) {
-				total += count;
-			}
-			toret[i] = total;
-			i++;
-		}
-		return toret;
-	}
-
-	private void appendFiles(File f1, File f2, File outfile) throws IOException {
-		//System.err.println("appending: "+f1+", "+f2+": "+outfile);
-
-		byte[] buffer = new byte[2048];
-
-		BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(outfile));
-
-		//file 1
-		FileInputStream fis = new FileInputStream(f1);
-
-		BufferedInputStream in = new BufferedInputStream(fis);
-		int readed = -1;
-
-		while ((readed = in.read(buffer)) != -1) {
-			out.write(buffer, 0, readed);
-		}
-		in.close();
-		fis.close();
-
-
-		//file 2
-		fis = new FileInputStream(f2);
-		in = new BufferedInputStream(fis);
-		readed = -1;
-
-		while ((readed = in.read(buffer)) != -1) {
-			out.write(buffer, 0, readed);
-		}
-		in.close();
-		fis.close();
-
-		if (!f1.delete()) {
-			throw new RuntimeException("Could no delete tempary file: " + f1);
-		}
-
-		if (!f2.delete()) {
-			throw new RuntimeException("Could no delete tempary file: " + f2);
-		}
-
-		out.flush();
-		out.close();
-
-	}
-
 	public static void main(String[] args) throws IOException {
 		File f = new File("/mnt/lacie15t/BACKUP/lipido/NGS/LISTER/REFERENCES/phageLambda_plus_hg18.fa.fai");
 		RandomAccessFile ra = new RandomAccessFile(f, "rw");
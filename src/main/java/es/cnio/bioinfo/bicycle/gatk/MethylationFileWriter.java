@@ -0,0 +1,237 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Appends text records to a file through a single channel that stays open until the writer is closed. Records are
+ * encoded into a pooled direct buffer, which is written to the channel only when it cannot hold the next record.
+ * Binary records can be written through the {@link OutputStream} methods.
+ */
+public class MethylationFileWriter extends OutputStream {
+
+	public static final int BUFFER_SIZE = 4 * 1024 * 1024;
+	private static final int MAX_POOLED_BUFFERS = 64;
+
+	private static final ConcurrentLinkedQueue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger pooledBuffers = new AtomicInteger();
+
+	private final File file;
+	private final Statistics statistics;
+	private FileChannel channel;
+	private ByteBuffer buffer;
+
+	public MethylationFileWriter(File file, Statistics statistics) throws IOException {
+		this.file = file;
+		this.statistics = statistics;
+		this.channel = new FileOutputStream(file, true).getChannel();
+		this.buffer = acquireBuffer();
+		this.statistics.channelsOpened.incrementAndGet();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public void print(CharSequence str) throws IOException {
+		int length = str.length();
+		if (buffer.remaining() < length) {
+			flush();
+		}
+		if (buffer.remaining() < length) {
+			// larger than a whole buffer, write it directly
+			writeFully(ByteBuffer.wrap(str.toString().getBytes()));
+			return;
+		}
+
+		int start = buffer.position();
+		for (int i = 0; i < length; i++) {
+			char c = str.charAt(i);
+			if (c >= 0x80) {
+				// non-ASCII (annotations may contain anything): rewind and encode with the platform charset
+				buffer.position(start);
+				byte[] bytes = str.toString().getBytes();
+				if (buffer.remaining() < bytes.length) {
+					flush();
+				}
+				if (buffer.remaining() < bytes.length) {
+					writeFully(ByteBuffer.wrap(bytes));
+				} else {
+					buffer.put(bytes);
+				}
+				return;
+			}
+			buffer.put((byte) c);
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (!buffer.hasRemaining()) {
+			flush();
+		}
+		buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		if (buffer.remaining() < length) {
+			flush();
+		}
+		if (buffer.remaining() < length) {
+			writeFully(ByteBuffer.wrap(bytes, offset, length));
+		} else {
+			buffer.put(bytes, offset, length);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (buffer.position() > 0) {
+			buffer.flip();
+			writeFully(buffer);
+			buffer.clear();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel == null) {
+			return;
+		}
+		try {
+			flush();
+		} finally {
+			channel.close();
+			channel = null;
+			releaseBuffer(buffer);
+			buffer = null;
+		}
+	}
+
+	private void writeFully(ByteBuffer source) throws IOException {
+		long written = 0;
+		while (source.hasRemaining()) {
+			written += channel.write(source);
+		}
+		statistics.bytesWritten.addAndGet(written);
+		statistics.flushes.incrementAndGet();
+	}
+
+	private static ByteBuffer acquireBuffer() {
+		ByteBuffer pooled = bufferPool.poll();
+		if (pooled != null) {
+			pooledBuffers.decrementAndGet();
+			return pooled;
+		}
+		return ByteBuffer.allocateDirect(BUFFER_SIZE);
+	}
+
+	private static void releaseBuffer(ByteBuffer buffer) {
+		if (pooledBuffers.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+			buffer.clear();
+			bufferPool.offer(buffer);
+		} else {
+			pooledBuffers.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Concatenates the segments into outfile, in order, and deletes them. A single segment is just renamed.
+	 */
+	public static void concatenate(List<File> segments, File outfile, Statistics statistics) throws IOException {
+		if (segments.size() == 1 && segments.get(0).renameTo(outfile)) {
+			return;
+		}
+
+		FileChannel out = new FileOutputStream(outfile).getChannel();
+		try {
+			for (File segment : segments) {
+				FileChannel in = new FileInputStream(segment).getChannel();
+				try {
+					long size = in.size();
+					long position = 0;
+					while (position < size) {
+						position += in.transferTo(position, size - position, out);
+					}
+					statistics.addBytesTransferred(size);
+				} finally {
+					in.close();
+				}
+
+				if (!segment.delete()) {
+					throw new RuntimeException("Could no delete tempary file: " + segment);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * I/O counters shared by all the writers of a traversal.
+	 */
+	public static class Statistics {
+		private final AtomicLong bytesWritten = new AtomicLong();
+		private final AtomicLong flushes = new AtomicLong();
+		private final AtomicLong channelsOpened = new AtomicLong();
+		private final AtomicLong bytesTransferred = new AtomicLong();
+
+		public long getBytesWritten() {
+			return bytesWritten.get();
+		}
+
+		public long getFlushes() {
+			return flushes.get();
+		}
+
+		public long getChannelsOpened() {
+			return channelsOpened.get();
+		}
+
+		public long getBytesTransferred() {
+			return bytesTransferred.get();
+		}
+
+		public void addBytesTransferred(long bytes) {
+			bytesTransferred.addAndGet(bytes);
+		}
+
+		@Override
+		public String toString() {
+			return " methylation files: " + getBytesWritten() + " bytes written in " + getFlushes() + " flushes, "
+					+ getChannelsOpened() + " channels opened (" + (BUFFER_SIZE / 1024) + " KB buffers)\n"
+					+ " partial files merged: " + getBytesTransferred() + " bytes transferred";
+		}
+	}
+}
@@ -0,0 +1,330 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.DecimalFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import es.cnio.bioinfo.bicycle.MethylationBinaryReader;
+import es.cnio.bioinfo.bicycle.MethylationCall;
+
+/**
+ * Writes the results of a methylation calling once the per-strand .methylation files are complete: the p-value
+ * cut-offs, the .methylcytosines and VCF files and the summary. Shared by the GATK walker and the native caller.
+ */
+class MethylationResultsWriter {
+
+	private static final int OUTPUT_BUFFER_SIZE = 1024 * 1024;
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+	private final List<String> annotationNames;
+	private final int nThreads;
+	private final double fdr;
+
+	private HashMap<Strand, HashMap<Context, Double>> cutOffs = new HashMap<Strand, HashMap<Context, Double>>();
+
+	// DecimalFormat is not thread-safe, one per formatting thread
+	private final ThreadLocal<DecimalFormat> betaScoreFormat = new ThreadLocal<DecimalFormat>() {
+		@Override
+		protected DecimalFormat initialValue() {
+			return new DecimalFormat("#.#######");
+		}
+	};
+
+	public MethylationResultsWriter(List<String> annotationNames, int nThreads, double fdr) {
+		this.annotationNames = annotationNames;
+		this.nThreads = nThreads;
+		this.fdr = fdr;
+	}
+
+	public HashMap<Strand, HashMap<Context, Double>> getCutOffs() {
+		return cutOffs;
+	}
+
+	/**
+	 * Computes the p-value cut-offs of each strand and context and returns the details of the computation.
+	 */
+	public String computePValCutOffs(final MethylationFilePair results) {
+
+		// strands and contexts are independent: estimate the six cutoffs in parallel
+		final FDRCutoffEstimator estimator = new FDRCutoffEstimator(fdr);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(Strand.values().length * Context.values()
+				.length, Runtime.getRuntime().availableProcessors()));
+
+		Map<Strand, Map<Context, Future<FDRCutoffEstimator.Result>>> futures = new HashMap<>();
+		for (Strand strand : Strand.values()) {
+			Map<Context, PValueHistogram> pvals = strand == Strand.WATSON ? results.getWatsonPvals() : results
+					.getCrickPvals();
+			futures.put(strand, new HashMap<Context, Future<FDRCutoffEstimator.Result>>());
+			for (Context context : Context.values()) {
+				final PValueHistogram histogram = pvals.get(context);
+				futures.get(strand).put(context, executor.submit(new Callable<FDRCutoffEstimator.Result>() {
+					@Override
+					public FDRCutoffEstimator.Result call() {
+						return estimator.estimate(histogram);
+					}
+				}));
+			}
+		}
+		executor.shutdown();
+
+		StringBuilder details = new StringBuilder();
+		try {
+			for (Strand strand : Strand.values()) {
+				HashMap<Context, Double> cutOffs = new HashMap<Context, Double>();
+				details.append(strand + "\n");
+				for (Context context : Context.values()) {
+					FDRCutoffEstimator.Result result = futures.get(strand).get(context).get();
+					cutOffs.put(context, result.getCutoff());
+
+					details.append(" " + context + ": " + result + "\n");
+					details.append("  " + result.getDetails().replace("\n", "\n  ").trim() + "\n");
+				}
+				this.cutOffs.put(strand, cutOffs);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+
+		return details.toString();
+	}
+
+	public GlobalMethylationStatistics writeMethylCytosines(List<String> sortedSequenceNames, File watsonFile, File
+			crickFile, boolean binary, File methylcytosinesFile, File vcfFile) throws FileNotFoundException {
+
+		PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(methylcytosinesFile),
+				OUTPUT_BUFFER_SIZE));
+		PrintStream outvcf = new PrintStream(new BufferedOutputStream(new FileOutputStream(vcfFile),
+				OUTPUT_BUFFER_SIZE));
+
+		try {
+			GlobalMethylationStatistics stats = new GlobalMethylationStatistics();
+
+			writeMethylcytosinesHeader(out);
+			writeVCFHeader(outvcf);
+			out.flush();
+			outvcf.flush();
+
+			if (binary) {
+				writeMethylCytosinesFromBinary(sortedSequenceNames, watsonFile, crickFile, out, outvcf, stats);
+				out.close();
+				outvcf.close();
+				return stats;
+			}
+
+			BufferedReader wReader = new BufferedReader(new FileReader(watsonFile));
+			BufferedReader cReader = new BufferedReader(new FileReader(crickFile));
+			GPFilesReader reader = new GPFilesReader(sortedSequenceNames, wReader, cReader);
+
+			ParallelMethylcytosinesWriter writer = createMethylcytosinesWriter();
+			writer.write(reader, out, outvcf, stats);
+
+			wReader.close();
+			cReader.close();
+			out.close();
+			outvcf.close();
+			return stats;
+
+		} catch (FileNotFoundException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+	}
+
+	private ParallelMethylcytosinesWriter createMethylcytosinesWriter() {
+		return new ParallelMethylcytosinesWriter(this.nThreads, new ParallelMethylcytosinesWriter.RecordFormatter() {
+			@Override
+			public void format(MethylationCall call, StringBuilder methylcytosines, StringBuilder vcf) {
+				call.setCutOff(cutOffs.get(call.getStrand()).get(call.getContext()));
+				writeMehylcytosinesRecord(methylcytosines, call);
+				writeVCFRecord(vcf, call);
+			}
+		});
+	}
+
+	private void writeMethylCytosinesFromBinary(List<String> sortedSequenceNames, File watsonFile, File crickFile,
+												PrintStream out, PrintStream outvcf, GlobalMethylationStatistics
+														stats) throws IOException {
+		MethylationBinaryReader wReader = new MethylationBinaryReader(watsonFile);
+		MethylationBinaryReader cReader = new MethylationBinaryReader(crickFile);
+		try {
+			final GPBinaryFilesReader reader = new GPBinaryFilesReader(sortedSequenceNames, wReader, cReader);
+
+			createMethylcytosinesWriter().write(reader, out, outvcf, stats);
+		} finally {
+			wReader.close();
+			cReader.close();
+		}
+	}
+
+	private void writeMethylcytosinesHeader(PrintStream out) {
+		out.print(MethylationCall.getMarshallHeader());
+		for (String annotationName : this.annotationNames) {
+			out.print("\t" + annotationName);
+		}
+		out.println("\tSTATUS");
+
+	}
+
+	private void writeMehylcytosinesRecord(StringBuilder out, MethylationCall call) {
+		double cutOff = call.getCutOff();
+
+		call.marshall(out);
+		if (call.getPval() < cutOff) {
+			out.append("\tMETHYLATED").append(LINE_SEPARATOR);
+		} else {
+			out.append("\tUNMETHYLATED").append(LINE_SEPARATOR);
+		}
+	}
+
+
+	private void writeVCFHeader(PrintStream out) {
+		//header
+		out.println("#fileformat=VCFv4.1");
+		out.println("##INFO=<ID=NS,Number=1,Type=Integer,Description=\"Number of Samples With Data\">");
+		out.println("##INFO=<ID=DP,Number=1,Type=Integer,Description=\"Total Depth\">");
+		out.println("##INFO=<ID=CTDP,Number=1,Type=Integer,Description=\"CorT Depth\">");
+		out.println("##INFO=<ID=CD,Number=1,Type=Integer,Description=\"Cytosine Depth\">");
+
+		//modified (osvaldo, 3jan2016)
+		//out.println("##INFO=<ID=PER,Number=1,Type=Float,Description=\"Methylation percentage\">");		
+		out.println("##INFO=<ID=BS,Number=1,Type=Float,Description=\"Beta Score\">");
+
+		out.println("##INFO=<ID=PU,Number=1,Type=Float,Description=\"Readed bases at this position\">");
+		out.println("##INFO=<ID=CO,Number=1,Type=Flag,Description=\"Corrected, i.e., this CG is derived from a non-GC " +
+				"to GC correction\">");
+		out.println("##INFO=<ID=AC,Number=1,Type=Flag,Description=\"Added by correction, i.e., this CG is added due to" +
+				" a correction from non-CG to CG in the opposite strand\">");
+		out.println("##INFO=<ID=STR,Number=1,Type=String,Description=\"Strand Aligment\">");
+
+		for (String annotationName : this.annotationNames) {
+			out.println("##INFO=<ID=" + annotationName + ",Number=1,Type=String,Description=\"" + annotationName
+					+ " annotation\">");
+		}
+
+		out.println("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO");
+	}
+
+	private void writeVCFRecord(StringBuilder out, MethylationCall call) {
+		double cutOff = call.getCutOff();
+
+		out.append(call.getContig()).append("\t");
+		out.append(call.getPosition()).append("\t");
+		out.append(call.getContext()).append("\t");
+		out.append("C\t");
+		if (call.getPval() < cutOff) {
+			out.append("C\t");
+		} else {
+			out.append(".\t");
+		}
+		out.append(".\t.\t");
+
+		//info
+		out.append("NS=1;");
+		out.append("DP=").append(call.getDepth()).append(";");
+		out.append("CTDP=").append(call.getCTdepth()).append(";");
+		out.append("CD=").append(call.getCytosines()).append(";");
+
+		//modified (osvaldo, 3jan2016)
+		//out.print("PER="+new DecimalFormat("###.##").format(100*(double)call.getCytosines()/(double)call.getDepth())
+		// +";");
+		out.append("BS=").append(betaScoreFormat.get().format(call.getBetaScore())).append(";");
+
+		out.append("PU=").append(call.getPileup()).append(";");
+		if (call.isCorrectedFromNonCG()) {
+			out.append("CO;");
+		}
+		if (call.isAddedByCorrection()) {
+			out.append("AC;");
+		}
+
+		out.append("STR=").append(call.getStrand() == Strand.WATSON ? "+" : "-").append(";");
+
+		for (int i = 0; i < this.annotationNames.size(); i++) {
+			out.append(this.annotationNames.get(i)).append("=").append(call.getAnnotations().get(i)).append(";");
+		}
+		out.append(LINE_SEPARATOR);
+	}
+
+	public void printSummary(File summaryFile, GlobalMethylationStatistics stats, String cutoffDetails, boolean
+			correctNonCG, ListerFilter listerFilter, boolean removeClonal, String errorRate, String controlGenome,
+							 ContigBisulfiteError error, MethylationFileWriter.Statistics ioStatistics)
+			throws FileNotFoundException {
+		PrintStream summary = new PrintStream(new FileOutputStream(summaryFile));
+		summary.println("====METHYLATION RESULTS=======================================================");
+		summary.println("File: " + summaryFile.getName());
+		summary.println("Date: " + new Date());
+		summary.println();
+
+		summary.println("====ANALYSIS PARAMETERS=======================================================");
+		summary.println(" Correct non-CG: " + correctNonCG);
+
+
+		summary.println(" Filters:" + (listerFilter == null ? "\n" : "\n  " + listerFilter.toString().replace(",", "\n" +
+				" ")));
+		summary.println("  remove clonal reads: " + removeClonal);
+		summary.println(" FDR threshold: " + this.fdr);
+		summary.println();
+		summary.println("====ERROR ESTIMATION AND SIGNIFICANCE ADJUSTMENTS=============================");
+		//error rates
+		summary.print(" Error rates (");
+		if (!errorRate.equals("")) {
+			summary.println("fixed):");
+		} else if (!controlGenome.equals("")) {
+			summary.println("from control genome: " + controlGenome + "):");
+		}
+		summary.println("  " + error.toString().replaceAll("\n", "\n  "));
+		summary.println("  p-value cutoffs: " + this.cutOffs);
+		summary.println();
+		summary.println("====METHYLATION ANALYSIS RESULTS==============================================");
+		//statistics		
+		summary.println(stats);
+
+		//cut-off details
+		summary.println("Cut-off computation details:\n" + cutoffDetails);
+
+		summary.println("====I/O STATISTICS============================================================");
+		summary.println(ioStatistics);
+		summary.close();
+	}
+}
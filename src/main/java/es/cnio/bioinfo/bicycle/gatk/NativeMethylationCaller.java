@@ -0,0 +1,1377 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import es.cnio.bioinfo.bicycle.MethylationCall;
+import net.sf.picard.reference.FastaSequenceIndexBuilder;
+import net.sf.picard.reference.IndexedFastaSequenceFile;
+import net.sf.samtools.CigarElement;
+import net.sf.samtools.CigarOperator;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordCoordinateComparator;
+import net.sf.samtools.SAMRecordIterator;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+
+/**
+ * Methylation caller that streams the sorted Watson and Crick BAM files directly, without the GATK engine. It
+ * applies the same read filters, clonal removal, context rules and non-CG correction as {@link
+ * ListerMethylationWalker} and writes the same .methylation, .methylcytosines, VCF and summary files.
+ * <p>
+ * Reads are assigned to a strand by their read group. The bases of each strand are kept in a ring buffer indexed
+ * by position, in the order the reads were found, and a position is called once no more reads can cover it or the
+ * position downstream of it.
+ * <p>
+ * The reference is split into shards of consecutive positions of a contig that are called in parallel. Each shard
+ * writes its own segments of the .methylation files and, once complete, a .done file with its p-values and read
+ * counters, so a failed calling can be resumed without repeating the completed shards. The segments and p-values are
+ * merged in the order of the sequence dictionary, so the results do not depend on the number of threads.
+ */
+public class NativeMethylationCaller {
+	private static final Logger logger = Logger.getLogger(NativeMethylationCaller.class.getSimpleName());
+
+	// reference bases loaded at once
+	private static final int REFERENCE_CHUNK = 1024 * 1024;
+
+	public static final int DEFAULT_SHARD_SIZE = 10 * 1000 * 1000;
+
+	private static final SAMRecordCoordinateComparator RECORD_ORDER = new SAMRecordCoordinateComparator();
+
+	private final File watsonBAM;
+	private final File crickBAM;
+	private final File referenceFile;
+	private final CytosineContextIndex contexts;
+
+	private String controlGenome = "";
+	private String errorRate = "";
+	private double fdr = 0.01;
+	private boolean correctNonCG = false;
+	private boolean removeClonal = false;
+	private boolean binaryMethylation = false;
+	private int mindepth = 1;
+	private boolean trim = false;
+	private int nThreads = 1;
+	private int shardSize = DEFAULT_SHARD_SIZE;
+	private File shardDirectory = null;
+	private List<File> annotations = Collections.emptyList();
+
+	private ListerFilter listerFilter = new CallerFilter();
+	private ContigBisulfiteError error;
+	private MethylationFileWriter.Statistics ioStatistics = new MethylationFileWriter.Statistics();
+
+	/**
+	 * @param watsonBAM     the sorted and indexed BAM of the reads aligned to the Watson strand
+	 * @param crickBAM      the sorted and indexed BAM of the reads aligned to the Crick strand
+	 * @param referenceFile the reference FASTA file
+	 * @param contexts      the cytosine context index of the reference
+	 */
+	public NativeMethylationCaller(File watsonBAM, File crickBAM, File referenceFile, CytosineContextIndex
+			contexts) {
+		this.watsonBAM = watsonBAM;
+		this.crickBAM = crickBAM;
+		this.referenceFile = referenceFile;
+		this.contexts = contexts;
+	}
+
+	/**
+	 * Estimates the error rates from the reads aligned to this contig, which is not called.
+	 */
+	public void setControlGenome(String controlGenome) {
+		this.controlGenome = controlGenome;
+	}
+
+	public void setErrorRate(double watsonError, double crickError) {
+		this.errorRate = watsonError + "," + crickError;
+	}
+
+	public void setFDR(double fdr) {
+		this.fdr = fdr;
+	}
+
+	public void setCorrectNonCG(boolean correctNonCG) {
+		this.correctNonCG = correctNonCG;
+	}
+
+	public void setRemoveClonal(boolean removeClonal) {
+		this.removeClonal = removeClonal;
+	}
+
+	public void setMinDepth(int mindepth) {
+		this.mindepth = mindepth;
+	}
+
+	public void setTrim(boolean trim, int trimUntil) {
+		this.trim = trim;
+		this.listerFilter.trimUntil = trimUntil;
+	}
+
+	public void setRemoveBad(boolean removeBad) {
+		this.listerFilter.removeBad = removeBad;
+	}
+
+	public void setRemoveAmbiguous(boolean removeAmbiguous) {
+		this.listerFilter.removeAmbiguous = removeAmbiguous;
+	}
+
+	public void setOnlyWithOneAlignment(boolean onlyWithOneAlignment) {
+		this.listerFilter.onlyWithOneAlignment = onlyWithOneAlignment;
+	}
+
+	public void setBinaryMethylation(boolean binaryMethylation) {
+		this.binaryMethylation = binaryMethylation;
+	}
+
+	/**
+	 * Number of threads used to call the shards and to write the .methylcytosines file.
+	 */
+	public void setThreads(int nThreads) {
+		this.nThreads = nThreads;
+	}
+
+	/**
+	 * Maximum number of positions of a shard.
+	 */
+	public void setShardSize(int shardSize) {
+		if (shardSize < 1) {
+			throw new IllegalArgumentException("shard size must be positive: " + shardSize);
+		}
+		this.shardSize = shardSize;
+	}
+
+	/**
+	 * Directory where the shards are written. The shards completed in a previous call with the same inputs and
+	 * settings are not called again. If it is not set, a temporary directory is used.
+	 */
+	public void setShardDirectory(File shardDirectory) {
+		this.shardDirectory = shardDirectory;
+	}
+
+	/**
+	 * BED files to annotate the cytosines with, named as the file.
+	 */
+	public void setAnnotations(List<File> bedFiles) {
+		this.annotations = bedFiles;
+	}
+
+	public void call(File methylationWatsonFile, File methylationCrickFile, File methylcytosinesFile, File
+			methylcytosinesVCFFile, File summaryFile) throws IOException {
+
+		if (this.controlGenome.equals("") && this.errorRate.equals("")) {
+			throw new IllegalStateException("Please provide at least a control genome or an error rate");
+		}
+
+		BEDAnnotations bedAnnotations = new BEDAnnotations(this.annotations);
+		List<String> sequenceNames = new ArrayList<String>();
+		List<Shard> shards;
+
+		IndexedFastaSequenceFile reference = openReference();
+		SAMFileReader watsonReader = new SAMFileReader(this.watsonBAM);
+		SAMFileReader crickReader = new SAMFileReader(this.crickBAM);
+		try {
+			if (!this.controlGenome.equals("") && this.errorRate.equals("")) {
+				this.error = computeErrorFromControlGenome(reference, watsonReader, crickReader);
+				this.listerFilter.resetCounters();
+			} else {
+				this.error = new FixedContigBisulfiteError(Double.parseDouble(this.errorRate.split(",")[0]), Double
+						.parseDouble(this.errorRate.split(",")[1]));
+			}
+			logger.info("Error computed " + this.error);
+
+			SAMSequenceDictionary dictionary = watsonReader.getFileHeader().getSequenceDictionary();
+			for (SAMSequenceRecord sequence : dictionary.getSequences()) {
+				sequenceNames.add(sequence.getSequenceName());
+			}
+			shards = createShards(dictionary);
+		} finally {
+			watsonReader.close();
+			crickReader.close();
+			reference.close();
+		}
+
+		File directory = this.shardDirectory;
+		if (directory == null) {
+			directory = Files.createTempDirectory("bicycle-shards").toFile();
+		} else if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create the shard directory: " + directory);
+		}
+
+		MethylationFilePair result = callShards(shards, directory, bedAnnotations);
+		MethylationFileWriter.concatenate(result.getWatsonSegments(), methylationWatsonFile, this.ioStatistics);
+		MethylationFileWriter.concatenate(result.getCrickSegments(), methylationCrickFile, this.ioStatistics);
+		deleteShards(shards, directory);
+
+		MethylationResultsWriter resultsWriter = new MethylationResultsWriter(bedAnnotations.getNames(), this
+				.nThreads, this.fdr);
+		String details = resultsWriter.computePValCutOffs(result);
+		for (Strand strand : Strand.values()) {
+			logger.info("p-val cutoffs computed for strand " + strand + " : " + resultsWriter.getCutOffs().get
+					(strand));
+		}
+		GlobalMethylationStatistics stats = resultsWriter.writeMethylCytosines(sequenceNames,
+				methylationWatsonFile, methylationCrickFile, this.binaryMethylation, methylcytosinesFile,
+				methylcytosinesVCFFile);
+		resultsWriter.printSummary(summaryFile, stats, details, this.correctNonCG, this.listerFilter, this
+				.removeClonal, this.errorRate, this.controlGenome, this.error, this.ioStatistics);
+	}
+
+	private List<Shard> createShards(SAMSequenceDictionary dictionary) {
+		List<Shard> shards = new ArrayList<Shard>();
+		for (SAMSequenceRecord sequence : dictionary.getSequences()) {
+			if (sequence.getSequenceName().equals(this.controlGenome)) {
+				continue;
+			}
+			for (long start = 1; start <= sequence.getSequenceLength(); start += this.shardSize) {
+				shards.add(new Shard(shards.size(), sequence.getSequenceName(), (int) start, (int) Math.min(sequence
+						.getSequenceLength(), start + this.shardSize - 1)));
+			}
+		}
+		return shards;
+	}
+
+	/**
+	 * Calls the shards in parallel and returns their segments and p-values, merged in the order of the shards.
+	 */
+	private MethylationFilePair callShards(List<Shard> shards, final File directory, final BEDAnnotations
+			bedAnnotations) {
+		logger.info("Calling " + shards.size() + " shards with " + this.nThreads + " threads");
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, this.nThreads));
+		List<Future<ShardResult>> futures = new ArrayList<Future<ShardResult>>();
+		for (final Shard shard : shards) {
+			futures.add(executor.submit(new Callable<ShardResult>() {
+				@Override
+				public ShardResult call() throws IOException {
+					return callShard(shard, directory, bedAnnotations);
+				}
+			}));
+		}
+		executor.shutdown();
+
+		List<File> watsonSegments = new ArrayList<File>();
+		List<File> crickSegments = new ArrayList<File>();
+		Map<Context, PValueHistogram> watsonPvals = new HashMap<Context, PValueHistogram>();
+		Map<Context, PValueHistogram> crickPvals = new HashMap<Context, PValueHistogram>();
+		for (Context context : Context.values()) {
+			watsonPvals.put(context, new PValueHistogram());
+			crickPvals.put(context, new PValueHistogram());
+		}
+		try {
+			for (Future<ShardResult> future : futures) {
+				ShardResult shardResult = future.get();
+				watsonSegments.add(shardResult.getWatsonSegment());
+				crickSegments.add(shardResult.getCrickSegment());
+				for (Context context : Context.values()) {
+					watsonPvals.put(context, PValueHistogram.merge(watsonPvals.get(context), shardResult
+							.getWatsonPvals().get(context)));
+					crickPvals.put(context, PValueHistogram.merge(crickPvals.get(context), shardResult.getCrickPvals
+							().get(context)));
+				}
+				long[] counters = shardResult.getCounters();
+				this.listerFilter.addCounters(counters[0], counters[1], counters[2], counters[3], counters[4],
+						counters[5]);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return MethylationFilePair.fromSegments(watsonSegments, crickSegments, watsonPvals, crickPvals);
+	}
+
+	private ShardResult callShard(Shard shard, File directory, BEDAnnotations bedAnnotations) throws IOException {
+		File watsonSegment = new File(directory, shard.getName() + "_" + Strand.WATSON.name() + ".methylation");
+		File crickSegment = new File(directory, shard.getName() + "_" + Strand.CRICK.name() + ".methylation");
+		File doneFile = new File(directory, shard.getName() + ".done");
+		String fingerprint = getFingerprint(shard);
+
+		if (doneFile.exists() && watsonSegment.exists() && crickSegment.exists()) {
+			ShardResult previous = ShardResult.read(doneFile, fingerprint, watsonSegment, crickSegment);
+			if (previous != null) {
+				logger.info("Shard " + shard + " was already called");
+				return previous;
+			}
+		}
+		doneFile.delete();
+
+		// the methylation files are written in append mode
+		new FileOutputStream(watsonSegment).close();
+		new FileOutputStream(crickSegment).close();
+
+		ListerFilter filter = new CallerFilter();
+		filter.trimUntil = this.listerFilter.trimUntil;
+		filter.removeBad = this.listerFilter.removeBad;
+		filter.removeAmbiguous = this.listerFilter.removeAmbiguous;
+		filter.onlyWithOneAlignment = this.listerFilter.onlyWithOneAlignment;
+
+		MethylationFilePair segments = new MethylationFilePair(watsonSegment, crickSegment, this.binaryMethylation,
+				this.ioStatistics);
+		IndexedFastaSequenceFile reference = new IndexedFastaSequenceFile(this.referenceFile);
+		SAMFileReader watsonReader = new SAMFileReader(this.watsonBAM);
+		SAMFileReader crickReader = new SAMFileReader(this.crickBAM);
+		try {
+			// the non-CG correction of the first and last positions looks at the positions next to the shard
+			int queryStart = Math.max(1, shard.getStart() - 1);
+			SAMRecordIterator watsonIterator = watsonReader.query(shard.getContig(), queryStart, shard.getEnd() + 1,
+					false);
+			try {
+				SAMRecordIterator crickIterator = crickReader.query(shard.getContig(), queryStart, shard.getEnd() + 1,
+						false);
+				try {
+					traverse(reference, watsonIterator, crickIterator, filter, shard, new LocusCaller(segments,
+							bedAnnotations.newCursor()));
+				} finally {
+					crickIterator.close();
+				}
+			} finally {
+				watsonIterator.close();
+			}
+		} finally {
+			segments.close();
+			watsonReader.close();
+			crickReader.close();
+			reference.close();
+		}
+
+		ShardResult toret = new ShardResult(watsonSegment, crickSegment, segments.getWatsonPvals(), segments
+				.getCrickPvals(), new long[]{filter.getProcessedReadsCounter(), filter.getUnmmapedReadsCounter(), filter
+				.getWithMoreThanOneAlignmentCounter(), filter.getAmbiguousReadCounter(), filter.getTrimmedCounter(),
+				filter.getBadBisulfitedCounter()});
+		toret.write(doneFile, fingerprint);
+		logger.info("Shard " + shard + " called");
+		return toret;
+	}
+
+	/**
+	 * Everything a shard result depends on, so a shard is only reused if it would be called again the same way.
+	 */
+	private String getFingerprint(Shard shard) {
+		return shard + " " + describe(this.watsonBAM) + " " + describe(this.crickBAM) + " " + describe(this
+				.referenceFile) + " error: " + this.error.toString().replace('\n', ' ') + " removeClonal: " + this
+				.removeClonal + " correctNonCG: " + this.correctNonCG + " mindepth: " + this.mindepth + " " +
+				"trim: " + this.trim + "," + this.listerFilter.trimUntil + " removeBad: " + this.listerFilter
+				.removeBad + " removeAmbiguous: " + this.listerFilter.removeAmbiguous + " onlyWithOneAlignment: " +
+				this.listerFilter.onlyWithOneAlignment + " binary: " + this.binaryMethylation + " annotations: " +
+				describe(this.annotations);
+	}
+
+	private static String describe(List<File> files) {
+		List<String> descriptions = new ArrayList<String>();
+		for (File file : files) {
+			descriptions.add(describe(file));
+		}
+		return descriptions.toString();
+	}
+
+	private static String describe(File file) {
+		return file.getAbsolutePath() + "(" + file.length() + "," + file.lastModified() + ")";
+	}
+
+	private static void deleteShards(List<Shard> shards, File directory) {
+		for (Shard shard : shards) {
+			new File(directory, shard.getName() + ".done").delete();
+		}
+		// only if nothing else was left in it
+		directory.delete();
+	}
+
+	private IndexedFastaSequenceFile openReference() throws FileNotFoundException {
+		File fai = new File(this.referenceFile.getAbsolutePath() + ".fai");
+		if (!fai.exists()) {
+			FastaSequenceIndexBuilder.saveAsFaiFile(new FastaSequenceIndexBuilder(this.referenceFile, false)
+					.createIndex(), fai);
+		}
+		return new IndexedFastaSequenceFile(this.referenceFile);
+	}
+
+	private DefaultContigBisulfiteError computeErrorFromControlGenome(IndexedFastaSequenceFile reference,
+																	  SAMFileReader watsonReader, SAMFileReader
+																			  crickReader) {
+		logger.info("Computing error from " + this.controlGenome);
+		final DefaultContigBisulfiteError toret = new DefaultContigBisulfiteError();
+
+		SAMRecordIterator watsonIterator = watsonReader.query(this.controlGenome, 0, 0, false);
+		SAMRecordIterator crickIterator = crickReader.query(this.controlGenome, 0, 0, false);
+		try {
+			traverse(reference, watsonIterator, crickIterator, this.listerFilter, null, new LocusVisitor() {
+				@Override
+				public void visit(Locus locus) {
+					Strand strand = locus.getStrand();
+					Context context = locus.getContext();
+					if (strand == null || context == null) {
+						return;
+					}
+
+					int depth = locus.selectBases(strand);
+					if (depth >= 0) {
+						toret.addError(strand, context, depth, locus.countSelected(strand.getCytosineBase()));
+					}
+				}
+			});
+		} finally {
+			watsonIterator.close();
+			crickIterator.close();
+		}
+		return toret;
+	}
+
+	private interface LocusVisitor {
+		void visit(Locus locus);
+	}
+
+	/**
+	 * Calls the cytosines of the loci as ListerMethylationWalker.computeMethylationCall does.
+	 */
+	private class LocusCaller implements LocusVisitor {
+		private final MethylationFilePair result;
+		private final BEDAnnotations.Cursor bedAnnotations;
+		private final StringBuilder pileup = new StringBuilder();
+
+		public LocusCaller(MethylationFilePair result, BEDAnnotations.Cursor bedAnnotations) {
+			this.result = result;
+			this.bedAnnotations = bedAnnotations;
+		}
+
+		@Override
+		public void visit(Locus locus) {
+			Strand strand = locus.getStrand();
+			Context context = locus.getContext();
+			if (strand == null || context == null) {
+				return;
+			}
+			Strand oppositeStrand = strand == Strand.WATSON ? Strand.CRICK : Strand.WATSON;
+
+			int depth = locus.selectBases(strand);
+			if (depth < 0) {
+				return;
+			}
+			List<String> annotations = bedAnnotations.getAnnotations(locus.getContig(), locus.getPosition());
+
+			int mCCount = 0;
+			int CTdepth = depth;
+			pileup.setLength(0);
+			for (int i = 0; i < depth; i++) {
+				byte base = locus.getSelected(i);
+				pileup.append((char) base);
+				if (base == strand.getCytosineBase()) {
+					mCCount++;
+				}
+				if (base != strand.getCytosineBase() && base != strand.getThymineBase()) {
+					CTdepth--;
+				}
+			}
+			double pval = computePval(strand, context, mCCount, depth);
+			double CRatio = (double) mCCount / (double) depth;
+
+			MethylationCall call = new MethylationCall(locus.getContig(), locus.getPosition(), strand, context, pval,
+					depth, CTdepth, mCCount, pileup.toString(), false, false, annotations, CRatio);
+			MethylationCall oppositeCall = null;
+
+			//perform nonCG to CG correction
+			if (context != Context.CG && correctNonCG) {
+				int downstreamPosition = (int) strand.downstream(locus.getPosition());
+
+				int strandDepth = locus.selectDownstreamBases(strand, downstreamPosition);
+				int strandGCount = locus.countSelected(strand.getGuanineBase());
+				double strandGRatio = (double) strandGCount / (double) strandDepth;
+
+				if (strandGRatio >= 0.2d) {
+					int oppositeDepth = locus.selectDownstreamBases(oppositeStrand, downstreamPosition);
+					if (oppositeDepth > 0) {
+						int oppositeCCount = 0;
+						int oppositeCTdepth = oppositeDepth;
+						pileup.setLength(0);
+						for (int i = 0; i < oppositeDepth; i++) {
+							byte base = locus.getSelected(i);
+							pileup.append((char) base);
+							if (base == oppositeStrand.getCytosineBase()) {
+								oppositeCCount++;
+							}
+							if (base != oppositeStrand.getCytosineBase() && base != oppositeStrand
+									.getThymineBase()) {
+								oppositeCTdepth--;
+							}
+						}
+						double oppositeCRatio = (double) oppositeCCount / (double) oppositeDepth;
+
+						if (oppositeCRatio >= 0.2) {
+							call.correctToCG();
+
+							oppositeCall = new MethylationCall(locus.getContig(), downstreamPosition,
+									oppositeStrand, Context.CG, computePval(oppositeStrand, Context.CG,
+									oppositeCCount, oppositeDepth), oppositeDepth, oppositeCTdepth, oppositeCCount,
+									pileup.toString(), false, true, annotations, oppositeCRatio);
+						}
+					} else if (Math.abs(strandGCount - call.getCytosines()) <= 2) {
+						call.correctToCG();
+					}
+				}
+			}
+
+			// calls go to a file per strand, so the order between both calls does not matter
+			result.pushCall(call);
+			if (oppositeCall != null) {
+				result.pushCall(oppositeCall);
+			}
+		}
+	}
+
+	private double computePval(Strand strand, Context context, int mCCount, int depth) {
+		return BinomialTailTable.forErrorRate(this.error.getError(strand, context).getError()).getPval(mCCount,
+				depth);
+	}
+
+	/**
+	 * Merges both sorted iterators and gives each position covered by reads to the visitor, in order.
+	 */
+	private void traverse(IndexedFastaSequenceFile reference, SAMRecordIterator watsonIterator, SAMRecordIterator
+			crickIterator, ListerFilter filter, final Shard shard, LocusVisitor visitor) {
+		Locus locus = new Locus(reference);
+		if (shard != null) {
+			// the reads are queried with some flanking positions, which are not called
+			final LocusVisitor shardVisitor = visitor;
+			visitor = new LocusVisitor() {
+				@Override
+				public void visit(Locus locus) {
+					if (shard.contains(locus.getPosition())) {
+						shardVisitor.visit(locus);
+					}
+				}
+			};
+		}
+
+		SAMRecord watsonRecord = nextRecord(watsonIterator);
+		SAMRecord crickRecord = nextRecord(crickIterator);
+		while (watsonRecord != null || crickRecord != null) {
+			SAMRecord record;
+			if (crickRecord == null || watsonRecord != null && compare(watsonRecord, crickRecord) <= 0) {
+				record = watsonRecord;
+				watsonRecord = nextRecord(watsonIterator);
+			} else {
+				record = crickRecord;
+				crickRecord = nextRecord(crickIterator);
+			}
+
+			if (isFilteredOut(record, filter, shard == null || shard.contains(record.getAlignmentStart()))) {
+				continue;
+			}
+			if (!record.getReferenceName().equals(locus.getContig())) {
+				locus.visitUntil(Integer.MAX_VALUE, visitor);
+				locus.startContig(record.getReferenceName());
+			}
+			// the positions downstream of the previous one cannot be covered by this or any later read
+			locus.visitUntil(record.getAlignmentStart() - 2, visitor);
+			locus.add(record);
+		}
+		locus.visitUntil(Integer.MAX_VALUE, visitor);
+	}
+
+	private static SAMRecord nextRecord(SAMRecordIterator iterator) {
+		return iterator.hasNext() ? iterator.next() : null;
+	}
+
+	/**
+	 * The order in which GATK merges the reads of both BAM files, that of picard's MergingSamRecordIterator.
+	 */
+	private static int compare(SAMRecord a, SAMRecord b) {
+		return RECORD_ORDER.compare(a, b);
+	}
+
+	/**
+	 * The default filters of the GATK locus walkers followed by the ListerFilter. Reads are only counted by the
+	 * shard where they start.
+	 */
+	private static boolean isFilteredOut(SAMRecord record, ListerFilter filter, boolean count) {
+		if (record.getReadUnmappedFlag() || record.getNotPrimaryAlignmentFlag() || record.getDuplicateReadFlag() ||
+				record.getReadFailsVendorQualityCheckFlag()) {
+			return true;
+		}
+		if (!count) {
+			filter.freezeCountersInThread();
+			try {
+				return filter.filterOut(record);
+			} finally {
+				filter.unfreezeCountersInThread();
+			}
+		}
+		return filter.filterOut(record);
+	}
+
+	/**
+	 * A ListerFilter that trims the reads as this caller is set, instead of using the static setting of the walker.
+	 */
+	private class CallerFilter extends ListerFilter {
+		@Override
+		protected boolean isTrimming() {
+			return trim;
+		}
+	}
+
+	/**
+	 * The bases of both strands around the position being visited, plus the reference.
+	 */
+	private class Locus {
+		private final IndexedFastaSequenceFile reference;
+		private final PileupRing[] rings = {new PileupRing(), new PileupRing()};
+
+		private String contig;
+		private int contigLength;
+		private CytosineContextIndex.Sequence contigContexts;
+
+		private byte[] referenceBases;
+		private int referenceStart;
+
+		// next position to visit
+		private int position;
+
+		// bases of the last selection, in pileup order
+		private byte[] selected = new byte[64];
+		private int selectedSize;
+
+		private final ClonalFilter clonalFilter = new ClonalFilter();
+
+		public Locus(IndexedFastaSequenceFile reference) {
+			this.reference = reference;
+		}
+
+		public void startContig(String contig) {
+			this.contig = contig;
+			this.contigContexts = contexts.getSequence(contig);
+			if (this.contigContexts == null) {
+				throw new IllegalArgumentException("sequence not found in the cytosine context index: " + contig);
+			}
+			this.contigLength = (int) this.contigContexts.getLength();
+			this.referenceBases = null;
+			this.position = 1;
+			for (PileupRing ring : this.rings) {
+				ring.reset();
+			}
+		}
+
+		public String getContig() {
+			return contig;
+		}
+
+		public int getPosition() {
+			return position;
+		}
+
+		public void add(SAMRecord record) {
+			Strand strand = getStrand(record);
+			if (strand == null) {
+				return;
+			}
+			PileupRing ring = this.rings[strand.ordinal()];
+
+			int key = strand.isNegative() ? record.getAlignmentEnd() : record.getAlignmentStart();
+			int quality = 0;
+			for (byte b : record.getBaseQualities()) {
+				quality += b;
+			}
+			int mappingQuality = record.getMappingQuality();
+
+			byte[] bases = record.getReadBases();
+			int readOffset = 0;
+			int referencePosition = record.getAlignmentStart();
+			ring.ensureCapacity(this.position, record.getAlignmentEnd());
+			for (CigarElement element : record.getCigar().getCigarElements()) {
+				CigarOperator operator = element.getOperator();
+				int length = element.getLength();
+				if (operator.consumesReadBases() && operator.consumesReferenceBases()) {
+					for (int i = 0; i < length; i++) {
+						ring.add(referencePosition + i, bases[readOffset + i], key, quality, mappingQuality);
+					}
+				}
+				if (operator.consumesReadBases()) {
+					readOffset += length;
+				}
+				if (operator.consumesReferenceBases()) {
+					referencePosition += length;
+				}
+			}
+		}
+
+		private Strand getStrand(SAMRecord record) {
+			if (record.getReadGroup() != null) {
+				for (Strand strand : Strand.values()) {
+					if (strand.name().equals(record.getReadGroup().getId())) {
+						return strand;
+					}
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Visits the covered positions up to the given one, both included.
+		 */
+		public void visitUntil(int lastPosition, LocusVisitor visitor) {
+			if (this.contig == null) {
+				return;
+			}
+			int end = Math.max(this.rings[0].getEnd(), this.rings[1].getEnd());
+			for (; this.position <= Math.min(lastPosition, end); this.position++) {
+				if (this.rings[0].size(this.position) > 0 || this.rings[1].size(this.position) > 0) {
+					visitor.visit(this);
+				}
+				// the upstream position is kept for the Crick correction
+				for (PileupRing ring : this.rings) {
+					ring.release(this.position - 1);
+				}
+			}
+			if (this.position > end && lastPosition >= this.position) {
+				// no reads up to lastPosition, jump over the gap
+				for (PileupRing ring : this.rings) {
+					ring.release(end);
+				}
+				this.position = lastPosition == Integer.MAX_VALUE ? lastPosition : lastPosition + 1;
+			}
+		}
+
+		/**
+		 * The strand whose cytosine is in this position, or null if there is no C or G in the reference.
+		 */
+		public Strand getStrand() {
+			byte base = getReferenceBase(this.position);
+			if (base == Strand.WATSON.getCytosineBase()) {
+				return Strand.WATSON;
+			} else if (base == Strand.CRICK.getCytosineBase()) {
+				return Strand.CRICK;
+			}
+			return null;
+		}
+
+		public Context getContext() {
+			return this.contigContexts.getContext(this.position);
+		}
+
+		private byte getReferenceBase(int position) {
+			if (this.referenceBases == null || position < this.referenceStart || position >= this.referenceStart +
+					this.referenceBases.length) {
+				this.referenceStart = position;
+				this.referenceBases = this.reference.getSubsequenceAt(this.contig, position, Math.min(this
+						.contigLength, (long) position + REFERENCE_CHUNK - 1)).getBases();
+			}
+			return (byte) Character.toUpperCase(this.referenceBases[position - this.referenceStart]);
+		}
+
+		/**
+		 * Selects the bases of the strand in this position after the clonal removal (keeping the best base
+		 * qualities) and the trimmed bases filter, and returns how many they are. Returns -1 if there are no reads of
+		 * the strand or the depth is below the minimum.
+		 */
+		public int selectBases(Strand strand) {
+			PileupRing ring = this.rings[strand.ordinal()];
+			int size = ring.size(this.position);
+			if (size == 0) {
+				return -1;
+			}
+			byte[] bases = ring.getBases(this.position);
+			this.selectedSize = 0;
+			ensureSelectedCapacity(size);
+			if (removeClonal) {
+				this.clonalFilter.selectByQuality(ring.getKeys(this.position), ring.getQualities(this.position),
+						size);
+			}
+			for (int i = 0; i < size; i++) {
+				if (removeClonal && !this.clonalFilter.isSelected(i)) {
+					continue;
+				}
+				if (trim && bases[i] == ListerFilter.TRIMMED_BASE) {
+					continue;
+				}
+				this.selected[this.selectedSize++] = bases[i];
+			}
+			return this.selectedSize < mindepth ? -1 : this.selectedSize;
+		}
+
+		/**
+		 * Selects the bases of the strand in a position next to this one as the non-CG correction sees them, that
+		 * is, the clonal reads are removed keeping the best mapping quality in the order of a HashMap by alignment
+		 * start (or end), and there is no minimum depth.
+		 */
+		public int selectDownstreamBases(Strand strand, int downstreamPosition) {
+			PileupRing ring = this.rings[strand.ordinal()];
+			int size = ring.size(downstreamPosition);
+			byte[] bases = ring.getBases(downstreamPosition);
+			this.selectedSize = 0;
+			ensureSelectedCapacity(size);
+			if (removeClonal) {
+				int[] keys = ring.getKeys(downstreamPosition);
+				int[] mappingQualities = ring.getMappingQualities(downstreamPosition);
+				HashMap<Integer, Integer> uniqueReads = new HashMap<Integer, Integer>();
+				for (int i = 0; i < size; i++) {
+					Integer previous = uniqueReads.get(keys[i]);
+					if (previous == null || mappingQualities[previous] < mappingQualities[i]) {
+						uniqueReads.put(keys[i], i);
+					}
+				}
+				for (int i : uniqueReads.values()) {
+					if (bases[i] != ListerFilter.TRIMMED_BASE) {
+						this.selected[this.selectedSize++] = bases[i];
+					}
+				}
+			} else {
+				for (int i = 0; i < size; i++) {
+					if (bases[i] != ListerFilter.TRIMMED_BASE) {
+						this.selected[this.selectedSize++] = bases[i];
+					}
+				}
+			}
+			return this.selectedSize;
+		}
+
+		public byte getSelected(int i) {
+			return this.selected[i];
+		}
+
+		public int countSelected(char base) {
+			int count = 0;
+			for (int i = 0; i < this.selectedSize; i++) {
+				if (this.selected[i] == base) {
+					count++;
+				}
+			}
+			return count;
+		}
+
+		private void ensureSelectedCapacity(int size) {
+			if (this.selected.length < size) {
+				this.selected = new byte[Math.max(size, this.selected.length * 2)];
+			}
+		}
+	}
+
+	/**
+	 * Bases of the reads of a strand by reference position, with the clonal key (alignment start or end), the sum of
+	 * base qualities and the mapping quality of their reads, in the order the reads were added. Positions are
+	 * slots of a ring whose size is a power of two that grows to fit the longest read span.
+	 */
+	private static class PileupRing {
+		private static final int INITIAL_CAPACITY = 1024;
+		private static final int INITIAL_DEPTH = 8;
+
+		private byte[][] bases;
+		private int[][] keys;
+		private int[][] qualities;
+		private int[][] mappingQualities;
+		private int[] sizes;
+		private int mask;
+
+		// positions in the ring are [start, end]
+		private int start = 1;
+		private int end = 0;
+
+		public PileupRing() {
+			allocate(INITIAL_CAPACITY);
+		}
+
+		private void allocate(int capacity) {
+			this.bases = new byte[capacity][];
+			this.keys = new int[capacity][];
+			this.qualities = new int[capacity][];
+			this.mappingQualities = new int[capacity][];
+			this.sizes = new int[capacity];
+			this.mask = capacity - 1;
+			for (int i = 0; i < capacity; i++) {
+				this.bases[i] = new byte[INITIAL_DEPTH];
+				this.keys[i] = new int[INITIAL_DEPTH];
+				this.qualities[i] = new int[INITIAL_DEPTH];
+				this.mappingQualities[i] = new int[INITIAL_DEPTH];
+			}
+		}
+
+		public void reset() {
+			release(this.end);
+			this.start = 1;
+			this.end = 0;
+		}
+
+		public int getEnd() {
+			return end;
+		}
+
+		/**
+		 * Makes room for the positions from the first one that has not been released up to lastPosition.
+		 */
+		public void ensureCapacity(int firstPosition, int lastPosition) {
+			if (this.end < this.start) {
+				this.start = firstPosition;
+				this.end = firstPosition - 1;
+			}
+			int needed = lastPosition - this.start + 1;
+			if (needed <= this.sizes.length) {
+				return;
+			}
+			int capacity = this.sizes.length;
+			while (capacity < needed) {
+				capacity *= 2;
+			}
+
+			byte[][] oldBases = this.bases;
+			int[][] oldKeys = this.keys;
+			int[][] oldQualities = this.qualities;
+			int[][] oldMappingQualities = this.mappingQualities;
+			int[] oldSizes = this.sizes;
+			int oldMask = this.mask;
+
+			allocate(capacity);
+			for (int position = this.start; position <= this.end; position++) {
+				int from = position & oldMask;
+				int to = position & this.mask;
+				this.bases[to] = oldBases[from];
+				this.keys[to] = oldKeys[from];
+				this.qualities[to] = oldQualities[from];
+				this.mappingQualities[to] = oldMappingQualities[from];
+				this.sizes[to] = oldSizes[from];
+			}
+		}
+
+		public void add(int position, byte base, int key, int quality, int mappingQuality) {
+			int slot = position & this.mask;
+			int size = this.sizes[slot];
+			if (size == this.bases[slot].length) {
+				int depth = size * 2;
+				this.bases[slot] = Arrays.copyOf(this.bases[slot], depth);
+				this.keys[slot] = Arrays.copyOf(this.keys[slot], depth);
+				this.qualities[slot] = Arrays.copyOf(this.qualities[slot], depth);
+				this.mappingQualities[slot] = Arrays.copyOf(this.mappingQualities[slot], depth);
+			}
+			this.bases[slot][size] = base;
+			this.keys[slot][size] = key;
+			this.qualities[slot][size] = quality;
+			this.mappingQualities[slot][size] = mappingQuality;
+			this.sizes[slot] = size + 1;
+			if (position > this.end) {
+				this.end = position;
+			}
+		}
+
+		public int size(int position) {
+			if (position < this.start || position > this.end) {
+				return 0;
+			}
+			return this.sizes[position & this.mask];
+		}
+
+		public byte[] getBases(int position) {
+			return this.bases[position & this.mask];
+		}
+
+		public int[] getKeys(int position) {
+			return this.keys[position & this.mask];
+		}
+
+		public int[] getQualities(int position) {
+			return this.qualities[position & this.mask];
+		}
+
+		public int[] getMappingQualities(int position) {
+			return this.mappingQualities[position & this.mask];
+		}
+
+		/**
+		 * Empties the positions up to the given one, included.
+		 */
+		public void release(int lastPosition) {
+			for (; this.start <= lastPosition && this.start <= this.end; this.start++) {
+				this.sizes[this.start & this.mask] = 0;
+			}
+			if (this.start <= lastPosition) {
+				this.start = lastPosition + 1;
+			}
+		}
+	}
+
+	/**
+	 * Keeps, for each clonal key, the first read with the highest sum of base qualities. Uses an open addressing
+	 * table that is not cleared between positions.
+	 */
+	private static class ClonalFilter {
+		private int[] tableKeys = new int[64];
+		private int[] tableReads = new int[64];
+		private int[] tableStamps = new int[64];
+		private int stamp = 0;
+
+		private boolean[] selected = new boolean[64];
+
+		public void selectByQuality(int[] keys, int[] qualities, int size) {
+			if (this.tableKeys.length < size * 2) {
+				int capacity = Integer.highestOneBit(size * 4);
+				this.tableKeys = new int[capacity];
+				this.tableReads = new int[capacity];
+				this.tableStamps = new int[capacity];
+				this.stamp = 0;
+			}
+			if (this.selected.length < size) {
+				this.selected = new boolean[size * 2];
+			}
+			if (++this.stamp == Integer.MAX_VALUE) {
+				Arrays.fill(this.tableStamps, 0);
+				this.stamp = 1;
+			}
+
+			int mask = this.tableKeys.length - 1;
+			for (int i = 0; i < size; i++) {
+				this.selected[i] = false;
+				int slot = (keys[i] * 0x9E3779B9) >>> 7 & mask;
+				while (this.tableStamps[slot] == this.stamp && this.tableKeys[slot] != keys[i]) {
+					slot = (slot + 1) & mask;
+				}
+				if (this.tableStamps[slot] != this.stamp) {
+					this.tableStamps[slot] = this.stamp;
+					this.tableKeys[slot] = keys[i];
+					this.tableReads[slot] = i;
+					this.selected[i] = true;
+				} else if (qualities[this.tableReads[slot]] < qualities[i]) {
+					this.selected[this.tableReads[slot]] = false;
+					this.tableReads[slot] = i;
+					this.selected[i] = true;
+				}
+			}
+		}
+
+		public boolean isSelected(int i) {
+			return this.selected[i];
+		}
+	}
+
+	/**
+	 * The names of the BED features overlapping each position, one annotation per BED file, as the GATK BED
+	 * bindings give them. The features are read by a {@link Cursor}, one per thread.
+	 */
+	private static class BEDAnnotations {
+		private final List<String> names = new ArrayList<String>();
+		private final List<Map<String, List<int[]>>> features = new ArrayList<Map<String, List<int[]>>>();
+		private final List<Map<String, List<String>>> featureNames = new ArrayList<Map<String, List<String>>>();
+
+		public BEDAnnotations(List<File> bedFiles) throws FileNotFoundException {
+			for (File bedFile : bedFiles) {
+				this.names.add(bedFile.getName());
+				Map<String, List<int[]>> bedFeatures = new HashMap<String, List<int[]>>();
+				Map<String, List<String>> bedFeatureNames = new HashMap<String, List<String>>();
+				Scanner scanner = new Scanner(bedFile);
+				try {
+					while (scanner.hasNextLine()) {
+						String line = scanner.nextLine();
+						if (line.trim().isEmpty() || line.startsWith("#") || line.startsWith("track") || line
+								.startsWith("browser")) {
+							continue;
+						}
+						String[] tokens = line.split("\t");
+						if (!bedFeatures.containsKey(tokens[0])) {
+							bedFeatures.put(tokens[0], new ArrayList<int[]>());
+							bedFeatureNames.put(tokens[0], new ArrayList<String>());
+						}
+						// BED starts are 0-based, ends are exclusive
+						bedFeatures.get(tokens[0]).add(new int[]{Integer.parseInt(tokens[1].trim()) + 1, Integer
+								.parseInt(tokens[2].trim()), bedFeatures.get(tokens[0]).size()});
+						bedFeatureNames.get(tokens[0]).add(tokens.length > 3 ? tokens[3].replaceAll("\"", "") : "");
+					}
+				} finally {
+					scanner.close();
+				}
+				for (List<int[]> contigFeatures : bedFeatures.values()) {
+					Collections.sort(contigFeatures, new Comparator<int[]>() {
+						@Override
+						public int compare(int[] a, int[] b) {
+							return a[0] < b[0] ? -1 : a[0] == b[0] ? 0 : 1;
+						}
+					});
+				}
+				this.features.add(bedFeatures);
+				this.featureNames.add(bedFeatureNames);
+			}
+		}
+
+		public List<String> getNames() {
+			return names;
+		}
+
+		public Cursor newCursor() {
+			return new Cursor();
+		}
+
+		/**
+		 * Sweeps the features of a contig. Positions must be asked in order within a contig.
+		 */
+		public class Cursor {
+			private String contig;
+			private final int[] nextFeature = new int[names.size()];
+			private final List<LinkedList<Integer>> active = new ArrayList<LinkedList<Integer>>();
+
+			private Cursor() {
+				for (int bed = 0; bed < names.size(); bed++) {
+					this.active.add(new LinkedList<Integer>());
+				}
+			}
+
+			public List<String> getAnnotations(String contig, int position) {
+				if (!contig.equals(this.contig)) {
+					this.contig = contig;
+					Arrays.fill(this.nextFeature, 0);
+					for (LinkedList<Integer> bedActive : this.active) {
+						bedActive.clear();
+					}
+				}
+
+				List<String> annotations = new LinkedList<String>();
+				for (int bed = 0; bed < names.size(); bed++) {
+					List<int[]> contigFeatures = features.get(bed).get(contig);
+					if (contigFeatures == null) {
+						annotations.add("N/A");
+						continue;
+					}
+					LinkedList<Integer> bedActive = this.active.get(bed);
+					while (this.nextFeature[bed] < contigFeatures.size() && contigFeatures.get(this.nextFeature[bed])
+							[0] <= position) {
+						bedActive.add(this.nextFeature[bed]++);
+					}
+
+					StringBuilder annotation = new StringBuilder();
+					boolean first = true;
+					for (Iterator<Integer> it = bedActive.iterator(); it.hasNext(); ) {
+						int[] feature = contigFeatures.get(it.next());
+						if (feature[1] < position) {
+							it.remove();
+						} else {
+							if (!first) {
+								annotation.append('|');
+							}
+							annotation.append(featureNames.get(bed).get(contig).get(feature[2]));
+							first = false;
+						}
+					}
+					annotations.add(first ? "N/A" : annotation.toString());
+				}
+				return annotations;
+			}
+		}
+	}
+
+	/**
+	 * Positions start to end, both included, of a contig.
+	 */
+	private static class Shard {
+		private final int index;
+		private final String contig;
+		private final int start;
+		private final int end;
+
+		public Shard(int index, String contig, int start, int end) {
+			this.index = index;
+			this.contig = contig;
+			this.start = start;
+			this.end = end;
+		}
+
+		public String getName() {
+			return String.format("shard%06d", this.index);
+		}
+
+		public String getContig() {
+			return contig;
+		}
+
+		public int getStart() {
+			return start;
+		}
+
+		public int getEnd() {
+			return end;
+		}
+
+		public boolean contains(int position) {
+			return position >= this.start && position <= this.end;
+		}
+
+		@Override
+		public String toString() {
+			return this.contig + ":" + this.start + "-" + this.end;
+		}
+	}
+
+	/**
+	 * The segments, p-values and read counters of a called shard, which are saved in its .done file. The file also
+	 * keeps the length of the segments and ends with a CRC32 of its contents, so a damaged shard is called again.
+	 */
+	private static class ShardResult {
+		private final File watsonSegment;
+		private final File crickSegment;
+		private final Map<Context, PValueHistogram> watsonPvals;
+		private final Map<Context, PValueHistogram> crickPvals;
+		private final long[] counters;
+
+		public ShardResult(File watsonSegment, File crickSegment, Map<Context, PValueHistogram> watsonPvals,
+						   Map<Context, PValueHistogram> crickPvals, long[] counters) {
+			this.watsonSegment = watsonSegment;
+			this.crickSegment = crickSegment;
+			this.watsonPvals = watsonPvals;
+			this.crickPvals = crickPvals;
+			this.counters = counters;
+		}
+
+		public File getWatsonSegment() {
+			return watsonSegment;
+		}
+
+		public File getCrickSegment() {
+			return crickSegment;
+		}
+
+		public Map<Context, PValueHistogram> getWatsonPvals() {
+			return watsonPvals;
+		}
+
+		public Map<Context, PValueHistogram> getCrickPvals() {
+			return crickPvals;
+		}
+
+		/**
+		 * Processed, unmapped, with more than one alignment, ambiguous, trimmed and bad bisulfited reads.
+		 */
+		public long[] getCounters() {
+			return counters;
+		}
+
+		/**
+		 * Writes the .done file, which is renamed once complete.
+		 */
+		public void write(File doneFile, String fingerprint) throws IOException {
+			File partial = new File(doneFile.getAbsolutePath() + ".tmp");
+			CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream
+					(partial)), new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+			try {
+				out.writeUTF(fingerprint);
+				out.writeLong(this.watsonSegment.length());
+				out.writeLong(this.crickSegment.length());
+				for (long counter : this.counters) {
+					out.writeLong(counter);
+				}
+				for (Map<Context, PValueHistogram> pvals : Arrays.asList(this.watsonPvals, this.crickPvals)) {
+					for (Context context : Context.values()) {
+						PValueHistogram histogram = pvals.get(context);
+						double[] sortedPvals = histogram.getSortedPvals();
+						out.writeInt(sortedPvals.length);
+						for (double pval : sortedPvals) {
+							out.writeDouble(pval);
+							out.writeLong(histogram.getCount(pval));
+						}
+					}
+				}
+				out.writeLong(checked.getChecksum().getValue());
+			} finally {
+				out.close();
+			}
+			if (!partial.renameTo(doneFile)) {
+				throw new IOException("Could not rename " + partial + " to " + doneFile);
+			}
+		}
+
+		/**
+		 * Reads a .done file, or returns null if it was written with another fingerprint, does not match the
+		 * segments or cannot be read.
+		 */
+		public static ShardResult read(File doneFile, String fingerprint, File watsonSegment, File crickSegment) {
+			try {
+				CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream
+						(doneFile)), new CRC32());
+				DataInputStream in = new DataInputStream(checked);
+				try {
+					if (!in.readUTF().equals(fingerprint)) {
+						return null;
+					}
+					if (in.readLong() != watsonSegment.length() || in.readLong() != crickSegment.length()) {
+						logger.warning("The segments of " + doneFile + " have changed, the shard will be called again");
+						return null;
+					}
+					long[] counters = new long[6];
+					for (int i = 0; i < counters.length; i++) {
+						counters[i] = in.readLong();
+					}
+					List<Map<Context, PValueHistogram>> strandPvals = new ArrayList<Map<Context, PValueHistogram>>();
+					for (int strand = 0; strand < 2; strand++) {
+						Map<Context, PValueHistogram> pvals = new HashMap<Context, PValueHistogram>();
+						for (Context context : Context.values()) {
+							int size = in.readInt();
+							if (size < 0 || size > doneFile.length() / 16) {
+								logger.warning(doneFile + " is corrupted, the shard will be called again");
+								return null;
+							}
+							PValueHistogram histogram = new PValueHistogram(size);
+							for (int i = 0; i < size; i++) {
+								histogram.add(in.readDouble(), in.readLong());
+							}
+							pvals.put(context, histogram);
+						}
+						strandPvals.add(pvals);
+					}
+					long checksum = checked.getChecksum().getValue();
+					if (in.readLong() != checksum || in.read() != -1) {
+						logger.warning(doneFile + " is corrupted, the shard will be called again");
+						return null;
+					}
+					return new ShardResult(watsonSegment, crickSegment, strandPvals.get(0), strandPvals.get(1),
+							counters);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				logger.warning("Could not read " + doneFile + ", the shard will be called again: " + e);
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,238 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.util.Arrays;
+
+/**
+ * Counts how many times each p-value has been seen, without boxing.
+ *
+ * Values are accumulated in an open-addressed double to long hash table. The first time a count is queried, the
+ * distinct p-values are sorted and a cumulative count is built, so {@link #countBelow(double)} is a binary search.
+ * Two histograms are merged in linear time from their sorted views.
+ *
+ * This class is not thread-safe.
+ */
+public class PValueHistogram {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	// hash table (count == 0 means empty slot)
+	private long[] keys;
+	private long[] counts;
+	private int size = 0;
+	private long total = 0;
+
+	// sorted view, null if it has to be rebuilt
+	private double[] sortedPvals;
+	private long[] cumulativeCounts;
+
+	public PValueHistogram() {
+		this(INITIAL_CAPACITY);
+	}
+
+	public PValueHistogram(int expectedDistinctPvals) {
+		int capacity = Integer.highestOneBit(Math.max(expectedDistinctPvals, 8) * 2 - 1) << 1;
+		this.keys = new long[capacity];
+		this.counts = new long[capacity];
+	}
+
+	public void add(double pval) {
+		add(pval, 1);
+	}
+
+	public void add(double pval, long count) {
+		if (count <= 0) {
+			if (count < 0) {
+				throw new IllegalArgumentException("count must be positive: " + count);
+			}
+			return;
+		}
+		if ((size + 1) * 2 > keys.length) {
+			rehash(keys.length * 2);
+		}
+		long bits = Double.doubleToLongBits(pval);
+		int slot = findSlot(keys, counts, bits);
+		if (counts[slot] == 0) {
+			keys[slot] = bits;
+			size++;
+		}
+		counts[slot] += count;
+		total += count;
+
+		this.sortedPvals = null;
+		this.cumulativeCounts = null;
+	}
+
+	/**
+	 * Returns the number of times the given p-value has been added.
+	 */
+	public long getCount(double pval) {
+		int slot = findSlot(keys, counts, Double.doubleToLongBits(pval));
+		return counts[slot];
+	}
+
+	/**
+	 * Returns the number of distinct p-values.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of p-values added, counting repetitions.
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Returns how many of the added p-values are strictly lower than the cutoff.
+	 */
+	public long countBelow(double cutoff) {
+		sort();
+		// first position whose p-value is not lower than cutoff
+		int low = 0;
+		int high = sortedPvals.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (sortedPvals[middle] < cutoff) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low == 0 ? 0 : cumulativeCounts[low - 1];
+	}
+
+	/**
+	 * Returns the distinct p-values, in ascending order.
+	 */
+	public double[] getSortedPvals() {
+		sort();
+		return sortedPvals.clone();
+	}
+
+	/**
+	 * Creates a new histogram with the counts of both histograms. Runs in linear time over their sorted views.
+	 */
+	public static PValueHistogram merge(PValueHistogram a, PValueHistogram b) {
+		a.sort();
+		b.sort();
+		double[] pvalsA = a.sortedPvals, pvalsB = b.sortedPvals;
+
+		double[] pvals = new double[pvalsA.length + pvalsB.length];
+		long[] counts = new long[pvals.length];
+		int i = 0, j = 0, n = 0;
+		while (i < pvalsA.length || j < pvalsB.length) {
+			int comparison = i == pvalsA.length ? 1 : j == pvalsB.length ? -1 : Double.compare(pvalsA[i],
+					pvalsB[j]);
+			if (comparison < 0) {
+				pvals[n] = pvalsA[i];
+				counts[n] = a.countAt(i++);
+			} else if (comparison > 0) {
+				pvals[n] = pvalsB[j];
+				counts[n] = b.countAt(j++);
+			} else {
+				pvals[n] = pvalsA[i];
+				counts[n] = a.countAt(i++) + b.countAt(j++);
+			}
+			n++;
+		}
+
+		PValueHistogram toret = new PValueHistogram(n);
+		for (int k = 0; k < n; k++) {
+			long bits = Double.doubleToLongBits(pvals[k]);
+			int slot = findSlot(toret.keys, toret.counts, bits);
+			toret.keys[slot] = bits;
+			toret.counts[slot] = counts[k];
+		}
+		toret.size = n;
+		toret.total = a.total + b.total;
+
+		// the merged view is already sorted, keep it
+		toret.sortedPvals = n == pvals.length ? pvals : Arrays.copyOf(pvals, n);
+		toret.cumulativeCounts = new long[n];
+		long accumulated = 0;
+		for (int k = 0; k < n; k++) {
+			accumulated += counts[k];
+			toret.cumulativeCounts[k] = accumulated;
+		}
+		return toret;
+	}
+
+	private long countAt(int sortedIndex) {
+		return sortedIndex == 0 ? cumulativeCounts[0] : cumulativeCounts[sortedIndex] -
+				cumulativeCounts[sortedIndex - 1];
+	}
+
+	private void sort() {
+		if (sortedPvals != null) {
+			return;
+		}
+		double[] pvals = new double[size];
+		int n = 0;
+		for (int slot = 0; slot < keys.length; slot++) {
+			if (counts[slot] != 0) {
+				pvals[n++] = Double.longBitsToDouble(keys[slot]);
+			}
+		}
+		Arrays.sort(pvals);
+
+		long[] cumulative = new long[size];
+		long accumulated = 0;
+		for (int i = 0; i < size; i++) {
+			accumulated += getCount(pvals[i]);
+			cumulative[i] = accumulated;
+		}
+		this.sortedPvals = pvals;
+		this.cumulativeCounts = cumulative;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = this.keys;
+		long[] oldCounts = this.counts;
+		this.keys = new long[capacity];
+		this.counts = new long[capacity];
+		for (int slot = 0; slot < oldKeys.length; slot++) {
+			if (oldCounts[slot] != 0) {
+				int newSlot = findSlot(keys, counts, oldKeys[slot]);
+				keys[newSlot] = oldKeys[slot];
+				counts[newSlot] = oldCounts[slot];
+			}
+		}
+	}
+
+	private static int findSlot(long[] keys, long[] counts, long bits) {
+		int mask = keys.length - 1;
+		int slot = mix(bits) & mask;
+		while (counts[slot] != 0 && keys[slot] != bits) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private static int mix(long bits) {
+		long h = bits * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,269 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import es.cnio.bioinfo.bicycle.MethylationCall;
+import es.cnio.bioinfo.bicycle.MethylationCallView;
+
+/**
+ * Writes the .methylcytosines and VCF files from the merged .methylation lines (or calls, for binary .methylation
+ * files) in three stages: a reader thread groups them in batches, a pool of workers parses (into reusable views)
+ * and formats each batch into its own reusable buffers, and the calling thread writes the batches in their
+ * original order. The output is the same as a sequential writer.
+ */
+public class ParallelMethylcytosinesWriter {
+
+	public interface RecordFormatter {
+		/**
+		 * Formats the methylcytosines and VCF records for a call. Called from the worker threads.
+		 */
+		void format(MethylationCall call, StringBuilder methylcytosines, StringBuilder vcf);
+	}
+
+	/**
+	 * Gives already decoded calls, in order. Called from the reader thread.
+	 */
+	public interface CallSource {
+		/**
+		 * Returns the next call, or null if there are no more calls.
+		 */
+		MethylationCall next() throws IOException;
+	}
+
+	private interface BatchFiller {
+		/**
+		 * Fills the batch and returns false if the input is exhausted.
+		 */
+		boolean fill(Batch batch) throws IOException;
+	}
+
+	public static final int DEFAULT_BATCH_SIZE = 4096;
+
+	private final int workers;
+	private final int batchSize;
+	private final RecordFormatter formatter;
+
+	public ParallelMethylcytosinesWriter(int workers, RecordFormatter formatter) {
+		this(workers, DEFAULT_BATCH_SIZE, formatter);
+	}
+
+	public ParallelMethylcytosinesWriter(int workers, int batchSize, RecordFormatter formatter) {
+		this.workers = Math.max(1, workers);
+		this.batchSize = batchSize;
+		this.formatter = formatter;
+	}
+
+	private static class EncodedText {
+		private byte[] bytes = new byte[0];
+		private int length = 0;
+
+		/**
+		 * Encodes the text with the platform charset, as a PrintStream does, reusing the byte array.
+		 */
+		void encode(CharSequence text) {
+			int textLength = text.length();
+			if (bytes.length < textLength) {
+				bytes = new byte[Math.max(textLength, bytes.length * 2)];
+			}
+			for (int i = 0; i < textLength; i++) {
+				char c = text.charAt(i);
+				if (c >= 0x80) {
+					// non-ASCII annotations
+					bytes = text.toString().getBytes();
+					length = bytes.length;
+					return;
+				}
+				bytes[i] = (byte) c;
+			}
+			length = textLength;
+		}
+	}
+
+	private static class Batch {
+		private final String[] lines;
+		private final MethylationCall[] calls;
+		// reused across batches to parse the lines
+		private final MethylationCallView[] views;
+		private int size = 0;
+		private final StringBuilder methylcytosinesText = new StringBuilder();
+		private final StringBuilder vcfText = new StringBuilder();
+		private final EncodedText methylcytosinesBytes = new EncodedText();
+		private final EncodedText vcfBytes = new EncodedText();
+		private boolean last = false;
+
+		Batch(int batchSize) {
+			this.lines = new String[batchSize];
+			this.calls = new MethylationCall[batchSize];
+			this.views = new MethylationCallView[batchSize];
+		}
+
+		void reset() {
+			Arrays.fill(lines, 0, size, null);
+			Arrays.fill(calls, 0, size, null);
+			size = 0;
+			methylcytosinesText.setLength(0);
+			vcfText.setLength(0);
+			last = false;
+		}
+	}
+
+	/**
+	 * Formats and writes all the lines of the reader. Methylcytosines are added to stats in order.
+	 */
+	public void write(final GPFilesReader reader, OutputStream methylcytosinesOut, OutputStream vcfOut,
+					  GlobalMethylationStatistics stats) throws IOException {
+		write(new BatchFiller() {
+			@Override
+			public boolean fill(Batch batch) throws IOException {
+				String line = null;
+				while (batch.size < batch.lines.length && (line = reader.readLine()) != null) {
+					batch.lines[batch.size++] = line;
+				}
+				return line != null;
+			}
+		}, methylcytosinesOut, vcfOut, stats);
+	}
+
+	/**
+	 * Formats and writes all the calls of the source, which are not parsed again. Methylcytosines are added to
+	 * stats in order.
+	 */
+	public void write(final CallSource source, OutputStream methylcytosinesOut, OutputStream vcfOut,
+					  GlobalMethylationStatistics stats) throws IOException {
+		write(new BatchFiller() {
+			@Override
+			public boolean fill(Batch batch) throws IOException {
+				MethylationCall call = null;
+				while (batch.size < batch.calls.length && (call = source.next()) != null) {
+					batch.calls[batch.size++] = call;
+				}
+				return call != null;
+			}
+		}, methylcytosinesOut, vcfOut, stats);
+	}
+
+	private void write(final BatchFiller filler, OutputStream methylcytosinesOut, OutputStream vcfOut,
+					   GlobalMethylationStatistics stats) throws IOException {
+
+		final int inFlight = workers * 2;
+		final BlockingQueue<Batch> freeBatches = new ArrayBlockingQueue<>(inFlight);
+		for (int i = 0; i < inFlight; i++) {
+			freeBatches.add(new Batch(batchSize));
+		}
+		final BlockingQueue<Future<Batch>> pending = new LinkedBlockingQueue<>();
+
+		final ExecutorService formatters = Executors.newFixedThreadPool(workers);
+		ExecutorService readerExecutor = Executors.newSingleThreadExecutor();
+
+		Future<?> readerTask = readerExecutor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				try {
+					boolean finished = false;
+					while (!finished) {
+						final Batch batch = freeBatches.take();
+						if (!filler.fill(batch)) {
+							batch.last = true;
+							finished = true;
+						}
+						pending.put(formatters.submit(new Callable<Batch>() {
+							@Override
+							public Batch call() throws Exception {
+								format(batch);
+								return batch;
+							}
+						}));
+					}
+				} catch (final Exception e) {
+					// unblock the writer
+					FutureTask<Batch> failed = new FutureTask<>(new Callable<Batch>() {
+						@Override
+						public Batch call() throws Exception {
+							throw e;
+						}
+					});
+					failed.run();
+					pending.put(failed);
+				}
+				return null;
+			}
+		});
+
+		try {
+			boolean last = false;
+			while (!last) {
+				Batch batch = pending.take().get();
+				for (int i = 0; i < batch.size; i++) {
+					stats.add(batch.calls[i]);
+				}
+				methylcytosinesOut.write(batch.methylcytosinesBytes.bytes, 0, batch.methylcytosinesBytes.length);
+				vcfOut.write(batch.vcfBytes.bytes, 0, batch.vcfBytes.length);
+				last = batch.last;
+
+				batch.reset();
+				freeBatches.put(batch);
+			}
+			readerTask.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} finally {
+			readerTask.cancel(true);
+			readerExecutor.shutdownNow();
+			formatters.shutdownNow();
+		}
+	}
+
+	private void format(Batch batch) {
+		for (int i = 0; i < batch.size; i++) {
+			MethylationCall call = batch.calls[i];
+			if (call == null) {
+				if (batch.views[i] == null) {
+					batch.views[i] = new MethylationCallView();
+				}
+				call = batch.views[i].reset(batch.lines[i]);
+				batch.calls[i] = call;
+			}
+			formatter.format(call, batch.methylcytosinesText, batch.vcfText);
+		}
+		batch.methylcytosinesBytes.encode(batch.methylcytosinesText);
+		batch.vcfBytes.encode(batch.vcfText);
+	}
+}
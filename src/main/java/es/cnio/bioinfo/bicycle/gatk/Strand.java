@@ -92,6 +92,20 @@ public enum Strand {
 		}
 	}
 
+	/**
+	 * Returns the context from the index when it has the sequence of the locus, and from the reference window
+	 * otherwise.
+	 */
+	public Context getContext(ReferenceContext ref, long pos, CytosineContextIndex index) {
+		if (index != null) {
+			CytosineContextIndex.Sequence sequence = index.getSequence(ref.getLocus().getContig());
+			if (sequence != null) {
+				return sequence.getContext(pos);
+			}
+		}
+		return getContext(ref, pos);
+	}
+
 	public char getCytosineBase() {
 		if (this == WATSON) {
 			return 'C';
@@ -0,0 +1,157 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.operations;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes a tab-separated table whose rows end with a p-value and get its Benjamini-Hochberg q-value appended.
+ * <p>
+ * Rows are kept in a binary temporary file (a kind byte, the p-value, the length and the bytes of the row) and their
+ * p-values in a {@link PValueStore}. {@link #close()} adjusts the p-values and streams the temporary file to the
+ * output, appending the q-value of each row.
+ */
+public class AdjustedPValueTableWriter implements AutoCloseable {
+
+	private static final byte HEADER = 'H';
+	private static final byte ROW = 'R';
+
+	private static final byte[] LINE_SEPARATOR = System.getProperty("line.separator").getBytes(StandardCharsets
+			.UTF_8);
+
+	private final File outputFile;
+	private final File tempFile;
+	private final DataOutputStream temp;
+	private final PValueStore pValues;
+
+	private byte[] bytes = new byte[1024];
+
+	public AdjustedPValueTableWriter(File outputFile) throws IOException {
+		this(outputFile, PValueStore.DEFAULT_MAX_IN_MEMORY);
+	}
+
+	public AdjustedPValueTableWriter(File outputFile, int maxPValuesInMemory) throws IOException {
+		this.outputFile = outputFile;
+		this.tempFile = new File(outputFile.getAbsolutePath() + ".temp");
+		this.tempFile.deleteOnExit();
+		this.temp = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16));
+		this.pValues = new PValueStore(maxPValuesInMemory, outputFile.getAbsoluteFile().getParentFile());
+	}
+
+	/**
+	 * Writes a line that is copied as it is.
+	 */
+	public void writeHeader(CharSequence line) throws IOException {
+		int length = encode(line, 0, line.length());
+		temp.writeByte(HEADER);
+		temp.writeInt(length);
+		temp.write(bytes, 0, length);
+	}
+
+	public void writeRow(CharSequence row, double pValue) throws IOException {
+		writeRow(row, 0, row.length(), pValue);
+	}
+
+	/**
+	 * Writes the characters of text between start and end as a row with the given p-value.
+	 */
+	public void writeRow(CharSequence text, int start, int end, double pValue) throws IOException {
+		int length = encode(text, start, end);
+		temp.writeByte(ROW);
+		temp.writeDouble(pValue);
+		temp.writeInt(length);
+		temp.write(bytes, 0, length);
+		pValues.add(pValue);
+	}
+
+	/**
+	 * Adjusts the p-values and writes the output file.
+	 */
+	@Override
+	public void close() throws IOException {
+		temp.close();
+		try {
+			pValues.adjust();
+
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(tempFile), 1
+					<< 16));
+				 OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 16)) {
+				while (true) {
+					byte kind;
+					try {
+						kind = in.readByte();
+					} catch (EOFException e) {
+						break;
+					}
+
+					double pValue = kind == ROW ? in.readDouble() : Double.NaN;
+					int length = in.readInt();
+					ensureCapacity(length);
+					in.readFully(bytes, 0, length);
+
+					out.write(bytes, 0, length);
+					if (kind == ROW) {
+						out.write('\t');
+						out.write(String.valueOf(pValues.getQValue(pValue)).getBytes(StandardCharsets.US_ASCII));
+					}
+					out.write(LINE_SEPARATOR);
+				}
+			}
+		} finally {
+			pValues.close();
+			tempFile.delete();
+		}
+	}
+
+	private int encode(CharSequence text, int start, int end) {
+		ensureCapacity(end - start);
+		int length = 0;
+		for (int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			if (c >= 0x80) {
+				byte[] encoded = text.subSequence(start, end).toString().getBytes(StandardCharsets.UTF_8);
+				ensureCapacity(encoded.length);
+				System.arraycopy(encoded, 0, bytes, 0, encoded.length);
+				return encoded.length;
+			}
+			bytes[length++] = (byte) c;
+		}
+		return length;
+	}
+
+	private void ensureCapacity(int length) {
+		if (bytes.length < length) {
+			bytes = Arrays.copyOf(bytes, Math.max(length, bytes.length * 2));
+		}
+	}
+}
@@ -0,0 +1,323 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.operations;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Runs aligner processes on a managed executor. The reads of each process are copied by a feeder task from its
+ * {@link ReadsSource} and written to the standard input of the process by a writer task, in chunks exchanged
+ * through bounded queues, and
+ * the lines of its standard output are given to a {@link LineProcessor}. The standard error goes directly to a log
+ * file.
+ * <p>
+ * If any process fails or any task throws an exception, all the processes are destroyed, the tasks are cancelled
+ * and {@link #await()} throws the first error.
+ */
+class AlignmentPipeline implements Closeable {
+	private static final Logger logger = Logger.getLogger(AlignmentPipeline.class.getSimpleName());
+
+	private static final int CHUNK_SIZE = 1024 * 1024;
+	private static final int CHUNKS_PER_PROCESS = 4;
+	private static final int OUTPUT_BUFFER_SIZE = 1024 * 1024;
+
+	private static final AtomicInteger pipelineCount = new AtomicInteger();
+
+	public interface ReadsSource {
+		/**
+		 * Returns the bytes of the next reads, which can be reused after the following call, or null if there are
+		 * no more reads.
+		 */
+		ByteBuffer next() throws IOException;
+	}
+
+	public interface LineProcessor {
+		void processLine(String line);
+
+		/**
+		 * Called after the last line.
+		 */
+		void finish();
+	}
+
+	private final ExecutorService executor;
+	private final CompletionService<Void> completionService;
+	private final List<Process> processes = Collections.synchronizedList(new LinkedList<Process>());
+	private int pendingTasks = 0;
+
+	public AlignmentPipeline() {
+		final int pipeline = pipelineCount.incrementAndGet();
+		this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger threadCount = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "alignment-" + pipeline + "-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.completionService = new ExecutorCompletionService<Void>(this.executor);
+	}
+
+	/**
+	 * Starts the command, feeds it with the reads and gives the lines of its output to out.
+	 *
+	 * @param name    the name of the process in the log messages
+	 * @param logFile the file where the standard error of the process is written
+	 */
+	public void start(String[] command, File logFile, final ReadsSource reads, final LineProcessor out,
+					  final String name) throws IOException {
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectError(logFile);
+		final Process process = builder.start();
+		this.processes.add(process);
+
+		final BlockingQueue<Chunk> freeChunks = new ArrayBlockingQueue<Chunk>(CHUNKS_PER_PROCESS);
+		final BlockingQueue<Chunk> fullChunks = new ArrayBlockingQueue<Chunk>(CHUNKS_PER_PROCESS);
+		for (int i = 0; i < CHUNKS_PER_PROCESS; i++) {
+			freeChunks.add(new Chunk());
+		}
+		final FeedingStatistics statistics = new FeedingStatistics();
+
+		final Future<Void> feeder = submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException, InterruptedException {
+				logger.info("Start read feeding to alignment against " + name);
+				Chunk chunk = takeChunk(freeChunks, statistics, false);
+				ByteBuffer bytes;
+				while ((bytes = reads.next()) != null) {
+					while (bytes.hasRemaining()) {
+						if (chunk.length == chunk.data.length) {
+							fullChunks.put(chunk);
+							chunk = takeChunk(freeChunks, statistics, false);
+						}
+						int length = Math.min(bytes.remaining(), chunk.data.length - chunk.length);
+						bytes.get(chunk.data, chunk.length, length);
+						chunk.length += length;
+					}
+				}
+				fullChunks.put(chunk);
+				// an empty chunk ends the input
+				fullChunks.put(new Chunk(0));
+				return null;
+			}
+		});
+
+		submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException, InterruptedException {
+				OutputStream stdin = process.getOutputStream();
+				try {
+					Chunk chunk;
+					while ((chunk = takeChunk(fullChunks, statistics, true)).data.length > 0) {
+						try {
+							stdin.write(chunk.data, 0, chunk.length);
+						} catch (IOException e) {
+							// the aligner does not need the rest of the reads if it exits without errors
+							int returnValue = process.waitFor();
+							if (returnValue == 0) {
+								feeder.cancel(true);
+								logger.warning("Read feeding to alignment against " + name + " stopped, the " +
+										"aligner exited before reading all the reads");
+								return null;
+							}
+							throw new RuntimeException(getFailureMessage(returnValue, name), e);
+						}
+						statistics.bytes += chunk.length;
+						chunk.length = 0;
+						freeChunks.put(chunk);
+					}
+				} finally {
+					try {
+						stdin.close();
+					} catch (IOException e) {
+						// the aligner already exited, its exit value tells if it failed
+					}
+				}
+				logger.info("Finished read feeding to alignment against " + name + ": " + statistics);
+				return null;
+			}
+		});
+
+		submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException, InterruptedException {
+				BufferedReader stdout = new BufferedReader(new InputStreamReader(process.getInputStream()),
+						OUTPUT_BUFFER_SIZE);
+				try {
+					String line;
+					while ((line = stdout.readLine()) != null) {
+						out.processLine(line);
+					}
+					out.finish();
+				} finally {
+					stdout.close();
+				}
+				int returnValue = process.waitFor();
+				if (returnValue != 0) {
+					throw new RuntimeException(getFailureMessage(returnValue, name));
+				}
+				return null;
+			}
+		});
+	}
+
+	private static String getFailureMessage(int returnValue, String name) {
+		return "Bowtie has a non-zero return value (" + returnValue + ") in the alignment against " + name + ". Check" +
+				" its logs for details";
+	}
+
+	/**
+	 * Runs a task that consumes the output of the processes, which is cancelled if any of them fails.
+	 */
+	public void run(Callable<Void> task) {
+		submit(task);
+	}
+
+	private Future<Void> submit(Callable<Void> task) {
+		this.pendingTasks++;
+		return this.completionService.submit(task);
+	}
+
+	private static Chunk takeChunk(BlockingQueue<Chunk> chunks, FeedingStatistics statistics, boolean writer) throws
+			InterruptedException {
+		Chunk chunk = chunks.poll();
+		if (chunk == null) {
+			long start = System.nanoTime();
+			chunk = chunks.take();
+			if (writer) {
+				statistics.writerWaitNanos += System.nanoTime() - start;
+			} else {
+				statistics.feederWaitNanos += System.nanoTime() - start;
+			}
+		}
+		return chunk;
+	}
+
+	/**
+	 * Waits for all the started processes and their tasks. If one of them fails, the rest are cancelled and its
+	 * error is thrown.
+	 */
+	public void await() throws IOException {
+		try {
+			for (; this.pendingTasks > 0; this.pendingTasks--) {
+				try {
+					this.completionService.take().get();
+				} catch (CancellationException e) {
+					// a feeder whose aligner exited without reading all the reads
+				}
+			}
+		} catch (InterruptedException e) {
+			cancel();
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			cancel();
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			} else if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+		this.processes.clear();
+	}
+
+	private void cancel() {
+		synchronized (this.processes) {
+			for (Process process : this.processes) {
+				process.destroy();
+			}
+			this.processes.clear();
+		}
+		this.executor.shutdownNow();
+	}
+
+	/**
+	 * Destroys the processes that are still running and stops the tasks.
+	 */
+	@Override
+	public void close() {
+		cancel();
+		try {
+			if (!this.executor.awaitTermination(10, TimeUnit.SECONDS)) {
+				logger.warning("Some alignment tasks did not finish after being cancelled");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static class Chunk {
+		private final byte[] data;
+		private int length = 0;
+
+		public Chunk() {
+			this(CHUNK_SIZE);
+		}
+
+		public Chunk(int size) {
+			this.data = new byte[size];
+		}
+	}
+
+	/**
+	 * Bytes written to a process and the time its feeder waited for the process to consume the reads and its writer
+	 * waited for the feeder to encode them.
+	 */
+	private static class FeedingStatistics {
+		private volatile long bytes = 0;
+		private volatile long feederWaitNanos = 0;
+		private volatile long writerWaitNanos = 0;
+
+		@Override
+		public String toString() {
+			return (bytes / (1024 * 1024)) + " MB written, waited " + TimeUnit.NANOSECONDS.toMillis
+					(feederWaitNanos) + " ms for the aligner and " + TimeUnit.NANOSECONDS.toMillis(writerWaitNanos)
+					+ " ms for the reads";
+		}
+	}
+}
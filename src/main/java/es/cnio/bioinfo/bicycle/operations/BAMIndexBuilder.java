@@ -0,0 +1,261 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.operations;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Builds the BAI index of a coordinate sorted BAM file while it is written, as samtools index does (including
+ * its metadata pseudo-bin and the count of reads without coordinates).
+ * <p>
+ * The offsets are given as (block number << 16 | offset in the uncompressed block), because the compressed address
+ * of a block is only known once it has been compressed and written. As every block has its own number, chunks are
+ * merged the same way as with real virtual file offsets, and the offsets are translated to the block addresses
+ * when the index is written.
+ */
+class BAMIndexBuilder {
+
+	private static final int METADATA_BIN = 37450;
+	private static final int LINEAR_INDEX_SHIFT = 14;
+
+	private final ReferenceIndex[] references;
+
+	private int lastReference = -1;
+	private int lastBin = -1;
+	private int lastPosition = -1;
+
+	private int saveReference = -1;
+	private int saveBin = -1;
+	private long saveOffset;
+
+	private long metadataStart;
+	private long mapped = 0;
+	private long unmapped = 0;
+	private long noCoordinates = 0;
+	private boolean coordinatesFinished = false;
+
+	public BAMIndexBuilder(int references, long firstRecordOffset) {
+		this.references = new ReferenceIndex[references];
+		for (int i = 0; i < references; i++) {
+			this.references[i] = new ReferenceIndex();
+		}
+		this.metadataStart = firstRecordOffset;
+	}
+
+	/**
+	 * Adds a record, placed in reference (-1 if it has no coordinates) from start (0-based) to end (exclusive),
+	 * and written from offset to endOffset.
+	 */
+	public void addRecord(int reference, int start, int end, boolean unmappedFlag, int bin, long offset, long
+			endOffset) {
+		if (reference < 0) {
+			this.noCoordinates++;
+		}
+		if (this.coordinatesFinished) {
+			return;
+		}
+
+		if (this.lastReference < reference || (this.lastReference >= 0 && reference < 0)) {
+			this.lastReference = reference;
+			this.lastBin = -1;
+		} else if (this.lastReference > reference || (reference >= 0 && this.lastPosition > start)) {
+			throw new IllegalArgumentException("BAM records are not sorted by coordinate, reference " + reference
+					+ ", position " + (start + 1));
+		}
+
+		if (reference >= 0 && !unmappedFlag) {
+			this.references[reference].addToLinearIndex(start, end, offset);
+		}
+
+		if (bin != this.lastBin) {
+			if (this.saveBin != -1) {
+				this.references[this.saveReference].addChunk(this.saveBin, this.saveOffset, offset);
+			}
+			if (this.lastBin == -1 && this.saveReference != -1) {
+				addMetadata(offset);
+			}
+			this.saveOffset = offset;
+			this.saveBin = this.lastBin = bin;
+			this.saveReference = reference;
+			if (reference < 0) {
+				this.coordinatesFinished = true;
+				return;
+			}
+		}
+
+		if (unmappedFlag) {
+			this.unmapped++;
+		} else {
+			this.mapped++;
+		}
+		this.lastPosition = start;
+	}
+
+	/**
+	 * Writes the index, given the offset after the last record and the compressed address of each block.
+	 */
+	public void write(File index, long endOffset, long[] blockAddresses) throws IOException {
+		if (!this.coordinatesFinished && this.saveReference >= 0) {
+			this.references[this.saveReference].addChunk(this.saveBin, this.saveOffset, endOffset);
+			addMetadata(endOffset);
+		}
+
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(index), 65536);
+		try {
+			out.write(new byte[]{'B', 'A', 'I', 1});
+			writeInt(out, this.references.length);
+			for (ReferenceIndex reference : this.references) {
+				reference.mergeChunks();
+				writeInt(out, reference.bins.size());
+				for (Map.Entry<Integer, List<long[]>> bin : reference.bins.entrySet()) {
+					writeInt(out, bin.getKey());
+					writeInt(out, bin.getValue().size());
+					for (int i = 0; i < bin.getValue().size(); i++) {
+						long[] chunk = bin.getValue().get(i);
+						if (bin.getKey() == METADATA_BIN && i == 1) {
+							// mapped and unmapped counts
+							writeLong(out, chunk[0]);
+							writeLong(out, chunk[1]);
+						} else {
+							writeLong(out, translate(chunk[0], blockAddresses));
+							writeLong(out, translate(chunk[1], blockAddresses));
+						}
+					}
+				}
+
+				writeInt(out, reference.linearIndexLength);
+				for (int i = 0; i < reference.linearIndexLength; i++) {
+					if (i > 0 && reference.linearIndex[i] == 0) {
+						reference.linearIndex[i] = reference.linearIndex[i - 1];
+					} else {
+						reference.linearIndex[i] = translate(reference.linearIndex[i], blockAddresses);
+					}
+					writeLong(out, reference.linearIndex[i]);
+				}
+			}
+			writeLong(out, this.noCoordinates);
+		} finally {
+			out.close();
+		}
+	}
+
+	private void addMetadata(long offset) {
+		this.references[this.saveReference].addChunk(METADATA_BIN, this.metadataStart, offset);
+		this.references[this.saveReference].addChunk(METADATA_BIN, this.mapped, this.unmapped);
+		this.mapped = this.unmapped = 0;
+		this.metadataStart = offset;
+	}
+
+	private static long translate(long offset, long[] blockAddresses) {
+		return blockAddresses[(int) (offset >>> 16)] << 16 | (offset & 0xffff);
+	}
+
+	static void writeInt(OutputStream out, int value) throws IOException {
+		out.write(value);
+		out.write(value >>> 8);
+		out.write(value >>> 16);
+		out.write(value >>> 24);
+	}
+
+	private static void writeLong(OutputStream out, long value) throws IOException {
+		writeInt(out, (int) value);
+		writeInt(out, (int) (value >>> 32));
+	}
+
+	/**
+	 * The bin of a region, start (0-based) to end (exclusive), as in the SAM specification.
+	 */
+	static int reg2bin(int start, int end) {
+		end--;
+		if (start >> 14 == end >> 14) return ((1 << 15) - 1) / 7 + (start >> 14);
+		if (start >> 17 == end >> 17) return ((1 << 12) - 1) / 7 + (start >> 17);
+		if (start >> 20 == end >> 20) return ((1 << 9) - 1) / 7 + (start >> 20);
+		if (start >> 23 == end >> 23) return ((1 << 6) - 1) / 7 + (start >> 23);
+		if (start >> 26 == end >> 26) return ((1 << 3) - 1) / 7 + (start >> 26);
+		return 0;
+	}
+
+	private static class ReferenceIndex {
+		private final Map<Integer, List<long[]>> bins = new TreeMap<Integer, List<long[]>>();
+		private long[] linearIndex = new long[64];
+		private int linearIndexLength = 0;
+
+		public void addChunk(int bin, long start, long end) {
+			List<long[]> chunks = this.bins.get(bin);
+			if (chunks == null) {
+				chunks = new ArrayList<long[]>();
+				this.bins.put(bin, chunks);
+			}
+			chunks.add(new long[]{start, end});
+		}
+
+		public void addToLinearIndex(int start, int end, long offset) {
+			if (end <= start) {
+				end = start + 1;
+			}
+			int first = start >> LINEAR_INDEX_SHIFT;
+			int last = (end - 1) >> LINEAR_INDEX_SHIFT;
+			if (this.linearIndex.length <= last) {
+				this.linearIndex = Arrays.copyOf(this.linearIndex, Math.max(last + 1, this.linearIndex.length * 2));
+			}
+			for (int i = first; i <= last; i++) {
+				if (this.linearIndex[i] == 0) {
+					this.linearIndex[i] = offset;
+				}
+			}
+			this.linearIndexLength = Math.max(this.linearIndexLength, last + 1);
+		}
+
+		/**
+		 * Merges the consecutive chunks of a bin that end and start in the same block.
+		 */
+		public void mergeChunks() {
+			for (Map.Entry<Integer, List<long[]>> bin : this.bins.entrySet()) {
+				if (bin.getKey() == METADATA_BIN) {
+					continue;
+				}
+				List<long[]> chunks = bin.getValue();
+				List<long[]> merged = new ArrayList<long[]>(chunks.size());
+				long[] current = chunks.get(0);
+				merged.add(current);
+				for (int i = 1; i < chunks.size(); i++) {
+					if (current[1] >>> 16 == chunks.get(i)[0] >>> 16) {
+						current[1] = chunks.get(i)[1];
+					} else {
+						current = chunks.get(i);
+						merged.add(current);
+					}
+				}
+				bin.setValue(merged);
+			}
+		}
+	}
+}
@@ -0,0 +1,317 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.operations;
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.analysis.UnivariateFunction;
+import org.apache.commons.math3.analysis.solvers.BracketingNthOrderBrentSolver;
+import org.apache.commons.math3.analysis.solvers.UnivariateSolver;
+import org.apache.commons.math3.distribution.TDistribution;
+import org.apache.commons.math3.special.Gamma;
+
+/**
+ * Computes the same p-values as {@link BetaBinomialDifferentialMethylationTest} with cheaper evaluations of the
+ * functions whose roots are the MLEs of theta and mu.
+ * <p>
+ * The samples of each group are reduced to their distinct (cytosines, depth) pairs and their sums, once per site.
+ * The digamma of x + k, for all the integer offsets k needed in an evaluation, is taken from a single downward
+ * recurrence from x + m &gt;= 49, which is the recurrence Gamma.digamma follows for each argument. The terms that do
+ * not depend on the sample are computed once per evaluation, and the ones that do not depend on mu once per fit.
+ * <p>
+ * The roots are found with the same solver, brackets and accuracies, so the solver follows the same path and the
+ * p-values differ only by rounding. A Newton or Halley solver would converge to a different point inside the
+ * accuracy of the original one, changing the p-values far more than that.
+ * <p>
+ * Instances keep their buffers between sites and are not thread-safe.
+ */
+public class BetaBinomialFitter {
+
+	private static final double DIGAMMA_C_LIMIT = 49;
+	private static final double DIGAMMA_S_LIMIT = 1e-5;
+	private static final double EULER_GAMMA = 0.577215664901532860606512090082;
+
+	private static final double[] THETA_INTERVAL = new double[]{0.001, 1e6};
+
+	private final UnivariateSolver thetaSolver = new BracketingNthOrderBrentSolver(1.0e-6, 1.0e-3, 5);
+	private final UnivariateSolver muSolver = new BracketingNthOrderBrentSolver(1.0e-12, 1.0e-8, 5);
+
+	private final Group treatment = new Group();
+	private final Group control = new Group();
+	private final Group all = new Group();
+
+	// digamma(chainBase + k), 0 <= k < chainLength
+	private double[] chain = new double[64];
+	private int chainLength;
+	private double chainBase;
+
+	private Group muGroup;
+	private double muTheta;
+
+	private final UnivariateFunction thetaDerivative = new UnivariateFunction() {
+		@Override
+		public double value(double theta) {
+			return thetaDerivative(theta, treatment) + thetaDerivative(theta, control);
+		}
+	};
+
+	private final UnivariateFunction muDerivative = new UnivariateFunction() {
+		@Override
+		public double value(double mu) {
+			return muDerivative(mu, muGroup, muTheta);
+		}
+	};
+
+	/**
+	 * Same as {@link BetaBinomialDifferentialMethylationTest#getPvalue(int[], int[], int[], int[])}.
+	 */
+	public double getPvalue(int[] treatmentCytosines, int[] treatmentDepth,
+							int[] controlCytosines, int[] controlDepth) {
+		treatment.clear();
+		control.clear();
+		all.clear();
+		for (int i = 0; i < treatmentDepth.length; i++) {
+			if (treatmentDepth[i] > 0) {
+				treatment.add(treatmentCytosines[i], treatmentDepth[i], 1);
+			}
+		}
+		for (int i = 0; i < controlDepth.length; i++) {
+			if (controlDepth[i] > 0) {
+				control.add(controlCytosines[i], controlDepth[i], 1);
+			}
+		}
+		all.addAll(treatment);
+		all.addAll(control);
+
+		double theta = mleTheta();
+
+		double mu = mleMu(all, theta);
+		double muTreatment = mleMu(treatment, theta);
+		double muControl = mleMu(control, theta);
+
+		double likelihoodRatio = 2.0d * (
+				logLikelihood(treatment, muTreatment, theta) +
+						logLikelihood(control, muControl, theta)
+						-
+						logLikelihood(all, mu, theta));
+
+		int sampleSize = treatment.samples + control.samples;
+		return new TDistribution(sampleSize).cumulativeProbability(-1.0 * Math.sqrt(Math.max(0.0d, likelihoodRatio)))
+				* 2;
+	}
+
+	/**
+	 * Computes the p-values of several sites, reusing the buffers of this fitter. Sites whose fit fails get a NaN
+	 * p-value.
+	 */
+	public double[] getPvalues(int[][] treatmentCytosines, int[][] treatmentDepth,
+							   int[][] controlCytosines, int[][] controlDepth) {
+		double[] pValues = new double[treatmentCytosines.length];
+		for (int i = 0; i < pValues.length; i++) {
+			try {
+				pValues[i] = getPvalue(treatmentCytosines[i], treatmentDepth[i], controlCytosines[i],
+						controlDepth[i]);
+			} catch (Exception e) {
+				pValues[i] = Double.NaN;
+			}
+		}
+		return pValues;
+	}
+
+	private double mleTheta() {
+		double upper = thetaDerivative.value(THETA_INTERVAL[1]);
+		if (Double.isNaN(upper) || upper >= 0) {
+			return THETA_INTERVAL[1];
+		} else if (thetaDerivative.value(THETA_INTERVAL[0]) <= 0) {
+			return THETA_INTERVAL[0];
+		} else {
+			return thetaSolver.solve(1000, thetaDerivative, THETA_INTERVAL[0], THETA_INTERVAL[1]);
+		}
+	}
+
+	private double mleMu(Group group, double theta) {
+		if (group.sumCytosines == group.sumDepth) {
+			return 1.0d - 1e-10;
+		} else if (group.sumCytosines == 0) {
+			return 0.0d + 1e-10;
+		}
+
+		// digamma(muEst * theta + cytosines) does not depend on mu
+		double muEstTheta = group.muEst * theta;
+		fillChain(muEstTheta);
+		for (int j = 0; j < group.size; j++) {
+			group.muTerm[j] = digamma(muEstTheta, group.cytosines[j]);
+		}
+
+		muGroup = group;
+		muTheta = theta;
+		return muSolver.solve(1000, muDerivative, 0.0d + 1e-10, 1.0d - 1e-10);
+	}
+
+	private double thetaDerivative(double theta, Group group) {
+		double mu = group.muEst;
+		double methylated = mu * theta;
+		double unmethylated = (1 - mu) * theta;
+
+		double digammaTheta = Gamma.digamma(theta);
+		double muDigammaMethylated = mu * Gamma.digamma(methylated);
+		double unmuDigammaUnmethylated = (1 - mu) * Gamma.digamma(unmethylated);
+
+		fillChain(methylated);
+		for (int j = 0; j < group.size; j++) {
+			group.term[j] = mu * digamma(methylated, group.cytosines[j]);
+		}
+		fillChain(unmethylated);
+		for (int j = 0; j < group.size; j++) {
+			group.term[j] += (1 - mu) * digamma(unmethylated, group.depth[j] - group.cytosines[j]);
+		}
+		fillChain(theta);
+
+		double derivative = 0.0d;
+		for (int j = 0; j < group.size; j++) {
+			double currentValue = group.term[j] + digammaTheta - muDigammaMethylated - unmuDigammaUnmethylated
+					- digamma(theta, group.depth[j]);
+			derivative += group.count[j] * currentValue;
+		}
+		return derivative;
+	}
+
+	private double muDerivative(double mu, Group group, double thetaEst) {
+		double unmethylated = (1 - mu) * thetaEst;
+		double digammaMethylated = Gamma.digamma(mu * thetaEst);
+		double digammaUnmethylated = Gamma.digamma(unmethylated);
+
+		fillChain(unmethylated);
+		double derivative = 0.0d;
+		for (int j = 0; j < group.size; j++) {
+			derivative += group.count[j] * (group.muTerm[j] - digamma(unmethylated, group.depth[j] - group
+					.cytosines[j]) - digammaMethylated + digammaUnmethylated);
+		}
+		return derivative;
+	}
+
+	private double logLikelihood(Group group, double mu, double theta) {
+		double logGammaTheta = Gamma.logGamma(theta);
+		double logGammaMethylated = Gamma.logGamma(mu * theta);
+		double logGammaUnmethylated = Gamma.logGamma((1 - mu) * theta);
+
+		double logLikelihood = 0.0d;
+		for (int j = 0; j < group.size; j++) {
+			logLikelihood += group.count[j] * (Gamma.logGamma(mu * theta + group.cytosines[j]) + Gamma.logGamma((1
+					- mu) * theta + group.depth[j] - group.cytosines[j]) +
+					logGammaTheta - logGammaMethylated - logGammaUnmethylated - Gamma.logGamma(group.depth[j] +
+					theta));
+		}
+		return logLikelihood;
+	}
+
+	/**
+	 * Computes digamma(x + k) for all k such that x + k &lt; 49 with the downward recurrence digamma(y) =
+	 * digamma(y + 1) - 1 / y.
+	 */
+	private void fillChain(double x) {
+		chainBase = x;
+		chainLength = 0;
+		if (!(x >= 0 && x < DIGAMMA_C_LIMIT)) {
+			return;
+		}
+
+		double argument = x;
+		while (argument < DIGAMMA_C_LIMIT) {
+			if (chainLength == chain.length) {
+				chain = Arrays.copyOf(chain, chain.length * 2);
+			}
+			chain[chainLength++] = argument;
+			argument = argument + 1;
+		}
+
+		double value = Gamma.digamma(argument);
+		for (int k = chainLength - 1; k >= 0; k--) {
+			double y = chain[k];
+			value = y > 0 && y <= DIGAMMA_S_LIMIT ? -EULER_GAMMA - 1 / y : value - 1 / y;
+			chain[k] = value;
+		}
+	}
+
+	private double digamma(double x, int k) {
+		if (x == chainBase && k < chainLength) {
+			return chain[k];
+		}
+		return Gamma.digamma(x + k);
+	}
+
+	/**
+	 * Distinct (cytosines, depth) pairs of the valid samples of a group, with their counts.
+	 */
+	private static class Group {
+		private int[] cytosines = new int[8];
+		private int[] depth = new int[8];
+		private int[] count = new int[8];
+		private double[] term = new double[8];
+		private double[] muTerm = new double[8];
+		private int size;
+		private int samples;
+		private long sumCytosines;
+		private long sumDepth;
+		private double muEst;
+
+		private void clear() {
+			size = 0;
+			samples = 0;
+			sumCytosines = 0;
+			sumDepth = 0;
+			muEst = Double.NaN;
+		}
+
+		private void add(int sampleCytosines, int sampleDepth, int sampleCount) {
+			samples += sampleCount;
+			sumCytosines += (long) sampleCytosines * sampleCount;
+			sumDepth += (long) sampleDepth * sampleCount;
+			muEst = (double) sumCytosines / (double) sumDepth;
+
+			for (int j = 0; j < size; j++) {
+				if (cytosines[j] == sampleCytosines && depth[j] == sampleDepth) {
+					count[j] += sampleCount;
+					return;
+				}
+			}
+			if (size == cytosines.length) {
+				int length = size * 2;
+				cytosines = Arrays.copyOf(cytosines, length);
+				depth = Arrays.copyOf(depth, length);
+				count = Arrays.copyOf(count, length);
+				term = new double[length];
+				muTerm = new double[length];
+			}
+			cytosines[size] = sampleCytosines;
+			depth[size] = sampleDepth;
+			count[size] = sampleCount;
+			size++;
+		}
+
+		private void addAll(Group group) {
+			for (int j = 0; j < group.size; j++) {
+				add(group.cytosines[j], group.depth[j], group.count[j]);
+			}
+		}
+	}
+}
@@ -23,16 +23,17 @@ package es.cnio.bioinfo.bicycle.operations;
 
 import static java.lang.Math.max;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -44,6 +45,8 @@ import es.cnio.bioinfo.bicycle.Reference;
 import es.cnio.bioinfo.bicycle.Sample;
 import es.cnio.bioinfo.bicycle.StandardStreamsToLoggerRedirector;
 import es.cnio.bioinfo.bicycle.Tools;
+import es.cnio.bioinfo.bicycle.operations.AlignmentPipeline.LineProcessor;
+import es.cnio.bioinfo.bicycle.operations.AlignmentPipeline.ReadsSource;
 
 public class BowtieAlignment {
 
@@ -66,9 +69,13 @@ public class BowtieAlignment {
 
 	private static final Logger logger = Logger.getLogger(BowtieAlignment.class.getSimpleName());
 
+	private static final int LINE_RING_CAPACITY = 4096;
+
 
 	private Project project;
 
+	private boolean sortedBAMOutput = false;
+
 	public enum Bowtie1Quals {
 		AFTER_1_3("--solexa1.3-quals", "solexa1.3"),
 		BEFORE_1_3("--solexa-quals", "solexa"),
@@ -161,6 +168,18 @@ public class BowtieAlignment {
 		this.project = p;
 	}
 
+	/**
+	 * Writes the alignments directly as coordinate sorted and indexed BAM files (see {@link
+	 * #getSortedBAMOutputFile(Strand, Sample, Reference)}) instead of SAM files, sorting them in this JVM.
+	 */
+	public void setSortedBAMOutput(boolean sortedBAMOutput) {
+		this.sortedBAMOutput = sortedBAMOutput;
+	}
+
+	public boolean isSortedBAMOutput() {
+		return sortedBAMOutput;
+	}
+
 
 	public void buildBowtieIndex(Reference reference) throws IOException {
 		buildBowtieIndex(reference, 1, 1);
@@ -260,6 +279,11 @@ public class BowtieAlignment {
 				"_against_" + r.getReferenceFile().getName() + "_" + strand.name() + ".sam");
 	}
 
+	public File getSortedBAMOutputFile(Strand strand, Sample s, Reference r) {
+		return new File(this.project.getOutputDirectory() + File.separator + "bisulfited_CT_" + s.getName() +
+				"_against_" + r.getReferenceFile().getName() + "_" + strand.name() + ".sorted.bam");
+	}
+
 	private interface BowtieCommandCreator {
 		String[] getCommand(File reference, Sample sample, Strand strand, boolean nohead);
 	}
@@ -654,86 +678,47 @@ public class BowtieAlignment {
 		int threads = threadsNumber / 2;
 		if (threads == 0) threads = 1;
 
-		List<BufferedReader> streamsWATSON = null;
-		List<BufferedReader> streamsCRICK = null;
-
+		List<ReadsSource> streamsWATSON = new LinkedList<ReadsSource>();
+		List<ReadsSource> streamsCRICK = new LinkedList<ReadsSource>();
 
 		if (!sample.isPaired()) {
-			if (!sample.isDirectional()) {
-				//non-directional (cokus)
-				streamsWATSON = new LinkedList<BufferedReader>();
-				for (BufferedReader reader : FastqSplitter.splitfastq(sample.getReadsFiles(), threads)) {
-					streamsWATSON.add(new GtoADuplicatorReader(new CtoTReader(sample, reader, skipUnconverted)));
-				}
-				streamsCRICK = new LinkedList<BufferedReader>();
-				for (BufferedReader reader : FastqSplitter.splitfastq(sample.getReadsFiles(), threads)) {
-					streamsCRICK.add(new GtoADuplicatorReader(new CtoTReader(sample, reader, skipUnconverted)));
-				}
-
-
-			} else {
-				//directional (lister)
-				streamsWATSON = new LinkedList<BufferedReader>();
-				for (BufferedReader reader : FastqSplitter.splitfastq(sample.getReadsFiles(), threads)) {
-					streamsWATSON.add(new CtoTReader(sample, reader, skipUnconverted));
-				}
-				streamsCRICK = new LinkedList<BufferedReader>();
-				for (BufferedReader reader : FastqSplitter.splitfastq(sample.getReadsFiles(), threads)) {
-					streamsCRICK.add(new CtoTReader(sample, reader, skipUnconverted));
-				}
-
+			// non-directional (cokus) samples get each read converted also from G to A
+			for (InputStream reads : FastqSplitter.splitfastqStreams(sample.getReadsFiles(), threads)) {
+				streamsWATSON.add(new BowtieReadsEncoder(sample, reads, sample.isDirectional(), skipUnconverted));
+			}
+			for (InputStream reads : FastqSplitter.splitfastqStreams(sample.getReadsFiles(), threads)) {
+				streamsCRICK.add(new BowtieReadsEncoder(sample, reads, sample.isDirectional(), skipUnconverted));
 			}
 		} else {
 			//paired end
-
-			//streamsWATSON
-			streamsWATSON = new LinkedList<BufferedReader>();
-			List<BufferedReader> mate1Readers = FastqSplitter.splitfastq(sample.getReadsMate1Files(), threads);
-			List<BufferedReader> mate2Readers = FastqSplitter.splitfastq(sample.getReadsMate2Files(), threads);
-
-			for (int i = 0; i < mate1Readers.size(); i++) {
-				streamsWATSON.add(new PairedEndBowtieReader(sample, mate1Readers.get(i), mate2Readers.get(i), sample
+			List<InputStream> mate1Streams = FastqSplitter.splitfastqStreams(sample.getReadsMate1Files(), threads);
+			List<InputStream> mate2Streams = FastqSplitter.splitfastqStreams(sample.getReadsMate2Files(), threads);
+			for (int i = 0; i < mate1Streams.size(); i++) {
+				streamsWATSON.add(new BowtieReadsEncoder(sample, mate1Streams.get(i), mate2Streams.get(i), sample
 						.isDirectional(), skipUnconverted));
 			}
 
-			//streamsCRICK
-			streamsCRICK = new LinkedList<BufferedReader>();
-			mate1Readers = FastqSplitter.splitfastq(sample.getReadsMate1Files(), threads);
-			mate2Readers = FastqSplitter.splitfastq(sample.getReadsMate2Files(), threads);
-
-			for (int i = 0; i < mate1Readers.size(); i++) {
-				streamsCRICK.add(new PairedEndBowtieReader(sample, mate1Readers.get(i), mate2Readers.get(i), sample
+			mate1Streams = FastqSplitter.splitfastqStreams(sample.getReadsMate1Files(), threads);
+			mate2Streams = FastqSplitter.splitfastqStreams(sample.getReadsMate2Files(), threads);
+			for (int i = 0; i < mate1Streams.size(); i++) {
+				streamsCRICK.add(new BowtieReadsEncoder(sample, mate1Streams.get(i), mate2Streams.get(i), sample
 						.isDirectional(), skipUnconverted));
 			}
 		}
 
-		abstract class LineProcessor {
-			public abstract void processLine(String line);
-		}
-
+		final AlignmentPipeline pipeline = new AlignmentPipeline();
 
-		class AlignerThread extends Thread {
-			File ref;
-			LineProcessor out;
-			private String logFileName;
-			private BufferedReader readsStream;
-			private boolean nohead;
-			boolean shouldStop = false;
-			private Strand strand;
+		class Aligner {
+			private final File ref;
+			private final Strand strand;
 
-			public AlignerThread(File ref, Strand strand, LineProcessor out, String logfileName, BufferedReader
-					readsStream, boolean nohead) {
+			public Aligner(File ref, Strand strand) {
 				this.ref = ref;
-				this.out = out;
-				this.logFileName = logfileName;
-				this.readsStream = readsStream;
-				this.nohead = nohead;
 				this.strand = strand;
 			}
 
-			public void run() {
-
-
+			public void start(LineProcessor out, String logFileName, ReadsSource readsStream, boolean nohead)
+					throws IOException {
 				logger.info("Aligning " +
 						sample.getReadsFiles().toString().replaceAll(project.getReadsDirectory().toString() + File
 								.separator, "")
@@ -743,77 +728,28 @@ public class BowtieAlignment {
 						+ "]...... " +
 						"(see .log file)...... ");
 
-				String[] command = commandCreator.getCommand(ref, sample, strand, nohead);
-
-
-				String outFile = logFileName;
-
-
-				try {
-					FileOutputStream outLog = new FileOutputStream(new File(outFile));
-
-					final Process process = Tools.executeProcess(command, null, outLog);
-
-					BufferedReader stdOut = new BufferedReader(new InputStreamReader(process.getInputStream()));
-
-					String line = null;
-
-					//thread to feed lines
-					new Thread() {
-						public void run() {
-							PrintStream ps = new PrintStream(process.getOutputStream());
-
-							String readsLine = null;
-							logger.info("Start read feeding to alignment against " + ref.toString().replaceAll(project
-									.getWorkingDirectory() + File.separator, Project.WORKING_DIRECTORY) + ". Log " +
-									"file:" +
-									" " +
-									"" + logFileName
-									.replaceAll
-											(project.getOutputDirectory() + File.separator, Project.OUTPUT_DIRECTORY));
-							try {
-								while ((readsLine = readsStream.readLine()) != null && !shouldStop) {
-									ps.println(readsLine);
-
-								}
-								ps.flush();
-								ps.close();
-
-								logger.info("Finished read feeding to alignment against " + ref.toString().replaceAll
-										(project
-												.getWorkingDirectory() + File.separator, Project.WORKING_DIRECTORY));
-							} catch (Exception e) {
-								throw new RuntimeException(e);
-							}
-						}
-
-						;
-					}.start();
-
-					try {
-						while ((line = stdOut.readLine()) != null) {
-							out.processLine(line);
-						}
-					} catch (IOException e1) {
-						throw new RuntimeException(e1);
-					}
-
-					int returnValue = process.waitFor();
-					if (returnValue != 0) {
-					  throw new RuntimeException("Bowtie has a non-zero return value. Check its logs for details");
-					}
-					shouldStop = true; //bowtie sends a null output, so the input feed should stop
-
-				} catch (FileNotFoundException e1) {
-					throw new RuntimeException(e1);
-				} catch (InterruptedException e) {
-          throw new RuntimeException(e);
-        }
-
+				pipeline.start(commandCreator.getCommand(ref, sample, strand, nohead), new File(logFileName),
+						readsStream, out, ref.toString().replaceAll(project.getWorkingDirectory() + File.separator,
+								Project.WORKING_DIRECTORY) + ". Log file: " + logFileName.replaceAll(project
+								.getOutputDirectory() + File.separator, Project.OUTPUT_DIRECTORY));
 			}
 		}
-		final PrintStream outCT = new PrintStream(new FileOutputStream(alignmentOutputFileCT));
-		final PrintStream outGA = new PrintStream(new FileOutputStream(alignmentOutputFileGA));
+		Aligner alignerCT = new Aligner(refCT, Strand.WATSON);
+		Aligner alignerGA = new Aligner(refGA, Strand.CRICK);
+
+		final Writer outCT;
+		final Writer outGA;
+		if (this.sortedBAMOutput) {
+			File sortedBAMCT = getSortedBAMOutputFile(Strand.WATSON, sample, reference);
+			File sortedBAMGA = getSortedBAMOutputFile(Strand.CRICK, sample, reference);
+			outCT = new SAMCoordinateSorter(sortedBAMCT, sortedBAMCT.getAbsoluteFile().getParentFile(),
+					SAMCoordinateSorter.DEFAULT_MAX_RECORDS_IN_RAM, threadsNumber);
+			outGA = new SAMCoordinateSorter(sortedBAMGA, sortedBAMGA.getAbsoluteFile().getParentFile(),
+					SAMCoordinateSorter.DEFAULT_MAX_RECORDS_IN_RAM, threadsNumber);
+		} else {
+			outCT = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(alignmentOutputFileCT)), 65536);
+			outGA = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(alignmentOutputFileGA)), 65536);
+		}
 
 		class AlignerPostprocessor {
 			private final AlignmentScoreFunction scoreFunction;
@@ -821,6 +757,9 @@ public class BowtieAlignment {
 			private String CTLine = null;
 			private String GALine = null;
 
+			private final SAMLineRewriter CTRewriter = new SAMLineRewriter();
+			private final SAMLineRewriter GARewriter = new SAMLineRewriter();
+
 			private int tagCount = 0;
 			private int mergeCount = 0;
 
@@ -837,6 +776,9 @@ public class BowtieAlignment {
 			public void close() {
 				flushBuffer();
 				logger.info("Both alignments have finished. Ambigous reads: " + tagCount);
+				// a full queue waits for the other strand, whose aligner is slower
+				logger.info("Aligner thread " + this.id + " line queues: CT " + CTLines.getStatistics() + ", GA " +
+						GALines.getStatistics());
 
 			}
 
@@ -871,29 +813,24 @@ public class BowtieAlignment {
 
 			public void merge() {
 
-				CTLine = replaceOriginalRead(CTLine).trim();
-				GALine = replaceOriginalRead(GALine).trim();
+				CTLine = CTRewriter.rewrite(CTLine);
+				GALine = GARewriter.rewrite(GALine);
 
 				boolean ambiguous = false;
-				if (!CTLine.startsWith("@")) {
-					String[] tokensCT = CTLine.split("\t");
-					String[] tokensGA = GALine.split("\t");
-
-					//System.out.println(tokensCT[0]+" = "+tokensGA[0]);
-					if (!sample.isPaired() && !tokensCT[0].equals(tokensGA[0])) {
+				if (!CTRewriter.isHeader()) {
+					if (!sample.isPaired() && !CTRewriter.hasSameReadName(GARewriter, false)) {
 						// Note: this does not happen when bowtie says "Exhausted best-first chunk memory for read"
 
 						logger.severe("BUG: reading two samrecords from CT and GA alignments with are a " +
 								"different read	CT:" + CTLine + "\nGA:" + GALine);
 						System.exit(1);
-					} else if (sample.isPaired() && !tokensCT[0].substring(0, tokensCT[0].length() - 1).equals
-							(tokensGA[0].substring(0, tokensGA[0].length() - 1))) {
+					} else if (sample.isPaired() && !CTRewriter.hasSameReadName(GARewriter, true)) {
 						logger.severe("BUG: reading two samrecords from CT and GA alignments with are a different " +
 								"read (ignoring last character)\nCT:" + CTLine + "\nGA:" + GALine);
 						System.exit(1);
 					}
 
-					if (!tokensCT[5].equals("*") && !tokensGA[5].equals("*")) {
+					if (!CTRewriter.isUnaligned() && !GARewriter.isUnaligned()) {
 						ambiguous = true;
 						tagCount++;
 					}
@@ -901,14 +838,14 @@ public class BowtieAlignment {
 					if (sample.isDirectional()) {
 						mergeDirectionalSAMLines(ambiguous);
 					} else {
-						mergeNonDirectionalSAMRecords(ambiguous, tokensCT, tokensGA);
+						mergeNonDirectionalSAMRecords(ambiguous);
 					}
 
 
 				} else {
 					// header line (starting with @)
-					outputBufferCT.append(CTLine + "\n");
-					outputBufferGA.append(GALine + "\n");
+					outputBufferCT.append(CTLine).append('\n');
+					outputBufferGA.append(GALine).append('\n');
 				}
 
 
@@ -925,17 +862,17 @@ public class BowtieAlignment {
 
 			}
 
-			private void mergeNonDirectionalSAMRecords(boolean ambiguous, String[] tokensCT, String[] tokensGA) {
+			private void mergeNonDirectionalSAMRecords(boolean ambiguous) {
 				//get score
 				int currentScore = Integer.MIN_VALUE;
 				boolean alignedInCT = false;
 				boolean alignedInGA = false;
-				if (!tokensCT[5].equals("*")) {
+				if (!CTRewriter.isUnaligned()) {
 					alignedInCT = true;
 					currentScore = scoreFunction.getScore(CTLine);
 				}
 
-				if (!tokensGA[5].equals("*")) {
+				if (!GARewriter.isUnaligned()) {
 					alignedInGA = true;
 					int GAScore = scoreFunction.getScore(GALine);
 					if (GAScore > currentScore) {
@@ -1175,249 +1112,126 @@ public class BowtieAlignment {
 			}
 
 			private void mergeDirectionalSAMLines(boolean ambiguous) {
+				outputBufferCT.append(CTLine);
+				outputBufferGA.append(GALine);
 				if (ambiguous) {
-					outputBufferCT.append(CTLine + "\tZA:A:Y\tRG:Z:" + Strand.WATSON.name() + "\n");
-					outputBufferGA.append(GALine + "\tZA:A:Y\tRG:Z:" + Strand.CRICK.name() + "\n");
-				} else {
-					outputBufferCT.append(CTLine + "\tRG:Z:" + Strand.WATSON.name() + "\n");
-					outputBufferGA.append(GALine + "\tRG:Z:" + Strand.CRICK.name() + "\n");
+					outputBufferCT.append("\tZA:A:Y");
+					outputBufferGA.append("\tZA:A:Y");
 				}
+				outputBufferCT.append("\tRG:Z:").append(Strand.WATSON.name()).append('\n');
+				outputBufferGA.append("\tRG:Z:").append(Strand.CRICK.name()).append('\n');
 			}
 
 			private void flushBuffer() {
 				synchronized (outCT) {
-					outCT.print(outputBufferCT.toString());
-					outCT.flush();
-					outputBufferCT.setLength(0);
-
-					outGA.print(outputBufferGA.toString());
-					outGA.flush();
-					outputBufferGA.setLength(0);
+					try {
+						outCT.write(outputBufferCT.toString());
+						outCT.flush();
+						outputBufferCT.setLength(0);
+
+						outGA.write(outputBufferGA.toString());
+						outGA.flush();
+						outputBufferGA.setLength(0);
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
 				}
 
 			}
 
-			public LineProcessor CTProcessor = new LineProcessor() {
+			// lines of each alignment, paired by the merger
+			private final LineRing CTLines = new LineRing(LINE_RING_CAPACITY);
+			private final LineRing GALines = new LineRing(LINE_RING_CAPACITY);
 
-				@Override
-				public void processLine(String line) {
-					synchronized (AlignerPostprocessor.this) {
-						while (CTLine != null) {
-							try {
-								AlignerPostprocessor.this.wait(10000);
-								if (CTLine != null) {
-									logger.info("awaking, but CTLine is still not null (if you see this message " +
-											"continously, bowtie may be not responding), it is: " + CTLine +
-											"\nProcessing new CT line: " + line);
-								}
-							} catch (InterruptedException e) {
-								// TODO Auto-generated catch block
-								e.printStackTrace();
-							}
-						}
-						CTLine = line;
-
-						if (GALine != null) {
-							merge();
-							AlignerPostprocessor.this.notify();
-						}
-					}
-
-				}
-
-			};
-
-			public LineProcessor GAProcessor = new LineProcessor() {
+			public final LineProcessor CTProcessor = CTLines;
+			public final LineProcessor GAProcessor = GALines;
 
+			/**
+			 * Merges the lines of both alignments in batches of the lines available in both.
+			 */
+			public final Callable<Void> merger = new Callable<Void>() {
 				@Override
-				public void processLine(String line) {
-					synchronized (AlignerPostprocessor.this) {
-						while (GALine != null) {
-							try {
-								AlignerPostprocessor.this.wait(10000);
-								if (GALine != null) {
-									logger.info("awaking, but GALine is still not null, it is: " + GALine +
-											"\nProcessing new GA line: " + line);
-								}
-							} catch (InterruptedException e) {
-
-								e.printStackTrace();
-							}
+				public Void call() {
+					while (true) {
+						int available = LineRing.awaitPairs(CTLines, GALines);
+						if (available == 0) {
+							return null;
 						}
-						GALine = line;
-
-						if (CTLine != null) {
+						for (int i = available; i > 0; i--) {
+							CTLine = CTLines.poll();
+							GALine = GALines.poll();
 							merge();
-							AlignerPostprocessor.this.notify();
 						}
 					}
-
 				}
-
 			};
 		}
 
-		//write the header of the sam doing a "dummy alignment"
-		AlignerPostprocessor dummyposprocessor = new AlignerPostprocessor(0, scoreFunction);
-		LineProcessor dummyctProcessor = dummyposprocessor.CTProcessor;
-		LineProcessor dummygaProcessor = dummyposprocessor.GAProcessor;
-		AlignerThread dummyThreadCT = new AlignerThread(refCT, Strand.WATSON, dummyctProcessor, alignmentOutputFileCT
-				+ "_p_head.log", new BufferedReader(new InputStreamReader(new ByteArrayInputStream(new byte[0]))),
-				false);
-		AlignerThread dummyThreadGA = new AlignerThread(refGA, Strand.CRICK, dummygaProcessor, alignmentOutputFileGA +
-				"_p_head.log", new BufferedReader(new InputStreamReader(new ByteArrayInputStream(new byte[0]))),
-				false);
-		dummyThreadCT.start();
-		dummyThreadGA.start();
-
-		try {
-			dummyThreadCT.join();
-			dummyThreadGA.join();
-		} catch (InterruptedException e2) {
-			// TODO Auto-generated catch block
-			e2.printStackTrace();
-		}
-
-		dummyposprocessor.close();
-
-		List<Thread> alignerThreads = new LinkedList<Thread>();
 		List<AlignerPostprocessor> postprocessors = new LinkedList<AlignerPostprocessor>();
-
-		for (int i = 0; i < streamsWATSON.size(); i++) {
-			AlignerPostprocessor postprocessor = new AlignerPostprocessor(i + 1, scoreFunction);
-			postprocessors.add(postprocessor);
-			LineProcessor ctProcessor = postprocessor.CTProcessor;
-			LineProcessor gaProcessor = postprocessor.GAProcessor;
-			BufferedReader streamCT = streamsWATSON.get(i);
-			BufferedReader streamGA = streamsCRICK.get(i);
-			AlignerThread threadCT = new AlignerThread(refCT, Strand.WATSON, ctProcessor, alignmentOutputFileCT +
-					"_p_" + i + ".log", streamCT, true);
-			AlignerThread threadGA = new AlignerThread(refGA, Strand.CRICK, gaProcessor, alignmentOutputFileGA + "_p_"
-					+ i + ".log", streamGA, true);
-
-			threadCT.start();
-			threadGA.start();
-
-			alignerThreads.add(threadCT);
-			alignerThreads.add(threadGA);
-
-		}
-
-		for (Thread t : alignerThreads) {
+		boolean aligned = false;
+		try {
 			try {
-				t.join();
+				//write the header of the sam doing a "dummy alignment"
+				AlignerPostprocessor dummyposprocessor = new AlignerPostprocessor(0, scoreFunction);
+				pipeline.run(dummyposprocessor.merger);
+				ReadsSource noReads = new ReadsSource() {
+					@Override
+					public ByteBuffer next() {
+						return null;
+					}
+				};
+				alignerCT.start(dummyposprocessor.CTProcessor, alignmentOutputFileCT + "_p_head.log", noReads, false);
+				alignerGA.start(dummyposprocessor.GAProcessor, alignmentOutputFileGA + "_p_head.log", noReads, false);
+				pipeline.await();
+
+				dummyposprocessor.close();
+
+				for (int i = 0; i < streamsWATSON.size(); i++) {
+					AlignerPostprocessor postprocessor = new AlignerPostprocessor(i + 1, scoreFunction);
+					postprocessors.add(postprocessor);
+					pipeline.run(postprocessor.merger);
+					alignerCT.start(postprocessor.CTProcessor, alignmentOutputFileCT + "_p_" + i + ".log", streamsWATSON
+							.get(i), true);
+					alignerGA.start(postprocessor.GAProcessor, alignmentOutputFileGA + "_p_" + i + ".log", streamsCRICK
+							.get(i), true);
+				}
+				pipeline.await();
+			} finally {
+				pipeline.close();
+			}
 
-			} catch (InterruptedException e1) {
-				// TODO Auto-generated catch block
-				e1.printStackTrace();
+			for (AlignerPostprocessor postprocessor : postprocessors) {
+				postprocessor.close();
+			}
+			if (this.sortedBAMOutput) {
+				logger.info("Writing sorted BAM files of sample " + sample.getName());
+			}
+			outCT.close();
+			outGA.close();
+			aligned = true;
+		} finally {
+			if (!aligned) {
+				discard(outCT);
+				discard(outGA);
 			}
 		}
-		for (AlignerPostprocessor postprocessor : postprocessors) {
-			postprocessor.close();
-		}
-		outCT.flush();
-		outGA.flush();
-		outCT.close();
-		outGA.close();
 
 		logger.info("Alignment of sample " + sample.getName() + " OK");
 
 	}
 
-	private String getReverseComplementary(String sequence) {
-		StringBuilder complementaria = new StringBuilder("");
-
-		// 1ero construyo la complementaria
-		for (int i = 0; i < sequence.length(); i++) {
-			switch (sequence.charAt(i)) {
-				case 'A':
-					complementaria.append("T");
-					break;
-				case 'T':
-					complementaria.append("A");
-					break;
-				case 'C':
-					complementaria.append("G");
-					break;
-				case 'G':
-					complementaria.append("C");
-					break;
-				default:
-					complementaria.append(sequence.charAt(i));
+	private static void discard(Writer out) {
+		if (out instanceof SAMCoordinateSorter) {
+			((SAMCoordinateSorter) out).abort();
+		} else {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// the alignment has already failed
 			}
 		}
-
-		//ahora la reversa
-		StringBuilder reversa = new StringBuilder("");
-		for (int i = complementaria.length() - 1; i > -1; i--) {
-			reversa.append(complementaria.charAt(i));
-		}
-
-		return (reversa.toString());
-	}
-
-	private String replaceOriginalRead(String samline) {
-		if (!samline.startsWith("@")) {
-			//System.out.println(samline);
-			final String[] tokens = samline.split("[\t]");
-			// recupero la secuencia inicial
-			final String[] firstColumn = tokens[0].split("[|][|]");
-			String originalRead = null;
-
-			int flag = Integer.parseInt(tokens[1]);
-			boolean mate1 = false;
-			boolean paired = false;
-			if ((flag & 0x0001) == 0x0001) {
-				//paired!
-				paired = true;
-				if ((flag & 0x0040) == 0x0040) {
-					//mate1
-					mate1 = true;
-					originalRead = firstColumn[1];
-				} else if ((flag & 0x0080) == 0x0080) {
-					//mate2
-					mate1 = false;
-					originalRead = firstColumn[2];
-				} else {
-					throw new RuntimeException("Malformed FLAG in SAM. It says that is a paired read, but it is not " +
-							"the first nor the second pair");
-				}
-			} else {
-				originalRead = firstColumn[1];
-			}
-			final StringBuilder lineModified = new StringBuilder();
-
-			if ((flag & 0x0010) == 0x0010) {
-				originalRead = getReverseComplementary(originalRead);
-			}
-
-
-			for (int j = 0; j < tokens.length; j++) {
-				// le adjunto la cabecera original de la read
-				if (j == 0) {
-					lineModified.append(firstColumn[0]);
-					if (paired) {
-						if (mate1) {
-							lineModified.append("/1");
-						} else {
-							lineModified.append("/2");
-						}
-					}
-					lineModified.append("\t");
-				}
-				// le adjunto la read original en lugar de la que tenia
-				else if (j == 9) lineModified.append(originalRead).append("\t");
-
-					//else if(j==tokens.length-1) lineModified=new StringBuilder(lineModified).append(tokens[j]);
-				else lineModified.append(tokens[j]).append("\t");
-
-			}
-			return lineModified.toString();
-		}//if(!thisLine.startsWith("@"))
-		return samline;
 	}
 
-
 }
 
 
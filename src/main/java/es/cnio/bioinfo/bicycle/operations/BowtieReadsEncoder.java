@@ -0,0 +1,233 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.operations;
+
+import static es.cnio.bioinfo.bicycle.operations.FastqRecordParser.HEADER;
+import static es.cnio.bioinfo.bicycle.operations.FastqRecordParser.PLUS;
+import static es.cnio.bioinfo.bicycle.operations.FastqRecordParser.QUALITY;
+import static es.cnio.bioinfo.bicycle.operations.FastqRecordParser.SEQUENCE;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import es.cnio.bioinfo.bicycle.Sample;
+import es.cnio.bioinfo.bicycle.operations.AlignmentPipeline.ReadsSource;
+
+/**
+ * Encodes the reads of FASTQ files as the input of a bowtie process, converting them with lookup tables into a
+ * reused buffer.
+ * <p>
+ * Single-end reads are given as FASTQ records whose name is followed by || and the original sequence, with the C
+ * converted to T. Non-directional samples also have each read with the G converted to A.
+ * <p>
+ * Paired-end reads are given in the --12 format, one line per pair: the read name followed by || and the original
+ * sequences of both mates, and the sequence and quality of each mate, separated by tabs. The mate 1 has the C
+ * converted to T and the mate 2 the G converted to A. Non-directional samples also have each pair with the opposite
+ * conversions.
+ */
+class BowtieReadsEncoder implements ReadsSource {
+
+	private static final int BATCH_SIZE = 256 * 1024;
+
+	private static final byte[] IDENTITY = table(' ', ' ');
+	private static final byte[] NAME = table(' ', '_');
+	private static final byte[] CT = table('C', 'T');
+	private static final byte[] GA = table('G', 'A');
+	private static final byte[] SEPARATOR = "||".getBytes();
+
+	private final Sample sample;
+	private final boolean directional;
+	private final boolean skipUnconverted;
+	private final InputStream mate1Stream;
+	private final InputStream mate2Stream;
+	private final FastqRecordParser mate1;
+	private final FastqRecordParser mate2;
+
+	private int barcodePosition = -1;
+	private ByteBuffer output = ByteBuffer.allocate(BATCH_SIZE + 4096);
+
+	/**
+	 * Encodes single-end reads.
+	 */
+	public BowtieReadsEncoder(Sample sample, InputStream reads, boolean directional, boolean skipUnconverted) {
+		this(sample, reads, null, directional, skipUnconverted);
+	}
+
+	/**
+	 * Encodes paired-end reads, or single-end ones if mate2 is null.
+	 */
+	public BowtieReadsEncoder(Sample sample, InputStream mate1, InputStream mate2, boolean directional, boolean
+			skipUnconverted) {
+		this.sample = sample;
+		this.directional = directional;
+		this.skipUnconverted = skipUnconverted;
+		this.mate1Stream = mate1;
+		this.mate2Stream = mate2;
+		this.mate1 = new FastqRecordParser(mate1);
+		this.mate2 = mate2 == null ? null : new FastqRecordParser(mate2);
+	}
+
+	private static byte[] table(char from, char to) {
+		byte[] table = new byte[256];
+		for (int i = 0; i < table.length; i++) {
+			table[i] = (byte) i;
+		}
+		table[from] = (byte) to;
+		return table;
+	}
+
+	@Override
+	public ByteBuffer next() throws IOException {
+		output.clear();
+		while (output.position() < BATCH_SIZE && nextRecord()) {
+			if (mate2 == null) {
+				encodeRecord(CT);
+				if (!directional) {
+					encodeRecord(GA);
+				}
+			} else {
+				encodePair(CT, GA);
+				if (!directional) {
+					encodePair(GA, CT);
+				}
+			}
+		}
+		if (output.position() == 0) {
+			mate1Stream.close();
+			if (mate2Stream != null) {
+				mate2Stream.close();
+			}
+			return null;
+		}
+		output.flip();
+		return output;
+	}
+
+	private boolean nextRecord() throws IOException {
+		do {
+			if (!mate1.next() || (mate2 != null && !mate2.next())) {
+				return false;
+			}
+		} while (shouldSkip(mate1) || (mate2 != null && shouldSkip(mate2)));
+		return true;
+	}
+
+	private void encodeRecord(byte[] conversion) {
+		put(mate1, HEADER, 0, NAME);
+		put(SEPARATOR);
+		put(mate1, SEQUENCE, 0, IDENTITY);
+		put((byte) '\n');
+		put(mate1, SEQUENCE, 0, conversion);
+		put((byte) '\n');
+		put(mate1, PLUS, 0, IDENTITY);
+		put((byte) '\n');
+		put(mate1, QUALITY, 0, IDENTITY);
+		put((byte) '\n');
+	}
+
+	private void encodePair(byte[] mate1Conversion, byte[] mate2Conversion) {
+		// without the @
+		put(mate1, HEADER, 1, NAME);
+		put(SEPARATOR);
+		put(mate1, SEQUENCE, 0, IDENTITY);
+		put(SEPARATOR);
+		put(mate2, SEQUENCE, 0, IDENTITY);
+		put((byte) '\t');
+		put(mate1, SEQUENCE, 0, mate1Conversion);
+		put((byte) '\t');
+		put(mate1, QUALITY, 0, IDENTITY);
+		put((byte) '\t');
+		put(mate2, SEQUENCE, 0, mate2Conversion);
+		put((byte) '\t');
+		put(mate2, QUALITY, 0, IDENTITY);
+		put((byte) '\n');
+	}
+
+	private void put(FastqRecordParser record, int line, int skip, byte[] table) {
+		int start = Math.min(record.start(line) + skip, record.end(line));
+		int end = record.end(line);
+		ensureRemaining(end - start);
+
+		byte[] data = record.array();
+		byte[] out = output.array();
+		int position = output.position();
+		for (int i = start; i < end; i++) {
+			out[position++] = table[data[i] & 0xff];
+		}
+		output.position(position);
+	}
+
+	private void put(byte[] bytes) {
+		ensureRemaining(bytes.length);
+		output.put(bytes);
+	}
+
+	private void put(byte b) {
+		ensureRemaining(1);
+		output.put(b);
+	}
+
+	private void ensureRemaining(int length) {
+		if (output.remaining() < length) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(output.capacity() * 2, output.position() + length));
+			output.flip();
+			larger.put(output);
+			output = larger;
+		}
+	}
+
+	private boolean shouldSkip(FastqRecordParser record) {
+		return this.skipUnconverted && hasUnconvertedBarcode(record.getLine(HEADER));
+	}
+
+	private int getBarcodePosition() {
+		if (barcodePosition == -1) {
+			File f = sample.getReadsFiles().get(0);
+			// obtengo el barcode del nombre del archivo, ejemplo: ES_LIF_s_8_TGtATT-sequence.txt
+			String barcode = new String((f.getName().split("-"))[0]);
+			String aux[] = barcode.split("_");
+			barcode = aux[aux.length - 1];
+
+			barcodePosition = barcode.indexOf("t");
+			if (barcodePosition == -1) {
+				throw new IllegalArgumentException("no 't' found on barcode. barcode " + barcode);
+			}
+		}
+
+		return barcodePosition;
+	}
+
+	private boolean hasUnconvertedBarcode(String readHeader) {
+		String[] tokens = readHeader.split("[#]");
+		if (tokens.length == 2) {
+			String thisReadBarcode = tokens[1];
+
+			if (thisReadBarcode.charAt(getBarcodePosition()) != 't' && thisReadBarcode.charAt(getBarcodePosition()) !=
+					'T') {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -6,19 +6,25 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
-import org.apache.commons.lang.ArrayUtils;
-
 import es.cnio.bioinfo.bicycle.MethylationCall;
+import es.cnio.bioinfo.bicycle.MethylationCallView;
 import es.cnio.bioinfo.bicycle.Project;
 import es.cnio.bioinfo.bicycle.Reference;
 import es.cnio.bioinfo.bicycle.Sample;
@@ -27,7 +33,6 @@ import es.cnio.bioinfo.bicycle.gatk.GPFilesReader;
 import es.cnio.bioinfo.pileline.core.Interval;
 import es.cnio.bioinfo.pileline.core.IntervalsIndex;
 import es.cnio.bioinfo.pileline.core.IntervalsIndexFactory;
-import es.uvigo.ei.sing.math.statistical.corrections.FDRCorrection;
 
 public class DifferentialMethylationAnalysis {
 	private static final Logger logger = Logger.getLogger(DifferentialMethylationAnalysis.class.getSimpleName());
@@ -39,6 +44,10 @@ public class DifferentialMethylationAnalysis {
 
 	private File outputFile;
 
+	private int threads = 1;
+
+	private static final int SITES_PER_BATCH = 4096;
+
 
 	public DifferentialMethylationAnalysis(MethylationAnalysis ma, Set<Context> contexts) {
 		this.contexts = contexts;
@@ -46,6 +55,17 @@ public class DifferentialMethylationAnalysis {
 
 	}
 
+	/**
+	 * Sets the number of threads used to test the bases in the DMC analysis. The output does not depend on it.
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
 	public void analyzeDifferentialMethylationByRegions(
 			Reference reference,
 			List<Sample> treatmentSamples,
@@ -62,179 +82,37 @@ public class DifferentialMethylationAnalysis {
 
 		this.outputFile = outputFile;
 
-		File tempFile = new File(outputFile.getAbsolutePath() + ".temp");
-		tempFile.deleteOnExit();
-
-		PrintStream outTemp = new PrintStream(tempFile);
-		writeOutputHeadersByRegion(reference, treatmentSamples, controlSamples, outTemp);
+		AdjustedPValueTableWriter out = new AdjustedPValueTableWriter(outputFile);
+		writeOutputHeadersByRegion(reference, treatmentSamples, controlSamples, out);
 
 		Map<Interval, MethylationCounts> regionCounts = computeMethylationCountsByRegion(reference, treatmentSamples,
 				controlSamples, bedFile);
 
-		List<Double> pValues = new LinkedList<Double>();
-
-
-		//****************************************************//
-		//modified by Osvaldo, 9Apr2017
-		//adds methylation average values for treatment and control samples.
-		//Additionally it computes a log2FC(treatment average/control average)
-
-
-		//OLD way
-		/*logger.info("Computing DMRs...");
-		for (Interval interval : regionCounts.keySet()) {
-			
-			MethylationCounts regionCount = regionCounts.get(interval);
-			
-			outTemp.print(interval.getData()+"\t"+interval.getSequence()+"\t"+interval.getStart()+"\t"+interval
-			.getStop()+"\t");
-			outTemp.print(regionCount.toString());
-			
-			double pValue = this.computePValue(regionCount);
-			pValues.add(pValue);
-			
-			outTemp.println(pValue);			
-		}*/
-
-
-		//NEW way		
 		int nTreatmentSamples = treatmentSamples.size();
 		int nControlSamples = controlSamples.size();
 
-
 		logger.info("Computing DMRs...");
+		BetaBinomialFitter fitter = new BetaBinomialFitter();
+		StringBuilder regionLine = new StringBuilder();
 		for (Interval interval : regionCounts.keySet()) {
 
 			MethylationCounts regionCount = regionCounts.get(interval);
 
-			outTemp.print(interval.getData() + "\t" + interval.getSequence() + "\t" + interval.getStart() + "\t" +
-					interval.getStop() + "\t");
-			outTemp.print(regionCount.toString());
-
-			//added by Osvaldo
-			double treatmentAverage = 0.0;
-			double controlAverage = 0.0;
-			int counter = 0;
-			//splits the methylation line by tab to get individual methylation ratios
-			String[] tokens = regionCount.toString().split("\t");
-			
-			/*Two possible ways of calculating it:
-			 * (1) calculating the ratio of methylation for each sample of each condition (numerator/denominator),
-			 * and then calculating the average of methylation of each condition as the sum of its sample values
-			 * divided by the number of samples.
-			 * treatment average=((sample1 numerator/sample1 denominator) + (sample 2 numerator/sample 2 denominator)
-			 * ) /2
-			 * control average=((sample1 numerator/sample1 denominator) + (sample 2 numerator/sample 2 denominator))
-			  * /2
-			 * Finally, it computes the log2FC (treatment average / control average)
-			 * This way is implemented below
-			 */
-
-			// FIRST WAY DISCARDED !!!
-			/*for(String token:tokens){// for each methylation ratio
-				
-				//treatment samples
-				if(counter<nTreatmentSamples){
-					//separates values that come represented as a methylation ratio
-					String[] subToken=token.split("/");
-					double numerator=new Double(subToken[0]).doubleValue();
-					double denominator=new Double(subToken[1]).doubleValue();
-					treatmentAverage+=new Double(numerator/denominator).doubleValue();
-					counter++;
-					
-				}else{//control samples
-					//separates values that come represented as a methylation ratio
-					String[] subToken=token.split("/");
-					double numerator=new Double(subToken[0]).doubleValue();
-					double denominator=new Double(subToken[1]).doubleValue();
-					controlAverage+=new Double(numerator/denominator).doubleValue();					
-				}			
-			}
-			
-			treatmentAverage=treatmentAverage/nTreatmentSamples;
-			controlAverage=controlAverage/nControlSamples;
-			
-			double log2FC=Math.log(treatmentAverage/controlAverage)/Math.log(2);
-			outTemp.print(treatmentAverage+"\t");
-			outTemp.print(controlAverage+"\t");
-			outTemp.print(log2FC+"\t");
-			*/
-			/*##################################
-			 * END of type (1) calculation
-			 */
-			
-			
-			/*(2) another different way:
-			 * for each condition, it sums the numerator values of the samples belonging to it and computes
-			 * the average of the numerator values.
-			 * It then sums the denominator values of the samples of the same condition and computes the average
-			 * of the denominator values.
-			 * treatment numerator=(sample1 numerator + sample 2 numerator) / 2
-			 * treatment denominator=(sample1 denominator + sample 2 denominator) / 2
-			 * treatment average=treatment numerator/treatment denominator
-			 * 
-			 * A similar calculaton is done for the control samples. Finally, it computes the
-			 * log2FC (treatment average / control average)
-			 * This second way is implemented below
-			 */
-
-			// SECOND WAY USED !!!
-			//calculates average values of methylation for treatment and control samples
-			double treatmentNumerator = 0.0;
-			double treatmentDenominator = 0.0;
-			double controlNumerator = 0.0;
-			double controlDenominator = 0.0;
-			treatmentAverage = 0.0;
-			controlAverage = 0.0;
-			counter = 0;
-
-			//calculates average values of methylation for treatment and control samples
-			for (String token : tokens) {// for each methylation ratio
-
-				//treatment samples
-				if (counter < nTreatmentSamples) {
-					//separates values that come represented as a methylation ratio
-					String[] subToken = token.split("/");
-					treatmentNumerator += new Double(subToken[0]).doubleValue();
-					treatmentDenominator += new Double(subToken[1]).doubleValue();
-					counter++;
-
-				} else {//control samples
-					//separates values that come represented as a methylation ratio
-					String[] subToken = token.split("/");
-					controlNumerator += new Double(subToken[0]).doubleValue();
-					controlDenominator += new Double(subToken[1]).doubleValue();
-				}
-			}
-			//computes averages
-			treatmentNumerator = new Double(treatmentNumerator / nTreatmentSamples).doubleValue();
-			treatmentDenominator = new Double(treatmentDenominator / nTreatmentSamples).doubleValue();
-			controlNumerator = new Double(controlNumerator / nControlSamples).doubleValue();
-			controlDenominator = new Double(controlDenominator / nControlSamples).doubleValue();
-
-			treatmentAverage = treatmentNumerator / treatmentDenominator;
-			controlAverage = controlNumerator / controlDenominator;
+			regionLine.setLength(0);
+			regionLine.append(interval.getData()).append("\t").append(interval.getSequence()).append("\t")
+					.append(interval.getStart()).append("\t").append(interval.getStop()).append("\t");
+			regionCount.appendTo(regionLine);
+			regionCount.appendAverages(nTreatmentSamples, nControlSamples, regionLine);
 
-			double log2FC = Math.log(treatmentAverage / controlAverage) / Math.log(2);
-			outTemp.print(treatmentAverage + "\t");
-			outTemp.print(controlAverage + "\t");
-			outTemp.print(log2FC + "\t");
-			/*##################################
-			 * END of type (2) calculation
-			 */
+			double pValue = this.computePValue(regionCount, fitter);
 
-
-			double pValue = this.computePValue(regionCount);
-			pValues.add(pValue);
-
-			outTemp.println(pValue);
+			regionLine.append(pValue);
+			out.writeRow(regionLine, pValue);
 		}
-		// ENDS modification by Osvaldo
-		//****************************************************//
 
 
 		logger.info("Writing output file with adjusted p-values");
-		createOutputFileWithAdjustedPValues(tempFile, pValues);
+		out.close();
 		logger.info("DMR analysis OK");
 	}
 
@@ -249,60 +127,163 @@ public class DifferentialMethylationAnalysis {
 																			 List<Sample> treatmentSamples,
 																			 List<Sample> controlSamples, File bedFile)
 			throws IOException, FileNotFoundException {
-		Map<Interval, MethylationCounts> regionCounts = new HashMap<>();
 		IntervalsIndex bedIndex = IntervalsIndexFactory.createIntervalsIndex(bedFile.getName(), bedFile, 1, 2, 3, 1,
 				false);
 
-		int treatmentIndex = 0;
+		BufferedReader[] sampleFiles = new BufferedReader[treatmentSamples.size() + controlSamples.size()];
+		int i = 0;
 		for (Sample s : treatmentSamples) {
-			Scanner scanner = new Scanner(ma.getMethylcytosinesFile(reference, s));
-			while (scanner.hasNextLine()) {
-				String line = scanner.nextLine();
+			sampleFiles[i++] = new BufferedReader(new FileReader(ma.getMethylcytosinesFile(reference, s)));
+		}
+		for (Sample s : controlSamples) {
+			sampleFiles[i++] = new BufferedReader(new FileReader(ma.getMethylcytosinesFile(reference, s)));
+		}
+
+		// all the samples are merged in a single pass and swept through the regions of each sequence
+		List<String> sequenceNames = reference.getSequenceNames();
+		GPFilesReader reader = new GPFilesReader(sequenceNames, sampleFiles);
+		RegionSweep sweep = new RegionSweep(bedIndex, treatmentSamples.size(), controlSamples.size());
+		MethylationCallView call = new MethylationCallView();
+
+		try {
+			String line = null;
+			while ((line = reader.readLine()) != null) {
 				if (line.startsWith("#")) continue;
-				MethylationCall call = MethylationCall.unmarshall(line);
+				call.reset(line);
 
 				if (!this.contexts.contains(call.getContext())) continue;
 
-				for (Interval interval : asIterable(bedIndex.getOverlappingIntervals(call.getContig(), (int) call
-						.getPosition(), (int) call.getPosition()))) {
-					MethylationCounts counts = regionCounts.get(interval);
-					if (counts == null) {
-						counts = new MethylationCounts(treatmentSamples.size(), controlSamples.size());
-						regionCounts.put(interval, counts);
-					}
-					counts.incrementTreatmentCytosines(treatmentIndex, call.getCytosines());
-					counts.incrementTreatmentDepth(treatmentIndex, call.getCTdepth());
+				sweep.add(reader.getLastLineReaderIndex(), call);
+			}
+		} finally {
+			for (BufferedReader sampleFile : sampleFiles) {
+				sampleFile.close();
+			}
+		}
+
+		return sweep.getRegionCounts(sequenceNames);
+	}
+
+	/**
+	 * Accumulates the calls of position-sorted files into the regions overlapping them. The regions of each
+	 * sequence are sorted by start once, and the sweep keeps the ones overlapping the current position active.
+	 */
+	private static class RegionSweep {
+		private final IntervalsIndex bedIndex;
+		private final int nTreatmentSamples;
+		private final int nControlSamples;
+
+		private final Map<String, Interval[]> regionsBySequence = new HashMap<>();
+		private final Map<String, MethylationCounts[]> countsBySequence = new HashMap<>();
+
+		private String currentSequence;
+		private Interval[] regions;
+		private MethylationCounts[] counts;
+		private long lastPosition;
+		private int nextRegion;
+		private int[] active = new int[16];
+		private int activeCount;
+
+		public RegionSweep(IntervalsIndex bedIndex, int nTreatmentSamples, int nControlSamples) {
+			this.bedIndex = bedIndex;
+			this.nTreatmentSamples = nTreatmentSamples;
+			this.nControlSamples = nControlSamples;
+		}
+
+		public void add(int sampleIndex, MethylationCall call) {
+			long position = call.getPosition();
+			if (currentSequence == null || !currentSequence.equals(call.getContig())) {
+				startSequence(call.getContig());
+			} else if (position < lastPosition) {
+				// not sorted, start again this sequence
+				nextRegion = 0;
+				activeCount = 0;
+			}
+			lastPosition = position;
+
+			while (nextRegion < regions.length && regions[nextRegion].getStart() <= position) {
+				if (activeCount == active.length) {
+					active = Arrays.copyOf(active, active.length * 2);
 				}
+				active[activeCount++] = nextRegion++;
+			}
+
+			for (int i = 0; i < activeCount; ) {
+				int region = active[i];
+				if (regions[region].getStop() < position) {
+					active[i] = active[--activeCount];
+					continue;
+				}
+				MethylationCounts regionCounts = counts[region];
+				if (regionCounts == null) {
+					regionCounts = new MethylationCounts(nTreatmentSamples, nControlSamples);
+					counts[region] = regionCounts;
+				}
+				if (sampleIndex < nTreatmentSamples) {
+					regionCounts.incrementTreatmentCytosines(sampleIndex, call.getCytosines());
+					regionCounts.incrementTreatmentDepth(sampleIndex, call.getCTdepth());
+				} else {
+					regionCounts.incrementControlCytosines(sampleIndex - nTreatmentSamples, call.getCytosines());
+					regionCounts.incrementControlDepth(sampleIndex - nTreatmentSamples, call.getCTdepth());
+				}
+				i++;
 			}
-			scanner.close();
-			treatmentIndex++;
 		}
 
-		int controlIndex = 0;
-		for (Sample s : controlSamples) {
-			Scanner scanner = new Scanner(ma.getMethylcytosinesFile(reference, s));
-			while (scanner.hasNextLine()) {
-				String line = scanner.nextLine();
-				if (line.startsWith("#")) continue;
-				MethylationCall call = MethylationCall.unmarshall(line);
+		private void startSequence(String sequence) {
+			currentSequence = sequence;
+			regions = regionsBySequence.get(sequence);
+			if (regions == null) {
+				regions = getSortedRegions(sequence);
+				regionsBySequence.put(sequence, regions);
+				countsBySequence.put(sequence, new MethylationCounts[regions.length]);
+			}
+			counts = countsBySequence.get(sequence);
+			lastPosition = 0;
+			nextRegion = 0;
+			activeCount = 0;
+		}
 
-				if (!this.contexts.contains(call.getContext())) continue;
+		private Interval[] getSortedRegions(String sequence) {
+			List<Interval> sequenceRegions = new ArrayList<>();
+			for (Interval interval : asIterable(bedIndex.getOverlappingIntervals(sequence, 1, Integer.MAX_VALUE))) {
+				sequenceRegions.add(interval);
+			}
+			Interval[] sorted = sequenceRegions.toArray(new Interval[sequenceRegions.size()]);
+			Arrays.sort(sorted, new Comparator<Interval>() {
+				@Override
+				public int compare(Interval o1, Interval o2) {
+					return Integer.compare(o1.getStart(), o2.getStart());
+				}
+			});
+			return sorted;
+		}
+
+		/**
+		 * Returns the regions with at least one call, in the order of the sequences and then by start.
+		 */
+		public Map<Interval, MethylationCounts> getRegionCounts(List<String> sequenceNames) {
+			List<String> sequences = new ArrayList<>(sequenceNames);
+			for (String sequence : regionsBySequence.keySet()) {
+				if (!sequences.contains(sequence)) {
+					sequences.add(sequence);
+				}
+			}
+
+			Map<Interval, MethylationCounts> regionCounts = new LinkedHashMap<>();
+			for (String sequence : sequences) {
+				Interval[] sequenceRegions = regionsBySequence.get(sequence);
+				if (sequenceRegions == null) continue;
 
-				for (Interval interval : asIterable(bedIndex.getOverlappingIntervals(call.getContig(), (int) call
-						.getPosition(), (int) call.getPosition()))) {
-					MethylationCounts counts = regionCounts.get(interval);
-					if (counts == null) {
-						counts = new MethylationCounts(treatmentSamples.size(), controlSamples.size());
-						regionCounts.put(interval, counts);
+				MethylationCounts[] sequenceCounts = countsBySequence.get(sequence);
+				for (int i = 0; i < sequenceRegions.length; i++) {
+					if (sequenceCounts[i] != null) {
+						regionCounts.put(sequenceRegions[i], sequenceCounts[i]);
 					}
-					counts.incrementControlCytosines(controlIndex, call.getCytosines());
-					counts.incrementControlDepth(controlIndex, call.getCTdepth());
 				}
 			}
-			scanner.close();
-			controlIndex++;
+			return regionCounts;
 		}
-		return regionCounts;
 	}
 
 
@@ -328,12 +309,8 @@ public class DifferentialMethylationAnalysis {
 		File outputFile = getDifferentiallyMethylatedCytosinesFile(reference, treatmentSamples, controlSamples);
 		this.outputFile = outputFile;
 
-		File tempFile = new File(outputFile.getAbsolutePath() + ".temp");
-		tempFile.deleteOnExit();
-
-		PrintStream outTemp = new PrintStream(tempFile);
-
-		writeOutputHeadersByBase(reference, treatmentSamples, controlSamples, outTemp);
+		AdjustedPValueTableWriter out = new AdjustedPValueTableWriter(outputFile);
+		writeOutputHeadersByBase(reference, treatmentSamples, controlSamples, out);
 
 		BufferedReader[] sampleFiles = new BufferedReader[treatmentSamples.size() + controlSamples.size()];
 		int i = 0;
@@ -352,52 +329,62 @@ public class DifferentialMethylationAnalysis {
 		long currentPos = -1;
 		Map<Sample, MethylationCall> currentBaseCalls = new HashMap<>();
 
+		// one view per sample holds its call at the current base, the line is parsed in a spare one
+		MethylationCallView[] sampleCalls = new MethylationCallView[sampleFiles.length];
+		for (int j = 0; j < sampleCalls.length; j++) {
+			sampleCalls[j] = new MethylationCallView();
+		}
+		MethylationCallView call = new MethylationCallView();
+
 		String line = null;
 
-		List<Double> pValues = new LinkedList<>();
+		DMCWriter dmcWriter = new DMCWriter(treatmentSamples.size(), controlSamples.size(), out);
 
-		logger.info("Computing DMCs...");
+		logger.info("Computing DMCs" + (threads > 1 ? " with " + threads + " threads..." : "..."));
 		while ((line = reader.readLine()) != null) {
 			if (line.startsWith("#"))
 				continue;
 
-			MethylationCall call = MethylationCall.unmarshall(line);
+			call.reset(line);
 			if (!this.contexts.contains(call.getContext())) {
 				continue;
 			}
-			String[] tokens = line.split("\t");
-			String lineSeq = tokens[0];
-			long linePos = Long.parseLong(tokens[1]);
+			long linePos = call.getPosition();
 
-			if (currentSeq != null && (!lineSeq.equals(currentSeq) || linePos != currentPos)) {
-				processBase(currentSeq, currentPos, currentContext, treatmentSamples, controlSamples, currentBaseCalls,
-						pValues, outTemp);
+			if (currentSeq != null && (!call.isContig(currentSeq) || linePos != currentPos)) {
+				dmcWriter.add(new Site(currentSeq, currentPos, currentContext, computeMethylationCounts(treatmentSamples,
+						controlSamples, currentBaseCalls)));
 
 				currentBaseCalls.clear();
 			}
 
-			currentSeq = lineSeq;
+			currentSeq = call.getContig();
 			currentPos = linePos;
 			currentContext = call.getContext();
 
+			int sampleIndex = reader.getLastLineReaderIndex();
+			MethylationCallView spare = sampleCalls[sampleIndex];
+			sampleCalls[sampleIndex] = call;
+			call = spare;
+
 			Sample lineSample =
 					getSample(treatmentSamples, controlSamples,
-							reader.getLastLineReaderIndex());
-			currentBaseCalls.put(lineSample, call);
+							sampleIndex);
+			currentBaseCalls.put(lineSample, sampleCalls[sampleIndex]);
 
 
 		}
 
 		//process the last base
 		if (currentSeq != null) {
-			processBase(currentSeq, currentPos, currentContext, treatmentSamples, controlSamples, currentBaseCalls,
-					pValues, outTemp);
+			dmcWriter.add(new Site(currentSeq, currentPos, currentContext, computeMethylationCounts(treatmentSamples,
+					controlSamples, currentBaseCalls)));
 		}
-		outTemp.close();
+		dmcWriter.close();
 
 
 		logger.info("Writing output file with adjusted p-values");
-		createOutputFileWithAdjustedPValues(tempFile, pValues);
+		out.close();
 		logger.info("DMC analysis OK");
 	}
 
@@ -408,60 +395,45 @@ public class DifferentialMethylationAnalysis {
 		return outputFile;
 	}
 
-	private void createOutputFileWithAdjustedPValues(File tempFile, List<Double> pValues) throws
-			FileNotFoundException {
-		String line;
-		//adjust p-values
-		double[] qValues = adjustPValues(pValues);
-
-		//postprocess file adding q-values
-		PrintStream out = new PrintStream(this.outputFile);
-
-		Scanner scanner = new Scanner(tempFile);
-		int lineNo = 0;
-		while (scanner.hasNextLine()) {
-			line = scanner.nextLine();
-			if (!line.startsWith("#")) {
-				out.println(line + "\t" + qValues[lineNo++]);
-			} else {
-				out.println(line);
-			}
-		}
-
-		out.close();
-	}
-
 	private void writeOutputHeadersByBase(Reference reference, List<Sample> treatmentSamples,
-										  List<Sample> controlSamples, PrintStream outTemp)
-			throws FileNotFoundException {
-		outTemp.print("#SEQ\tPOS\tCONTEXT");
+										  List<Sample> controlSamples, AdjustedPValueTableWriter out)
+			throws IOException {
+		StringBuilder header = new StringBuilder("#SEQ\tPOS\tCONTEXT");
 
-		writeSampleNames(treatmentSamples, controlSamples, outTemp);
+		writeSampleNames(treatmentSamples, controlSamples, header);
 
 		//modified by Osvaldo 11Apr2017
 		//outTemp.println("\tp-value\tq-value");
-		outTemp.println("\ttreatment average\tcontrol average\tlog2FC(treament/control)\tp-value\tq-value");
+		header.append("\ttreatment average\tcontrol average\tlog2FC(treament/control)\tp-value\tq-value");
+		out.writeHeader(header);
 
 	}
 
 	private void writeOutputHeadersByRegion(Reference reference, List<Sample> treatmentSamples,
-											List<Sample> controlSamples, PrintStream outTemp)
-			throws FileNotFoundException {
-		outTemp.print("#region\tsequence\tstart\tstop");
+											List<Sample> controlSamples, AdjustedPValueTableWriter out)
+			throws IOException {
+		StringBuilder header = new StringBuilder("#region\tsequence\tstart\tstop");
 
-		writeSampleNames(treatmentSamples, controlSamples, outTemp);
+		writeSampleNames(treatmentSamples, controlSamples, header);
 
 		//modified by Osvaldo 9Apr2017
 		//outTemp.println("\tp-value\tq-value");
-		outTemp.println("\ttreatment average\tcontrol average\tlog2FC(treament/control)\tp-value\tq-value");
+		header.append("\ttreatment average\tcontrol average\tlog2FC(treament/control)\tp-value\tq-value");
+		out.writeHeader(header);
 	}
 
 	public void writeSampleNames(List<Sample> treatmentSamples, List<Sample> controlSamples, PrintStream outTemp) {
+		StringBuilder names = new StringBuilder();
+		writeSampleNames(treatmentSamples, controlSamples, names);
+		outTemp.print(names);
+	}
+
+	private void writeSampleNames(List<Sample> treatmentSamples, List<Sample> controlSamples, StringBuilder out) {
 		for (Sample s : treatmentSamples) {
-			outTemp.print("\t" + s.getName() + " (treatment)");
+			out.append("\t").append(s.getName()).append(" (treatment)");
 		}
 		for (Sample s : controlSamples) {
-			outTemp.print("\t" + s.getName() + " (control)");
+			out.append("\t").append(s.getName()).append(" (control)");
 		}
 	}
 
@@ -482,186 +454,279 @@ public class DifferentialMethylationAnalysis {
 		return baseOutputFileName;
 	}
 
-	private double[] adjustPValues(List<Double> pValues) {
-		double[] pValuesArray = ArrayUtils.toPrimitive(pValues.toArray(new Double[0]));
+	/**
+	 * A base with calls in at least one sample, waiting to be tested.
+	 */
+	private static class Site {
+		private final String sequence;
+		private final long position;
+		private final Context context;
+		private final MethylationCounts counts;
+
+		public Site(String sequence, long position, Context context, MethylationCounts counts) {
+			this.sequence = sequence;
+			this.position = position;
+			this.context = context;
+			this.counts = counts;
+		}
+	}
 
-		double[] qValues = null;
-		FDRCorrection correction = new FDRCorrection();
+	private static class SiteBatch {
+		private final List<Site> sites = new ArrayList<>(SITES_PER_BATCH);
+		private final StringBuilder output = new StringBuilder();
+		private final int[] lineEnds = new int[SITES_PER_BATCH];
+		private double[] pValues;
+	}
 
-		try {
-			qValues = correction.correct(pValuesArray);
-		} catch (InterruptedException e) {
-			//should not see this
-			throw new RuntimeException(e);
+	/**
+	 * Tests the sites in batches of consecutive bases on a fork-join pool and writes them, with their p-values, in
+	 * their original order. With one thread the batches are tested in the calling thread.
+	 */
+	private class DMCWriter {
+		private final int nTreatmentSamples;
+		private final int nControlSamples;
+		private final AdjustedPValueTableWriter out;
+
+		private final ForkJoinPool pool;
+		private final Deque<Future<SiteBatch>> pending = new ArrayDeque<>();
+		private SiteBatch batch = new SiteBatch();
+
+		public DMCWriter(int nTreatmentSamples, int nControlSamples, AdjustedPValueTableWriter out) {
+			this.nTreatmentSamples = nTreatmentSamples;
+			this.nControlSamples = nControlSamples;
+			this.out = out;
+			this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
 		}
-		return qValues;
-	}
 
-	private void processBase(String currentSeq, long currentPos, Context currentContext, List<Sample> treatmentSamples,
-							 List<Sample> controlSamples, Map<Sample, MethylationCall> currentBaseCalls, List<Double>
-									 pValues, PrintStream outTemp) {
-		outTemp.print(currentSeq + "\t" + currentPos + "\t" + currentContext + "\t");
-		MethylationCounts counts = computeMethylationCounts(treatmentSamples, controlSamples, currentBaseCalls);
-		outTemp.print(counts.toString());
-
-		//****************************************************//
-		//Added by Osvaldo, 11Apr2017
-		//To include average methylation values for treatment and control, and log2FC(average treatment/average
-		// control)
-		//SECOND WAY USED, as in analyzeDifferentialMethylationByRegions()
-		//calculates average values of methylation for treatment and control samples
-		int nTreatmentSamples = treatmentSamples.size();
-		int nControlSamples = controlSamples.size();
-		double treatmentNumerator = 0.0;
-		double treatmentDenominator = 0.0;
-		double controlNumerator = 0.0;
-		double controlDenominator = 0.0;
-		double treatmentAverage = 0.0;
-		double controlAverage = 0.0;
-		int counter = 0;
-		String[] tokens = counts.toString().split("\t");
-
-		//calculates average values of methylation for treatment and control samples
-		for (String token : tokens) {// for each methylation ratio
-
-			//treatment samples
-			if (counter < nTreatmentSamples) {
-				//separates values that come represented as a methylation ratio
-				String[] subToken = token.split("/");
-				treatmentNumerator += new Double(subToken[0]).doubleValue();
-				treatmentDenominator += new Double(subToken[1]).doubleValue();
-				counter++;
-
-			} else {//control samples
-				//separates values that come represented as a methylation ratio
-				String[] subToken = token.split("/");
-				controlNumerator += new Double(subToken[0]).doubleValue();
-				controlDenominator += new Double(subToken[1]).doubleValue();
+		public void add(Site site) {
+			batch.sites.add(site);
+			if (batch.sites.size() == SITES_PER_BATCH) {
+				submit(batch);
+				batch = new SiteBatch();
 			}
 		}
-		//computes averages
-		treatmentNumerator = new Double(treatmentNumerator / nTreatmentSamples).doubleValue();
-		treatmentDenominator = new Double(treatmentDenominator / nTreatmentSamples).doubleValue();
-		controlNumerator = new Double(controlNumerator / nControlSamples).doubleValue();
-		controlDenominator = new Double(controlDenominator / nControlSamples).doubleValue();
-
-		treatmentAverage = treatmentNumerator / treatmentDenominator;
-		controlAverage = controlNumerator / controlDenominator;
-
-		double log2FC = Math.log(treatmentAverage / controlAverage) / Math.log(2);
-		outTemp.print(treatmentAverage + "\t");
-		outTemp.print(controlAverage + "\t");
-		outTemp.print(log2FC + "\t");
-		/*##################################
-		 * END of type (2) calculation
-		 */
-
-		double pValue = computePValue(counts);
-		outTemp.print(pValue);
-		outTemp.println();
 
-		pValues.add(pValue);
-
-	}
+		public void close() {
+			try {
+				if (!batch.sites.isEmpty()) {
+					submit(batch);
+				}
+				while (!pending.isEmpty()) {
+					write(pending.poll().get());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			} finally {
+				if (pool != null) {
+					pool.shutdownNow();
+				}
+			}
+		}
 
+		private void submit(final SiteBatch toProcess) {
+			if (pool == null) {
+				write(process(toProcess));
+				return;
+			}
+			pending.add(pool.submit(new Callable<SiteBatch>() {
+				@Override
+				public SiteBatch call() throws Exception {
+					return process(toProcess);
+				}
+			}));
+			// keep a bounded number of batches in memory
+			try {
+				while (pending.size() > 2 * threads) {
+					write(pending.poll().get());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
 
-	private class MethylationCounts {
-		List<Integer> treatmentCytosines = new ArrayList<>();
-		List<Integer> treatmentDepth = new ArrayList<>();
-		List<Integer> controlCytosines = new ArrayList<>();
-		List<Integer> controlDepth = new ArrayList<>();
+		private SiteBatch process(SiteBatch toProcess) {
+			int size = toProcess.sites.size();
+			int[][] treatmentCytosines = new int[size][];
+			int[][] treatmentDepth = new int[size][];
+			int[][] controlCytosines = new int[size][];
+			int[][] controlDepth = new int[size][];
+			for (int i = 0; i < size; i++) {
+				MethylationCounts counts = toProcess.sites.get(i).counts;
+				treatmentCytosines[i] = counts.treatmentCytosines;
+				treatmentDepth[i] = counts.treatmentDepth;
+				controlCytosines[i] = counts.controlCytosines;
+				controlDepth[i] = counts.controlDepth;
+			}
+			toProcess.pValues = new BetaBinomialFitter().getPvalues(treatmentCytosines, treatmentDepth,
+					controlCytosines, controlDepth);
 
-		public MethylationCounts(int treatmentSize, int controlSize) {
-			for (int i = 0; i < treatmentSize; i++) {
-				treatmentCytosines.add(0);
-				treatmentDepth.add(0);
+			for (int i = 0; i < size; i++) {
+				processBase(toProcess.sites.get(i), nTreatmentSamples, nControlSamples, toProcess.pValues[i],
+						toProcess.output);
+				toProcess.lineEnds[i] = toProcess.output.length();
 			}
-			for (int i = 0; i < controlSize; i++) {
-				controlCytosines.add(0);
-				controlDepth.add(0);
+			return toProcess;
+		}
+
+		private void write(SiteBatch processed) {
+			try {
+				int start = 0;
+				for (int i = 0; i < processed.sites.size(); i++) {
+					out.writeRow(processed.output, start, processed.lineEnds[i], processed.pValues[i]);
+					start = processed.lineEnds[i];
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
 			}
 		}
+	}
+
+	private void processBase(Site site, int nTreatmentSamples, int nControlSamples, double pValue,
+							 StringBuilder out) {
+		out.append(site.sequence).append("\t").append(site.position).append("\t").append(site.context).append("\t");
+		MethylationCounts counts = site.counts;
+		counts.appendTo(out);
+		counts.appendAverages(nTreatmentSamples, nControlSamples, out);
+
+		out.append(pValue);
+	}
+
+
+	/**
+	 * Methylated cytosines and depth of each sample in a base or a region. In a base, only the samples with a call are
+	 * present.
+	 */
+	private static class MethylationCounts {
+		private final int[] treatmentCytosines;
+		private final int[] treatmentDepth;
+		private final int[] controlCytosines;
+		private final int[] controlDepth;
 
-		public MethylationCounts(List<Integer> treatmentCytosines, List<Integer> treatmentDepth,
-								 List<Integer> controlCytosines, List<Integer> controlDepth) {
-			super();
-			this.treatmentCytosines = treatmentCytosines;
-			this.treatmentDepth = treatmentDepth;
-			this.controlCytosines = controlCytosines;
-			this.controlDepth = controlDepth;
+		public MethylationCounts(int treatmentSize, int controlSize) {
+			this.treatmentCytosines = new int[treatmentSize];
+			this.treatmentDepth = new int[treatmentSize];
+			this.controlCytosines = new int[controlSize];
+			this.controlDepth = new int[controlSize];
 		}
 
 		public void incrementTreatmentCytosines(int sampleIndex, int increment) {
-			this.treatmentCytosines.set(sampleIndex, this.treatmentCytosines.get(sampleIndex) + increment);
+			this.treatmentCytosines[sampleIndex] += increment;
 		}
 
 		public void incrementTreatmentDepth(int sampleIndex, int increment) {
-			this.treatmentDepth.set(sampleIndex, this.treatmentDepth.get(sampleIndex) + increment);
+			this.treatmentDepth[sampleIndex] += increment;
 		}
 
 		public void incrementControlCytosines(int sampleIndex, int increment) {
-			this.controlCytosines.set(sampleIndex, this.controlCytosines.get(sampleIndex) + increment);
+			this.controlCytosines[sampleIndex] += increment;
 		}
 
 		public void incrementControlDepth(int sampleIndex, int increment) {
-			this.controlDepth.set(sampleIndex, this.controlDepth.get(sampleIndex) + increment);
+			this.controlDepth[sampleIndex] += increment;
 		}
 
-		@Override
-		public String toString() {
-			StringBuilder methylationCountsSB = new StringBuilder();
-			for (int i = 0; i < treatmentCytosines.size(); i++) {
-				methylationCountsSB.append(treatmentCytosines.get(i) + "/" + treatmentDepth.get(i) + "\t");
+		public void appendTo(StringBuilder sb) {
+			for (int i = 0; i < treatmentCytosines.length; i++) {
+				sb.append(treatmentCytosines[i]).append('/').append(treatmentDepth[i]).append('\t');
 			}
+			for (int i = 0; i < controlCytosines.length; i++) {
+				sb.append(controlCytosines[i]).append('/').append(controlDepth[i]).append('\t');
+			}
+		}
 
-			for (int i = 0; i < controlCytosines.size(); i++) {
-				methylationCountsSB.append(controlCytosines.get(i) + "/" + controlDepth.get(i) + "\t");
+		/**
+		 * Appends the treatment average, the control average and the log2FC(treatment/control), where each average
+		 * is the mean of the methylated cytosines divided by the mean depth of the samples of its condition. As
+		 * always, the first nTreatmentSamples counts present are taken as treatment ones.
+		 */
+		public void appendAverages(int nTreatmentSamples, int nControlSamples, StringBuilder sb) {
+			long treatmentNumerator = 0;
+			long treatmentDenominator = 0;
+			long controlNumerator = 0;
+			long controlDenominator = 0;
+
+			int counter = 0;
+			for (int i = 0; i < treatmentCytosines.length; i++, counter++) {
+				if (counter < nTreatmentSamples) {
+					treatmentNumerator += treatmentCytosines[i];
+					treatmentDenominator += treatmentDepth[i];
+				} else {
+					controlNumerator += treatmentCytosines[i];
+					controlDenominator += treatmentDepth[i];
+				}
+			}
+			for (int i = 0; i < controlCytosines.length; i++, counter++) {
+				if (counter < nTreatmentSamples) {
+					treatmentNumerator += controlCytosines[i];
+					treatmentDenominator += controlDepth[i];
+				} else {
+					controlNumerator += controlCytosines[i];
+					controlDenominator += controlDepth[i];
+				}
 			}
 
-			return methylationCountsSB.toString();
-		}
+			double treatmentAverage = ((double) treatmentNumerator / nTreatmentSamples) /
+					((double) treatmentDenominator / nTreatmentSamples);
+			double controlAverage = ((double) controlNumerator / nControlSamples) /
+					((double) controlDenominator / nControlSamples);
 
+			double log2FC = Math.log(treatmentAverage / controlAverage) / Math.log(2);
+			sb.append(treatmentAverage).append('\t');
+			sb.append(controlAverage).append('\t');
+			sb.append(log2FC).append('\t');
+		}
 
+		@Override
+		public String toString() {
+			StringBuilder methylationCountsSB = new StringBuilder();
+			appendTo(methylationCountsSB);
+			return methylationCountsSB.toString();
+		}
 	}
 
 	private MethylationCounts computeMethylationCounts(List<Sample> treatmentSamples,
 													   List<Sample> controlSamples, Map<Sample, MethylationCall>
 															   baseCalls) {
-		List<Integer> treatmentCytosines = new ArrayList<>();
-		List<Integer> treatmentDepth = new ArrayList<>();
-		List<Integer> controlCytosines = new ArrayList<>();
-		List<Integer> controlDepth = new ArrayList<>();
+		int treatmentCalls = 0;
+		for (Sample sample : treatmentSamples) {
+			if (baseCalls.containsKey(sample)) {
+				treatmentCalls++;
+			}
+		}
 
+		MethylationCounts counts = new MethylationCounts(treatmentCalls, baseCalls.size() - treatmentCalls);
 
+		int i = 0;
 		for (Sample sample : treatmentSamples) {
-			if (baseCalls.containsKey(sample)) {
-				treatmentCytosines.add(baseCalls.get(sample).getCytosines());
-				treatmentDepth.add(baseCalls.get(sample).getCTdepth());
+			MethylationCall call = baseCalls.get(sample);
+			if (call != null) {
+				counts.treatmentCytosines[i] = call.getCytosines();
+				counts.treatmentDepth[i++] = call.getCTdepth();
 			}
 		}
 
+		i = 0;
 		for (Sample sample : controlSamples) {
-			if (baseCalls.containsKey(sample)) {
-				controlCytosines.add(baseCalls.get(sample).getCytosines());
-				controlDepth.add(baseCalls.get(sample).getCTdepth());
+			MethylationCall call = baseCalls.get(sample);
+			if (call != null) {
+				counts.controlCytosines[i] = call.getCytosines();
+				counts.controlDepth[i++] = call.getCTdepth();
 			}
 		}
 
-		return new MethylationCounts(treatmentCytosines, treatmentDepth, controlCytosines, controlDepth);
+		return counts;
 	}
 
-	private double computePValue(MethylationCounts counts) {
-
-		int[] treatmentCytosinesArray = ArrayUtils.toPrimitive(counts.treatmentCytosines.toArray(new Integer[]{}));
-		int[] treatmentDepthArray = ArrayUtils.toPrimitive(counts.treatmentDepth.toArray(new Integer[]{}));
-		int[] controlCytosinesArray = ArrayUtils.toPrimitive(counts.controlCytosines.toArray(new Integer[]{}));
-		int[] controlDepthArray = ArrayUtils.toPrimitive(counts.controlDepth.toArray(new Integer[]{}));
-
-		BetaBinomialDifferentialMethylationTest test = new BetaBinomialDifferentialMethylationTest();
-
+	private double computePValue(MethylationCounts counts, BetaBinomialFitter fitter) {
 		try {
-			return test.getPvalue(treatmentCytosinesArray, treatmentDepthArray, controlCytosinesArray,
-					controlDepthArray);
+			return fitter.getPvalue(counts.treatmentCytosines, counts.treatmentDepth, counts.controlCytosines,
+					counts.controlDepth);
 
 		} catch (Exception e) {
 			return Double.NaN;
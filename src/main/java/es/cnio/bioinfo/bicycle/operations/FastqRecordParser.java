@@ -0,0 +1,153 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.operations;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Parses FASTQ records from a stream without decoding them. The records are read into a buffer and each one is
+ * given as the start and end of its four lines in the buffer array, which are valid until the next record is parsed.
+ * <p>
+ * Lines end with \n or \r\n, and the last one can have no line break. An incomplete record at the end of the stream
+ * is ignored.
+ */
+class FastqRecordParser {
+
+	public static final int HEADER = 0;
+	public static final int SEQUENCE = 1;
+	public static final int PLUS = 2;
+	public static final int QUALITY = 3;
+
+	private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+	private final InputStream in;
+	// position is the start of the next record and limit the end of the bytes read
+	private ByteBuffer buffer;
+	private boolean eof = false;
+
+	private final int[] starts = new int[4];
+	private final int[] ends = new int[4];
+
+	public FastqRecordParser(InputStream in) {
+		this(in, DEFAULT_BUFFER_SIZE);
+	}
+
+	FastqRecordParser(InputStream in, int bufferSize) {
+		this.in = in;
+		this.buffer = ByteBuffer.allocate(bufferSize);
+		this.buffer.limit(0);
+	}
+
+	/**
+	 * Moves to the next record, returning false if there are no more records.
+	 */
+	public boolean next() throws IOException {
+		byte[] data = buffer.array();
+		int lineStart = buffer.position();
+		int scan = lineStart;
+		int line = 0;
+		while (line < 4) {
+			if (scan == buffer.limit()) {
+				if (eof) {
+					if (scan == lineStart) {
+						return false;
+					}
+					// the last line has no line break
+					setLine(line++, lineStart, scan);
+					lineStart = scan;
+					continue;
+				}
+
+				int shift = fill();
+				data = buffer.array();
+				lineStart -= shift;
+				scan -= shift;
+				for (int i = 0; i < line; i++) {
+					starts[i] -= shift;
+					ends[i] -= shift;
+				}
+			} else {
+				if (data[scan] == '\n') {
+					setLine(line++, lineStart, scan);
+					lineStart = scan + 1;
+				}
+				scan++;
+			}
+		}
+		buffer.position(lineStart);
+		return true;
+	}
+
+	/**
+	 * Moves the bytes after the current record to the start of the buffer, growing it if they fill it, and reads
+	 * more. Returns how many positions the bytes were moved.
+	 */
+	private int fill() throws IOException {
+		int shift = buffer.position();
+		if (shift == 0 && buffer.limit() == buffer.capacity()) {
+			// a record longer than the buffer
+			ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+			larger.put(buffer);
+			buffer = larger;
+		} else {
+			buffer.compact();
+		}
+
+		int read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+		if (read == -1) {
+			eof = true;
+		} else {
+			buffer.position(buffer.position() + read);
+		}
+		buffer.flip();
+		return shift;
+	}
+
+	private void setLine(int line, int start, int end) {
+		starts[line] = start;
+		ends[line] = end > start && buffer.array()[end - 1] == '\r' ? end - 1 : end;
+	}
+
+	/**
+	 * The array with the bytes of the current record.
+	 */
+	public byte[] array() {
+		return buffer.array();
+	}
+
+	public int start(int line) {
+		return starts[line];
+	}
+
+	/**
+	 * The end of the line, exclusive and without its line break.
+	 */
+	public int end(int line) {
+		return ends[line];
+	}
+
+	public String getLine(int line) {
+		return new String(buffer.array(), starts[line], ends[line] - starts[line]);
+	}
+}
@@ -0,0 +1,157 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.operations;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded ring of lines with a single producer and a single consumer and no locks. The producer adds lines with
+ * {@link #processLine(String)} and ends with {@link #finish()}, waiting while the ring is full. The consumer waits
+ * for lines with {@link #awaitLines()} and takes them with {@link #poll()}. Waiting threads spin briefly and then
+ * park for increasing times.
+ */
+class LineRing implements AlignmentPipeline.LineProcessor {
+	private static final int SPINS = 100;
+	private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final String[] lines;
+	private final int mask;
+
+	// next position to read, written by the consumer
+	private final AtomicLong head = new AtomicLong();
+	// next position to write, written by the producer
+	private final AtomicLong tail = new AtomicLong();
+	private volatile boolean finished = false;
+
+	// producer side
+	private long cachedHead = 0;
+	private long fullWaits = 0;
+
+	// consumer side
+	private long cachedTail = 0;
+	private long depthSum = 0;
+	private long depthSamples = 0;
+
+	public LineRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+		this.lines = new String[size];
+		this.mask = size - 1;
+	}
+
+	@Override
+	public void processLine(String line) {
+		long position = this.tail.get();
+		if (position - this.cachedHead == this.lines.length) {
+			this.cachedHead = this.head.get();
+			if (position - this.cachedHead == this.lines.length) {
+				this.fullWaits++;
+				for (int attempt = 0; position - this.cachedHead == this.lines.length; attempt++) {
+					pause(attempt);
+					this.cachedHead = this.head.get();
+				}
+			}
+		}
+		this.lines[(int) position & this.mask] = line;
+		this.tail.lazySet(position + 1);
+	}
+
+	@Override
+	public void finish() {
+		this.finished = true;
+	}
+
+	/**
+	 * Waits until there are lines to read and returns how many there are, or 0 if the producer has finished and all
+	 * the lines have been read.
+	 */
+	public int awaitLines() {
+		long position = this.head.get();
+		for (int attempt = 0; ; attempt++) {
+			if (position == this.cachedTail) {
+				// read finished before tail, so no line added before finishing is missed
+				boolean finished = this.finished;
+				this.cachedTail = this.tail.get();
+				if (position == this.cachedTail && finished) {
+					return 0;
+				}
+			}
+			if (position != this.cachedTail) {
+				int available = (int) (this.cachedTail - position);
+				this.depthSum += available;
+				this.depthSamples++;
+				return available;
+			}
+			pause(attempt);
+		}
+	}
+
+	/**
+	 * Waits until both rings have lines to read and returns how many can be taken from each, or 0 if both producers
+	 * have finished and all the lines have been read. Fails if one of them finishes while the other still has lines.
+	 */
+	public static int awaitPairs(LineRing CTLines, LineRing GALines) {
+		int CTAvailable = CTLines.awaitLines();
+		int GAAvailable = GALines.awaitLines();
+		if (CTAvailable == 0 || GAAvailable == 0) {
+			if (CTAvailable != GAAvailable) {
+				throw new RuntimeException("the CT and GA alignments have a different number of lines");
+			}
+			return 0;
+		}
+		return Math.min(CTAvailable, GAAvailable);
+	}
+
+	/**
+	 * Takes the next line. There must be lines available, as told by {@link #awaitLines()}.
+	 */
+	public String poll() {
+		long position = this.head.get();
+		int slot = (int) position & this.mask;
+		String line = this.lines[slot];
+		this.lines[slot] = null;
+		this.head.lazySet(position + 1);
+		return line;
+	}
+
+	/**
+	 * The mean number of lines waiting each time the consumer looked for them and how many times the producer found
+	 * the ring full.
+	 */
+	public String getStatistics() {
+		return "mean depth " + (this.depthSamples == 0 ? 0 : this.depthSum / this.depthSamples) + " of " + this
+				.lines.length + " lines, full " + this.fullWaits + " times";
+	}
+
+	private static void pause(int attempt) {
+		if (attempt < SPINS) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << Math.min(20, (attempt - SPINS) / 10)));
+		}
+		if (Thread.interrupted()) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("alignment cancelled", new InterruptedException());
+		}
+	}
+}
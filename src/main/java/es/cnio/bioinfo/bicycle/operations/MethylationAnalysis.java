@@ -40,14 +40,18 @@ import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+
 import es.cnio.bioinfo.bicycle.ErrorRateMode;
-import es.cnio.bioinfo.bicycle.MethylationCall;
+import es.cnio.bioinfo.bicycle.MethylationCallView;
 import es.cnio.bioinfo.bicycle.Project;
 import es.cnio.bioinfo.bicycle.Reference;
 import es.cnio.bioinfo.bicycle.RegionMethylation;
 import es.cnio.bioinfo.bicycle.Sample;
 import es.cnio.bioinfo.bicycle.StandardStreamsToLoggerRedirector;
-import es.cnio.bioinfo.bicycle.Tools;
+import es.cnio.bioinfo.bicycle.gatk.CytosineContextIndex;
+import es.cnio.bioinfo.bicycle.gatk.NativeMethylationCaller;
 import es.cnio.bioinfo.bicycle.operations.BowtieAlignment.Strand;
 
 public class MethylationAnalysis {
@@ -55,6 +59,12 @@ public class MethylationAnalysis {
 
 	private Project project;
 
+	private boolean binaryMethylationFiles = false;
+
+	private boolean nativeCaller = false;
+
+	private int shardSize = NativeMethylationCaller.DEFAULT_SHARD_SIZE;
+
 	public MethylationAnalysis(Project p) {
 		this.project = p;
 	}
@@ -63,6 +73,52 @@ public class MethylationAnalysis {
 		return project;
 	}
 
+	/**
+	 * Writes the per-strand .methylation files in the binary block format instead of text. They can be converted
+	 * to text with {@link es.cnio.bioinfo.bicycle.MethylationFileConverter}.
+	 */
+	public void setBinaryMethylationFiles(boolean binaryMethylationFiles) {
+		this.binaryMethylationFiles = binaryMethylationFiles;
+	}
+
+	public boolean isBinaryMethylationFiles() {
+		return binaryMethylationFiles;
+	}
+
+	/**
+	 * Calls methylation with {@link NativeMethylationCaller}, which reads the BAM files directly, instead of the
+	 * GATK-based walker. It is experimental: it is meant to write the same files, which NativeMethylationCallerTest
+	 * checks against the walker.
+	 */
+	public void setNativeCaller(boolean nativeCaller) {
+		this.nativeCaller = nativeCaller;
+	}
+
+	public boolean isNativeCaller() {
+		return nativeCaller;
+	}
+
+	/**
+	 * Maximum number of reference positions called together by the native caller. The shards are called in
+	 * parallel, with as many threads as given to the analysis.
+	 */
+	public void setShardSize(int shardSize) {
+		this.shardSize = shardSize;
+	}
+
+	public int getShardSize() {
+		return shardSize;
+	}
+
+	/**
+	 * The directory where the native caller keeps the shards of a sample until the analysis ends. If the analysis
+	 * fails, the completed shards are reused when it is run again.
+	 */
+	public File getShardDirectory(Reference reference, Sample sample) {
+		return new File(this.project.getOutputDirectory() + File.separator + sample.getName() + "_" + reference
+				.getReferenceFile().getName() + ".shards");
+	}
+
 	public File getMethylcytosinesFile(Reference reference, Sample sample) {
 		return new File(this.project.getOutputDirectory() + File.separator + sample.getName() + "_" + reference
 				.getReferenceFile().getName() + ".methylcytosines");
@@ -176,6 +232,16 @@ public class MethylationAnalysis {
 						 double crickError,
 						 List<File> bedFiles) throws IOException, InterruptedException {
 
+		if (this.nativeCaller) {
+			callWithNativeCaller(reference, sample, trimreads, trimuntil, removeAmbiguous, onlyWithOneAlignment,
+					removeBad, removeClonal, correctNonCG, mindepth, fdr, nThreads, errorMode, controlGenome,
+					watsonError, crickError, bedFiles);
+			writeRegionsMethylation(reference, sample, bedFiles);
+
+			logger.info("Methylation analysis of sample " + sample.getName() + " OK");
+			return;
+		}
+
 		final String command = prepareGATKCommand(reference, sample, trimreads, trimuntil, removeAmbiguous,
 				onlyWithOneAlignment, removeBad,
 				removeClonal, correctNonCG, mindepth, fdr, nThreads, errorMode, controlGenome, watsonError,
@@ -245,23 +311,11 @@ public class MethylationAnalysis {
 									  double crickError, List<File> bedFiles) throws InterruptedException,
 			IOException {
 
-		BowtieAlignment ba = new BowtieAlignment(this.project);
-		File samFileCT = ba.getAlignmentOutputFile(Strand.WATSON, sample, reference);
-		File samFileGA = ba.getAlignmentOutputFile(Strand.CRICK, sample, reference);
 		File fasta = reference.getReferenceFile();
 
-
-		final PrintStream oldErr = System.err;
-		// capture SortSam output and redirect it to our logger
-
-		File sortedCT = new File(samFileCT.getAbsolutePath() + ".sorted.sam");
-		File sortedGA = new File(samFileGA.getAbsolutePath() + ".sorted.sam");
-
-		sortSAM(samFileCT, sortedCT);
-		sortSAM(samFileGA, sortedGA);
-
-		File outputBamFileCT = buildBAMAndIndex(sortedCT, this.project.getSamtoolsDirectory());
-		File outputBamFileGA = buildBAMAndIndex(sortedGA, this.project.getSamtoolsDirectory());
+		File[] bamFiles = prepareBAMFiles(reference, sample, nThreads);
+		File outputBamFileCT = bamFiles[0];
+		File outputBamFileGA = bamFiles[1];
 
 		// RuntimeMXBean runtimemxBean = ManagementFactory.getRuntimeMXBean();
 		// String command = "java -Xmx1024M -cp "+runtimemxBean.getClassPath()+"
@@ -279,6 +333,12 @@ public class MethylationAnalysis {
 		if (removeClonal) {
 			command += " --removeclonal";
 		}
+		if (binaryMethylationFiles) {
+			command += " --binarymethylation";
+		}
+
+		buildContextIndex(reference);
+		command += " --contextindex " + reference.getContextIndexFile().getAbsolutePath();
 
 		if (bedFiles != null)
 			for (File bedfile : bedFiles) {
@@ -328,6 +388,91 @@ public class MethylationAnalysis {
 		return command;
 	}
 
+	private void callWithNativeCaller(Reference reference, Sample sample, boolean trimreads, int trimuntil,
+									  boolean removeAmbiguous, boolean onlyWithOneAlignment, boolean removeBad,
+									  boolean removeClonal, boolean correctNonCG, int mindepth, double fdr, int
+											  nThreads, ErrorRateMode errorMode, String controlGenome, double
+											  watsonError, double crickError, List<File> bedFiles) throws
+			InterruptedException, IOException {
+
+		File[] bamFiles = prepareBAMFiles(reference, sample, nThreads);
+		buildContextIndex(reference);
+
+		CytosineContextIndex contexts = reference.getContextIndex();
+		try {
+			NativeMethylationCaller caller = new NativeMethylationCaller(bamFiles[0], bamFiles[1], reference
+					.getReferenceFile(), contexts);
+			caller.setFDR(fdr);
+			caller.setThreads(nThreads);
+			caller.setShardSize(this.shardSize);
+			caller.setShardDirectory(getShardDirectory(reference, sample));
+			caller.setRemoveClonal(removeClonal);
+			caller.setCorrectNonCG(correctNonCG);
+			caller.setMinDepth(mindepth);
+			caller.setTrim(trimreads, trimuntil);
+			caller.setRemoveAmbiguous(removeAmbiguous);
+			caller.setRemoveBad(removeBad);
+			caller.setOnlyWithOneAlignment(onlyWithOneAlignment);
+			caller.setBinaryMethylation(binaryMethylationFiles);
+			caller.setAnnotations(bedFiles == null ? new LinkedList<File>() : bedFiles);
+
+			if (errorMode == ErrorRateMode.from_barcodes) {
+				double error = new BarcodeErrorComputation(sample).computeErrorFromBarcodes();
+				caller.setErrorRate(error, error);
+			} else if (errorMode == ErrorRateMode.from_control_genome) {
+				caller.setControlGenome(controlGenome);
+			} else {
+				caller.setErrorRate(watsonError, crickError);
+			}
+
+			logger.warning("The native caller is experimental");
+			logger.info("Starting methylation analysis of sample " + sample.getName() + " (native caller)");
+			caller.call(getMethylationFile(Strand.WATSON, reference, sample), getMethylationFile(Strand.CRICK,
+					reference, sample), getMethylcytosinesFile(reference, sample), getMethylcytosinesVCFFile(reference,
+					sample), getSummaryFile(reference, sample));
+		} finally {
+			contexts.close();
+		}
+	}
+
+	/**
+	 * Sorts the Watson and Crick alignments and builds their indexed BAM files, if they are not up to date. The
+	 * sorted BAM files written directly by the alignment are used if they are newer than the SAM files.
+	 */
+	private File[] prepareBAMFiles(Reference reference, Sample sample, int nThreads) throws InterruptedException,
+			IOException {
+		BowtieAlignment ba = new BowtieAlignment(this.project);
+		File samFileCT = ba.getAlignmentOutputFile(Strand.WATSON, sample, reference);
+		File samFileGA = ba.getAlignmentOutputFile(Strand.CRICK, sample, reference);
+
+		File sortedBAMCT = ba.getSortedBAMOutputFile(Strand.WATSON, sample, reference);
+		File sortedBAMGA = ba.getSortedBAMOutputFile(Strand.CRICK, sample, reference);
+		if (isAlignmentBAMUpToDate(sortedBAMCT, samFileCT) && isAlignmentBAMUpToDate(sortedBAMGA, samFileGA)) {
+			logger.info("Using the sorted BAM files of the alignment of sample " + sample.getName());
+			return new File[]{sortedBAMCT, sortedBAMGA};
+		}
+
+		File sortedCT = new File(samFileCT.getAbsolutePath() + ".sorted.sam");
+		File sortedGA = new File(samFileGA.getAbsolutePath() + ".sorted.sam");
+
+		sortSAM(samFileCT, sortedCT);
+		sortSAM(samFileGA, sortedGA);
+
+		return new File[]{buildBAMAndIndex(sortedCT, nThreads), buildBAMAndIndex(sortedGA, nThreads)};
+	}
+
+	private static boolean isAlignmentBAMUpToDate(File bam, File sam) {
+		return bam.exists() && new File(bam.getAbsolutePath() + ".bai").exists() && (!sam.exists() || bam
+				.lastModified() > sam.lastModified());
+	}
+
+	private void buildContextIndex(Reference reference) throws IOException {
+		if (!reference.getContextIndexFile().exists()) {
+			logger.info("Building the cytosine context index of " + reference.getReferenceFile());
+			reference.getContextIndex().close();
+		}
+	}
+
 	private void writeRegionsMethylation(Reference reference, Sample sample, List<File> bedFiles) throws IOException {
 		// <---- Cytosine METHYLATION PER ANNOTATED REGION ---->
 		// IF BED FILES ARE AVAILABLE, then cytosine methylation per annotated
@@ -404,18 +549,17 @@ public class MethylationAnalysis {
 		FileReader f = new FileReader(methylcytosinesFile);
 		BufferedReader b = new BufferedReader(f);
 		String line;
+		MethylationCallView call = new MethylationCallView();
 
 		// for each line in the methylcytosines file (starting from
 		// line 0, i.e., first line)
 		while ((line = b.readLine()) != null) {
 
-			String tokens[] = line.split("\t");
-
-
 			// if positioned in first (header) line (line 0), it
 			// finds out the column number that contains
 			// the genomic annotations for the current bed file
 			if (firstLine) {
+				String tokens[] = line.split("\t");
 				// checks all first line headers
 				for (int pos = 0; pos < tokens.length; pos++) {
 					if (tokens[pos].equals(annotationSet)) {
@@ -429,9 +573,10 @@ public class MethylationAnalysis {
 
 			} // if(firstLine)
 			else {// not in first line (not header line)
-				MethylationCall call = MethylationCall.unmarshall(line);
-				if (!tokens[columnOfInterest].contains("N/A")) {
-					List<String> regions = Arrays.asList(tokens[columnOfInterest].split("[|]"));
+				call.reset(line);
+				String annotation = call.getAnnotation(columnOfInterest - MethylationCallView.ANNOTATIONS_START);
+				if (!annotation.contains("N/A")) {
+					List<String> regions = Arrays.asList(annotation.split("[|]"));
 
 
 					for (String region : regions) {
@@ -622,42 +767,45 @@ public class MethylationAnalysis {
 		enableSystemErr();
 	}
 
-	private File buildBAMAndIndex(File samCT, File samtoolsDirectory) {
+	/**
+	 * Converts the sorted SAM file to BAM and indexes it, if they are not up to date. The BGZF blocks are compressed
+	 * with nThreads threads.
+	 */
+	private File buildBAMAndIndex(File samCT, int nThreads) {
 		File bam = new File(samCT.getAbsolutePath() + ".bam");
-		String samtoolsPath = (samtoolsDirectory != null ? samtoolsDirectory.getAbsolutePath() + File
-				.separator : "") + "samtools";
-		if (bam.exists() && bam.lastModified() > samCT.lastModified()) {
-			//	System.out.println("bam exists and is older. Skip");
-
-		} else {
-			logger.info("Building BAM for " + samCT.toString().replaceAll(project.getOutputDirectory() + File
-					.separator, ""));
-
-			Tools.executeProcessWait(samtoolsPath + " view -S -b -o " + bam.getAbsolutePath() + " " + samCT
-					.getAbsolutePath());
-			logger.info("BAM built for " + samCT.toString().replaceAll(project.getOutputDirectory() + File.separator,
-					""));
-		}
-
-
 		File bai = new File(bam.getAbsolutePath() + ".bai");
-
-		if (bai.exists() && bam.exists() && bai.lastModified() > bam.lastModified()) {
-			//	System.out.println("bai exists and is older. Skip");
+		if (bam.exists() && bai.exists() && bam.lastModified() > samCT.lastModified() && bai.lastModified() >= bam
+				.lastModified()) {
+			//	System.out.println("bam exists and is older. Skip");
 
 		} else {
-			logger.info("Building index for " + samCT.toString().replaceAll(project.getOutputDirectory() + File
-					.separator, Project.OUTPUT_DIRECTORY));
-
-			Tools.executeProcessWait(samtoolsPath + " index " + bam.getAbsolutePath());
-			logger.info("Index built for " + samCT.toString().replaceAll(project.getOutputDirectory() + File
-					.separator, Project.OUTPUT_DIRECTORY));
+			logger.info("Building BAM and index for " + samCT.toString().replaceAll(project.getOutputDirectory() +
+					File.separator, Project.OUTPUT_DIRECTORY));
+
+			SAMFileReader reader = new SAMFileReader(samCT);
+			reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+			try {
+				ParallelBAMWriter writer = new ParallelBAMWriter(bam, reader.getFileHeader(), nThreads);
+				boolean written = false;
+				try {
+					for (SAMRecord record : reader) {
+						writer.addAlignment(record);
+					}
+					writer.close();
+					written = true;
+				} finally {
+					if (!written) {
+						writer.abort();
+					}
+				}
+			} finally {
+				reader.close();
+			}
+			logger.info("BAM and index built for " + samCT.toString().replaceAll(project.getOutputDirectory() +
+					File.separator, Project.OUTPUT_DIRECTORY));
 		}
 
-
 		return bam;
-
-
 	}
 
 
@@ -0,0 +1,324 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.operations;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Stores p-values in primitive arrays and adjusts them with the Benjamini-Hochberg procedure.
+ * <p>
+ * Up to maxInMemory p-values are kept in memory. Beyond that, the p-values are sorted in runs of maxInMemory values
+ * that are spilled to files, and {@link #adjust()} merges them into memory-mapped files of sorted p-values and
+ * q-values. The q-value of a p-value is then found by binary search, so p-values can be adjusted in any order, for
+ * example while streaming the rows they belong to.
+ * <p>
+ * NaN p-values (failed fits) are adjusted as FDRCorrection does: they are counted and sorted after the other
+ * p-values, where they get a q-value of 1.
+ */
+public class PValueStore implements AutoCloseable {
+
+	public static final int DEFAULT_MAX_IN_MEMORY = 1 << 23;
+
+	// doubles per mapped segment (1 GB)
+	private static final int SEGMENT_SHIFT = 27;
+
+	private final int maxInMemory;
+	private final File spillDirectory;
+
+	private double[] buffer;
+	private int buffered;
+	private long size;
+
+	private final List<File> runs = new ArrayList<>();
+	private final List<File> mappedFiles = new ArrayList<>();
+
+	private DoubleArray sortedPValues;
+	private DoubleArray qValues;
+
+	public PValueStore(File spillDirectory) {
+		this(DEFAULT_MAX_IN_MEMORY, spillDirectory);
+	}
+
+	public PValueStore(int maxInMemory, File spillDirectory) {
+		this.maxInMemory = Math.max(1, maxInMemory);
+		this.spillDirectory = spillDirectory;
+		this.buffer = new double[Math.min(1024, this.maxInMemory)];
+	}
+
+	public void add(double pValue) {
+		if (sortedPValues != null) {
+			throw new IllegalStateException("p-values already adjusted");
+		}
+		if (buffered == buffer.length) {
+			if (buffered == maxInMemory) {
+				spill();
+			} else {
+				buffer = Arrays.copyOf(buffer, (int) Math.min(maxInMemory, 2L * buffer.length));
+			}
+		}
+		buffer[buffered++] = pValue;
+		size++;
+	}
+
+	/**
+	 * Returns the number of p-values stored.
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Sorts the p-values and computes their q-values. No more p-values can be added after calling it.
+	 */
+	public void adjust() {
+		if (sortedPValues != null) {
+			return;
+		}
+
+		if (runs.isEmpty()) {
+			double[] sorted = Arrays.copyOf(buffer, buffered);
+			buffer = null;
+			Arrays.sort(sorted);
+			sortedPValues = new HeapDoubleArray(sorted);
+			qValues = new HeapDoubleArray(new double[sorted.length]);
+		} else {
+			if (buffered > 0) {
+				spill();
+			}
+			buffer = null;
+			sortedPValues = createMappedArray();
+			qValues = createMappedArray();
+			mergeRuns();
+		}
+
+		// q(i) = min(1, min over j >= i of p(j) * n / j), where the NaN p-values at the end leave it at 1
+		double min = 1;
+		for (long i = size - 1; i >= 0; i--) {
+			double q = sortedPValues.get(i) * size / (i + 1);
+			if (q < min) {
+				min = q;
+			}
+			qValues.set(i, min);
+		}
+	}
+
+	/**
+	 * Returns the q-value of a p-value that was added to this store.
+	 */
+	public double getQValue(double pValue) {
+		if (sortedPValues == null) {
+			throw new IllegalStateException("p-values not adjusted");
+		}
+		if (Double.isNaN(pValue)) {
+			if (size == 0 || !Double.isNaN(sortedPValues.get(size - 1))) {
+				throw new IllegalArgumentException("p-value " + pValue + " not in this store");
+			}
+			return qValues.get(size - 1);
+		}
+
+		// last position with a p-value <= pValue, so that ties share the q-value
+		long low = 0;
+		long high = size;
+		while (low < high) {
+			long middle = (low + high) >>> 1;
+			if (sortedPValues.get(middle) <= pValue) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		if (low == 0) {
+			throw new IllegalArgumentException("p-value " + pValue + " not in this store");
+		}
+		return qValues.get(low - 1);
+	}
+
+	@Override
+	public void close() {
+		sortedPValues = null;
+		qValues = null;
+		for (File run : runs) {
+			run.delete();
+		}
+		for (File mapped : mappedFiles) {
+			mapped.delete();
+		}
+	}
+
+	private void spill() {
+		Arrays.sort(buffer, 0, buffered);
+		try {
+			File run = File.createTempFile("pvalues", ".run", spillDirectory);
+			run.deleteOnExit();
+			runs.add(run);
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run),
+					1 << 16))) {
+				for (int i = 0; i < buffered; i++) {
+					out.writeDouble(buffer[i]);
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		buffered = 0;
+	}
+
+	private void mergeRuns() {
+		PriorityQueue<Run> queue = new PriorityQueue<>();
+		try {
+			for (File file : runs) {
+				Run run = new Run(file);
+				if (run.next()) {
+					queue.add(run);
+				} else {
+					run.close();
+				}
+			}
+
+			long i = 0;
+			while (!queue.isEmpty()) {
+				Run run = queue.poll();
+				sortedPValues.set(i++, run.current);
+				if (run.next()) {
+					queue.add(run);
+				} else {
+					run.close();
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			for (Run run : queue) {
+				try {
+					run.close();
+				} catch (IOException e) {
+					// already failed
+				}
+			}
+		}
+	}
+
+	private DoubleArray createMappedArray() {
+		try {
+			File file = File.createTempFile("pvalues", ".sorted", spillDirectory);
+			file.deleteOnExit();
+			mappedFiles.add(file);
+			return new MappedDoubleArray(file, size);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static class Run implements Comparable<Run> {
+		private final DataInputStream in;
+		private double current;
+
+		public Run(File file) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		}
+
+		public boolean next() throws IOException {
+			try {
+				current = in.readDouble();
+				return true;
+			} catch (EOFException e) {
+				return false;
+			}
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+
+		@Override
+		public int compareTo(Run o) {
+			return Double.compare(current, o.current);
+		}
+	}
+
+	private interface DoubleArray {
+		double get(long index);
+
+		void set(long index, double value);
+	}
+
+	private static class HeapDoubleArray implements DoubleArray {
+		private final double[] values;
+
+		public HeapDoubleArray(double[] values) {
+			this.values = values;
+		}
+
+		@Override
+		public double get(long index) {
+			return values[(int) index];
+		}
+
+		@Override
+		public void set(long index, double value) {
+			values[(int) index] = value;
+		}
+	}
+
+	private static class MappedDoubleArray implements DoubleArray {
+		private final DoubleBuffer[] segments;
+
+		public MappedDoubleArray(File file, long size) throws IOException {
+			int segmentSize = 1 << SEGMENT_SHIFT;
+			segments = new DoubleBuffer[(int) ((size + segmentSize - 1) >>> SEGMENT_SHIFT)];
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(size * 8);
+				FileChannel channel = raf.getChannel();
+				for (int i = 0; i < segments.length; i++) {
+					long start = (long) i << SEGMENT_SHIFT;
+					long length = Math.min(segmentSize, size - start);
+					segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start * 8, length * 8).asDoubleBuffer();
+				}
+			}
+		}
+
+		@Override
+		public double get(long index) {
+			return segments[(int) (index >>> SEGMENT_SHIFT)].get((int) (index & ((1 << SEGMENT_SHIFT) - 1)));
+		}
+
+		@Override
+		public void set(long index, double value) {
+			segments[(int) (index >>> SEGMENT_SHIFT)].put((int) (index & ((1 << SEGMENT_SHIFT) - 1)), value);
+		}
+	}
+}
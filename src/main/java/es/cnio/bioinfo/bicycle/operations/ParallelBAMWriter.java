@@ -0,0 +1,336 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.operations;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.SAMTextHeaderCodec;
+
+/**
+ * Writes a coordinate sorted BAM file and its index (BAM + ".bai"). The records are encoded by picard and written
+ * into BGZF blocks, which are compressed in parallel by a pool of threads and written in order. The index is built
+ * while the records are written.
+ */
+class ParallelBAMWriter {
+
+	private static final Logger logger = Logger.getLogger(ParallelBAMWriter.class.getSimpleName());
+
+	// as samtools, so a block always fits in 64KB once compressed
+	private static final int BLOCK_SIZE = 0xff00;
+	private static final int MAX_COMPRESSED_BLOCK_SIZE = 65536;
+	private static final int BLOCK_HEADER_SIZE = 18;
+	private static final int BLOCK_FOOTER_SIZE = 8;
+	private static final int COMPRESSION_LEVEL = 5;
+	private static final byte[] EOF_BLOCK = {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0,
+			0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+	private static final AtomicInteger writerCount = new AtomicInteger();
+
+	private final File bam;
+	private final OutputStream out;
+	private final ExecutorService compressors;
+	// one per compressor thread, ended when the writer is closed to release their native memory
+	private final List<Deflater> deflaters = Collections.synchronizedList(new ArrayList<Deflater>());
+	private final ThreadLocal<Deflater> threadDeflater = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			Deflater deflater = new Deflater(COMPRESSION_LEVEL, true);
+			deflaters.add(deflater);
+			return deflater;
+		}
+	};
+	private final int maxPendingBlocks;
+	private final LinkedList<Future<byte[]>> pendingBlocks = new LinkedList<Future<byte[]>>();
+
+	private final BAMRecordCodec codec;
+	private final ByteArrayOutputStream record = new ByteArrayOutputStream(1024);
+	private final BAMIndexBuilder index;
+
+	private byte[] block = new byte[BLOCK_SIZE];
+	private int blockLength = 0;
+	private int blockNumber = 0;
+
+	private long[] blockAddresses = new long[1024];
+	private int writtenBlocks = 0;
+	private long address = 0;
+
+	private long uncompressedBytes = 0;
+	private final long startTime = System.currentTimeMillis();
+
+	public ParallelBAMWriter(File bam, SAMFileHeader header, int threads) {
+		this.bam = bam;
+		try {
+			this.out = new BufferedOutputStream(new FileOutputStream(bam), 1024 * 1024);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		final int writer = writerCount.incrementAndGet();
+		this.compressors = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger threadCount = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "bgzf-" + writer + "-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.maxPendingBlocks = threads * 4;
+
+		writeHeader(header);
+		this.codec = new BAMRecordCodec(header);
+		this.codec.setOutputStream(this.record);
+		this.index = new BAMIndexBuilder(header.getSequenceDictionary().size(), getVirtualOffset());
+	}
+
+	public void addAlignment(SAMRecord alignment) {
+		this.record.reset();
+		this.codec.encode(alignment);
+
+		long offset = getVirtualOffset();
+		write(this.record.toByteArray());
+
+		int start = alignment.getAlignmentStart() - 1;
+		int end = alignment.getReadUnmappedFlag() ? 0 : alignment.getAlignmentEnd();
+		if (end <= start) {
+			end = start + 1;
+		}
+		this.index.addRecord(alignment.getReferenceIndex(), start, end, alignment.getReadUnmappedFlag(),
+				BAMIndexBuilder.reg2bin(start, end), offset, getVirtualOffset());
+	}
+
+	/**
+	 * Writes the pending blocks, the end of file block and the index.
+	 */
+	public void close() {
+		try {
+			if (this.blockLength > 0) {
+				submitBlock();
+			}
+			while (!this.pendingBlocks.isEmpty()) {
+				writeNextBlock();
+			}
+			addBlockAddress();
+			this.out.write(EOF_BLOCK);
+			this.out.close();
+
+			this.index.write(new File(this.bam.getAbsolutePath() + ".bai"), getVirtualOffset(), this.blockAddresses);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			shutdownCompressors();
+		}
+
+		double seconds = Math.max(1, System.currentTimeMillis() - this.startTime) / 1000d;
+		double megabytes = this.uncompressedBytes / (1024d * 1024d);
+		logger.info(String.format("Written %s: %.1f MB in %.1f s (%.1f MB/s), %.1f MB compressed", this.bam.getName(),
+				megabytes, seconds, megabytes / seconds, (this.address + EOF_BLOCK.length) / (1024d * 1024d)));
+	}
+
+	/**
+	 * Stops writing after a failure: shuts down the compressors and deletes the partial BAM file and its index.
+	 */
+	public void abort() {
+		try {
+			this.out.close();
+		} catch (IOException e) {
+			// the BAM file is deleted anyway
+		}
+		shutdownCompressors();
+		this.bam.delete();
+		new File(this.bam.getAbsolutePath() + ".bai").delete();
+	}
+
+	private void shutdownCompressors() {
+		this.compressors.shutdownNow();
+		try {
+			if (!this.compressors.awaitTermination(10, TimeUnit.SECONDS)) {
+				logger.warning("Some BGZF compressors of " + this.bam.getName() + " did not finish");
+				return;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		synchronized (this.deflaters) {
+			for (Deflater deflater : this.deflaters) {
+				deflater.end();
+			}
+			this.deflaters.clear();
+		}
+	}
+
+	private void writeHeader(SAMFileHeader header) {
+		StringWriter text = new StringWriter();
+		new SAMTextHeaderCodec().encode(text, header);
+		byte[] textBytes = text.toString().getBytes(StandardCharsets.ISO_8859_1);
+
+		ByteArrayOutputStream binaryHeader = new ByteArrayOutputStream(textBytes.length + 1024);
+		try {
+			binaryHeader.write(new byte[]{'B', 'A', 'M', 1});
+			BAMIndexBuilder.writeInt(binaryHeader, textBytes.length);
+			binaryHeader.write(textBytes);
+			BAMIndexBuilder.writeInt(binaryHeader, header.getSequenceDictionary().size());
+			for (SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+				byte[] name = sequence.getSequenceName().getBytes(StandardCharsets.ISO_8859_1);
+				BAMIndexBuilder.writeInt(binaryHeader, name.length + 1);
+				binaryHeader.write(name);
+				binaryHeader.write(0);
+				BAMIndexBuilder.writeInt(binaryHeader, sequence.getSequenceLength());
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		write(binaryHeader.toByteArray());
+	}
+
+	/**
+	 * The number of the current block and the offset in it.
+	 */
+	private long getVirtualOffset() {
+		return (long) this.blockNumber << 16 | this.blockLength;
+	}
+
+	private void write(byte[] bytes) {
+		int written = 0;
+		while (written < bytes.length) {
+			int length = Math.min(bytes.length - written, BLOCK_SIZE - this.blockLength);
+			System.arraycopy(bytes, written, this.block, this.blockLength, length);
+			this.blockLength += length;
+			written += length;
+			if (this.blockLength == BLOCK_SIZE) {
+				submitBlock();
+			}
+		}
+		this.uncompressedBytes += bytes.length;
+	}
+
+	private void submitBlock() {
+		final byte[] data = this.block;
+		final int length = this.blockLength;
+		this.pendingBlocks.add(this.compressors.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return compressBlock(data, length);
+			}
+		}));
+		this.block = new byte[BLOCK_SIZE];
+		this.blockLength = 0;
+		this.blockNumber++;
+
+		try {
+			while (this.pendingBlocks.size() > this.maxPendingBlocks) {
+				writeNextBlock();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void writeNextBlock() throws IOException {
+		byte[] compressed;
+		try {
+			compressed = this.pendingBlocks.removeFirst().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		addBlockAddress();
+		this.out.write(compressed);
+		this.address += compressed.length;
+	}
+
+	private void addBlockAddress() {
+		if (this.writtenBlocks == this.blockAddresses.length) {
+			this.blockAddresses = Arrays.copyOf(this.blockAddresses, this.blockAddresses.length * 2);
+		}
+		this.blockAddresses[this.writtenBlocks++] = this.address;
+	}
+
+	private byte[] compressBlock(byte[] data, int length) {
+		byte[] compressed = new byte[MAX_COMPRESSED_BLOCK_SIZE];
+		Deflater deflater = this.threadDeflater.get();
+		deflater.reset();
+		deflater.setInput(data, 0, length);
+		deflater.finish();
+		int compressedLength = deflater.deflate(compressed, BLOCK_HEADER_SIZE, compressed.length -
+				BLOCK_HEADER_SIZE - BLOCK_FOOTER_SIZE);
+		if (!deflater.finished()) {
+			// incompressible data, stored as is
+			Deflater store = new Deflater(Deflater.NO_COMPRESSION, true);
+			store.setInput(data, 0, length);
+			store.finish();
+			compressedLength = store.deflate(compressed, BLOCK_HEADER_SIZE, compressed.length - BLOCK_HEADER_SIZE -
+					BLOCK_FOOTER_SIZE);
+			store.end();
+		}
+
+		int blockSize = BLOCK_HEADER_SIZE + compressedLength + BLOCK_FOOTER_SIZE;
+		byte[] header = {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0,
+				(byte) (blockSize - 1), (byte) ((blockSize - 1) >>> 8)};
+		System.arraycopy(header, 0, compressed, 0, BLOCK_HEADER_SIZE);
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		int footer = BLOCK_HEADER_SIZE + compressedLength;
+		putInt(compressed, footer, (int) crc.getValue());
+		putInt(compressed, footer + 4, length);
+		return Arrays.copyOf(compressed, blockSize);
+	}
+
+	private static void putInt(byte[] bytes, int position, int value) {
+		bytes[position] = (byte) value;
+		bytes[position + 1] = (byte) (value >>> 8);
+		bytes[position + 2] = (byte) (value >>> 16);
+		bytes[position + 3] = (byte) (value >>> 24);
+	}
+}
@@ -0,0 +1,265 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.operations;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import es.cnio.bioinfo.bicycle.operations.ReferenceBisulfitation.Replacement;
+
+/**
+ * Bisulfites a FASTA file into one output per replacement in a single pass. The file is memory-mapped in chunks,
+ * which are converted in parallel with the lookup table of each replacement and written in order.
+ * <p>
+ * The output is the same as converting the file line by line: header lines (starting with >) get their spaces
+ * replaced by _, and every line ends with the system line separator.
+ * <p>
+ * Chunks are cut at any byte. The bytes of a chunk before its first line break belong to a line started in a
+ * previous chunk, so they are converted as a sequence and, if that line turns out to be a header when the chunks
+ * are written in order, converted again as a header.
+ */
+class ParallelFastaBisulfiter {
+
+	static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+	private static final int LINE_START = 0;
+	private static final int AFTER_CR = 1;
+	private static final int HEADER = 2;
+	private static final int SEQUENCE = 3;
+	// a chunk without line breaks, which ends in the state it started
+	private static final int CONTINUED = -1;
+
+	private static final byte[] LINE_SEPARATOR = System.getProperty("line.separator").getBytes();
+
+	private static final AtomicInteger bisulfiterCount = new AtomicInteger();
+
+	private final int threads;
+	private final int chunkSize;
+
+	public ParallelFastaBisulfiter(int threads) {
+		this(threads, DEFAULT_CHUNK_SIZE);
+	}
+
+	ParallelFastaBisulfiter(int threads, int chunkSize) {
+		this.threads = threads;
+		this.chunkSize = chunkSize;
+	}
+
+	public void bisulfite(File fasta, Replacement[] replacements, File[] outputs) throws IOException {
+		final byte[][] tables = new byte[replacements.length][];
+		for (int i = 0; i < replacements.length; i++) {
+			tables[i] = replacements[i].getTable();
+		}
+
+		final int bisulfiter = bisulfiterCount.incrementAndGet();
+		ExecutorService converters = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+			private final AtomicInteger threadCount = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "bisulfitation-" + bisulfiter + "-" + threadCount
+						.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		RandomAccessFile input = new RandomAccessFile(fasta, "r");
+		OutputStream[] outs = new OutputStream[outputs.length];
+		try {
+			for (int i = 0; i < outputs.length; i++) {
+				outs[i] = new BufferedOutputStream(new FileOutputStream(outputs[i]), 1024 * 1024);
+			}
+
+			final FileChannel channel = input.getChannel();
+			long size = channel.size();
+			LinkedList<Future<Chunk>> pending = new LinkedList<Future<Chunk>>();
+			int state = LINE_START;
+			for (long position = 0; position < size; position += this.chunkSize) {
+				final long start = position;
+				final int length = (int) Math.min(this.chunkSize, size - position);
+				pending.add(converters.submit(new Callable<Chunk>() {
+					@Override
+					public Chunk call() throws IOException {
+						MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+						byte[] bytes = new byte[length];
+						buffer.get(bytes);
+						return new Chunk(bytes, tables);
+					}
+				}));
+				if (pending.size() > this.threads * 2) {
+					state = writeChunk(getChunk(pending.removeFirst()), state, outs);
+				}
+			}
+			while (!pending.isEmpty()) {
+				state = writeChunk(getChunk(pending.removeFirst()), state, outs);
+			}
+
+			if (state == HEADER || state == SEQUENCE) {
+				// the last line had no line break
+				for (OutputStream out : outs) {
+					out.write(LINE_SEPARATOR);
+				}
+			}
+		} finally {
+			converters.shutdownNow();
+			input.close();
+			for (OutputStream out : outs) {
+				if (out != null) {
+					out.close();
+				}
+			}
+		}
+	}
+
+	private static Chunk getChunk(Future<Chunk> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Writes the converted chunk, given the state in which the previous one ended, and returns the state in which
+	 * this one ends.
+	 */
+	private static int writeChunk(Chunk chunk, int state, OutputStream[] outs) throws IOException {
+		boolean lineStart = state == LINE_START || state == AFTER_CR;
+		boolean headerPrefix = chunk.prefixLength > 0 && (state == HEADER || (lineStart && chunk.input[0] == '>'));
+		if (headerPrefix) {
+			chunk.convertHeader(chunk.input, 0, chunk.prefixLength, 0);
+		}
+
+		// the \n of a \r\n broken by the previous chunk
+		int skip = state == AFTER_CR && chunk.prefixLength == 0 && chunk.input.length > 0 && chunk.input[0] ==
+				'\n' ? LINE_SEPARATOR.length : 0;
+		for (int i = 0; i < outs.length; i++) {
+			outs[i].write(chunk.outputs[i], skip, chunk.outputLength - skip);
+		}
+
+		if (chunk.endState != CONTINUED) {
+			return chunk.endState;
+		} else if (chunk.prefixLength == 0) {
+			return state;
+		} else if (lineStart) {
+			return headerPrefix ? HEADER : SEQUENCE;
+		}
+		return state;
+	}
+
+	private static class Chunk {
+		private final byte[] input;
+		private final byte[][] outputs;
+		private final int outputLength;
+		private final int prefixLength;
+		private int endState = CONTINUED;
+
+		public Chunk(byte[] input, byte[][] tables) {
+			this.input = input;
+			this.outputs = new byte[tables.length][input.length * Math.max(1, LINE_SEPARATOR.length)];
+
+			this.prefixLength = lineEnd(input, 0);
+			convertSequence(input, 0, this.prefixLength, 0, tables);
+
+			int i = this.prefixLength;
+			int o = this.prefixLength;
+			int state = SEQUENCE;
+			while (i < input.length) {
+				byte b = input[i];
+				if (b == '\n' || b == '\r') {
+					i++;
+					if (b == '\n' && state == AFTER_CR) {
+						state = LINE_START;
+						continue;
+					}
+					for (byte[] output : this.outputs) {
+						System.arraycopy(LINE_SEPARATOR, 0, output, o, LINE_SEPARATOR.length);
+					}
+					o += LINE_SEPARATOR.length;
+					state = b == '\r' ? AFTER_CR : LINE_START;
+				} else {
+					if (state == LINE_START || state == AFTER_CR) {
+						state = b == '>' ? HEADER : SEQUENCE;
+					}
+					int end = lineEnd(input, i);
+					if (state == HEADER) {
+						convertHeader(input, i, end, o);
+					} else {
+						convertSequence(input, i, end, o, tables);
+					}
+					o += end - i;
+					i = end;
+				}
+			}
+			this.outputLength = o;
+			if (this.prefixLength < input.length) {
+				this.endState = state;
+			}
+		}
+
+		private static int lineEnd(byte[] input, int from) {
+			while (from < input.length && input[from] != '\n' && input[from] != '\r') {
+				from++;
+			}
+			return from;
+		}
+
+		private void convertSequence(byte[] input, int from, int to, int outputPosition, byte[][] tables) {
+			for (int j = 0; j < tables.length; j++) {
+				byte[] table = tables[j];
+				byte[] output = this.outputs[j];
+				for (int i = from, o = outputPosition; i < to; i++, o++) {
+					output[o] = table[input[i] & 0xff];
+				}
+			}
+		}
+
+		public void convertHeader(byte[] input, int from, int to, int outputPosition) {
+			for (byte[] output : this.outputs) {
+				for (int i = from, o = outputPosition; i < to; i++, o++) {
+					output[o] = input[i] == ' ' ? (byte) '_' : input[i];
+				}
+			}
+		}
+	}
+}
@@ -21,11 +21,7 @@ along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
 
 package es.cnio.bioinfo.bicycle.operations;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.logging.Logger;
 
@@ -38,6 +34,8 @@ public class ReferenceBisulfitation {
 	private static final String BISULFITED_DIR_PROPERTY = "bisulfited_reference_dir";
 	private Project project;
 
+	private int threads = Runtime.getRuntime().availableProcessors();
+
 	public ReferenceBisulfitation(Project p) {
 		this.project = p;
 	}
@@ -68,42 +66,47 @@ public class ReferenceBisulfitation {
 
 	}
 
+	/**
+	 * Number of threads that convert the reference. By default, the available processors.
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
 	public void computeReferenceBisulfitation(Replacement replacement, Reference reference, boolean onWorkingDir)
 			throws IOException {
+		computeReferenceBisulfitation(new Replacement[]{replacement}, reference, onWorkingDir);
+	}
+
+	/**
+	 * Computes the CT and GA bisulfitations of the reference, reading it once.
+	 */
+	public void computeReferenceBisulfitation(Reference reference, boolean onWorkingDir) throws IOException {
+		computeReferenceBisulfitation(Replacement.values(), reference, onWorkingDir);
+	}
 
+	private void computeReferenceBisulfitation(Replacement[] replacements, Reference reference, boolean
+			onWorkingDir) throws IOException {
 
 		File inputFile = reference.getReferenceFile();
-		logger.info("Starting " + replacement.name() + " in-silico bisulfitation for reference file: " + inputFile
-				.toString().replaceAll
-						(project.getReferenceDirectory() + File.separator, ""));
-		this.project.addProperty(BISULFITED_DIR_PROPERTY + replacement.name(), onWorkingDir ? project
-				.getWorkingDirectory().getAbsolutePath() : project.getReferenceDirectory().getAbsolutePath());
+		File[] outputFiles = new File[replacements.length];
+		for (int i = 0; i < replacements.length; i++) {
+			logger.info("Starting " + replacements[i].name() + " in-silico bisulfitation for reference file: " +
+					inputFile.toString().replaceAll(project.getReferenceDirectory() + File.separator, ""));
+			this.project.addProperty(BISULFITED_DIR_PROPERTY + replacements[i].name(), onWorkingDir ? project
+					.getWorkingDirectory().getAbsolutePath() : project.getReferenceDirectory().getAbsolutePath());
+
+			outputFiles[i] = getBisulfitedReference(replacements[i], reference);
+			if (outputFiles[i].exists()) outputFiles[i].delete();
+		}
 		this.project.saveProject();
 
+		new ParallelFastaBisulfiter(this.threads).bisulfite(inputFile, replacements, outputFiles);
 
-		BufferedReader br = new BufferedReader(new FileReader(inputFile));
-
-		File outputFile = getBisulfitedReference(replacement, reference);
-		if (outputFile.exists()) outputFile.delete();
-		BufferedWriter wr = new BufferedWriter(new FileWriter(outputFile));
-
-
-		for (String line = br.readLine(); line != null; line = br.readLine()) {
-			if (!line.startsWith(">")) {
-
-				final String modifiedLine = replacement.replace(line);
-				wr.write(modifiedLine);
-				wr.newLine();
-
-			} else {
-				String newFastaHeader = new StringBuilder(line.replace(' ', '_')).toString();
-				wr.write(newFastaHeader);
-				wr.newLine();
-			}
-		} // end while
-
-		br.close();
-		wr.close();
 		logger.info("In-silico bisulfitation OK");
 
 	}
@@ -114,16 +117,30 @@ public class ReferenceBisulfitation {
 		private char from;
 		private char to;
 		private char FROM, TO;
+		private final byte[] table = new byte[256];
 
 		private Replacement(char from, char to) {
 			this.from = from;
 			this.to = to;
 			this.FROM = Character.toUpperCase(from);
 			this.TO = Character.toUpperCase(to);
+
+			for (int i = 0; i < this.table.length; i++) {
+				this.table[i] = (byte) i;
+			}
+			this.table[from] = (byte) to;
+			this.table[FROM] = (byte) TO;
 		}
 
 		public String replace(String line) {
 			return line.replace(from, to).replace(FROM, TO);
 		}
+
+		/**
+		 * The replacement of each byte.
+		 */
+		byte[] getTable() {
+			return table;
+		}
 	}
 }
@@ -0,0 +1,345 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.operations;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.SAMTextHeaderCodec;
+
+import es.cnio.bioinfo.bicycle.Project;
+import es.cnio.bioinfo.bicycle.Reference;
+import es.cnio.bioinfo.bicycle.gatk.CytosineContextIndex;
+
+/**
+ * Prepares the indexes of a reference reading it only once: the FASTA index (.fai) and sequence dictionary (.dict)
+ * needed by picard and GATK, the sequence headers (.index), the cytosine context index and some length statistics.
+ */
+public class ReferenceIndexing {
+	private static final Logger logger = Logger.getLogger(ReferenceIndexing.class.getSimpleName());
+
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	private Project project;
+
+	public ReferenceIndexing(Project p) {
+		this.project = p;
+	}
+
+	public void computeReferenceIndexes(Reference reference) throws IOException {
+		if (!project.getReferences().contains(reference)) {
+			throw new IllegalArgumentException("This project doesn't has this reference: " + reference
+					.getReferenceFile());
+		}
+
+		File fasta = reference.getReferenceFile();
+		logger.info("Indexing reference file: " + fasta.toString().replaceAll(project.getReferenceDirectory() + File
+				.separator, ""));
+
+		List<Sequence> sequences;
+		try (FastaScanner scanner = new FastaScanner(reference.getContextIndexFile())) {
+			FileInputStream in = new FileInputStream(fasta);
+			try {
+				FileChannel channel = in.getChannel();
+				ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+				long position = 0;
+				int read;
+				while ((read = channel.read(buffer)) != -1) {
+					scanner.scan(buffer.array(), read, position);
+					position += read;
+					buffer.clear();
+				}
+				scanner.finish(position);
+			} finally {
+				in.close();
+			}
+			sequences = scanner.getSequences();
+		}
+
+		writeSequenceIndex(sequences, reference.getSequenceIndexFile());
+		writeFastaIndex(sequences, reference.getFastaIndexFile());
+		writeSequenceDictionary(sequences, fasta, reference.getSequenceDictionaryFile());
+		writeStatistics(sequences, reference.getStatisticsFile());
+
+		logger.info("Reference indexing OK");
+	}
+
+	private static void writeSequenceIndex(List<Sequence> sequences, File index) throws IOException {
+		PrintStream out = new PrintStream(index);
+		for (Sequence sequence : sequences) {
+			out.println(sequence.header);
+		}
+		out.close();
+	}
+
+	private static void writeFastaIndex(List<Sequence> sequences, File fai) throws IOException {
+		for (Sequence sequence : sequences) {
+			if (!sequence.regular) {
+				// as picard, that would fail reading the sequence through the index
+				logger.warning("Sequence " + sequence.name + " has lines of different lengths, " + fai + " not " +
+						"written");
+				if (fai.exists()) {
+					fai.delete();
+				}
+				return;
+			}
+		}
+
+		BufferedWriter out = new BufferedWriter(new FileWriter(fai));
+		try {
+			for (Sequence sequence : sequences) {
+				out.write(sequence.name + "\t" + sequence.length + "\t" + sequence.offset + "\t" + sequence
+						.basesPerLine + "\t" + sequence.bytesPerLine + "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the same dictionary as picard CreateSequenceDictionary, which GATK runs when there is none.
+	 */
+	private static void writeSequenceDictionary(List<Sequence> sequences, File fasta, File dict) throws IOException {
+		SAMFileHeader header = new SAMFileHeader();
+		for (Sequence sequence : sequences) {
+			SAMSequenceRecord record = new SAMSequenceRecord(sequence.name, (int) sequence.length);
+			record.setAttribute(SAMSequenceRecord.URI_TAG, "file:" + fasta.getAbsolutePath());
+			record.setAttribute(SAMSequenceRecord.MD5_TAG, sequence.getMD5());
+			header.addSequence(record);
+		}
+
+		BufferedWriter out = new BufferedWriter(new FileWriter(dict));
+		try {
+			new SAMTextHeaderCodec().encode(out, header);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void writeStatistics(List<Sequence> sequences, File stats) throws IOException {
+		long[] lengths = new long[sequences.size()];
+		long total = 0;
+		for (int i = 0; i < lengths.length; i++) {
+			lengths[i] = sequences.get(i).length;
+			total += lengths[i];
+		}
+		Arrays.sort(lengths);
+
+		// the length of the shortest sequence in the longest ones that cover half of the reference
+		long n50 = 0;
+		long covered = 0;
+		for (int i = lengths.length - 1; i >= 0 && covered * 2 < total; i--) {
+			covered += lengths[i];
+			n50 = lengths[i];
+		}
+
+		PrintStream out = new PrintStream(stats);
+		out.println("sequences\t" + lengths.length);
+		out.println("total_length\t" + total);
+		out.println("min_length\t" + (lengths.length > 0 ? lengths[0] : 0));
+		out.println("max_length\t" + (lengths.length > 0 ? lengths[lengths.length - 1] : 0));
+		out.println("N50\t" + n50);
+		out.close();
+
+		logger.info(lengths.length + " sequences, " + total + " bases, N50 " + n50);
+	}
+
+	private static class Sequence {
+		private final String header;
+		private final String name;
+		private final MessageDigest md5;
+		private final byte[] bases = new byte[64 * 1024];
+		private int pendingBases;
+
+		private long offset;
+		private long length;
+		private int basesPerLine;
+		private int bytesPerLine;
+		private int lines;
+		// a line shorter than the first one, which can only be the last one
+		private boolean ended;
+		private boolean regular = true;
+
+		public Sequence(String header, long offset) {
+			this.header = header;
+			this.name = header.trim().split("\\s+", 2)[0];
+			this.offset = offset;
+			try {
+				this.md5 = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		public void addBase(byte base) {
+			if (pendingBases == bases.length) {
+				md5.update(bases, 0, pendingBases);
+				pendingBases = 0;
+			}
+			bases[pendingBases++] = base >= 'a' && base <= 'z' ? (byte) (base - ('a' - 'A')) : base;
+			length++;
+		}
+
+		/**
+		 * Checks that lines can be located with the FASTA index: all of them with the same bases and bytes, except
+		 * the last one, which can be shorter. The last line of the file could have no line break.
+		 */
+		public void addLine(int lineBases, long lineBytes, boolean whitespace, boolean terminated) {
+			if (lineBases == 0 && !whitespace) {
+				if (lines == 0) {
+					// blank lines after the header
+					offset += lineBytes;
+				} else {
+					ended = true;
+				}
+				return;
+			}
+			if (ended || whitespace) {
+				regular = false;
+			} else if (lines == 0) {
+				basesPerLine = lineBases;
+				bytesPerLine = (int) lineBytes;
+				ended = !terminated;
+			} else if (lineBases > basesPerLine || (terminated && lineBases == basesPerLine && lineBytes !=
+					bytesPerLine)) {
+				regular = false;
+			} else if (lineBases < basesPerLine) {
+				ended = true;
+			}
+			lines++;
+		}
+
+		public String getMD5() {
+			md5.update(bases, 0, pendingBases);
+			pendingBases = 0;
+			String hash = new BigInteger(1, md5.digest()).toString(16);
+			while (hash.length() < 32) {
+				hash = "0" + hash;
+			}
+			return hash;
+		}
+	}
+
+	/**
+	 * Splits the FASTA file in lines as it comes, taking \n, \r\n and \r as line breaks.
+	 */
+	private static class FastaScanner implements Closeable {
+		private final CytosineContextIndex.Builder contexts;
+		private final List<Sequence> sequences = new ArrayList<Sequence>();
+		private Sequence sequence;
+
+		private ByteArrayOutputStream header;
+		private boolean lineStart = true;
+		private boolean afterCR;
+		private long lineOffset;
+		private int lineBases;
+		private boolean lineWhitespace;
+
+		public FastaScanner(File contextIndex) throws IOException {
+			this.contexts = new CytosineContextIndex.Builder(contextIndex);
+		}
+
+		public void scan(byte[] bytes, int length, long position) throws IOException {
+			for (int i = 0; i < length; i++) {
+				byte b = bytes[i];
+				if (afterCR) {
+					afterCR = false;
+					if (b == '\n') {
+						endLine(position + i + 1, true);
+						continue;
+					}
+					endLine(position + i, true);
+				}
+
+				if (b == '\r') {
+					afterCR = true;
+				} else if (b == '\n') {
+					endLine(position + i + 1, true);
+				} else if (header != null) {
+					header.write(b);
+				} else if (lineStart && b == '>') {
+					header = new ByteArrayOutputStream();
+					lineStart = false;
+				} else {
+					lineStart = false;
+					if (b == ' ' || b == '\t') {
+						lineWhitespace = true;
+					} else if (sequence != null) {
+						lineBases++;
+						sequence.addBase(b);
+						contexts.add(b);
+					}
+				}
+			}
+		}
+
+		public void finish(long length) throws IOException {
+			if (afterCR) {
+				afterCR = false;
+				endLine(length, true);
+			} else if (!lineStart) {
+				endLine(length, false);
+			}
+		}
+
+		private void endLine(long nextLineOffset, boolean terminated) throws IOException {
+			if (header != null) {
+				sequence = new Sequence(new String(header.toByteArray()), nextLineOffset);
+				sequences.add(sequence);
+				contexts.startSequence(sequence.name);
+				header = null;
+			} else if (sequence != null) {
+				sequence.addLine(lineBases, nextLineOffset - lineOffset, lineWhitespace, terminated);
+			}
+			lineOffset = nextLineOffset;
+			lineStart = true;
+			lineBases = 0;
+			lineWhitespace = false;
+		}
+
+		public List<Sequence> getSequences() {
+			return sequences;
+		}
+
+		@Override
+		public void close() throws IOException {
+			contexts.close();
+		}
+	}
+}
@@ -0,0 +1,402 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.operations;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+
+/**
+ * Receives SAM text and, when closed, writes it as a coordinate sorted and indexed BAM file. The records are kept
+ * in memory up to a maximum number, then they are sorted and spilled to a compressed temporary run. The runs are
+ * merged when the writer is closed.
+ * <p>
+ * The order is the one of picard's SAMRecordCoordinateComparator (reference, position, strand and read name), so
+ * the result is the same as sorting the SAM file with SortSam. The BAM file and its index are written with {@link
+ * ParallelBAMWriter}.
+ */
+class SAMCoordinateSorter extends Writer {
+
+	public static final int DEFAULT_MAX_RECORDS_IN_RAM = 500000;
+
+	private static final Logger logger = Logger.getLogger(SAMCoordinateSorter.class.getSimpleName());
+
+	private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+	private final File bam;
+	private final File tmpDir;
+	private final int maxRecordsInRam;
+	private final int threads;
+
+	private final StringBuilder header = new StringBuilder();
+	private final Map<String, Integer> referenceIndexes = new HashMap<String, Integer>();
+	private final StringBuilder partialLine = new StringBuilder();
+
+	private List<Record> records = new ArrayList<Record>();
+	private final List<File> runs = new ArrayList<File>();
+	private long recordCount = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param threads the threads that compress the BAM file
+	 */
+	public SAMCoordinateSorter(File bam, File tmpDir, int maxRecordsInRam, int threads) {
+		this.bam = bam;
+		this.tmpDir = tmpDir;
+		this.maxRecordsInRam = maxRecordsInRam;
+		this.threads = threads;
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		int lineStart = off;
+		for (int i = off; i < off + len; i++) {
+			if (cbuf[i] == '\n') {
+				if (this.partialLine.length() > 0) {
+					this.partialLine.append(cbuf, lineStart, i - lineStart);
+					addLine(this.partialLine.toString());
+					this.partialLine.setLength(0);
+				} else {
+					addLine(new String(cbuf, lineStart, i - lineStart));
+				}
+				lineStart = i + 1;
+			}
+		}
+		this.partialLine.append(cbuf, lineStart, off + len - lineStart);
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		char[] chars = new char[len];
+		str.getChars(off, off + len, chars, 0);
+		write(chars, 0, len);
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		try {
+			if (this.partialLine.length() > 0) {
+				addLine(this.partialLine.toString());
+			}
+			Collections.sort(this.records, COORDINATE_ORDER);
+			logger.info("Merging " + this.recordCount + " records sorted in " + (this.runs.size() + 1) + " runs " +
+					"into " + this.bam);
+			writeBAM();
+		} finally {
+			for (File run : this.runs) {
+				run.delete();
+			}
+		}
+	}
+
+	/**
+	 * Discards the records without writing the BAM file and deletes the spilled runs. A BAM file already written by
+	 * {@link #close()} is kept.
+	 */
+	public void abort() {
+		this.closed = true;
+		this.records = new ArrayList<Record>();
+		for (File run : this.runs) {
+			run.delete();
+		}
+		this.runs.clear();
+	}
+
+	private void addLine(String line) throws IOException {
+		if (line.isEmpty()) {
+			return;
+		}
+		if (line.charAt(0) == '@') {
+			if (this.recordCount > 0) {
+				throw new IllegalStateException("SAM header line after the first record: " + line);
+			}
+			this.header.append(line).append('\n');
+			if (line.startsWith("@SQ")) {
+				int nameStart = line.indexOf("\tSN:") + 4;
+				int nameEnd = line.indexOf('\t', nameStart);
+				this.referenceIndexes.put(line.substring(nameStart, nameEnd < 0 ? line.length() : nameEnd), this
+						.referenceIndexes.size());
+			}
+			return;
+		}
+
+		this.records.add(new Record(line));
+		this.recordCount++;
+		if (this.records.size() >= this.maxRecordsInRam) {
+			spill();
+		}
+	}
+
+	private void spill() throws IOException {
+		Collections.sort(this.records, COORDINATE_ORDER);
+
+		File run = File.createTempFile("bicycle_sort", ".run.gz", this.tmpDir);
+		run.deleteOnExit();
+		this.runs.add(run);
+
+		Writer out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(run),
+				65536) {
+			{
+				def.setLevel(Deflater.BEST_SPEED);
+			}
+		}, CHARSET), 65536);
+		try {
+			for (Record record : this.records) {
+				out.write(record.line);
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+		}
+		// a new list, so the memory of the large one can be reclaimed
+		this.records = new ArrayList<Record>();
+	}
+
+	private void writeBAM() throws IOException {
+		PriorityQueue<Run> queue = new PriorityQueue<Run>();
+		try {
+			for (int i = 0; i < this.runs.size(); i++) {
+				Run run = new Run(i, new BufferedReader(new InputStreamReader(new GZIPInputStream(new
+						FileInputStream(this.runs.get(i)), 65536), CHARSET), 65536), null);
+				if (run.advance()) {
+					queue.add(run);
+				}
+			}
+			Run memory = new Run(this.runs.size(), null, this.records.iterator());
+			if (memory.advance()) {
+				queue.add(memory);
+			}
+
+			SAMFileReader reader = new SAMFileReader(new BufferedInputStream(new MergedSAMInputStream(queue), 65536));
+			reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+
+			SAMFileHeader bamHeader = reader.getFileHeader();
+			bamHeader.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+
+			try {
+				ParallelBAMWriter writer = new ParallelBAMWriter(this.bam, bamHeader, this.threads);
+				boolean written = false;
+				try {
+					for (SAMRecord record : reader) {
+						writer.addAlignment(record);
+					}
+					writer.close();
+					written = true;
+				} finally {
+					if (!written) {
+						writer.abort();
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} finally {
+			for (Run run : queue) {
+				run.close();
+			}
+		}
+	}
+
+	/**
+	 * A SAM record, with the fields needed for sorting parsed.
+	 */
+	private class Record {
+		private final String line;
+		private final int nameEnd;
+		private final int reference;
+		private final int position;
+		private final boolean negative;
+
+		public Record(String line) {
+			this.line = line;
+			this.nameEnd = line.indexOf('\t');
+			int flagEnd = line.indexOf('\t', this.nameEnd + 1);
+			int referenceEnd = line.indexOf('\t', flagEnd + 1);
+			int positionEnd = line.indexOf('\t', referenceEnd + 1);
+			if (positionEnd < 0) {
+				throw new IllegalArgumentException("Malformed SAM record: " + line);
+			}
+
+			this.negative = (Integer.parseInt(line.substring(this.nameEnd + 1, flagEnd)) & 0x0010) == 0x0010;
+			Integer reference = referenceIndexes.get(line.substring(flagEnd + 1, referenceEnd));
+			if (reference == null) {
+				// unmapped reads go at the end, in no position
+				this.reference = Integer.MAX_VALUE;
+				this.position = 0;
+			} else {
+				this.reference = reference;
+				this.position = Integer.parseInt(line.substring(referenceEnd + 1, positionEnd));
+			}
+		}
+	}
+
+	private static final Comparator<Record> COORDINATE_ORDER = new Comparator<Record>() {
+		@Override
+		public int compare(Record o1, Record o2) {
+			if (o1.reference != o2.reference) {
+				return o1.reference < o2.reference ? -1 : 1;
+			}
+			if (o1.position != o2.position) {
+				return o1.position < o2.position ? -1 : 1;
+			}
+			if (o1.negative != o2.negative) {
+				return o1.negative ? 1 : -1;
+			}
+			int length = Math.min(o1.nameEnd, o2.nameEnd);
+			for (int i = 0; i < length; i++) {
+				char c1 = o1.line.charAt(i);
+				char c2 = o2.line.charAt(i);
+				if (c1 != c2) {
+					return c1 - c2;
+				}
+			}
+			return o1.nameEnd - o2.nameEnd;
+		}
+	};
+
+	/**
+	 * A sorted run, read from its temporary file or from memory. Runs with the same current record are ordered by
+	 * their index, so records that compare equally keep the order in which they were written.
+	 */
+	private class Run implements Comparable<Run> {
+		private final int index;
+		private final BufferedReader reader;
+		private final Iterator<Record> records;
+		private Record current;
+
+		public Run(int index, BufferedReader reader, Iterator<Record> records) {
+			this.index = index;
+			this.reader = reader;
+			this.records = records;
+		}
+
+		public boolean advance() throws IOException {
+			if (this.reader != null) {
+				String line = this.reader.readLine();
+				this.current = line == null ? null : new Record(line);
+			} else {
+				this.current = this.records.hasNext() ? this.records.next() : null;
+			}
+			if (this.current == null) {
+				close();
+				return false;
+			}
+			return true;
+		}
+
+		public void close() throws IOException {
+			if (this.reader != null) {
+				this.reader.close();
+			}
+		}
+
+		@Override
+		public int compareTo(Run o) {
+			int comparison = COORDINATE_ORDER.compare(this.current, o.current);
+			return comparison != 0 ? comparison : this.index - o.index;
+		}
+	}
+
+	/**
+	 * The SAM header followed by the records of the runs in order, as picard reads them.
+	 */
+	private class MergedSAMInputStream extends InputStream {
+		private final PriorityQueue<Run> queue;
+		private byte[] buffer;
+		private int position = 0;
+
+		public MergedSAMInputStream(PriorityQueue<Run> queue) {
+			this.queue = queue;
+			this.buffer = header.toString().getBytes(CHARSET);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!fill()) {
+				return -1;
+			}
+			return this.buffer[this.position++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			int count = Math.min(len, this.buffer.length - this.position);
+			System.arraycopy(this.buffer, this.position, b, off, count);
+			this.position += count;
+			return count;
+		}
+
+		private boolean fill() throws IOException {
+			while (this.position == this.buffer.length) {
+				Run run = this.queue.poll();
+				if (run == null) {
+					return false;
+				}
+				this.buffer = (run.current.line + "\n").getBytes(CHARSET);
+				this.position = 0;
+				if (run.advance()) {
+					this.queue.add(run);
+				}
+			}
+			return true;
+		}
+	}
+}
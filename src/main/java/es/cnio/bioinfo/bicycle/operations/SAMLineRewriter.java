@@ -0,0 +1,234 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.operations;
+
+import java.util.Arrays;
+
+/**
+ * Restores the original reads in the SAM records of the alignments of bisulfited reads, whose read names are
+ * NAME||READ (single-end) or NAME||MATE1||MATE2 (paired-end). The read name is replaced by NAME, followed by /1 or
+ * /2 in paired-end reads, and the sequence by the original read, reverse complemented if the read was aligned to the
+ * reverse strand. Header lines are kept as they are. Surrounding whitespace is removed.
+ * <p>
+ * The fields are located once per line and the record is rewritten into a buffer that is reused between lines, so
+ * an instance must not be shared between threads. The rewritten read name and whether the record is aligned can be
+ * asked after rewriting.
+ */
+public class SAMLineRewriter {
+
+	private static final char[] COMPLEMENT = new char[128];
+
+	static {
+		for (char c = 0; c < COMPLEMENT.length; c++) {
+			COMPLEMENT[c] = c;
+		}
+		COMPLEMENT['A'] = 'T';
+		COMPLEMENT['T'] = 'A';
+		COMPLEMENT['C'] = 'G';
+		COMPLEMENT['G'] = 'C';
+	}
+
+	private static final int QNAME = 0;
+	private static final int FLAG = 1;
+	private static final int CIGAR = 5;
+	private static final int SEQ = 9;
+
+	private char[] line = new char[1024];
+	private char[] output = new char[1024];
+	private int outputLength;
+
+	private int[] fieldStarts = new int[16];
+	private int[] fieldEnds = new int[16];
+	private int fields;
+
+	private boolean header;
+	private int readNameLength;
+	private boolean unaligned;
+
+	public String rewrite(String samLine) {
+		int length = samLine.length();
+		if (this.line.length < length) {
+			this.line = new char[Math.max(length, this.line.length * 2)];
+		}
+		samLine.getChars(0, length, this.line, 0);
+
+		int start = 0;
+		while (start < length && this.line[start] <= ' ') {
+			start++;
+		}
+		while (length > start && this.line[length - 1] <= ' ') {
+			length--;
+		}
+
+		this.header = start < length && this.line[start] == '@';
+		if (this.header || start == length) {
+			this.header = true;
+			return start == 0 && length == samLine.length() ? samLine : samLine.substring(start, length);
+		}
+
+		findFields(start, length);
+
+		int nameEnd = find(this.fieldStarts[QNAME], this.fieldEnds[QNAME]);
+		int read1Start = nameEnd + 2;
+		int read1End = find(read1Start, this.fieldEnds[QNAME]);
+		int read2Start = read1End + 2;
+		int read2End = find(read2Start, this.fieldEnds[QNAME]);
+
+		int flag = parseInt(this.fieldStarts[FLAG], this.fieldEnds[FLAG]);
+		int readStart = read1Start;
+		int readEnd = read1End;
+		String suffix = null;
+		if ((flag & 0x0001) == 0x0001) {
+			if ((flag & 0x0040) == 0x0040) {
+				suffix = "/1";
+			} else if ((flag & 0x0080) == 0x0080) {
+				suffix = "/2";
+				readStart = read2Start;
+				readEnd = read2End;
+			} else {
+				throw new RuntimeException("Malformed FLAG in SAM. It says that is a paired read, but it is not " +
+						"the first nor the second pair");
+			}
+		}
+		if (readStart > this.fieldEnds[QNAME]) {
+			throw new RuntimeException("The read name does not contain the original read: " + samLine);
+		}
+
+		ensureOutputCapacity(length - start + 4);
+		this.outputLength = 0;
+		append(this.fieldStarts[QNAME], nameEnd);
+		if (suffix != null) {
+			this.output[this.outputLength++] = suffix.charAt(0);
+			this.output[this.outputLength++] = suffix.charAt(1);
+		}
+		this.readNameLength = this.outputLength;
+
+		for (int field = 1; field < this.fields; field++) {
+			this.output[this.outputLength++] = '\t';
+			if (field == SEQ) {
+				if ((flag & 0x0010) == 0x0010) {
+					appendReverseComplementary(readStart, readEnd);
+				} else {
+					append(readStart, readEnd);
+				}
+			} else {
+				append(this.fieldStarts[field], this.fieldEnds[field]);
+			}
+		}
+
+		this.unaligned = this.fields > CIGAR && this.fieldEnds[CIGAR] - this.fieldStarts[CIGAR] == 1 && this
+				.line[this.fieldStarts[CIGAR]] == '*';
+
+		return new String(this.output, 0, this.outputLength);
+	}
+
+	public boolean isHeader() {
+		return header;
+	}
+
+	/**
+	 * If the cigar of the last rewritten record is *.
+	 */
+	public boolean isUnaligned() {
+		return unaligned;
+	}
+
+	/**
+	 * If the last records rewritten by both rewriters have the same read name, ignoring its last character if
+	 * ignoreLastCharacter (the mate number in paired-end reads).
+	 */
+	public boolean hasSameReadName(SAMLineRewriter other, boolean ignoreLastCharacter) {
+		int length = this.readNameLength - (ignoreLastCharacter ? 1 : 0);
+		if (other.readNameLength - (ignoreLastCharacter ? 1 : 0) != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (this.output[i] != other.output[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void findFields(int start, int end) {
+		this.fields = 0;
+		int fieldStart = start;
+		for (int i = start; i <= end; i++) {
+			if (i == end || this.line[i] == '\t') {
+				if (this.fields == this.fieldStarts.length) {
+					this.fieldStarts = Arrays.copyOf(this.fieldStarts, this.fields * 2);
+					this.fieldEnds = Arrays.copyOf(this.fieldEnds, this.fields * 2);
+				}
+				this.fieldStarts[this.fields] = fieldStart;
+				this.fieldEnds[this.fields] = i;
+				this.fields++;
+				fieldStart = i + 1;
+			}
+		}
+	}
+
+	/**
+	 * Position of the first || in the line between from and to, or to if there is none.
+	 */
+	private int find(int from, int to) {
+		for (int i = from; i < to - 1; i++) {
+			if (this.line[i] == '|' && this.line[i + 1] == '|') {
+				return i;
+			}
+		}
+		return to;
+	}
+
+	private int parseInt(int from, int to) {
+		if (from == to) {
+			throw new NumberFormatException("empty FLAG");
+		}
+		int value = 0;
+		for (int i = from; i < to; i++) {
+			char c = this.line[i];
+			if (c < '0' || c > '9') {
+				throw new NumberFormatException("For input string: \"" + new String(this.line, from, to - from) +
+						"\"");
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private void append(int from, int to) {
+		System.arraycopy(this.line, from, this.output, this.outputLength, to - from);
+		this.outputLength += to - from;
+	}
+
+	private void appendReverseComplementary(int from, int to) {
+		for (int i = to - 1; i >= from; i--) {
+			char c = this.line[i];
+			this.output[this.outputLength++] = c < COMPLEMENT.length ? COMPLEMENT[c] : c;
+		}
+	}
+
+	private void ensureOutputCapacity(int capacity) {
+		if (this.output.length < capacity) {
+			this.output = new char[Math.max(capacity, this.output.length * 2)];
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.math.MathException;
+import org.apache.commons.math.distribution.BinomialDistribution;
+import org.apache.commons.math.distribution.BinomialDistributionImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the per-cytosine p-value computation of ListerMethylationWalker with and without BinomialTailTable.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.openjdk.jmh.Main
+ * -Dexec.args=BinomialTailTableBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BinomialTailTableBenchmark {
+
+	private static final int CALLS = 4096;
+
+	@Param({"30", "100"})
+	public int meanDepth;
+
+	private double[] errorRates = {0.0025, 0.004, 0.0071};
+	private int[] depths = new int[CALLS];
+	private int[] mCCounts = new int[CALLS];
+	private int[] errors = new int[CALLS];
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1);
+		for (int i = 0; i < CALLS; i++) {
+			// depths spread around the mean, methylation levels mostly low or high as in real samples
+			depths[i] = Math.max(1, (int) Math.round(meanDepth + random.nextGaussian() * meanDepth / 3));
+			double level = random.nextBoolean() ? random.nextDouble() * 0.1 : 0.7 + random.nextDouble() * 0.3;
+			mCCounts[i] = (int) Math.round(depths[i] * level);
+			errors[i] = random.nextInt(errorRates.length);
+		}
+	}
+
+	@Benchmark
+	@Threads(4)
+	public double commonsMath() throws MathException {
+		double sum = 0;
+		for (int i = 0; i < CALLS; i++) {
+			BinomialDistribution binomial = new BinomialDistributionImpl(depths[i], errorRates[errors[i]]);
+			sum += (mCCounts[i] == 0) ? 1.0d : (1.0d - binomial.cumulativeProbability(mCCounts[i] - 1));
+		}
+		return sum;
+	}
+
+	@Benchmark
+	@Threads(4)
+	public double tailTable() {
+		double sum = 0;
+		for (int i = 0; i < CALLS; i++) {
+			sum += BinomialTailTable.forErrorRate(errorRates[errors[i]]).getPval(mCCounts[i], depths[i]);
+		}
+		return sum;
+	}
+}
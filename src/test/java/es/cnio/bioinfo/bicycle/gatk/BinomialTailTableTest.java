@@ -0,0 +1,117 @@
+package es.cnio.bioinfo.bicycle.gatk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.math.distribution.BinomialDistributionImpl;
+import org.junit.Test;
+
+public class BinomialTailTableTest {
+
+	@Test
+	public void testSameValuesAsCommonsMath() throws Exception {
+		double errorRate = 0.0073;
+		BinomialTailTable table = BinomialTailTable.forErrorRate(errorRate);
+		for (int depth = 1; depth <= 200; depth++) {
+			BinomialDistributionImpl binomial = new BinomialDistributionImpl(depth, errorRate);
+			assertEquals(1.0d, table.getPval(0, depth), 0d);
+			for (int mCCount = 1; mCCount <= depth; mCCount++) {
+				double expected = 1.0d - binomial.cumulativeProbability(mCCount - 1);
+				// exact match, no tolerance
+				assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(table.getPval(mCCount,
+						depth)));
+			}
+		}
+	}
+
+	@Test
+	public void testUncachedDepths() {
+		double errorRate = 0.01;
+		BinomialTailTable table = BinomialTailTable.forErrorRate(errorRate);
+		int depth = BinomialTailTable.MAX_CACHED_DEPTH + 1;
+
+		assertEquals(BinomialTailTable.computePval(errorRate, 3, depth), table.getPval(3, depth), 0d);
+	}
+
+	@Test
+	public void testSharedTable() {
+		assertEquals(BinomialTailTable.forErrorRate(0.02), BinomialTailTable.forErrorRate(0.02));
+	}
+
+	@Test
+	public void testConcurrentGrowth() throws Exception {
+		final double errorRate = 0.005;
+		final BinomialTailTable table = BinomialTailTable.forErrorRate(errorRate);
+		final List<Throwable> errors = new ArrayList<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			final long seed = t;
+			Thread thread = new Thread() {
+				public void run() {
+					Random random = new Random(seed);
+					try {
+						for (int i = 0; i < 2000; i++) {
+							int depth = 1 + random.nextInt(500);
+							int mCCount = random.nextInt(depth + 1);
+							assertEquals(BinomialTailTable.computePval(errorRate, mCCount, depth), table.getPval
+									(mCCount, depth), 0d);
+						}
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(0, errors.size());
+	}
+
+	@Test
+	public void testOnlyRequestedPrefixIsCached() {
+		BinomialTailTable table = BinomialTailTable.forErrorRate(0.0031);
+		for (int depth = 1; depth <= BinomialTailTable.MAX_CACHED_DEPTH; depth++) {
+			table.getPval(Math.min(depth, 3), depth);
+		}
+		// rows start with a few values and are not filled up to the depth
+		assertTrue(table.getCachedValues() <= 8 * BinomialTailTable.MAX_CACHED_DEPTH);
+
+		table.getPval(900, 1000);
+		assertTrue(table.getCachedValues() <= 8 * BinomialTailTable.MAX_CACHED_DEPTH + 1001);
+	}
+
+	@Test
+	public void testCachedValuesAreBounded() {
+		double errorRate = 0.0047;
+		BinomialTailTable table = BinomialTailTable.forErrorRate(errorRate);
+		// full rows for every cached depth would be about half a million values
+		for (int depth = 1; depth <= BinomialTailTable.MAX_CACHED_DEPTH; depth++) {
+			table.getPval(depth, depth);
+		}
+		assertTrue(table.getCachedValues() <= BinomialTailTable.MAX_CACHED_VALUES);
+
+		// values past the budget are still right
+		for (int depth = BinomialTailTable.MAX_CACHED_DEPTH - 10; depth <= BinomialTailTable.MAX_CACHED_DEPTH;
+				depth++) {
+			assertEquals(Double.doubleToLongBits(BinomialTailTable.computePval(errorRate, depth / 2, depth)), Double
+					.doubleToLongBits(table.getPval(depth / 2, depth)));
+		}
+	}
+
+	@Test
+	public void testTablesAreBounded() {
+		for (int i = 0; i < 10 * BinomialTailTable.MAX_TABLES; i++) {
+			BinomialTailTable.forErrorRate(0.1 + i / 1000d);
+			assertTrue(BinomialTailTable.getTableCount() <= BinomialTailTable.MAX_TABLES);
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package es.cnio.bioinfo.bicycle.gatk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CytosineContextIndexTest {
+
+	@Test
+	public void testContexts() throws IOException {
+		File index = buildIndex(">chr1 first sequence\nCGACAGcTGN\nCCAG\n>chr2\nGGCC\n");
+
+		try (CytosineContextIndex contexts = new CytosineContextIndex(index)) {
+			assertEquals(Arrays.asList("chr1", "chr2"), contexts.getSequenceNames());
+			assertEquals(14, contexts.getSequence("chr1").getLength());
+
+			assertEquals(Context.CG, contexts.getContext("chr1", 1)); // C G A
+			assertNull(contexts.getContext("chr1", 2)); // G in position 2, Crick needs 2 upstream bases
+			assertEquals(Context.CHG, contexts.getContext("chr1", 4)); // C A G
+			assertEquals(Context.CHG, contexts.getContext("chr1", 6)); // G, 2 upstream is C
+			assertEquals(Context.CHG, contexts.getContext("chr1", 7)); // c T G, lower case
+			assertEquals(Context.CHG, contexts.getContext("chr1", 9)); // G, 2 upstream is c
+			assertEquals(Context.CHH, contexts.getContext("chr1", 11)); // C C A, crosses the line
+			assertEquals(Context.CHG, contexts.getContext("chr1", 12)); // C A G
+			assertEquals(Context.CHG, contexts.getContext("chr1", 14)); // G, 2 upstream is C
+			assertNull(contexts.getContext("chr1", 3));
+			assertNull(contexts.getContext("chr1", 10));
+
+			// Watson cytosines in the last 2 bases have no context
+			assertNull(contexts.getContext("chr2", 3));
+			assertNull(contexts.getContext("chr2", 4));
+			assertNull(contexts.getContext("chr2", 1));
+			assertNull(contexts.getContext("chr2", 2));
+		}
+	}
+
+	@Test
+	public void testRandomSequences() throws IOException {
+		Random random = new Random(1);
+		String[] sequences = new String[5];
+		StringBuilder fasta = new StringBuilder();
+		for (int i = 0; i < sequences.length; i++) {
+			StringBuilder sequence = new StringBuilder();
+			int length = 1 + random.nextInt(500);
+			for (int j = 0; j < length; j++) {
+				sequence.append("ACGTNacgt".charAt(random.nextInt(9)));
+			}
+			sequences[i] = sequence.toString();
+			fasta.append(">seq").append(i).append("\n");
+			for (int j = 0; j < length; j += 60) {
+				fasta.append(sequences[i], j, Math.min(length, j + 60)).append("\n");
+			}
+		}
+
+		try (CytosineContextIndex contexts = new CytosineContextIndex(buildIndex(fasta.toString()))) {
+			for (int i = 0; i < sequences.length; i++) {
+				String sequence = sequences[i].toUpperCase();
+				for (int position = 1; position <= sequence.length(); position++) {
+					assertEquals("seq" + i + ":" + position, expectedContext(sequence, position), contexts.getContext
+							("seq" + i, position));
+				}
+			}
+		}
+	}
+
+	// as in Strand.getContext
+	private static Context expectedContext(String sequence, int position) {
+		char base = sequence.charAt(position - 1);
+		if (base == 'C' && position + 2 <= sequence.length()) {
+			return sequence.charAt(position) == 'G' ? Context.CG : sequence.charAt(position + 1) == 'G' ? Context
+					.CHG : Context.CHH;
+		} else if (base == 'G' && position > 2) {
+			return sequence.charAt(position - 2) == 'C' ? Context.CG : sequence.charAt(position - 3) == 'C' ?
+					Context.CHG : Context.CHH;
+		}
+		return null;
+	}
+
+	private static File buildIndex(String fasta) throws IOException {
+		File fastaFile = File.createTempFile("reference", ".fa");
+		fastaFile.deleteOnExit();
+		try (PrintStream out = new PrintStream(new FileOutputStream(fastaFile))) {
+			out.print(fasta);
+		}
+
+		File index = new File(fastaFile.getAbsolutePath() + ".contexts");
+		index.deleteOnExit();
+		CytosineContextIndex.build(fastaFile, index);
+		return index;
+	}
+}
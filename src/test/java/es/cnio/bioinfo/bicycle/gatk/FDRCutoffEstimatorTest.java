@@ -0,0 +1,32 @@
+package es.cnio.bioinfo.bicycle.gatk;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class FDRCutoffEstimatorTest {
+
+	@Test
+	public void testFixedPoint() {
+		PValueHistogram pvals = new PValueHistogram();
+		pvals.add(1e-6, 20);
+		pvals.add(0.004, 5);
+		pvals.add(1.0, 75);
+
+		FDRCutoffEstimator.Result result = new FDRCutoffEstimator(0.01).estimate(pvals);
+
+		// 1: 25% below 1.0 -> cutoff 0.01*25/75
+		// 2: 20% below 0.00333 -> cutoff 0.01*20/80
+		// 3: 20% below 0.0025 -> converged
+		assertEquals(0.0025, result.getCutoff(), 1e-15);
+		assertEquals(3, result.getIterations());
+	}
+
+	@Test
+	public void testNoCytosines() {
+		FDRCutoffEstimator.Result result = new FDRCutoffEstimator(0.01).estimate(new PValueHistogram());
+
+		assertEquals(0d, result.getCutoff(), 0d);
+		assertEquals(1, result.getIterations());
+	}
+}
@@ -0,0 +1,91 @@
+package es.cnio.bioinfo.bicycle.gatk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class GPFilesReaderTest {
+
+	private static final List<String> SEQUENCES = Arrays.asList("chr10", "chr2", "chr1");
+
+	@Test
+	public void testMergesInDictionaryOrder() throws IOException {
+		GPFilesReader reader = new GPFilesReader(SEQUENCES,
+				reader("#header", "chr10\t5\tA", "chr2\t1\tA", "chr1\t3\tA"),
+				reader("chr10\t5\tB", "chr2\t1\tB", "chr2\t7\tB"),
+				reader());
+
+		assertEquals("chr10\t5\tA", reader.readLine());
+		assertEquals(0, reader.getLastLineReaderIndex());
+		assertEquals("chr10\t5\tB", reader.readLine());
+		assertEquals(1, reader.getLastLineReaderIndex());
+		assertEquals("chr2\t1\tA", reader.readLine());
+		assertEquals("chr2\t1\tB", reader.readLine());
+		assertEquals("chr2\t7\tB", reader.readLine());
+		assertEquals(1, reader.getLastLineReaderIndex());
+		assertEquals("chr1\t3\tA", reader.readLine());
+		assertEquals(0, reader.getLastLineReaderIndex());
+		assertNull(reader.readLine());
+		assertEquals(-1, reader.getLastLineReaderIndex());
+	}
+
+	@Test
+	public void testManyFiles() throws IOException {
+		Random random = new Random(1);
+		int files = 40;
+		final List<String[]> expected = new ArrayList<>();
+		BufferedReader[] readers = new BufferedReader[files];
+		for (int i = 0; i < files; i++) {
+			List<String> lines = new ArrayList<>();
+			for (int sequence = 0; sequence < SEQUENCES.size(); sequence++) {
+				long position = 0;
+				for (int j = random.nextInt(50); j > 0; j--) {
+					position += random.nextInt(3);
+					String line = SEQUENCES.get(sequence) + "\t" + position + "\t" + i;
+					lines.add(line);
+					expected.add(new String[]{line, Integer.toString(sequence), Long.toString(position), Integer
+							.toString(i)});
+				}
+			}
+			readers[i] = reader(lines.toArray(new String[0]));
+		}
+		Collections.sort(expected, new Comparator<String[]>() {
+			@Override
+			public int compare(String[] a, String[] b) {
+				for (int i = 1; i < 4; i++) {
+					int comparison = Long.compare(Long.parseLong(a[i]), Long.parseLong(b[i]));
+					if (comparison != 0) {
+						return comparison;
+					}
+				}
+				return 0;
+			}
+		});
+
+		GPFilesReader reader = new GPFilesReader(SEQUENCES, readers);
+		for (String[] line : expected) {
+			assertEquals(line[0], reader.readLine());
+			assertEquals(Integer.parseInt(line[3]), reader.getLastLineReaderIndex());
+		}
+		assertNull(reader.readLine());
+	}
+
+	private static BufferedReader reader(String... lines) {
+		StringBuilder text = new StringBuilder();
+		for (String line : lines) {
+			text.append(line).append("\n");
+		}
+		return new BufferedReader(new StringReader(text.toString()));
+	}
+}
@@ -235,6 +235,37 @@ public class ListerFilterTest {
 		return record;
 	}
 
+	@Test
+	public void testTrimmingOfASubclass() {
+		boolean staticTrim = ListerFilter.trim;
+		try {
+			ListerFilter.trim = false;
+			aSAMRecord = createSAMRecord("TTATTAT", "7M", "2A2A1", 2, false);
+			filter = createFilterTrimming(true);
+			filter.trimUntil = 1;
+			filter.filterOut(aSAMRecord);
+			assertEquals("TTXXXXX", aSAMRecord.getReadString());
+
+			ListerFilter.trim = true;
+			aSAMRecord = createSAMRecord("TTATTAT", "7M", "2A2A1", 2, false);
+			filter = createFilterTrimming(false);
+			filter.trimUntil = 1;
+			filter.filterOut(aSAMRecord);
+			assertEquals("TTATTAT", aSAMRecord.getReadString());
+		} finally {
+			ListerFilter.trim = staticTrim;
+		}
+	}
+
+	private ListerFilter createFilterTrimming(final boolean trimming) {
+		return new ListerFilter() {
+			@Override
+			protected boolean isTrimming() {
+				return trimming;
+			}
+		};
+	}
+
 	private ListerFilter createTrimmingFilterUntil(int mismatches) {
 		ListerFilter filter = new ListerFilter();
 		filter.trim = true;
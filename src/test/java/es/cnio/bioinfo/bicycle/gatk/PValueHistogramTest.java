@@ -0,0 +1,119 @@
+package es.cnio.bioinfo.bicycle.gatk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PValueHistogramTest {
+
+	@Test
+	public void testCounts() {
+		PValueHistogram histogram = new PValueHistogram();
+		histogram.add(0.5);
+		histogram.add(0.01);
+		histogram.add(0.5);
+		histogram.add(1.0, 3);
+
+		assertEquals(3, histogram.size());
+		assertEquals(6, histogram.getTotal());
+		assertEquals(2, histogram.getCount(0.5));
+		assertEquals(1, histogram.getCount(0.01));
+		assertEquals(3, histogram.getCount(1.0));
+		assertEquals(0, histogram.getCount(0.2));
+		assertArrayEquals(new double[]{0.01, 0.5, 1.0}, histogram.getSortedPvals(), 0d);
+	}
+
+	@Test
+	public void testCountBelowIsStrict() {
+		PValueHistogram histogram = new PValueHistogram();
+		histogram.add(0.01);
+		histogram.add(0.5, 2);
+		histogram.add(1.0, 3);
+
+		assertEquals(0, histogram.countBelow(0.0));
+		assertEquals(0, histogram.countBelow(0.01));
+		assertEquals(1, histogram.countBelow(0.02));
+		assertEquals(1, histogram.countBelow(0.5));
+		assertEquals(3, histogram.countBelow(0.6));
+		assertEquals(3, histogram.countBelow(1.0));
+		assertEquals(6, histogram.countBelow(1.1));
+	}
+
+	@Test
+	public void testAddAfterQuery() {
+		PValueHistogram histogram = new PValueHistogram();
+		histogram.add(0.3);
+		assertEquals(1, histogram.countBelow(0.4));
+
+		histogram.add(0.1);
+		assertEquals(2, histogram.countBelow(0.4));
+	}
+
+	@Test
+	public void testEmpty() {
+		PValueHistogram histogram = new PValueHistogram();
+		assertEquals(0, histogram.countBelow(1.0));
+		assertEquals(0, histogram.getTotal());
+
+		PValueHistogram merged = PValueHistogram.merge(histogram, new PValueHistogram());
+		assertEquals(0, merged.size());
+		assertEquals(0, merged.countBelow(1.0));
+	}
+
+	@Test
+	public void testMerge() {
+		PValueHistogram a = new PValueHistogram();
+		a.add(0.1);
+		a.add(0.5, 2);
+		PValueHistogram b = new PValueHistogram();
+		b.add(0.5);
+		b.add(0.9, 4);
+
+		PValueHistogram merged = PValueHistogram.merge(a, b);
+		assertEquals(3, merged.size());
+		assertEquals(8, merged.getTotal());
+		assertEquals(1, merged.getCount(0.1));
+		assertEquals(3, merged.getCount(0.5));
+		assertEquals(4, merged.getCount(0.9));
+		assertEquals(4, merged.countBelow(0.9));
+
+		// merged histograms keep accepting values
+		merged.add(0.05);
+		assertEquals(5, merged.countBelow(0.9));
+		assertEquals(9, merged.getTotal());
+	}
+
+	@Test
+	public void testAgainstMap() {
+		Random random = new Random(17);
+		PValueHistogram a = new PValueHistogram(4);
+		PValueHistogram b = new PValueHistogram(4);
+		Map<Double, Integer> expected = new HashMap<>();
+
+		for (int i = 0; i < 20000; i++) {
+			// few distinct values, as the binomial p-values for bounded depths
+			double pval = random.nextInt(500) / 499d;
+			(i % 3 == 0 ? a : b).add(pval);
+			Integer count = expected.get(pval);
+			expected.put(pval, count == null ? 1 : count + 1);
+		}
+		PValueHistogram merged = PValueHistogram.merge(a, b);
+
+		for (double cutoff : new double[]{0, 0.001, 0.01, 0.25, 0.5, 0.999, 1, 2}) {
+			int total = 0;
+			for (Map.Entry<Double, Integer> entry : expected.entrySet()) {
+				if (entry.getKey() < cutoff) {
+					total += entry.getValue();
+				}
+			}
+			assertEquals(total, merged.countBelow(cutoff));
+			assertEquals(total, a.countBelow(cutoff) + b.countBelow(cutoff));
+		}
+		assertEquals(expected.size(), merged.size());
+	}
+}
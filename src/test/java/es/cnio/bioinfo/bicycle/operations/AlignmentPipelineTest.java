@@ -0,0 +1,232 @@
+package es.cnio.bioinfo.bicycle.operations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import es.cnio.bioinfo.bicycle.operations.AlignmentPipeline.LineProcessor;
+import es.cnio.bioinfo.bicycle.operations.AlignmentPipeline.ReadsSource;
+
+public class AlignmentPipelineTest {
+
+	private File logFile;
+
+	@Before
+	public void createLogFile() throws IOException {
+		this.logFile = File.createTempFile("alignmentPipeline", ".log");
+	}
+
+	@After
+	public void deleteLogFile() {
+		this.logFile.delete();
+	}
+
+	@Test
+	public void testCatEchoesInput() throws IOException {
+		// several chunks, fed in buffers that do not match the chunk size
+		final int lines = 400000;
+		ReadsSource reads = new LinesSource(lines, 70000);
+		final AtomicInteger count = new AtomicInteger();
+		final AtomicInteger finished = new AtomicInteger();
+
+		AlignmentPipeline pipeline = new AlignmentPipeline();
+		try {
+			pipeline.start(new String[] { "cat" }, logFile, reads, new LineProcessor() {
+				@Override
+				public void processLine(String line) {
+					assertEquals(LinesSource.line(count.getAndIncrement()), line);
+				}
+
+				@Override
+				public void finish() {
+					finished.incrementAndGet();
+				}
+			}, "cat");
+			pipeline.await();
+		} finally {
+			pipeline.close();
+		}
+
+		assertEquals(lines, count.get());
+		assertEquals(1, finished.get());
+	}
+
+	@Test
+	public void testFailureCancelsTheOthers() throws Exception {
+		final AtomicBoolean consumerInterrupted = new AtomicBoolean();
+		final CountDownLatch consumerStarted = new CountDownLatch(1);
+		LinesSource siblingReads = new LinesSource(Integer.MAX_VALUE, 65536);
+
+		AlignmentPipeline pipeline = new AlignmentPipeline();
+		try {
+			pipeline.run(new Callable<Void>() {
+				@Override
+				public Void call() {
+					consumerStarted.countDown();
+					try {
+						Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+					} catch (InterruptedException e) {
+						consumerInterrupted.set(true);
+					}
+					return null;
+				}
+			});
+			pipeline.start(new String[] { "cat" }, logFile, siblingReads, new DiscardLines(), "sibling");
+			// fails after reading part of its input
+			pipeline.start(new String[] { "sh", "-c", "head -c 100000 > /dev/null; exit 3" }, logFile, new
+					LinesSource(Integer.MAX_VALUE, 65536), new DiscardLines(), "failing");
+			assertTrue(consumerStarted.await(10, TimeUnit.SECONDS));
+
+			try {
+				pipeline.await();
+				fail("the failing process should make the pipeline fail");
+			} catch (RuntimeException e) {
+				assertTrue(e.getMessage().contains("(3)"));
+				assertTrue(e.getMessage().contains("failing"));
+			}
+		} finally {
+			pipeline.close();
+		}
+
+		assertTrue(consumerInterrupted.get());
+		long fed = siblingReads.bytes.get();
+		Thread.sleep(200);
+		assertEquals(fed, siblingReads.bytes.get());
+	}
+
+	@Test
+	public void testSlowConsumerBlocksTheFeeder() throws Exception {
+		final CountDownLatch firstLine = new CountDownLatch(1);
+		LinesSource reads = new LinesSource(Integer.MAX_VALUE, 65536);
+
+		AlignmentPipeline pipeline = new AlignmentPipeline();
+		try {
+			pipeline.start(new String[] { "cat" }, logFile, reads, new LineProcessor() {
+				@Override
+				public void processLine(String line) {
+					firstLine.countDown();
+					try {
+						Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+				}
+
+				@Override
+				public void finish() {
+				}
+			}, "cat");
+			assertTrue(firstLine.await(10, TimeUnit.SECONDS));
+
+			Thread.sleep(1000);
+			long fed = reads.bytes.get();
+			Thread.sleep(500);
+			assertEquals(fed, reads.bytes.get());
+			// the chunks, the pipes and the output buffer, far less than the endless input
+			assertTrue(fed < 16 * 1024 * 1024);
+		} finally {
+			pipeline.close();
+		}
+	}
+
+	@Test
+	public void testCloseKillsProcesses() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final AtomicLong pid = new AtomicLong();
+
+		AlignmentPipeline pipeline = new AlignmentPipeline();
+		try {
+			pipeline.start(new String[] { "sh", "-c", "echo $$; exec sleep 60" }, logFile, new LinesSource(0,
+					1), new LineProcessor() {
+				@Override
+				public void processLine(String line) {
+					pid.set(Long.parseLong(line));
+					started.countDown();
+				}
+
+				@Override
+				public void finish() {
+				}
+			}, "sleep");
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			assertTrue(isRunning(pid.get()));
+		} finally {
+			pipeline.close();
+		}
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (isRunning(pid.get()) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertTrue("the process is still running after closing the pipeline", !isRunning(pid.get()));
+	}
+
+	private static boolean isRunning(long pid) throws IOException, InterruptedException {
+		return new ProcessBuilder("kill", "-0", Long.toString(pid)).start().waitFor() == 0;
+	}
+
+	/**
+	 * Numbered lines given in buffers of a fixed size that are reused, as the read encoders do.
+	 */
+	private static class LinesSource implements ReadsSource {
+		private final int lines;
+		private final ByteBuffer buffer;
+		private final AtomicLong bytes = new AtomicLong();
+		private int next = 0;
+		private byte[] pending = new byte[0];
+		private int pendingOffset = 0;
+
+		public LinesSource(int lines, int bufferSize) {
+			this.lines = lines;
+			this.buffer = ByteBuffer.allocate(bufferSize);
+		}
+
+		public static String line(int number) {
+			return "@read" + number + "\tACGT";
+		}
+
+		@Override
+		public ByteBuffer next() {
+			buffer.clear();
+			while (buffer.hasRemaining()) {
+				if (pendingOffset == pending.length) {
+					if (next == lines) {
+						break;
+					}
+					pending = (line(next++) + "\n").getBytes();
+					pendingOffset = 0;
+				}
+				int length = Math.min(buffer.remaining(), pending.length - pendingOffset);
+				buffer.put(pending, pendingOffset, length);
+				pendingOffset += length;
+			}
+			buffer.flip();
+			bytes.addAndGet(buffer.remaining());
+			return buffer.hasRemaining() ? buffer : null;
+		}
+	}
+
+	private static class DiscardLines implements LineProcessor {
+		@Override
+		public void processLine(String line) {
+		}
+
+		@Override
+		public void finish() {
+		}
+	}
+}
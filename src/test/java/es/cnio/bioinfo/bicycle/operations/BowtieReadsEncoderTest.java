@@ -0,0 +1,73 @@
+package es.cnio.bioinfo.bicycle.operations;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BowtieReadsEncoderTest {
+
+	private static final String MATE1 = "@pair 1\nACGTTC\n+\nIIIIII\n@pair2 1\nGGCA\n+\nHHHH\n";
+	private static final String MATE2 = "@pair 2\nCCGA\n+\nJJJJ\n@pair2 2\nTGCA\n+\nKKKK\n";
+
+	@Test
+	public void testSingleEnd() throws IOException {
+		assertEquals("@pair_1||ACGTTC\nATGTTT\n+\nIIIIII\n@pair2_1||GGCA\nGGTA\n+\nHHHH\n", encode(new
+				BowtieReadsEncoder(null, stream(MATE1), true, false)));
+
+		assertEquals("@pair_1||ACGTTC\nATGTTT\n+\nIIIIII\n@pair_1||ACGTTC\nACATTC\n+\nIIIIII\n" +
+				"@pair2_1||GGCA\nGGTA\n+\nHHHH\n@pair2_1||GGCA\nAACA\n+\nHHHH\n", encode(new BowtieReadsEncoder(null,
+				stream(MATE1), false, false)));
+	}
+
+	@Test
+	public void testPairedEnd() throws IOException {
+		assertEquals("pair_1||ACGTTC||CCGA\tATGTTT\tIIIIII\tCCAA\tJJJJ\n" +
+				"pair2_1||GGCA||TGCA\tGGTA\tHHHH\tTACA\tKKKK\n", encode(new BowtieReadsEncoder(null, stream(MATE1),
+				stream(MATE2), true, false)));
+
+		assertEquals("pair_1||ACGTTC||CCGA\tATGTTT\tIIIIII\tCCAA\tJJJJ\n" +
+				"pair_1||ACGTTC||CCGA\tACATTC\tIIIIII\tTTGA\tJJJJ\n" +
+				"pair2_1||GGCA||TGCA\tGGTA\tHHHH\tTACA\tKKKK\n" +
+				"pair2_1||GGCA||TGCA\tAACA\tHHHH\tTGTA\tKKKK\n", encode(new BowtieReadsEncoder(null, stream(MATE1),
+				stream(MATE2), false, false)));
+	}
+
+	@Test
+	public void testManyReads() throws IOException {
+		Random random = new Random(1);
+		StringBuilder fastq = new StringBuilder();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			StringBuilder sequence = new StringBuilder();
+			for (int j = 1 + random.nextInt(150); j > 0; j--) {
+				sequence.append("ACGTN".charAt(random.nextInt(5)));
+			}
+			String quality = sequence.toString().replaceAll("[A-Z]", "I");
+			fastq.append("@read ").append(i).append("\n").append(sequence).append("\n+\n").append(quality).append
+					("\n");
+			expected.append("@read_").append(i).append("||").append(sequence).append("\n").append(sequence
+					.toString().replace('C', 'T')).append("\n+\n").append(quality).append("\n");
+		}
+		assertEquals(expected.toString(), encode(new BowtieReadsEncoder(null, stream(fastq.toString()), true,
+				false)));
+	}
+
+	private static ByteArrayInputStream stream(String fastq) {
+		return new ByteArrayInputStream(fastq.getBytes());
+	}
+
+	private static String encode(BowtieReadsEncoder encoder) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ByteBuffer bytes;
+		while ((bytes = encoder.next()) != null) {
+			out.write(bytes.array(), bytes.position(), bytes.remaining());
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,53 @@
+package es.cnio.bioinfo.bicycle.operations;
+
+import static es.cnio.bioinfo.bicycle.operations.FastqRecordParser.HEADER;
+import static es.cnio.bioinfo.bicycle.operations.FastqRecordParser.PLUS;
+import static es.cnio.bioinfo.bicycle.operations.FastqRecordParser.QUALITY;
+import static es.cnio.bioinfo.bicycle.operations.FastqRecordParser.SEQUENCE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class FastqRecordParserTest {
+
+	@Test
+	public void testRecords() throws IOException {
+		String fastq = "@read1 first\nACGT\n+\nIIII\n@read2\r\nCCGGTT\r\n+read2\r\nIIIIII\r\n@read3\nA\n+\n@\n" +
+				"@incomplete\nACGT\n";
+		// buffers smaller than a record have to grow
+		for (int bufferSize = 1; bufferSize < 64; bufferSize++) {
+			FastqRecordParser parser = new FastqRecordParser(new ByteArrayInputStream(fastq.getBytes()),
+					bufferSize);
+
+			assertTrue(parser.next());
+			assertRecord(parser, "@read1 first", "ACGT", "+", "IIII");
+			assertTrue(parser.next());
+			assertRecord(parser, "@read2", "CCGGTT", "+read2", "IIIIII");
+			assertTrue(parser.next());
+			assertRecord(parser, "@read3", "A", "+", "@");
+			assertFalse(parser.next());
+			assertFalse(parser.next());
+		}
+	}
+
+	@Test
+	public void testWithoutLastLineBreak() throws IOException {
+		FastqRecordParser parser = new FastqRecordParser(new ByteArrayInputStream("@r\nAC\n+\nII".getBytes()), 4);
+		assertTrue(parser.next());
+		assertRecord(parser, "@r", "AC", "+", "II");
+		assertFalse(parser.next());
+	}
+
+	private static void assertRecord(FastqRecordParser parser, String header, String sequence, String plus, String
+			quality) {
+		assertEquals(header, parser.getLine(HEADER));
+		assertEquals(sequence, parser.getLine(SEQUENCE));
+		assertEquals(plus, parser.getLine(PLUS));
+		assertEquals(quality, parser.getLine(QUALITY));
+	}
+}
@@ -0,0 +1,230 @@
+package es.cnio.bioinfo.bicycle.operations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+
+public class LineRingTest {
+
+	private static final long TIMEOUT = 10000;
+
+	@Test
+	public void testOrderAndCount() throws Exception {
+		final int lines = 2000000;
+		final LineRing ring = new LineRing(8);
+
+		Worker producer = start(new Callable<Object>() {
+			@Override
+			public Object call() {
+				for (int i = 0; i < lines; i++) {
+					ring.processLine(Integer.toString(i));
+				}
+				ring.finish();
+				return null;
+			}
+		});
+
+		int count = 0;
+		for (int available = ring.awaitLines(); available > 0; available = ring.awaitLines()) {
+			for (int i = 0; i < available; i++) {
+				assertEquals(Integer.toString(count++), ring.poll());
+			}
+		}
+		producer.check();
+		assertEquals(lines, count);
+		assertEquals(0, ring.awaitLines());
+	}
+
+	@Test
+	public void testFullRing() throws Exception {
+		final LineRing ring = new LineRing(4);
+		for (String line : new String[] { "a", "b", "c", "d" }) {
+			ring.processLine(line);
+		}
+
+		Worker producer = start(new Callable<Object>() {
+			@Override
+			public Object call() {
+				ring.processLine("e");
+				return null;
+			}
+		});
+		Thread.sleep(200);
+		assertTrue("the producer should wait while the ring is full", producer.isAlive());
+
+		assertEquals(4, ring.awaitLines());
+		assertEquals("a", ring.poll());
+		producer.check();
+		assertTrue(ring.getStatistics().endsWith("full 1 times"));
+
+		// the consumer only looks at the tail again once it has taken the lines it saw
+		assertEquals(3, ring.awaitLines());
+		for (String line : new String[] { "b", "c", "d" }) {
+			assertEquals(line, ring.poll());
+		}
+		assertEquals(1, ring.awaitLines());
+		assertEquals("e", ring.poll());
+	}
+
+	@Test
+	public void testEmptyRing() throws Exception {
+		final LineRing ring = new LineRing(4);
+
+		Worker consumer = start(new Callable<Object>() {
+			@Override
+			public Object call() {
+				return ring.awaitLines();
+			}
+		});
+		Thread.sleep(200);
+		assertTrue("the consumer should wait while the ring is empty", consumer.isAlive());
+
+		ring.processLine("a");
+		assertEquals(1, consumer.check());
+		assertEquals("a", ring.poll());
+	}
+
+	@Test
+	public void testFinishWithPendingLines() throws Exception {
+		LineRing ring = new LineRing(4);
+		ring.processLine("a");
+		ring.processLine("b");
+		ring.processLine("c");
+		ring.finish();
+
+		assertEquals(3, ring.awaitLines());
+		assertEquals("a", ring.poll());
+		assertEquals(2, ring.awaitLines());
+		assertEquals("b", ring.poll());
+		assertEquals("c", ring.poll());
+		assertEquals(0, ring.awaitLines());
+		assertEquals(0, ring.awaitLines());
+	}
+
+	@Test
+	public void testFinishWhileWaiting() throws Exception {
+		final LineRing ring = new LineRing(4);
+
+		Worker consumer = start(new Callable<Object>() {
+			@Override
+			public Object call() {
+				return ring.awaitLines();
+			}
+		});
+		Thread.sleep(100);
+		ring.finish();
+		assertEquals(0, consumer.check());
+	}
+
+	@Test
+	public void testPairs() {
+		LineRing CTLines = new LineRing(4);
+		LineRing GALines = new LineRing(4);
+		CTLines.processLine("ct1");
+		CTLines.processLine("ct2");
+		GALines.processLine("ga1");
+		CTLines.finish();
+		GALines.finish();
+
+		assertEquals(1, LineRing.awaitPairs(CTLines, GALines));
+		assertEquals("ct1", CTLines.poll());
+		assertEquals("ga1", GALines.poll());
+		try {
+			LineRing.awaitPairs(CTLines, GALines);
+			fail("the CT alignment has one more line");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage().contains("different number of lines"));
+		}
+
+		assertEquals("ct2", CTLines.poll());
+		assertEquals(0, LineRing.awaitPairs(CTLines, GALines));
+	}
+
+	@Test
+	public void testInterruptedConsumer() throws Exception {
+		final LineRing ring = new LineRing(4);
+
+		Worker consumer = start(new Callable<Object>() {
+			@Override
+			public Object call() {
+				return ring.awaitLines();
+			}
+		});
+		assertCancelled(consumer);
+	}
+
+	@Test
+	public void testInterruptedProducer() throws Exception {
+		final LineRing ring = new LineRing(2);
+
+		Worker producer = start(new Callable<Object>() {
+			@Override
+			public Object call() {
+				for (int i = 0; ; i++) {
+					ring.processLine(Integer.toString(i));
+				}
+			}
+		});
+		assertCancelled(producer);
+		assertEquals(2, ring.awaitLines());
+		assertEquals("0", ring.poll());
+		assertEquals("1", ring.poll());
+	}
+
+	private static void assertCancelled(Worker worker) throws InterruptedException {
+		Thread.sleep(200);
+		assertTrue(worker.isAlive());
+		worker.interrupt();
+		worker.join(TIMEOUT);
+
+		assertFalse(worker.isAlive());
+		assertNull(worker.result);
+		assertTrue(worker.error instanceof RuntimeException);
+		assertTrue(worker.error.getCause() instanceof InterruptedException);
+		// the interruption is kept for whoever runs the thread
+		assertTrue(worker.interruptedAfterError);
+	}
+
+	private static Worker start(Callable<Object> task) {
+		Worker worker = new Worker(task);
+		worker.start();
+		return worker;
+	}
+
+	private static class Worker extends Thread {
+		private final Callable<Object> task;
+		private volatile Object result;
+		private volatile Throwable error;
+		private volatile boolean interruptedAfterError;
+
+		public Worker(Callable<Object> task) {
+			this.task = task;
+			this.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				this.result = this.task.call();
+			} catch (Throwable e) {
+				this.interruptedAfterError = Thread.currentThread().isInterrupted();
+				this.error = e;
+			}
+		}
+
+		public Object check() throws Exception {
+			this.join(TIMEOUT);
+			assertFalse("the thread did not finish", this.isAlive());
+			if (this.error != null) {
+				throw new AssertionError(this.error);
+			}
+			return this.result;
+		}
+	}
+}
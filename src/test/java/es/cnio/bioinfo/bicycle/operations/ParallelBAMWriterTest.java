@@ -0,0 +1,164 @@
+package es.cnio.bioinfo.bicycle.operations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+import net.sf.samtools.SAMSequenceRecord;
+
+import org.junit.Test;
+
+public class ParallelBAMWriterTest {
+
+	@Test
+	public void testIndexedQueries() throws IOException {
+		Random random = new Random(1);
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		header.addSequence(new SAMSequenceRecord("chr1", 3000000));
+		header.addSequence(new SAMSequenceRecord("chr2", 1000));
+		header.addSequence(new SAMSequenceRecord("chr3", 500000));
+
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		for (String reference : new String[]{"chr1", "chr3"}) {
+			int length = header.getSequence(reference).getSequenceLength();
+			for (int position = 1 + random.nextInt(100); position < length - 1000; position += random.nextInt
+					(random.nextInt(10) == 0 ? 50000 : 300)) {
+				records.add(randomRecord(random, header, reference, position));
+			}
+		}
+		for (int i = 0; i < 100; i++) {
+			SAMRecord unmapped = randomRecord(random, header, SAMRecord.NO_ALIGNMENT_REFERENCE_NAME, 0);
+			unmapped.setReadUnmappedFlag(true);
+			unmapped.setCigarString("*");
+			records.add(unmapped);
+		}
+
+		File bam = File.createTempFile("parallel", ".bam");
+		File bai = new File(bam.getAbsolutePath() + ".bai");
+		bam.deleteOnExit();
+		bai.deleteOnExit();
+
+		ParallelBAMWriter writer = new ParallelBAMWriter(bam, header, 4);
+		for (SAMRecord record : records) {
+			writer.addAlignment(record);
+		}
+		writer.close();
+
+		SAMFileReader reader = new SAMFileReader(bam, bai);
+		try {
+			assertTrue(reader.hasIndex());
+
+			int count = 0;
+			for (SAMRecord record : reader) {
+				assertEquals(records.get(count).getReadName(), record.getReadName());
+				count++;
+			}
+			assertEquals(records.size(), count);
+
+			for (int i = 0; i < 200; i++) {
+				String reference = random.nextBoolean() ? "chr1" : "chr3";
+				int start = 1 + random.nextInt(header.getSequence(reference).getSequenceLength());
+				int end = start + random.nextInt(100000);
+
+				int expected = 0;
+				for (SAMRecord record : records) {
+					if (record.getReferenceName().equals(reference) && record.getAlignmentStart() <= end && record
+							.getAlignmentEnd() >= start) {
+						expected++;
+					}
+				}
+
+				int found = 0;
+				SAMRecordIterator iterator = reader.query(reference, start, end, false);
+				while (iterator.hasNext()) {
+					iterator.next();
+					found++;
+				}
+				iterator.close();
+				assertEquals(reference + ":" + start + "-" + end, expected, found);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void testCompressorsReleased() throws IOException {
+		Random random = new Random(2);
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		header.addSequence(new SAMSequenceRecord("chr1", 1000000));
+
+		File bam = File.createTempFile("parallel", ".bam");
+		File bai = new File(bam.getAbsolutePath() + ".bai");
+		bam.deleteOnExit();
+		bai.deleteOnExit();
+
+		ParallelBAMWriter writer = new ParallelBAMWriter(bam, header, 4);
+		for (int position = 1; position < 900000; position += 100) {
+			writer.addAlignment(randomRecord(random, header, "chr1", position));
+		}
+		writer.close();
+
+		// the compressor threads, and their deflaters, are gone once the writer is closed
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			assertFalse(thread.getName(), thread.getName().startsWith("bgzf-") && thread.isAlive());
+		}
+	}
+
+	@Test
+	public void testAbortDeletesPartialBAM() throws IOException {
+		Random random = new Random(3);
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		header.addSequence(new SAMSequenceRecord("chr1", 1000000));
+
+		File bam = File.createTempFile("parallel", ".bam");
+		File bai = new File(bam.getAbsolutePath() + ".bai");
+		bam.deleteOnExit();
+		bai.deleteOnExit();
+
+		ParallelBAMWriter writer = new ParallelBAMWriter(bam, header, 4);
+		for (int position = 1; position < 500000; position += 100) {
+			writer.addAlignment(randomRecord(random, header, "chr1", position));
+		}
+		writer.abort();
+
+		assertFalse(bam.exists());
+		assertFalse(bai.exists());
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			assertFalse(thread.getName(), thread.getName().startsWith("bgzf-") && thread.isAlive());
+		}
+	}
+
+	private static SAMRecord randomRecord(Random random, SAMFileHeader header, String reference, int position) {
+		StringBuilder bases = new StringBuilder();
+		StringBuilder qualities = new StringBuilder();
+		for (int i = 50 + random.nextInt(100); i > 0; i--) {
+			bases.append("ACGT".charAt(random.nextInt(4)));
+			qualities.append((char) ('!' + random.nextInt(40)));
+		}
+
+		SAMRecord record = new SAMRecord(header);
+		record.setReadName("read" + random.nextInt());
+		record.setReferenceName(reference);
+		record.setAlignmentStart(position);
+		record.setCigarString(bases.length() + "M");
+		record.setReadNegativeStrandFlag(random.nextBoolean());
+		record.setMappingQuality(255);
+		record.setReadString(bases.toString());
+		record.setBaseQualityString(qualities.toString());
+		return record;
+	}
+}
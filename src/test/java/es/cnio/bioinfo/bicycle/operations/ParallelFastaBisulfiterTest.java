@@ -0,0 +1,80 @@
+package es.cnio.bioinfo.bicycle.operations;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Test;
+
+import es.cnio.bioinfo.bicycle.operations.ReferenceBisulfitation.Replacement;
+
+public class ParallelFastaBisulfiterTest {
+
+	@Test
+	public void testBisulfitation() throws IOException {
+		assertBisulfitation(">chr1 first sequence\nACGTacgtNN\nCCGG\n>chr2\ngggccc\n", 3);
+	}
+
+	@Test
+	public void testLineBreaks() throws IOException {
+		for (int chunkSize = 1; chunkSize < 8; chunkSize++) {
+			assertBisulfitation(">chr1 a b\r\nACGT\r\ncg\r>chr2 c\rGC\n\n>chr3\nCG", chunkSize);
+			assertBisulfitation("", chunkSize);
+			assertBisulfitation(">c h r\r", chunkSize);
+			assertBisulfitation("ACGT > x\n\r\n\r>", chunkSize);
+		}
+	}
+
+	@Test
+	public void testRandomFiles() throws IOException {
+		Random random = new Random(1);
+		String[] tokens = {"A", "C", "G", "T", "N", "a", "c", "g", "t", " ", ">", "\n", "\r", "\r\n", "\n>seq 1\n"};
+		for (int i = 0; i < 200; i++) {
+			StringBuilder fasta = new StringBuilder();
+			for (int j = random.nextInt(300); j > 0; j--) {
+				fasta.append(tokens[random.nextInt(tokens.length)]);
+			}
+			assertBisulfitation(fasta.toString(), 1 + random.nextInt(40));
+		}
+	}
+
+	private static void assertBisulfitation(String fasta, int chunkSize) throws IOException {
+		File input = File.createTempFile("reference", ".fa");
+		File[] outputs = {File.createTempFile("reference", ".CT.fa"), File.createTempFile("reference", ".GA.fa")};
+		try {
+			try (FileOutputStream out = new FileOutputStream(input)) {
+				out.write(fasta.getBytes());
+			}
+
+			new ParallelFastaBisulfiter(3, chunkSize).bisulfite(input, Replacement.values(), outputs);
+
+			for (int i = 0; i < outputs.length; i++) {
+				assertEquals(fasta.replace("\r", "\\r").replace("\n", "\\n") + " (" + chunkSize + ")",
+						bisulfiteByLines(fasta, Replacement.values()[i]), new String(Files.readAllBytes
+								(outputs[i].toPath())));
+			}
+		} finally {
+			input.delete();
+			for (File output : outputs) {
+				output.delete();
+			}
+		}
+	}
+
+	// the line based conversion previously done in ReferenceBisulfitation
+	private static String bisulfiteByLines(String fasta, Replacement replacement) throws IOException {
+		StringBuilder output = new StringBuilder();
+		BufferedReader reader = new BufferedReader(new StringReader(fasta));
+		for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+			output.append(line.startsWith(">") ? line.replace(' ', '_') : replacement.replace(line));
+			output.append(System.getProperty("line.separator"));
+		}
+		return output.toString();
+	}
+}
@@ -21,11 +21,18 @@ along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
 
 package es.cnio.bioinfo.bicycle.test;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
 
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordCoordinateComparator;
+
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
@@ -37,6 +44,7 @@ import es.cnio.bioinfo.bicycle.Sample;
 import es.cnio.bioinfo.bicycle.operations.BowtieAlignment;
 import es.cnio.bioinfo.bicycle.operations.BowtieAlignment.Bowtie1Quals;
 import es.cnio.bioinfo.bicycle.operations.BowtieAlignment.Bowtie2Quals;
+import es.cnio.bioinfo.bicycle.operations.BowtieAlignment.Strand;
 import es.cnio.bioinfo.bicycle.operations.ReferenceBisulfitation;
 import es.cnio.bioinfo.bicycle.operations.ReferenceBisulfitation.Replacement;
 
@@ -181,4 +189,66 @@ public class AlignmentTest {
 			Utils.deleteDir(tempDir);
 		}
 	}
+
+	@Test()
+	public void alignToSortedBAM() throws IOException {
+		File tempDir = Utils.generateTempDirName("newproject");
+		try {
+			Project p = Project.buildNewProject(
+					tempDir,
+					new File(Utils.getReferenceDirectory()),
+					new File(Utils.getReadsDirectory()),
+					new File(Utils.getBowtiePath()),
+					new File(Utils.getBowtie2Path()),
+					new File(Utils.getSamtoolsPath()),
+					true);
+
+			ReferenceBisulfitation rb = new ReferenceBisulfitation(p);
+			BowtieAlignment ba = new BowtieAlignment(p);
+			ba.setSortedBAMOutput(true);
+
+			for (Reference ref : p.getReferences()) {
+				rb.computeReferenceBisulfitation(Replacement.CT, ref, false);
+				rb.computeReferenceBisulfitation(Replacement.GA, ref, false);
+				if (this.bowtieVersion == 1) {
+					ba.buildBowtieIndex(ref);
+				} else {
+					ba.buildBowtie2Index(ref);
+				}
+			}
+			for (Sample sample : p.getSamples()) {
+				for (Reference reference : p.getReferences()) {
+					if (bowtieVersion == 1) {
+						ba.performBowtie1Alignment(sample, reference, false, 4, 140, 20, 0, 64, Bowtie1Quals.BEFORE_1_3);
+					} else {
+						ba.performBowtie2Alignment(sample, reference, false, 4, this.bowtie2Local, 15, 2, 20,
+										!this.bowtie2Local?"S,1,1.15":"S,1,0.75",
+										!this.bowtie2Local?"L,-0.6,-0.6":"G,20,8",
+										0, Bowtie2Quals.BEFORE_1_3);
+					}
+
+					for (Strand strand : Strand.values()) {
+						assertFalse(ba.getAlignmentOutputFile(strand, sample, reference).exists());
+
+						File bam = ba.getSortedBAMOutputFile(strand, sample, reference);
+						assertTrue(new File(bam.getAbsolutePath() + ".bai").exists());
+
+						SAMFileReader reader = new SAMFileReader(bam);
+						try {
+							SAMRecordCoordinateComparator comparator = new SAMRecordCoordinateComparator();
+							SAMRecord previous = null;
+							for (SAMRecord record : reader) {
+								assertTrue(previous == null || comparator.compare(previous, record) <= 0);
+								previous = record;
+							}
+						} finally {
+							reader.close();
+						}
+					}
+				}
+			}
+		} finally {
+			Utils.deleteDir(tempDir);
+		}
+	}
 }
@@ -0,0 +1,98 @@
+package es.cnio.bioinfo.bicycle.test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.cnio.bioinfo.bicycle.operations.BetaBinomialDifferentialMethylationTest;
+import es.cnio.bioinfo.bicycle.operations.BetaBinomialFitter;
+
+/**
+ * Compares the DMC p-value computation of BetaBinomialDifferentialMethylationTest and BetaBinomialFitter.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.openjdk.jmh.Main
+ * -Dexec.args=BetaBinomialFitterBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BetaBinomialFitterBenchmark {
+
+	private static final int SITES = 1024;
+
+	// 10 for RRBS-like low coverage, 30 for WGBS, 200 for DMR regions
+	@Param({"10", "30", "200"})
+	public int meanDepth;
+
+	@Param({"3"})
+	public int replicates;
+
+	private int[][] treatmentCytosines = new int[SITES][];
+	private int[][] treatmentDepth = new int[SITES][];
+	private int[][] controlCytosines = new int[SITES][];
+	private int[][] controlDepth = new int[SITES][];
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1);
+		for (int i = 0; i < SITES; i++) {
+			// methylation levels mostly low or high, as in real samples, with some differential sites
+			double level = random.nextBoolean() ? random.nextDouble() * 0.1 : 0.7 + random.nextDouble() * 0.3;
+			double controlLevel = random.nextInt(10) == 0 ? 1 - level : level;
+
+			treatmentCytosines[i] = new int[replicates];
+			treatmentDepth[i] = new int[replicates];
+			controlCytosines[i] = new int[replicates];
+			controlDepth[i] = new int[replicates];
+			for (int j = 0; j < replicates; j++) {
+				treatmentDepth[i][j] = depth(random);
+				treatmentCytosines[i][j] = (int) Math.round(treatmentDepth[i][j] * level);
+				controlDepth[i][j] = depth(random);
+				controlCytosines[i][j] = (int) Math.round(controlDepth[i][j] * controlLevel);
+			}
+		}
+	}
+
+	private int depth(Random random) {
+		return Math.max(1, (int) Math.round(meanDepth + random.nextGaussian() * meanDepth / 3));
+	}
+
+	@Benchmark
+	public double betaBinomialTest() {
+		double sum = 0;
+		for (int i = 0; i < SITES; i++) {
+			try {
+				sum += new BetaBinomialDifferentialMethylationTest().getPvalue(treatmentCytosines[i],
+						treatmentDepth[i], controlCytosines[i], controlDepth[i]);
+			} catch (Exception e) {
+				// NaN in DMC, as in getPvalues
+			}
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public double fitter() {
+		double sum = 0;
+		double[] pValues = new BetaBinomialFitter().getPvalues(treatmentCytosines, treatmentDepth,
+				controlCytosines, controlDepth);
+		for (double pValue : pValues) {
+			sum += pValue;
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,89 @@
+package es.cnio.bioinfo.bicycle.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import es.cnio.bioinfo.bicycle.operations.BetaBinomialDifferentialMethylationTest;
+import es.cnio.bioinfo.bicycle.operations.BetaBinomialFitter;
+
+public class BetaBinomialFitterTest {
+
+	@Test
+	public void testMethylSigExample() {
+		BetaBinomialFitter fitter = new BetaBinomialFitter();
+
+		assertEquals(0.00302370, fitter.getPvalue(new int[]{3, 2, 1}, new int[]{6, 8, 8}, new int[]{7, 9, 3}, new
+				int[]{8, 9, 3}), 1e-5);
+		assertEquals(0.00579775, fitter.getPvalue(new int[]{3, 2, 1}, new int[]{6, 8, 8}, new int[]{0, 9, 3}, new
+				int[]{0, 9, 3}), 1e-8);
+	}
+
+	@Test
+	public void testSamePValuesAsBetaBinomialTest() {
+		Random random = new Random(1);
+		BetaBinomialFitter fitter = new BetaBinomialFitter();
+		BetaBinomialDifferentialMethylationTest test = new BetaBinomialDifferentialMethylationTest();
+
+		for (int i = 0; i < 5000; i++) {
+			int[][] site = randomSite(random);
+
+			double expected = test.getPvalue(site[0], site[1], site[2], site[3]);
+			assertEquals(expected, fitter.getPvalue(site[0], site[1], site[2], site[3]), 1e-9);
+		}
+	}
+
+	@Test
+	public void testBatch() {
+		Random random = new Random(2);
+		int sites = 100;
+		int[][] treatmentCytosines = new int[sites][];
+		int[][] treatmentDepth = new int[sites][];
+		int[][] controlCytosines = new int[sites][];
+		int[][] controlDepth = new int[sites][];
+		for (int i = 0; i < sites; i++) {
+			int[][] site = randomSite(random);
+			treatmentCytosines[i] = site[0];
+			treatmentDepth[i] = site[1];
+			controlCytosines[i] = site[2];
+			controlDepth[i] = site[3];
+		}
+
+		double[] pValues = new BetaBinomialFitter().getPvalues(treatmentCytosines, treatmentDepth,
+				controlCytosines, controlDepth);
+
+		BetaBinomialDifferentialMethylationTest test = new BetaBinomialDifferentialMethylationTest();
+		for (int i = 0; i < sites; i++) {
+			assertEquals(test.getPvalue(treatmentCytosines[i], treatmentDepth[i], controlCytosines[i],
+					controlDepth[i]), pValues[i], 1e-9);
+		}
+	}
+
+	// replicates with similar depths, some of them without coverage, and fully (un)methylated sites
+	private static int[][] randomSite(Random random) {
+		int meanDepth = new int[]{4, 10, 30, 100}[random.nextInt(4)];
+		double treatmentLevel = random.nextInt(4) == 0 ? random.nextInt(2) : random.nextDouble();
+		double controlLevel = Math.min(1, Math.max(0, treatmentLevel + random.nextGaussian() * 0.2));
+
+		int[][] site = new int[4][];
+		for (int group = 0; group < 2; group++) {
+			int samples = 1 + random.nextInt(4);
+			site[group * 2] = new int[samples];
+			site[group * 2 + 1] = new int[samples];
+			for (int j = 0; j < samples; j++) {
+				int depth = Math.max(0, (int) Math.round(meanDepth + random.nextGaussian() * meanDepth / 3));
+				int cytosines = 0;
+				for (int read = 0; read < depth; read++) {
+					if (random.nextDouble() < (group == 0 ? treatmentLevel : controlLevel)) {
+						cytosines++;
+					}
+				}
+				site[group * 2][j] = cytosines;
+				site[group * 2 + 1][j] = depth;
+			}
+		}
+		return site;
+	}
+}
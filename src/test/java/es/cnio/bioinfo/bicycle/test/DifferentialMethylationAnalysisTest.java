@@ -4,6 +4,7 @@ import static java.util.Arrays.asList;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
@@ -20,6 +21,7 @@ import es.cnio.bioinfo.bicycle.Project;
 import es.cnio.bioinfo.bicycle.Reference;
 import es.cnio.bioinfo.bicycle.Sample;
 import es.cnio.bioinfo.bicycle.gatk.Context;
+import es.cnio.bioinfo.bicycle.operations.BetaBinomialDifferentialMethylationTest;
 import es.cnio.bioinfo.bicycle.operations.DifferentialMethylationAnalysis;
 import es.cnio.bioinfo.bicycle.operations.MethylationAnalysis;
 
@@ -61,6 +63,11 @@ public class DifferentialMethylationAnalysisTest {
 
 	private File regionsFile = new File(Utils.getBedsDirectory() + File.separator + "regions.bed");
 
+	// unsorted and overlapping regions, regions without cytosines and regions on sequences without calls. Kept
+	// next to the samples they refer to, away from the BED files that the analysis tests use
+	private File sweepRegionsFile = new File(Utils.getMethylcytosinesDirectory() + File.separator +
+			"regionsSamples.bed");
+
 	@Before
 	public void instantiateDMA() {
 		this.dma = new DifferentialMethylationAnalysis(this.ma, new HashSet<>(Arrays.asList(Context.CG)));
@@ -108,6 +115,55 @@ public class DifferentialMethylationAnalysisTest {
 
 	}
 
+	@Test
+	public void parallelByBaseTest() throws IOException {
+
+		File tmpDir = new File(System.getProperty("java.io.tmpdir"));
+
+		EasyMock.expect(ma.getMethylcytosinesFile(reference, controlSample1)).andReturn(controlSample1File).times(2);
+		EasyMock.expect(ma.getMethylcytosinesFile(reference, controlSample2)).andReturn(controlSample2File).times(2);
+		EasyMock.expect(ma.getMethylcytosinesFile(reference, treatmentSample1)).andReturn(treatmentSample1File).times
+				(2);
+		EasyMock.expect(ma.getMethylcytosinesFile(reference, treatmentSample2)).andReturn(treatmentSample2File).times
+				(2);
+
+		EasyMock.expect(reference.getSequenceNames())
+				.andReturn(asList("control", "chr10", "chr11", "chr12", "chr13", "chr14", "chr15", "chr16", "chr17",
+						"chr18", "chr19", "chr1", "chr20", "chr21", "chr22", "chr2", "chr3", "chr4", "chr5", "chr6",
+						"chr7", "chr8", "chr9", "chrM", "chrX", "chrY")).times(2);
+		EasyMock.expect(reference.getReferenceFile()).andReturn(new File("hg18.fa")).anyTimes();
+
+		EasyMock.expect(controlSample1.getName()).andReturn("C1").anyTimes();
+		EasyMock.expect(controlSample2.getName()).andReturn("C2").anyTimes();
+		EasyMock.expect(treatmentSample1.getName()).andReturn("T1").anyTimes();
+		EasyMock.expect(treatmentSample2.getName()).andReturn("T2").anyTimes();
+
+		EasyMock.expect(ma.getProject()).andReturn(project).anyTimes();
+
+		EasyMock.expect(project.getOutputDirectory()).andReturn(tmpDir).anyTimes();
+
+		EasyMock.replay(ma, project);
+		EasyMock.replay(reference);
+		EasyMock.replay(controlSample1, controlSample2, treatmentSample1, treatmentSample2);
+
+
+		List<Sample> controlSamples = asList(controlSample1, controlSample2);
+		List<Sample> treatmentSamples = asList(treatmentSample1, treatmentSample2);
+
+		File outputFile = dma.getDifferentiallyMethylatedCytosinesFile(reference, treatmentSamples, controlSamples);
+
+		dma.analyzeDifferentialMethylationByBase(reference, treatmentSamples, controlSamples);
+		String sequentialOutput = Utils.readFile(outputFile);
+
+		dma.setThreads(4);
+		dma.analyzeDifferentialMethylationByBase(reference, treatmentSamples, controlSamples);
+
+		Assert.assertEquals(sequentialOutput, Utils.readFile(outputFile));
+
+		EasyMock.verify(ma);
+
+	}
+
 	@Test
 	public void regionsTest() throws IOException {
 
@@ -148,4 +204,91 @@ public class DifferentialMethylationAnalysisTest {
 
 		EasyMock.verify(ma);
 	}
+
+	@Test
+	public void regionCountsTest() throws IOException {
+
+		File tmpDir = new File(System.getProperty("java.io.tmpdir"));
+
+		EasyMock.expect(ma.getMethylcytosinesFile(reference, controlSample1)).andReturn(new File(Utils
+				.getMethylcytosinesDirectory() + File.separator + "regionsControl1.methylcytosines"));
+		EasyMock.expect(ma.getMethylcytosinesFile(reference, controlSample2)).andReturn(new File(Utils
+				.getMethylcytosinesDirectory() + File.separator + "regionsControl2.methylcytosines"));
+		EasyMock.expect(ma.getMethylcytosinesFile(reference, treatmentSample1)).andReturn(new File(Utils
+				.getMethylcytosinesDirectory() + File.separator + "regionsTreatment1.methylcytosines"));
+		EasyMock.expect(ma.getMethylcytosinesFile(reference, treatmentSample2)).andReturn(new File(Utils
+				.getMethylcytosinesDirectory() + File.separator + "regionsTreatment2.methylcytosines"));
+
+		EasyMock.expect(reference.getSequenceNames())
+				.andReturn(asList("control", "chr10", "chr11", "chr12", "chr13", "chr14", "chr15", "chr16", "chr17",
+						"chr18", "chr19", "chr1", "chr20", "chr21", "chr22", "chr2", "chr3", "chr4", "chr5", "chr6",
+						"chr7", "chr8", "chr9", "chrM", "chrX", "chrY"));
+		EasyMock.expect(reference.getReferenceFile()).andReturn(new File("hg18.fa")).anyTimes();
+
+		EasyMock.expect(controlSample1.getName()).andReturn("C1").anyTimes();
+		EasyMock.expect(controlSample2.getName()).andReturn("C2").anyTimes();
+		EasyMock.expect(treatmentSample1.getName()).andReturn("T1").anyTimes();
+		EasyMock.expect(treatmentSample2.getName()).andReturn("T2").anyTimes();
+
+		EasyMock.expect(ma.getProject()).andReturn(project).anyTimes();
+
+		EasyMock.expect(project.getOutputDirectory()).andReturn(tmpDir).anyTimes();
+
+		EasyMock.replay(ma, project);
+		EasyMock.replay(reference);
+		EasyMock.replay(controlSample1, controlSample2, treatmentSample1, treatmentSample2);
+
+
+		List<Sample> controlSamples = asList(controlSample1, controlSample2);
+		List<Sample> treatmentSamples = asList(treatmentSample1, treatmentSample2);
+
+		dma.analyzeDifferentialMethylationByRegions(reference, treatmentSamples, controlSamples, sweepRegionsFile);
+
+		// CG counts of each region, as computed by scanning every sample and looking up the regions of each call.
+		// Only regions with calls are written, in the order of the sequences and then by start
+		String[][] expected = {
+				{ "chr10_wide", "54/64", "34/46", "7/30", "6/26" },
+				{ "chr10_overlap", "53/61", "23/33", "8/41", "7/33" },
+				{ "chr10_nested", "36/41", "23/33", "6/21", "6/20" },
+				{ "chr10_tail", "0/0", "18/23", "8/26", "9/36" },
+				{ "chr12_a", "9/10", "17/22", "4/21", "5/22" },
+				{ "chr12_b", "28/29", "41/49", "13/44", "8/40" } };
+
+		List<String[]> rows = new ArrayList<>();
+		for (String line : Utils.readFile(dma.getDifferentiallyMethylatedRegionsFile(reference, treatmentSamples,
+				controlSamples, sweepRegionsFile)).split("\n")) {
+			if (!line.startsWith("#")) {
+				rows.add(line.split("\t"));
+			}
+		}
+
+		Assert.assertEquals(expected.length, rows.size());
+		BetaBinomialDifferentialMethylationTest test = new BetaBinomialDifferentialMethylationTest();
+		for (int i = 0; i < expected.length; i++) {
+			String[] row = rows.get(i);
+			Assert.assertEquals(expected[i][0], row[0]);
+
+			int[] cytosines = new int[4];
+			int[] depths = new int[4];
+			for (int sample = 0; sample < 4; sample++) {
+				Assert.assertEquals(expected[i][sample + 1], row[sample + 4]);
+				String[] counts = expected[i][sample + 1].split("/");
+				cytosines[sample] = Integer.parseInt(counts[0]);
+				depths[sample] = Integer.parseInt(counts[1]);
+			}
+
+			Assert.assertEquals(oldPValue(test, cytosines, depths), Double.parseDouble(row[11]), 1e-9);
+		}
+
+		EasyMock.verify(ma);
+	}
+
+	private static double oldPValue(BetaBinomialDifferentialMethylationTest test, int[] cytosines, int[] depths) {
+		try {
+			return test.getPvalue(Arrays.copyOfRange(cytosines, 0, 2), Arrays.copyOfRange(depths, 0, 2), Arrays
+					.copyOfRange(cytosines, 2, 4), Arrays.copyOfRange(depths, 2, 4));
+		} catch (Exception e) {
+			return Double.NaN;
+		}
+	}
 }
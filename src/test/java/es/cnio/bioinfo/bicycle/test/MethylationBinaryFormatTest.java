@@ -0,0 +1,138 @@
+package es.cnio.bioinfo.bicycle.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import es.cnio.bioinfo.bicycle.MethylationBinaryFormat;
+import es.cnio.bioinfo.bicycle.MethylationBinaryReader;
+import es.cnio.bioinfo.bicycle.MethylationBinaryWriter;
+import es.cnio.bioinfo.bicycle.MethylationCall;
+import es.cnio.bioinfo.bicycle.MethylationFileConverter;
+import es.cnio.bioinfo.bicycle.gatk.Context;
+import es.cnio.bioinfo.bicycle.gatk.Strand;
+
+public class MethylationBinaryFormatTest {
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		List<MethylationCall> calls = randomCalls(new Random(1), "chr1", 1000);
+		calls.addAll(randomCalls(new Random(2), "chr2", 10));
+		calls.add(new MethylationCall("chr3", 7, Strand.CRICK, Context.CHH, 0.25, 3, 2, 1, "C.N", true, true,
+				Arrays.asList("gene|other", "N/A"), 0.5));
+		calls.add(new MethylationCall("chr3", 2, Strand.WATSON, Context.CG, 1.0, 0, 0, 0, "", false, false,
+				Collections.<String>emptyList(), 0.0));
+
+		File file = writeBinary(calls);
+		MethylationBinaryReader reader = new MethylationBinaryReader(file);
+		for (MethylationCall call : calls) {
+			assertEquals(call.marshall(), reader.next().marshall());
+		}
+		assertNull(reader.next());
+		reader.close();
+	}
+
+	@Test
+	public void testBlocksAndSeek() throws IOException {
+		List<MethylationCall> calls = randomCalls(new Random(3), "chr1", MethylationBinaryFormat
+				.MAX_CALLS_PER_BLOCK + 10);
+		calls.addAll(randomCalls(new Random(4), "chr2", 5));
+
+		MethylationBinaryReader reader = new MethylationBinaryReader(writeBinary(calls));
+		assertEquals(3, reader.getBlockIndex().size());
+		assertEquals(Long.valueOf(MethylationBinaryFormat.MAX_CALLS_PER_BLOCK + 10), reader.getContigs().get("chr1"));
+		assertEquals(Long.valueOf(5), reader.getContigs().get("chr2"));
+
+		assertTrue(reader.seek("chr2"));
+		assertEquals(calls.get(MethylationBinaryFormat.MAX_CALLS_PER_BLOCK + 10).marshall(), reader.next().marshall
+				());
+		assertFalse(reader.seek("chrX"));
+		reader.close();
+	}
+
+	@Test
+	public void testConcatenatedFilesAndConversion() throws IOException {
+		List<MethylationCall> first = randomCalls(new Random(5), "chr1", 100);
+		List<MethylationCall> second = randomCalls(new Random(6), "chr1", 100);
+
+		File text = File.createTempFile("bicycle", ".methylation");
+		text.deleteOnExit();
+		PrintStream out = new PrintStream(new FileOutputStream(text));
+		for (MethylationCall call : first) {
+			out.print(call.marshall() + "\n");
+		}
+		out.close();
+
+		File binary = File.createTempFile("bicycle", ".methylation.bin");
+		binary.deleteOnExit();
+		MethylationFileConverter.toBinary(text, binary);
+
+		// append a second file, byte by byte
+		MethylationBinaryWriter writer = new MethylationBinaryWriter(new BufferedOutputStream(new FileOutputStream
+				(binary, true)));
+		for (MethylationCall call : second) {
+			writer.write(call);
+		}
+		writer.close();
+
+		File backToText = File.createTempFile("bicycle", ".methylation");
+		backToText.deleteOnExit();
+		MethylationFileConverter.toText(binary, backToText);
+
+		StringBuilder expected = new StringBuilder();
+		for (MethylationCall call : first) {
+			expected.append(call.marshall()).append("\n");
+		}
+		for (MethylationCall call : second) {
+			expected.append(call.marshall()).append("\n");
+		}
+		expected.setLength(expected.length() - 1); // readFile does not keep the last line break
+		assertEquals(expected.toString(), Utils.readFile(backToText));
+	}
+
+	private static File writeBinary(List<MethylationCall> calls) throws IOException {
+		File file = File.createTempFile("bicycle", ".methylation.bin");
+		file.deleteOnExit();
+		MethylationBinaryWriter writer = new MethylationBinaryWriter(new BufferedOutputStream(new FileOutputStream
+				(file)));
+		for (MethylationCall call : calls) {
+			writer.write(call);
+		}
+		writer.close();
+		return file;
+	}
+
+	private static List<MethylationCall> randomCalls(Random random, String contig, int count) {
+		List<MethylationCall> toret = new ArrayList<>();
+		long position = 0;
+		for (int i = 0; i < count; i++) {
+			position += 1 + random.nextInt(100);
+			int depth = random.nextInt(200);
+			StringBuilder pileup = new StringBuilder();
+			for (int j = 0; j < depth; j++) {
+				pileup.append("ACGT".charAt(random.nextInt(4)));
+			}
+			int ctDepth = random.nextInt(depth + 1);
+			int cytosines = random.nextInt(ctDepth + 1);
+			toret.add(new MethylationCall(contig, position, random.nextBoolean() ? Strand.WATSON : Strand.CRICK,
+					Context.values()[random.nextInt(Context.values().length)], random.nextDouble(), depth, ctDepth,
+					cytosines, pileup.toString(), random.nextBoolean(), random.nextBoolean(), new ArrayList<>(Arrays
+					.asList("ann" + random.nextInt(10))), random.nextDouble()));
+		}
+		return toret;
+	}
+}
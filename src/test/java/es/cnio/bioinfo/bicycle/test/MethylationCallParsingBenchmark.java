@@ -0,0 +1,130 @@
+package es.cnio.bioinfo.bicycle.test;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.cnio.bioinfo.bicycle.MethylationCall;
+import es.cnio.bioinfo.bicycle.MethylationCallView;
+import es.cnio.bioinfo.bicycle.gatk.Context;
+import es.cnio.bioinfo.bicycle.gatk.Strand;
+
+/**
+ * Compares the split-based parsing and StringBuffer-based formatting of .methylation lines with
+ * MethylationCallView and MethylationCall.marshall(StringBuilder). The allocation rate is reported by the GC
+ * profiler.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.openjdk.jmh.Main
+ * -Dexec.args="MethylationCallParsingBenchmark -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MethylationCallParsingBenchmark {
+
+	private static final int LINES = 4096;
+
+	private String[] lines = new String[LINES];
+	private MethylationCall[] calls = new MethylationCall[LINES];
+
+	private MethylationCallView view = new MethylationCallView();
+	private StringBuilder line = new StringBuilder(256);
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1);
+		long position = 0;
+		for (int i = 0; i < LINES; i++) {
+			position += 1 + random.nextInt(50);
+			int depth = 1 + random.nextInt(60);
+			int ctDepth = random.nextInt(depth + 1);
+			int cytosines = random.nextInt(ctDepth + 1);
+			StringBuilder pileup = new StringBuilder();
+			for (int j = 0; j < depth; j++) {
+				pileup.append(j < cytosines ? 'C' : 'T');
+			}
+			List<String> annotations = new LinkedList<>();
+			annotations.add(random.nextBoolean() ? "N/A" : "gene" + random.nextInt(100));
+			calls[i] = new MethylationCall("chr1", position, random.nextBoolean() ? Strand.WATSON : Strand.CRICK,
+					Context.values()[random.nextInt(3)], random.nextDouble(), depth, ctDepth, cytosines, pileup
+					.toString(), false, false, annotations, ctDepth == 0 ? 0 : (double) cytosines / ctDepth);
+			lines[i] = calls[i].marshall();
+		}
+	}
+
+	@Benchmark
+	public long splitUnmarshall() {
+		long sum = 0;
+		for (String line : lines) {
+			// MethylationCall.unmarshall as it was before MethylationCallView
+			String[] tokens = line.split("\t");
+			List<String> annotations = new LinkedList<String>();
+			for (int i = 12; i < tokens.length; i++) {
+				annotations.add(tokens[i]);
+			}
+			MethylationCall call = new MethylationCall(tokens[0], Long.parseLong(tokens[1]), Strand.valueOf(tokens[2]),
+					Context.valueOf(tokens[3]), Double.parseDouble(tokens[9]), Integer.parseInt(tokens[4]), Integer
+					.parseInt(tokens[5]), Integer.parseInt(tokens[6]), tokens[8], Boolean.valueOf(tokens[10]), Boolean
+					.valueOf(tokens[11]), annotations, Double.parseDouble(tokens[7]));
+			sum += call.getPosition() + call.getCytosines() + call.getCTdepth() + call.getContext().ordinal();
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public long viewReset() {
+		long sum = 0;
+		for (String line : lines) {
+			view.reset(line);
+			sum += view.getPosition() + view.getCytosines() + view.getCTdepth() + view.getContext().ordinal();
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public long stringBufferMarshall() {
+		long sum = 0;
+		for (MethylationCall call : calls) {
+			// MethylationCall.marshall as it was before marshall(StringBuilder)
+			StringBuffer annotations = new StringBuffer();
+			for (String annotation : call.getAnnotations()) {
+				annotations.append("\t").append(annotation);
+			}
+			StringBuffer sb = new StringBuffer();
+			sb.append(call.getContig()).append("\t").append(call.getPosition()).append("\t").append(call.getStrand())
+					.append("\t").append(call.getContext()).append("\t").append(call.getDepth()).append("\t").append
+					(call.getCTdepth()).append("\t").append(call.getCytosines()).append("\t").append(call
+					.getBetaScore()).append("\t").append(call.getPileup()).append("\t").append(call.getPval()).append
+					("\t").append(call.isCorrectedFromNonCG()).append("\t").append(call.isAddedByCorrection()).append
+					(annotations);
+			sum += sb.toString().length();
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public long reusedBuilderMarshall() {
+		long sum = 0;
+		for (MethylationCall call : calls) {
+			line.setLength(0);
+			call.marshall(line);
+			sum += line.length();
+		}
+		return sum;
+	}
+}
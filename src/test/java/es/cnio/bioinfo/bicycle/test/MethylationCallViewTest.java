@@ -0,0 +1,121 @@
+package es.cnio.bioinfo.bicycle.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import es.cnio.bioinfo.bicycle.MethylationCall;
+import es.cnio.bioinfo.bicycle.MethylationCallView;
+import es.cnio.bioinfo.bicycle.gatk.Context;
+import es.cnio.bioinfo.bicycle.gatk.Strand;
+
+public class MethylationCallViewTest {
+
+	@Test
+	public void testParsesMarshalledCalls() {
+		Random random = new Random(1);
+		double[] specialValues = {0d, 1d, 0.5, 1e-300, 4.9e-324, 1.2345678901234567E-5, 0.1, 1e22, 1e23, 0.9999999,
+				Double.NaN};
+		MethylationCallView view = new MethylationCallView();
+		for (int i = 0; i < 10000; i++) {
+			double pval = i < specialValues.length ? specialValues[i] : random.nextBoolean() ? random.nextDouble()
+					: Math.pow(10, -random.nextInt(30)) * random.nextInt(1000);
+			double betaScore = random.nextInt(3) == 0 ? random.nextDouble() : (double) random.nextInt(100) / 7;
+			MethylationCall call = new MethylationCall("chr" + random.nextInt(3), random.nextInt(Integer.MAX_VALUE),
+					random.nextBoolean() ? Strand.WATSON : Strand.CRICK, Context.values()[random.nextInt(3)], pval,
+					random.nextInt(1000), random.nextInt(1000), random.nextInt(1000), "CCTT.,", random.nextBoolean(),
+					random.nextBoolean(), Arrays.asList("a" + random.nextInt(2), "N/A"), betaScore);
+			String line = call.marshall();
+
+			view.reset(line);
+			assertSameCall(call, view);
+			assertEquals(line, view.marshall());
+			assertSameCall(call, view.toCall());
+			assertSameCall(call, MethylationCall.unmarshall(line));
+		}
+	}
+
+	@Test
+	public void testAnnotationsAndTrailingFields() {
+		MethylationCallView view = new MethylationCallView();
+		view.reset("chr1\t10\tCRICK\tCHG\t5\t4\t3\t0.75\tGGAA\t0.001\tfalse\ttrue\tgene1|gene2\tMETHYLATED\t\t");
+
+		assertEquals(2, view.getAnnotationCount());
+		assertEquals(Arrays.asList("gene1|gene2", "METHYLATED"), new ArrayList<>(view.getAnnotations()));
+		assertEquals("METHYLATED", view.getAnnotation(1));
+		assertEquals("chr1\t10\tCRICK\tCHG\t5\t4\t3\t0.75\tGGAA\t0.001\tfalse\ttrue\tgene1|gene2\tMETHYLATED", view
+				.marshall());
+		assertFalse(view.isCorrectedFromNonCG());
+		assertTrue(view.isAddedByCorrection());
+	}
+
+	@Test
+	public void testResetWithBytes() {
+		String line = "chrX\t123456789\tWATSON\tCG\t30\t28\t20\t0.7142857\tCCCCT\t1.0E-7\ttrue\tfalse";
+		byte[] bytes = ("#header\n" + line + "\n").getBytes();
+
+		MethylationCallView view = new MethylationCallView();
+		view.reset(bytes, 8, line.length());
+
+		assertTrue(view.isContig("chrX"));
+		assertEquals("chrX", view.getContig());
+		assertEquals(123456789L, view.getPosition());
+		assertEquals(Strand.WATSON, view.getStrand());
+		assertEquals(Context.CG, view.getContext());
+		assertEquals(28, view.getCTdepth());
+		assertEquals(1.0E-7, view.getPval(), 0d);
+		assertEquals(0.7142857, view.getBetaScore(), 0d);
+		assertEquals(line, view.marshall());
+	}
+
+	@Test
+	public void testCorrectionAndCutOffLastUntilReset() {
+		MethylationCallView view = new MethylationCallView();
+		MethylationCall call = view;
+		view.reset("chr1\t10\tWATSON\tCHG\t5\t4\t3\t0.75\tCCCCT\t0.001\tfalse\tfalse\tgene1");
+		call.setCutOff(0.01);
+		call.correctToCG();
+
+		assertTrue(call.isMethylated());
+		assertEquals(Context.CG, call.getContext());
+		assertTrue(call.isCorrectedFromNonCG());
+		assertEquals("chr1\t10\tWATSON\tCG\t5\t4\t3\t0.75\tCCCCT\t0.001\ttrue\tfalse\tgene1", call.marshall());
+		assertEquals(Context.CG, view.toCall().getContext());
+		assertEquals(0.01, view.toCall().getCutOff(), 0d);
+
+		view.reset("chr1\t12\tWATSON\tCHH\t5\t4\t3\t0.75\tCCCCT\t0.001\tfalse\tfalse");
+		assertEquals(Context.CHH, view.getContext());
+		assertFalse(view.isCorrectedFromNonCG());
+		assertEquals(-1, view.getCutOff(), 0d);
+		assertFalse(view.isMethylated());
+		assertEquals("chr1\t12\tWATSON\tCHH\t5\t4\t3\t0.75\tCCCCT\t0.001\tfalse\tfalse", view.marshall());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsShortLines() {
+		new MethylationCallView().reset("chr1\t10\tWATSON");
+	}
+
+	private static void assertSameCall(MethylationCall expected, MethylationCall actual) {
+		assertEquals(expected.getContig(), actual.getContig());
+		assertEquals(expected.getPosition(), actual.getPosition());
+		assertEquals(expected.getStrand(), actual.getStrand());
+		assertEquals(expected.getContext(), actual.getContext());
+		assertEquals(expected.getDepth(), actual.getDepth());
+		assertEquals(expected.getCTdepth(), actual.getCTdepth());
+		assertEquals(expected.getCytosines(), actual.getCytosines());
+		assertEquals(Double.doubleToLongBits(expected.getBetaScore()), Double.doubleToLongBits(actual.getBetaScore()));
+		assertEquals(Double.doubleToLongBits(expected.getPval()), Double.doubleToLongBits(actual.getPval()));
+		assertEquals(expected.getPileup(), actual.getPileup());
+		assertEquals(expected.isCorrectedFromNonCG(), actual.isCorrectedFromNonCG());
+		assertEquals(expected.isAddedByCorrection(), actual.isAddedByCorrection());
+		assertEquals(expected.getAnnotations(), new ArrayList<>(actual.getAnnotations()));
+	}
+}
@@ -0,0 +1,501 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import es.cnio.bioinfo.bicycle.Project;
+import es.cnio.bioinfo.bicycle.Reference;
+import es.cnio.bioinfo.bicycle.Sample;
+import es.cnio.bioinfo.bicycle.gatk.NativeMethylationCaller;
+import es.cnio.bioinfo.bicycle.operations.BowtieAlignment;
+import es.cnio.bioinfo.bicycle.operations.BowtieAlignment.Bowtie1Quals;
+import es.cnio.bioinfo.bicycle.operations.BowtieAlignment.Strand;
+import es.cnio.bioinfo.bicycle.operations.MethylationAnalysis;
+import es.cnio.bioinfo.bicycle.operations.ReferenceBisulfitation;
+import es.cnio.bioinfo.bicycle.operations.ReferenceBisulfitation.Replacement;
+
+/**
+ * Runs the same analyses with the GATK walker and with the native caller and checks that they write the same files.
+ * Also checks that the shards of the native caller do not change its output and are only reused when they are
+ * still valid.
+ */
+@RunWith(Parameterized.class)
+public class NativeMethylationCallerTest {
+	private final int bowtieVersion;
+
+	private final List<File> bedFiles = Arrays.asList(new File(Utils.getBedsDirectory()).listFiles(new
+			FilenameFilter() {
+
+		@Override
+		public boolean accept(File dir, String name) {
+			return name.endsWith(".bed");
+		}
+	}));
+
+	@Parameters
+	public static Collection<Object[]> data() {
+		return Arrays.asList(new Object[][]{{1}, {2}});
+	}
+
+	public NativeMethylationCallerTest(int bowtieVersion) {
+		this.bowtieVersion = bowtieVersion;
+	}
+
+	/**
+	 * One call to any of the analyze methods of MethylationAnalysis.
+	 */
+	private interface Analysis {
+		void run(MethylationAnalysis ma, Reference reference, Sample sample) throws IOException,
+				InterruptedException;
+	}
+
+	private final Analysis controlGenomeWithCorrection = new Analysis() {
+		@Override
+		public void run(MethylationAnalysis ma, Reference reference, Sample sample) throws IOException,
+				InterruptedException {
+			ma.analyzeWithErrorFromControlGenome(
+					reference,
+					sample,
+					true, //trim
+					4,
+					true, //ambiguous
+					false, //only with one aligment
+					true, //bad
+					false, //clonal
+					true, //correct non-CG
+					1,
+					0.01,
+					4,
+					bedFiles,
+					"control");
+		}
+	};
+
+	private final Analysis fixedErrorWithoutCorrection = new Analysis() {
+		@Override
+		public void run(MethylationAnalysis ma, Reference reference, Sample sample) throws IOException,
+				InterruptedException {
+			ma.analyzeWithFixedErrorRate(
+					reference,
+					sample,
+					false, //notrim
+					4,
+					false,
+					false,
+					false,
+					true, //clonal
+					false, //do not correct non-CG
+					2, //mindepth
+					0.05,
+					1,
+					bedFiles,
+					0.01, 0.02);
+		}
+	};
+
+	private final Analysis uniqueAndMinDepth = new Analysis() {
+		@Override
+		public void run(MethylationAnalysis ma, Reference reference, Sample sample) throws IOException,
+				InterruptedException {
+			ma.analyzeWithErrorFromControlGenome(
+					reference,
+					sample,
+					true, //trim
+					2,
+					true,
+					true, //only with one aligment
+					true,
+					true, //clonal
+					false,
+					3, //mindepth
+					0.01,
+					4,
+					bedFiles,
+					"control");
+		}
+	};
+
+	// any time before the shards are called
+	private static final long OLD_TIME = 946684800000L;
+
+	private Analysis withControlGenome(final boolean trim, final int trimUntil, final int mindepth) {
+		return new Analysis() {
+			@Override
+			public void run(MethylationAnalysis ma, Reference reference, Sample sample) throws IOException,
+					InterruptedException {
+				ma.analyzeWithErrorFromControlGenome(
+						reference,
+						sample,
+						trim,
+						trimUntil,
+						true,
+						false,
+						true,
+						false,
+						true, //correct non-CG, which looks past the ends of the shards
+						mindepth,
+						0.01,
+						4,
+						bedFiles,
+						"control");
+			}
+		};
+	}
+
+	private Project prepareProject(File readsDirectory, boolean directional, boolean paired) throws IOException {
+
+		File tempDir = Utils.generateTempDirName("newproject");
+		Project p = Project.buildNewProject(
+				tempDir,
+				new File(Utils.getReferenceDirectory()),
+				readsDirectory,
+				new File(Utils.getBowtiePath()),
+				new File(Utils.getBowtie2Path()),
+				new File(Utils.getSamtoolsPath()), directional, paired, paired ? "-1.fastq" : null);
+
+		ReferenceBisulfitation rb = new ReferenceBisulfitation(p);
+		BowtieAlignment ba = new BowtieAlignment(p);
+
+		for (Reference ref : p.getReferences()) {
+			rb.computeReferenceBisulfitation(Replacement.CT, ref, true);
+			rb.computeReferenceBisulfitation(Replacement.GA, ref, true);
+			if (this.bowtieVersion == 1) {
+				ba.buildBowtieIndex(ref);
+			} else {
+				ba.buildBowtie2Index(ref);
+			}
+		}
+		for (Sample sample : p.getSamples()) {
+			for (Reference reference : p.getReferences()) {
+				if (bowtieVersion == 1) {
+					ba.performBowtie1Alignment(sample, reference, false, 4, 140, 20, 0, 64, Bowtie1Quals.BEFORE_1_3);
+				} else {
+					ba.performBowtie2Alignment(sample, reference, false, 4, false, 15, 2, 20, "S,1,1.15",
+							"L,-0.6,-0.6", 0, BowtieAlignment.Bowtie2Quals.BEFORE_1_3);
+				}
+			}
+		}
+
+		return p;
+	}
+
+	@Test
+	public void testDirectional() throws IOException, InterruptedException {
+		assertSameOutput(new File(Utils.getReadsDirectory()), true, false, controlGenomeWithCorrection,
+				fixedErrorWithoutCorrection, uniqueAndMinDepth);
+	}
+
+	@Test
+	public void testNonDirectional() throws IOException, InterruptedException {
+		assertSameOutput(new File(Utils.getNonDirectionalSingleEndDirectory()), false, false,
+				controlGenomeWithCorrection, fixedErrorWithoutCorrection);
+	}
+
+	@Test
+	public void testPairedEnd() throws IOException, InterruptedException {
+		assertSameOutput(new File(Utils.getPairedEndReadsDirectory()), true, true, controlGenomeWithCorrection,
+				fixedErrorWithoutCorrection);
+	}
+
+	@Test
+	public void testNonDirectionalPairedEnd() throws IOException, InterruptedException {
+		assertSameOutput(new File(Utils.getNonDirectionalPairedEndDirectory()), false, true,
+				controlGenomeWithCorrection);
+	}
+
+	private void assertSameOutput(File readsDirectory, boolean directional, boolean paired, Analysis...
+			analyses) throws IOException, InterruptedException {
+		Project project = prepareProject(readsDirectory, directional, paired);
+		try {
+			MethylationAnalysis ma = new MethylationAnalysis(project);
+			for (Sample sample : project.getSamples()) {
+				for (Reference reference : project.getReferences()) {
+					for (Analysis analysis : analyses) {
+						ma.setNativeCaller(false);
+						analysis.run(ma, reference, sample);
+						Map<String, String> gatkOutput = readOutput(ma, reference, sample);
+
+						ma.setNativeCaller(true);
+						analysis.run(ma, reference, sample);
+						Map<String, String> nativeOutput = readOutput(ma, reference, sample);
+
+						assertEquals(gatkOutput.keySet(), nativeOutput.keySet());
+						for (String file : gatkOutput.keySet()) {
+							assertEquals(file, gatkOutput.get(file), nativeOutput.get(file));
+						}
+					}
+				}
+			}
+		} finally {
+			Utils.deleteDirOnJVMExit(project.getProjectDirectory());
+		}
+	}
+
+	/**
+	 * Reads and then deletes the output files of an analysis, so the next one starts from scratch. The date and the
+	 * I/O statistics of the summary are left out.
+	 */
+	private Map<String, String> readOutput(MethylationAnalysis ma, Reference reference, Sample sample) throws
+			IOException {
+		List<File> files = new ArrayList<>(Arrays.asList(
+				ma.getMethylationFile(Strand.WATSON, reference, sample),
+				ma.getMethylationFile(Strand.CRICK, reference, sample),
+				ma.getMethylationVCFFile(Strand.WATSON, reference, sample),
+				ma.getMethylationVCFFile(Strand.CRICK, reference, sample),
+				ma.getMethylcytosinesFile(reference, sample),
+				ma.getMethylcytosinesVCFFile(reference, sample)));
+		for (File bed : bedFiles) {
+			files.add(ma.getMethylatedRegionsFile(reference, sample, bed));
+		}
+
+		Map<String, String> output = new LinkedHashMap<>();
+		for (File file : files) {
+			if (file.exists()) {
+				output.put(file.getName(), Utils.readFile(file));
+				file.delete();
+			}
+		}
+
+		File summaryFile = ma.getSummaryFile(reference, sample);
+		String summary = Utils.readFile(summaryFile);
+		summary = summary.substring(0, summary.indexOf("====I/O STATISTICS")).replaceFirst("Date: [^\\n]*\\n", "");
+		output.put(summaryFile.getName(), summary);
+		summaryFile.delete();
+
+		return output;
+	}
+
+	@Test
+	public void testTinyShards() throws IOException, InterruptedException {
+		Project project = prepareProject(new File(Utils.getReadsDirectory()), true, false);
+		try {
+			MethylationAnalysis ma = new MethylationAnalysis(project);
+			ma.setNativeCaller(true);
+			Analysis analysis = withControlGenome(true, 4, 1);
+			for (Sample sample : project.getSamples()) {
+				for (Reference reference : project.getReferences()) {
+					// one shard per contig
+					ma.setShardSize(NativeMethylationCaller.DEFAULT_SHARD_SIZE);
+					analysis.run(ma, reference, sample);
+					Map<String, String> expected = readOutput(ma, reference, sample);
+
+					// one position, less than a read and a window that would span the next contig (they are 70
+					// and 81 bp, and 1120 bp the longest)
+					for (int shardSize : new int[]{1, 10, 75}) {
+						ma.setShardSize(shardSize);
+						analysis.run(ma, reference, sample);
+						assertEquals("shard size " + shardSize, expected, readOutput(ma, reference, sample));
+						assertFalse(ma.getShardDirectory(reference, sample).exists());
+					}
+				}
+			}
+		} finally {
+			Utils.deleteDirOnJVMExit(project.getProjectDirectory());
+		}
+	}
+
+	@Test
+	public void testResumeRecomputesOnlyTheDamagedShards() throws IOException, InterruptedException {
+		Project project = prepareProject(new File(Utils.getReadsDirectory()), true, false);
+		try {
+			MethylationAnalysis ma = new MethylationAnalysis(project);
+			ma.setNativeCaller(true);
+			Analysis analysis = withControlGenome(true, 4, 1);
+			for (Sample sample : project.getSamples()) {
+				for (Reference reference : project.getReferences()) {
+					analysis.run(ma, reference, sample);
+					Map<String, String> expected = readOutput(ma, reference, sample);
+
+					ma.setShardSize(10);
+					File shardDirectory = ma.getShardDirectory(reference, sample);
+					File blocked = blockOutput(ma, reference, sample);
+					runAndFail(analysis, ma, reference, sample);
+					Set<String> segments = touchSegments(shardDirectory);
+					assertTrue(segments.size() > 100);
+
+					// one .done missing, one corrupted after its fingerprint and one describing a truncated segment
+					assertTrue(new File(shardDirectory, "shard000003.done").delete());
+					RandomAccessFile done = new RandomAccessFile(new File(shardDirectory, "shard000007.done"), "rw");
+					try {
+						// the last byte before the checksum
+						long position = done.length() - 9;
+						done.seek(position);
+						int value = done.read();
+						done.seek(position);
+						done.write(value ^ 0x01);
+					} finally {
+						done.close();
+					}
+					File truncated = null;
+					for (File segment : shardDirectory.listFiles()) {
+						if (segment.getName().endsWith("_WATSON.methylation") && (truncated == null || segment
+								.length() > truncated.length())) {
+							truncated = segment;
+						}
+					}
+					assertTrue(truncated.length() > 0);
+					RandomAccessFile segment = new RandomAccessFile(truncated, "rw");
+					try {
+						segment.setLength(truncated.length() - 1);
+					} finally {
+						segment.close();
+					}
+					assertTrue(truncated.setLastModified(OLD_TIME));
+					String truncatedShard = truncated.getName().substring(0, truncated.getName().indexOf('_'));
+
+					runAndFail(analysis, ma, reference, sample);
+					Set<String> recomputed = new HashSet<String>();
+					for (String shard : Arrays.asList("shard000003", "shard000007", truncatedShard)) {
+						recomputed.add(shard + "_WATSON.methylation");
+						recomputed.add(shard + "_CRICK.methylation");
+					}
+					assertEquals(recomputed, changedSegments(shardDirectory));
+
+					unblockOutput(blocked);
+					analysis.run(ma, reference, sample);
+					assertEquals(expected, readOutput(ma, reference, sample));
+					assertFalse(shardDirectory.exists());
+					ma.setShardSize(NativeMethylationCaller.DEFAULT_SHARD_SIZE);
+				}
+			}
+		} finally {
+			Utils.deleteDirOnJVMExit(project.getProjectDirectory());
+		}
+	}
+
+	@Test
+	public void testSettingsInvalidateTheShards() throws IOException, InterruptedException {
+		Project project = prepareProject(new File(Utils.getReadsDirectory()), true, false);
+		try {
+			MethylationAnalysis ma = new MethylationAnalysis(project);
+			ma.setNativeCaller(true);
+			Analysis[] analyses = new Analysis[]{
+					withControlGenome(true, 4, 1),
+					withControlGenome(true, 4, 2), // mindepth
+					withControlGenome(true, 2, 2), // trim until
+					withControlGenome(false, 2, 2) // no trim
+			};
+			for (Sample sample : project.getSamples()) {
+				for (Reference reference : project.getReferences()) {
+					ma.setShardSize(10);
+					File shardDirectory = ma.getShardDirectory(reference, sample);
+					File blocked = blockOutput(ma, reference, sample);
+					runAndFail(analyses[0], ma, reference, sample);
+					Set<String> segments = touchSegments(shardDirectory);
+
+					// the same settings reuse every shard
+					runAndFail(analyses[0], ma, reference, sample);
+					assertTrue(changedSegments(shardDirectory).isEmpty());
+
+					for (int i = 1; i < analyses.length; i++) {
+						runAndFail(analyses[i], ma, reference, sample);
+						assertEquals("analysis " + i, segments, changedSegments(shardDirectory));
+						touchSegments(shardDirectory);
+					}
+
+					unblockOutput(blocked);
+					analyses[analyses.length - 1].run(ma, reference, sample);
+					Map<String, String> resumed = readOutput(ma, reference, sample);
+
+					ma.setShardSize(NativeMethylationCaller.DEFAULT_SHARD_SIZE);
+					analyses[analyses.length - 1].run(ma, reference, sample);
+					assertEquals(readOutput(ma, reference, sample), resumed);
+				}
+			}
+		} finally {
+			Utils.deleteDirOnJVMExit(project.getProjectDirectory());
+		}
+	}
+
+	/**
+	 * Makes the Watson methylation file a directory that is not empty, so the native caller fails once every shard
+	 * is called, when it joins them, and leaves the shards behind.
+	 */
+	private static File blockOutput(MethylationAnalysis ma, Reference reference, Sample sample) throws
+			IOException {
+		File output = ma.getMethylationFile(Strand.WATSON, reference, sample);
+		assertTrue(output.mkdirs());
+		Utils.touchFile(output, "blocked");
+		return output;
+	}
+
+	private static void unblockOutput(File output) {
+		assertTrue(Utils.deleteDir(output));
+	}
+
+	private static void runAndFail(Analysis analysis, MethylationAnalysis ma, Reference reference, Sample sample)
+			throws InterruptedException {
+		try {
+			analysis.run(ma, reference, sample);
+			fail("the analysis should fail to write " + ma.getMethylationFile(Strand.WATSON, reference, sample));
+		} catch (IOException e) {
+			assertTrue(ma.getShardDirectory(reference, sample).isDirectory());
+		}
+	}
+
+	/**
+	 * Sets the segments of the shards back to OLD_TIME, so the ones called again can be told apart, and returns
+	 * their names.
+	 */
+	private static Set<String> touchSegments(File shardDirectory) {
+		Set<String> names = new HashSet<String>();
+		for (File segment : shardDirectory.listFiles()) {
+			if (segment.getName().endsWith(".methylation")) {
+				assertTrue(segment.setLastModified(OLD_TIME));
+				names.add(segment.getName());
+			}
+		}
+		return names;
+	}
+
+	private static Set<String> changedSegments(File shardDirectory) {
+		Set<String> names = new HashSet<String>();
+		for (File segment : shardDirectory.listFiles()) {
+			if (segment.getName().endsWith(".methylation") && segment.lastModified() != OLD_TIME) {
+				names.add(segment.getName());
+			}
+		}
+		return names;
+	}
+}
@@ -0,0 +1,129 @@
+package es.cnio.bioinfo.bicycle.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import es.cnio.bioinfo.bicycle.operations.AdjustedPValueTableWriter;
+import es.cnio.bioinfo.bicycle.operations.PValueStore;
+import es.uvigo.ei.sing.math.statistical.corrections.FDRCorrection;
+
+public class PValueStoreTest {
+
+	private static final File TMP_DIR = new File(System.getProperty("java.io.tmpdir"));
+
+	@Test
+	public void testBenjaminiHochberg() {
+		double[] pValues = new double[]{0.01, 0.04, 0.03, 0.04, 0.5, Double.NaN};
+
+		try (PValueStore store = new PValueStore(TMP_DIR)) {
+			for (double pValue : pValues) {
+				store.add(pValue);
+			}
+			store.adjust();
+
+			// the NaN p-value is counted
+			assertEquals(6, store.size());
+			assertEquals(0.06, store.getQValue(0.01), 1e-15);
+			assertEquals(0.06, store.getQValue(0.03), 1e-15);
+			assertEquals(0.06, store.getQValue(0.04), 1e-15);
+			assertEquals(0.6, store.getQValue(0.5), 1e-15);
+			assertEquals(1, store.getQValue(Double.NaN), 0);
+		}
+	}
+
+	@Test
+	public void testSameAsFDRCorrection() throws InterruptedException {
+		Random random = new Random(2);
+		for (boolean withNaN : new boolean[]{false, true}) {
+			double[] pValues = new double[5000];
+			for (int i = 0; i < pValues.length; i++) {
+				if (withNaN && random.nextInt(50) == 0) {
+					pValues[i] = Double.NaN;
+				} else {
+					pValues[i] = random.nextInt(3) == 0 ? random.nextInt(20) / 20d : random.nextDouble() / 10;
+				}
+			}
+			double[] expected = new FDRCorrection().correct(pValues.clone());
+
+			try (PValueStore inMemory = new PValueStore(TMP_DIR);
+				 PValueStore spilled = new PValueStore(333, TMP_DIR)) {
+				for (double pValue : pValues) {
+					inMemory.add(pValue);
+					spilled.add(pValue);
+				}
+				inMemory.adjust();
+				spilled.adjust();
+
+				for (int i = 0; i < pValues.length; i++) {
+					assertEquals("p-value " + pValues[i], expected[i], inMemory.getQValue(pValues[i]), 1e-15);
+					assertEquals("p-value " + pValues[i], expected[i], spilled.getQValue(pValues[i]), 1e-15);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSpilledSameAsInMemory() {
+		Random random = new Random(1);
+		double[] pValues = new double[10000];
+		for (int i = 0; i < pValues.length; i++) {
+			// repeated values, as in low coverage sites
+			pValues[i] = random.nextInt(3) == 0 ? random.nextInt(20) / 20d : random.nextDouble();
+		}
+
+		try (PValueStore inMemory = new PValueStore(TMP_DIR);
+			 PValueStore spilled = new PValueStore(777, TMP_DIR)) {
+			for (double pValue : pValues) {
+				inMemory.add(pValue);
+				spilled.add(pValue);
+			}
+			inMemory.adjust();
+			spilled.adjust();
+
+			double[] expected = naiveBenjaminiHochberg(pValues);
+			for (int i = 0; i < pValues.length; i++) {
+				assertEquals(expected[i], inMemory.getQValue(pValues[i]), 1e-15);
+				assertEquals(expected[i], spilled.getQValue(pValues[i]), 1e-15);
+			}
+		}
+	}
+
+	@Test
+	public void testTableWriter() throws IOException {
+		File output = File.createTempFile("adjusted", ".tsv");
+		output.deleteOnExit();
+
+		AdjustedPValueTableWriter writer = new AdjustedPValueTableWriter(output, 2);
+		writer.writeHeader("#name\tp-value\tq-value");
+		writer.writeRow("a\t0.02", 0.02);
+		writer.writeRow("xb\t0.01\txc\t0.5", 1, 7, 0.01);
+		writer.writeRow("c\t0.5", 0.5);
+		writer.close();
+
+		assertEquals("#name\tp-value\tq-value\n" +
+				"a\t0.02\t0.03\n" +
+				"b\t0.01\t0.03\n" +
+				"c\t0.5\t0.5", Utils.readFile(output));
+	}
+
+	private static double[] naiveBenjaminiHochberg(double[] pValues) {
+		int n = pValues.length;
+		double[] sorted = pValues.clone();
+		Arrays.sort(sorted);
+		double[] qValues = new double[n];
+		for (int i = 0; i < n; i++) {
+			double min = 1;
+			for (int j = n - 1; j >= 0 && sorted[j] >= pValues[i]; j--) {
+				min = Math.min(min, sorted[j] * n / (j + 1));
+			}
+			qValues[i] = min;
+		}
+		return qValues;
+	}
+}
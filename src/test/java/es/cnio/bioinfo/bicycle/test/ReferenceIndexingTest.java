@@ -0,0 +1,75 @@
+package es.cnio.bioinfo.bicycle.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import es.cnio.bioinfo.bicycle.Project;
+import es.cnio.bioinfo.bicycle.Reference;
+import es.cnio.bioinfo.bicycle.gatk.Context;
+import es.cnio.bioinfo.bicycle.gatk.CytosineContextIndex;
+import es.cnio.bioinfo.bicycle.operations.ReferenceIndexing;
+
+public class ReferenceIndexingTest {
+
+	@Test
+	public void test() throws IOException {
+		File tempDir = Utils.generateTempDirName("newproject");
+		File refsDir = Utils.generateTempDirName("refs");
+		refsDir.mkdir();
+		File genome = Utils.touchFile(refsDir, "genome01.fa");
+		Utils.append(genome, ">chr1 first sequence\nACGTA\nCGgcN\nAC\n>chr2\r\nGGCC\r\nTT\r\n>chr3\nCAG");
+		File irregular = Utils.touchFile(refsDir, "genome02.fa");
+		Utils.append(irregular, ">chr1\nACG\nA\nACG\n");
+		try {
+			Project p = Project.buildNewProject(
+					tempDir,
+					refsDir,
+					new File(Utils.getReadsDirectory()),
+					new File(Utils.getBowtiePath()),
+					new File(Utils.getBowtie2Path()),
+					new File(Utils.getSamtoolsPath()),
+					true);
+
+			ReferenceIndexing ri = new ReferenceIndexing(p);
+			for (Reference ref : p.getReferences()) {
+				ri.computeReferenceIndexes(ref);
+			}
+
+			Reference reference = p.getReferences().get(p.getReferences().get(0).getReferenceFile().equals(genome)
+					? 0 : 1);
+			assertEquals(Arrays.asList("chr1 first sequence", "chr2", "chr3"), reference.getSequenceNames());
+			assertEquals("chr1\t12\t21\t5\t6\nchr2\t6\t43\t4\t6\nchr3\t3\t59\t3\t3", Utils.readFile(reference
+					.getFastaIndexFile()));
+
+			String dictionary = Utils.readFile(reference.getSequenceDictionaryFile());
+			assertEquals(new File(refsDir, "genome01.dict"), reference.getSequenceDictionaryFile());
+			assertTrue(dictionary.contains("@SQ\tSN:chr1\tLN:12\t"));
+			assertTrue(dictionary.contains("@SQ\tSN:chr2\tLN:6\t"));
+			// md5sum of CAG
+			assertTrue(dictionary.contains("M5:1071376151581557c2add91fa8e2249e"));
+
+			assertTrue(Utils.readFile(reference.getStatisticsFile()).contains("total_length\t21"));
+
+			try (CytosineContextIndex contexts = new CytosineContextIndex(reference.getContextIndexFile())) {
+				assertEquals(12, contexts.getSequence("chr1").getLength());
+				assertEquals(Context.CG, contexts.getContext("chr1", 2));
+				assertEquals(Context.CHH, contexts.getContext("chr2", 3));
+				assertEquals(Context.CHG, contexts.getContext("chr3", 1));
+			}
+
+			Reference other = p.getReferences().get(p.getReferences().indexOf(reference) == 0 ? 1 : 0);
+			assertEquals(Arrays.asList("chr1"), other.getSequenceNames());
+			assertFalse(other.getFastaIndexFile().exists());
+		} finally {
+			Utils.deleteDir(tempDir);
+			Utils.deleteDir(refsDir);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package es.cnio.bioinfo.bicycle.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import es.cnio.bioinfo.bicycle.operations.SAMLineRewriter;
+
+public class SAMLineRewriterTest {
+
+	@Test
+	public void testSingleEnd() {
+		SAMLineRewriter rewriter = new SAMLineRewriter();
+
+		assertEquals("read1\t0\tchr1\t10\t255\t4M\t*\t0\t0\tACGT\tIIII\tXA:i:0",
+				rewriter.rewrite("read1||ACGT\t0\tchr1\t10\t255\t4M\t*\t0\t0\tATGT\tIIII\tXA:i:0\n"));
+		assertFalse(rewriter.isHeader());
+		assertFalse(rewriter.isUnaligned());
+
+		assertEquals("read2\t16\tchr1\t10\t255\t4M\t*\t0\t0\tAACG\tIIII",
+				rewriter.rewrite("read2||CGTT\t16\tchr1\t10\t255\t4M\t*\t0\t0\tAATG\tIIII"));
+
+		assertEquals("read3\t4\t*\t0\t0\t*\t*\t0\t0\tACGN\tIIII",
+				rewriter.rewrite("read3||ACGN\t4\t*\t0\t0\t*\t*\t0\t0\tATGN\tIIII"));
+		assertTrue(rewriter.isUnaligned());
+	}
+
+	@Test
+	public void testPairedEnd() {
+		SAMLineRewriter mate1 = new SAMLineRewriter();
+		SAMLineRewriter mate2 = new SAMLineRewriter();
+
+		assertEquals("pair/1\t99\tchr1\t10\t255\t4M\t=\t20\t14\tACGT\tIIII",
+				mate1.rewrite("pair||ACGT||GGCA\t99\tchr1\t10\t255\t4M\t=\t20\t14\tATGT\tIIII"));
+		assertEquals("pair/2\t147\tchr1\t20\t255\t4M\t=\t10\t-14\tTGCC\tIIII",
+				mate2.rewrite("pair||ACGT||GGCA\t147\tchr1\t20\t255\t4M\t=\t10\t-14\tTGCC\tIIII"));
+
+		assertTrue(mate1.hasSameReadName(mate2, true));
+		assertFalse(mate1.hasSameReadName(mate2, false));
+	}
+
+	@Test
+	public void testHeader() {
+		SAMLineRewriter rewriter = new SAMLineRewriter();
+		assertEquals("@SQ\tSN:chr1\tLN:100", rewriter.rewrite("@SQ\tSN:chr1\tLN:100\n"));
+		assertTrue(rewriter.isHeader());
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testMalformedFlag() {
+		new SAMLineRewriter().rewrite("pair||ACGT||GGCA\t1\tchr1\t10\t255\t4M\t=\t20\t14\tATGT\tIIII");
+	}
+
+	@Test
+	public void testRandomRecords() {
+		Random random = new Random(1);
+		SAMLineRewriter rewriter = new SAMLineRewriter();
+		for (int i = 0; i < 10000; i++) {
+			boolean paired = random.nextBoolean();
+			String read1 = randomRead(random);
+			String read2 = randomRead(random);
+			int flag = (random.nextBoolean() ? 0x10 : 0) | (random.nextBoolean() ? 0x4 : 0);
+			if (paired) {
+				flag |= 0x1 | (random.nextBoolean() ? 0x40 : 0x80);
+			}
+			String read = (flag & 0x80) != 0 ? read2 : read1;
+			StringBuilder line = new StringBuilder("r").append(i).append("||").append(read1);
+			if (paired) {
+				line.append("||").append(read2);
+			}
+			line.append('\t').append(flag).append("\tchr1\t").append(random.nextInt(1000)).append("\t255\t")
+					.append((flag & 0x4) != 0 ? "*" : read.length() + "M").append("\t*\t0\t0\t")
+					.append(read.replace('C', 'T')).append('\t').append(read.replace(read.charAt(0), 'I'));
+			for (int j = random.nextInt(4); j > 0; j--) {
+				line.append("\tXM:i:").append(j);
+			}
+			line.append(random.nextBoolean() ? "\n" : "");
+
+			assertEquals(replaceOriginalRead(line.toString()).trim(), rewriter.rewrite(line.toString()));
+			assertEquals((flag & 0x4) != 0, rewriter.isUnaligned());
+		}
+	}
+
+	private static String randomRead(Random random) {
+		StringBuilder read = new StringBuilder();
+		for (int i = 1 + random.nextInt(300); i > 0; i--) {
+			read.append("ACGTN".charAt(random.nextInt(5)));
+		}
+		return read.toString();
+	}
+
+	// the split based rewriting previously done in BowtieAlignment
+	private static String replaceOriginalRead(String samline) {
+		String[] tokens = samline.split("[\t]");
+		String[] firstColumn = tokens[0].split("[|][|]");
+		int flag = Integer.parseInt(tokens[1]);
+		String originalRead = firstColumn[1];
+		String suffix = "";
+		if ((flag & 0x0001) == 0x0001) {
+			suffix = (flag & 0x0040) == 0x0040 ? "/1" : "/2";
+			originalRead = (flag & 0x0040) == 0x0040 ? firstColumn[1] : firstColumn[2];
+		}
+		if ((flag & 0x0010) == 0x0010) {
+			StringBuilder reverse = new StringBuilder();
+			for (int i = originalRead.length() - 1; i >= 0; i--) {
+				char c = originalRead.charAt(i);
+				reverse.append(c == 'A' ? 'T' : c == 'T' ? 'A' : c == 'C' ? 'G' : c == 'G' ? 'C' : c);
+			}
+			originalRead = reverse.toString();
+		}
+		StringBuilder lineModified = new StringBuilder(firstColumn[0]).append(suffix).append("\t");
+		for (int j = 1; j < tokens.length; j++) {
+			lineModified.append(j == 9 ? originalRead : tokens[j]).append("\t");
+		}
+		return lineModified.toString();
+	}
+}